@@ -0,0 +1,69 @@
+package com.burgershopproject.imageserver.benchmarks;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.burgershopproject.imageserver.models.Image;
+
+/**
+ * Cost of converting between the bytes of an image and the base64 String of its JSON.
+ * Images stored as base64 are decoded with the MIME decoder, which tolerates line breaks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Base64Benchmark {
+
+	@Param({"1024", "65536", "1048576"})
+	int size;
+
+	private byte[] content;
+	private String encoded;
+
+	@Setup
+	public void setup() {
+		content = BenchmarkApplication.image("image", size, 1).getContent();
+		encoded = Base64.getEncoder().encodeToString(content);
+	}
+
+	@Benchmark
+	public String encode() {
+		return Base64.getEncoder().encodeToString(content);
+	}
+
+	@Benchmark
+	public byte[] decode() {
+		return Base64.getDecoder().decode(encoded);
+	}
+
+	@Benchmark
+	public byte[] decodeMime() {
+		return Base64.getMimeDecoder().decode(encoded);
+	}
+
+	/**
+	 * Image.getContent for an Image still held as base64
+	 */
+	@Benchmark
+	public byte[] imageContent() {
+		Image image = new Image();
+		image.setImage(encoded);
+		return image.getContent();
+	}
+
+}
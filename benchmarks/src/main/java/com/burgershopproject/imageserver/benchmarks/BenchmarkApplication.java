@@ -0,0 +1,69 @@
+package com.burgershopproject.imageserver.benchmarks;
+
+import java.util.Random;
+
+import org.springframework.boot.Banner;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.burgershopproject.imageserver.ImageServerApplication;
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.services.ImageService;
+
+/**
+ * Starts the image server against the embedded database of the benchmark profile
+ * and fills it with Images to read back
+ */
+final class BenchmarkApplication {
+
+	private BenchmarkApplication() {
+	}
+
+	/**
+	 * @param properties overriding the benchmark profile, as name=value
+	 * @return the running application, to be closed when the trial ends
+	 */
+	static ConfigurableApplicationContext start(String... properties) {
+		return new SpringApplicationBuilder(ImageServerApplication.class)
+				.profiles("benchmark")
+				.properties(properties)
+				.bannerMode(Banner.Mode.OFF)
+				.run();
+	}
+
+	/**
+	 * Creates Images named by {@link #name(int)}, each with different bytes so none are deduplicated
+	 * @param service
+	 * @param count
+	 * @param size of each image in bytes
+	 */
+	static void seed(ImageService service, int count, int size) {
+		for (int i = 0; i < count; i++) {
+			service.createImage(image(name(i), size, i));
+		}
+	}
+
+	static String name(int index) {
+		return String.format("image%05d", index);
+	}
+
+	/**
+	 * An Image holding random bytes, which neither compress nor decode as an image
+	 * @param name
+	 * @param size in bytes
+	 * @param seed
+	 * @return Image
+	 */
+	static Image image(String name, int size, long seed) {
+		byte[] content = new byte[size];
+		new Random(seed).nextBytes(content);
+		Image image = new Image();
+		image.setName(name);
+		image.setType("image/png");
+		image.setDescription("Benchmark image " + name);
+		image.setContent(content);
+		image.setSize(Long.valueOf(size));
+		return image;
+	}
+
+}
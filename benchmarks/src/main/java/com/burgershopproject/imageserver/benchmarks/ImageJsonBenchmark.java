@@ -0,0 +1,80 @@
+package com.burgershopproject.imageserver.benchmarks;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageDto;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Jackson serialisation of Image and a page of Images, as written by GET /image/{name}
+ * and GET /image?include=content, and deserialisation as read by POST and PUT /image.
+ * Images held in binary form are base64 encoded while they are serialised.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageJsonBenchmark {
+
+	private static final int PAGE_SIZE = 20;
+
+	@Param({"1024", "65536", "1048576"})
+	int size;
+
+	private ObjectMapper objectMapper;
+	private Image image;
+	private ImageDto<Image> page;
+	private byte[] json;
+
+	@Setup
+	public void setup() throws Exception {
+		/*
+		 * Configured as Spring Boot configures the ObjectMapper of the server
+		 */
+		objectMapper = Jackson2ObjectMapperBuilder.json().build();
+		image = BenchmarkApplication.image("image", size, 1);
+		image.setVersion(0L);
+		image.setLastModified(Instant.now());
+		List<Image> images = new ArrayList<>();
+		for (int i = 0; i < PAGE_SIZE; i++) {
+			images.add(image);
+		}
+		page = new ImageDto<>(0, PAGE_SIZE, PAGE_SIZE, "name", "ASC", images);
+		json = objectMapper.writeValueAsBytes(image);
+	}
+
+	@Benchmark
+	public byte[] serializeImage() throws Exception {
+		return objectMapper.writeValueAsBytes(image);
+	}
+
+	@Benchmark
+	public byte[] serializePage() throws Exception {
+		return objectMapper.writeValueAsBytes(page);
+	}
+
+	@Benchmark
+	public Image deserializeImage() throws Exception {
+		return objectMapper.readValue(json, Image.class);
+	}
+
+}
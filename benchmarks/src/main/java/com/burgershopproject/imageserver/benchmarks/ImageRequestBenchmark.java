@@ -0,0 +1,89 @@
+package com.burgershopproject.imageserver.benchmarks;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.WebApplicationContext;
+
+import com.burgershopproject.imageserver.services.ImageService;
+
+/**
+ * The full request path through MockMvc: filters, ImageController, ImageService and
+ * the message converters, without the network. The Image cache has its default size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageRequestBenchmark {
+
+	private static final int IMAGES = 200;
+
+	@Param({"1024", "65536"})
+	int size;
+
+	private ConfigurableApplicationContext context;
+	private MockMvc mvc;
+	private int next;
+
+	@Setup
+	public void setup() {
+		context = BenchmarkApplication.start();
+		BenchmarkApplication.seed(context.getBean(ImageService.class), IMAGES, size);
+		mvc = MockMvcBuilders.webAppContextSetup((WebApplicationContext) context).build();
+	}
+
+	@TearDown
+	public void teardown() {
+		context.close();
+	}
+
+	private String nextName() {
+		next = (next + 1) % IMAGES;
+		return BenchmarkApplication.name(next);
+	}
+
+	private int perform(RequestBuilder request) throws Exception {
+		return mvc.perform(request).andReturn().getResponse().getContentAsByteArray().length;
+	}
+
+	@Benchmark
+	public int getImage() throws Exception {
+		return perform(get("/image/{name}", nextName()));
+	}
+
+	@Benchmark
+	public int getImageContent() throws Exception {
+		return perform(get("/image/{name}/content", nextName()));
+	}
+
+	@Benchmark
+	public int getImageSummaries() throws Exception {
+		return perform(get("/image").param("limit", "20"));
+	}
+
+	@Benchmark
+	public int getImagesWithContent() throws Exception {
+		return perform(get("/image").param("limit", "20").param("include", "content"));
+	}
+
+}
@@ -0,0 +1,86 @@
+package com.burgershopproject.imageserver.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageDto;
+import com.burgershopproject.imageserver.models.ImageSummary;
+import com.burgershopproject.imageserver.services.ImageService;
+
+/**
+ * ImageService reads against the embedded database, with the Image cache disabled
+ * (cacheMaxBytes=0) so every read goes to the database, or large enough to hold every Image
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageServiceBenchmark {
+
+	private static final int IMAGES = 200;
+	private static final int PAGE_SIZE = 20;
+
+	@Param({"1024", "65536"})
+	int size;
+
+	@Param({"0", "67108864"})
+	long cacheMaxBytes;
+
+	private ConfigurableApplicationContext context;
+	private ImageService service;
+	private int next;
+
+	@Setup
+	public void setup() {
+		context = BenchmarkApplication.start("services.image.cache.max-bytes=" + cacheMaxBytes);
+		service = context.getBean(ImageService.class);
+		BenchmarkApplication.seed(service, IMAGES, size);
+	}
+
+	@TearDown
+	public void teardown() {
+		context.close();
+	}
+
+	private String nextName() {
+		next = (next + 1) % IMAGES;
+		return BenchmarkApplication.name(next);
+	}
+
+	@Benchmark
+	public Image getImageByName() {
+		return service.getImageByName(nextName());
+	}
+
+	@Benchmark
+	public ImageSummary getImageSummary() {
+		return service.getImageSummary(nextName());
+	}
+
+	@Benchmark
+	public ImageDto<Image> getImages() {
+		return service.getImages(0, PAGE_SIZE, "name", "ASC", null, true);
+	}
+
+	@Benchmark
+	public ImageDto<ImageSummary> getImageSummaries() {
+		return service.getImageSummaries(0, PAGE_SIZE, "name", "ASC", null, true);
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.burgershopproject.imageserver.configuration;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+
+import com.burgershopproject.imageserver.repositories.TimedJpaRepositoryFactoryBean;
+import com.burgershopproject.imageserver.services.ImageMetrics;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Times repository methods and JSON serialization separately, so the database
+ * and serialization can be told apart in the latency of a request
+ */
+@Configuration
+@EnableJpaRepositories(basePackages = "com.burgershopproject.imageserver.repositories", repositoryFactoryBeanClass = TimedJpaRepositoryFactoryBean.class)
+public class MetricsConfig {
+
+	/**
+	 * Replaces the JSON converter Spring Boot would configure with the same ObjectMapper
+	 */
+	@Bean
+	public MappingJackson2HttpMessageConverter mappingJackson2HttpMessageConverter(ObjectMapper objectMapper, ImageMetrics metrics) {
+		return new TimedJsonHttpMessageConverter(objectMapper, metrics);
+	}
+
+}
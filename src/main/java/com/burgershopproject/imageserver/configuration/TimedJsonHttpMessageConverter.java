@@ -0,0 +1,75 @@
+package com.burgershopproject.imageserver.configuration;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+
+import com.burgershopproject.imageserver.services.ImageMetrics;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writes JSON responses as the default converter does, recording the time spent serializing
+ * each body and the bytes written, so serialization can be told apart from database time
+ */
+class TimedJsonHttpMessageConverter extends MappingJackson2HttpMessageConverter {
+
+	private final ImageMetrics metrics;
+
+	TimedJsonHttpMessageConverter(ObjectMapper objectMapper, ImageMetrics metrics) {
+		super(objectMapper);
+		this.metrics = metrics;
+	}
+
+	@Override
+	protected void writeInternal(Object object, Type type, HttpOutputMessage outputMessage) throws IOException {
+		CountingOutputStream body = new CountingOutputStream(outputMessage.getBody());
+		long start = System.nanoTime();
+		super.writeInternal(object, type, new HttpOutputMessage() {
+
+			@Override
+			public HttpHeaders getHeaders() {
+				return outputMessage.getHeaders();
+			}
+
+			@Override
+			public OutputStream getBody() {
+				return body;
+			}
+
+		});
+		metrics.recordSerialization(object, System.nanoTime() - start, body.count);
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,214 @@
+package com.burgershopproject.imageserver.controllers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Iterator;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+
+import com.burgershopproject.imageserver.services.ContentReadPool;
+
+/**
+ * Writes a response body with non-blocking servlet output. Each chunk is read on the
+ * ContentReadPool and written while the client is ready for it, carrying on from
+ * onWritePossible when the client catches up, so no thread waits on a slow client.
+ * At most one chunk per response is held in memory, or the whole range of a part
+ * that is not read in chunks.
+ */
+final class AsyncBodyWriter implements WriteListener, AsyncListener {
+
+	private final Logger logger = LoggerFactory.getLogger(AsyncBodyWriter.class);
+
+	private final AsyncContext async;
+	private final ServletOutputStream out;
+	private final ContentReadPool readPool;
+	private final Iterator<BodyParts.Part> parts;
+
+	/*
+	 * Part being read, and the position of its next chunk
+	 */
+	private BodyParts.Part part;
+	private long offset;
+
+	/*
+	 * Chunk being written
+	 */
+	private ByteBuffer chunk;
+
+	private boolean reading;
+	private boolean done;
+
+	AsyncBodyWriter(AsyncContext async, ServletOutputStream out, BodyParts body, ContentReadPool readPool) {
+		this.async = async;
+		this.out = out;
+		this.readPool = readPool;
+		this.parts = body.getParts().iterator();
+	}
+
+	/**
+	 * Releases the request thread and writes the body in the background.
+	 * Status and headers must have been set already.
+	 * @param request
+	 * @param response
+	 * @param body
+	 * @param readPool
+	 * @throws IOException
+	 */
+	static void start(HttpServletRequest request, HttpServletResponse response, BodyParts body, ContentReadPool readPool) throws IOException {
+		AsyncContext async = request.startAsync(request, response);
+		async.setTimeout(readPool.getTimeoutMs());
+		ServletOutputStream out = response.getOutputStream();
+		AsyncBodyWriter writer = new AsyncBodyWriter(async, out, body, readPool);
+		async.addListener(writer);
+		out.setWriteListener(writer);
+	}
+
+	@Override
+	public void onWritePossible() {
+		pump();
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		fail(t);
+	}
+
+	@Override
+	public void onTimeout(AsyncEvent event) {
+		fail(new TimeoutException("Response not written within " + readPool.getTimeoutMs() + "ms"));
+	}
+
+	@Override
+	public void onError(AsyncEvent event) {
+		fail(event.getThrowable());
+	}
+
+	@Override
+	public void onComplete(AsyncEvent event) {
+	}
+
+	@Override
+	public void onStartAsync(AsyncEvent event) {
+	}
+
+	/**
+	 * Writes for as long as the client is ready, reading the next chunk when the current one is written.
+	 * Runs on a container thread from onWritePossible, or on the pool once a chunk has been read.
+	 */
+	synchronized void pump() {
+		try {
+			while (!done) {
+				if (chunk != null && chunk.hasRemaining()) {
+					if (!out.isReady()) {
+						return;
+					}
+					out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+					chunk.position(chunk.limit());
+				} else if (reading) {
+					return;
+				} else if (!next()) {
+					done = true;
+					async.complete();
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Moves on to the next chunk, taking bytes in memory straight away and reading anything else on the pool
+	 * @return false when the whole body has been written
+	 */
+	private boolean next() {
+		while (part == null || (part.writer != null && offset >= part.position + part.count)) {
+			if (!parts.hasNext()) {
+				return false;
+			}
+			part = parts.next();
+			offset = part.position;
+			if (part.bytes != null) {
+				chunk = ByteBuffer.wrap(part.bytes);
+				part = null;
+				return true;
+			}
+		}
+		BodyParts.Part reading = part;
+		long position = offset;
+		long remaining = reading.position + reading.count - offset;
+		long count = reading.writer != null ? (reading.chunked ? Math.min(readPool.getChunkBytes(), remaining) : remaining) : -1;
+		if (reading.writer != null) {
+			offset += count;
+		} else {
+			part = null;
+		}
+		this.reading = true;
+		readPool.execute(() -> read(reading, position, count));
+		return true;
+	}
+
+	private void read(BodyParts.Part reading, long position, long count) {
+		ByteBuffer read;
+		try {
+			if (reading.writer != null) {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) count);
+				if (reading.writer.write(position, count, Channels.newChannel(buffer)) < count) {
+					throw new EOFException("Image ended before byte " + (position + count));
+				}
+				read = ByteBuffer.wrap(buffer.toByteArray());
+			} else {
+				read = ByteBuffer.wrap(reading.produce());
+			}
+		} catch (IOException | RuntimeException e) {
+			fail(e);
+			return;
+		}
+		synchronized (this) {
+			chunk = read;
+			this.reading = false;
+		}
+		pump();
+	}
+
+	/**
+	 * Ends the response. Before anything has been sent the failure is reported with its status,
+	 * after that the response can only be cut short.
+	 */
+	synchronized void fail(Throwable e) {
+		if (done) {
+			return;
+		}
+		done = true;
+		HttpServletResponse response = (HttpServletResponse) async.getResponse();
+		if (e instanceof IOException) {
+			logger.debug("Response body not written", e);
+		} else {
+			logger.warn("Response body not written", e);
+		}
+		if (!response.isCommitted()) {
+			response.reset();
+			response.setStatus(e instanceof RejectedExecutionException ? HttpStatus.SERVICE_UNAVAILABLE.value() : HttpStatus.INTERNAL_SERVER_ERROR.value());
+		}
+		try {
+			async.complete();
+		} catch (IllegalStateException alreadyComplete) {
+			logger.debug("Response already complete", alreadyComplete);
+		}
+	}
+
+}
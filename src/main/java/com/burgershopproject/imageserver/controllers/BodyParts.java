@@ -0,0 +1,96 @@
+package com.burgershopproject.imageserver.controllers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * The parts of a response body in the order they are written: bytes already in memory,
+ * ranges of an image read from its store, or bytes produced only once the body is written.
+ * Ranges are read in chunks unless their store reads the whole image for any part of it.
+ */
+final class BodyParts {
+
+	private final List<Part> parts = new ArrayList<>();
+
+	BodyParts bytes(byte[] bytes) {
+		parts.add(new Part(bytes, null, 0, bytes.length, true, null));
+		return this;
+	}
+
+	BodyParts content(ContentWriter writer, long position, long count) {
+		return content(writer, position, count, true);
+	}
+
+	/**
+	 * @param chunked false when the range is to be read in one call
+	 */
+	BodyParts content(ContentWriter writer, long position, long count, boolean chunked) {
+		parts.add(new Part(null, writer, position, count, chunked, null));
+		return this;
+	}
+
+	BodyParts produced(Callable<byte[]> producer) {
+		parts.add(new Part(null, null, 0, -1, true, producer));
+		return this;
+	}
+
+	List<Part> getParts() {
+		return Collections.unmodifiableList(parts);
+	}
+
+	/**
+	 * Writes the whole body, blocking until the client has taken it
+	 * @param out
+	 * @throws IOException
+	 */
+	void writeTo(OutputStream out) throws IOException {
+		WritableByteChannel channel = Channels.newChannel(out);
+		for (Part part : parts) {
+			if (part.bytes != null) {
+				out.write(part.bytes);
+			} else if (part.writer != null) {
+				part.writer.write(part.position, part.count, channel);
+			} else {
+				out.write(part.produce());
+			}
+		}
+	}
+
+	static final class Part {
+
+		final byte[] bytes;
+		final ContentWriter writer;
+		final long position;
+		final long count;
+		final boolean chunked;
+		final Callable<byte[]> producer;
+
+		private Part(byte[] bytes, ContentWriter writer, long position, long count, boolean chunked, Callable<byte[]> producer) {
+			this.bytes = bytes;
+			this.writer = writer;
+			this.position = position;
+			this.count = count;
+			this.chunked = chunked;
+			this.producer = producer;
+		}
+
+		byte[] produce() throws IOException {
+			try {
+				return producer.call();
+			} catch (IOException | RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new UncheckedIOException(new IOException(e));
+			}
+		}
+
+	}
+
+}
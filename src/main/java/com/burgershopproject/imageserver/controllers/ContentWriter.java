@@ -0,0 +1,12 @@
+package com.burgershopproject.imageserver.controllers;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes part of an image to a channel
+ */
+@FunctionalInterface
+interface ContentWriter {
+	long write(long position, long count, WritableByteChannel target) throws IOException;
+}
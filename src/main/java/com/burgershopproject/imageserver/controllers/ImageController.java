@@ -1,14 +1,43 @@
 package com.burgershopproject.imageserver.controllers;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.MessageSource;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.MimeTypeUtils;
 import org.springframework.validation.BindingResult;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -16,15 +45,38 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.web.server.ResponseStatusException;
 
 import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageBatchItem;
+import com.burgershopproject.imageserver.models.ImageChangeEvent;
 import com.burgershopproject.imageserver.models.ImageDto;
+import com.burgershopproject.imageserver.models.ImageImportResult;
+import com.burgershopproject.imageserver.models.ImageRendition;
+import com.burgershopproject.imageserver.models.ImageSummary;
+import com.burgershopproject.imageserver.models.ImageVariant;
+import com.burgershopproject.imageserver.models.RenditionParameters;
+import com.burgershopproject.imageserver.services.ContentReadPool;
+import com.burgershopproject.imageserver.services.ContentStores;
+import com.burgershopproject.imageserver.services.HotImageTracker;
+import com.burgershopproject.imageserver.services.ImageArchiveService;
+import com.burgershopproject.imageserver.services.ImageChangeFeed;
+import com.burgershopproject.imageserver.services.ImageRenditionService;
+import com.burgershopproject.imageserver.services.ImageMetrics;
 import com.burgershopproject.imageserver.services.ImageService;
+import com.burgershopproject.imageserver.services.ImageVariantService;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -38,45 +90,595 @@ public class ImageController {
 	
     private final Logger logger = LoggerFactory.getLogger(ImageController.class);
     
+    private static final String INCLUDE_CONTENT = "content";
+    
+    private static final String HEADER_TYPE = "X-Image-Type";
+    private static final String HEADER_DESCRIPTION = "X-Image-Description";
+    private static final String HEADER_VERSION = "X-Image-Version";
+    
+    private static final String APPLICATION_NDJSON = "application/x-ndjson";
+    private static final String APPLICATION_ZIP = "application/zip";
+    
+    private static final String REVALIDATION_RECORDED = ImageController.class.getName() + ".revalidationRecorded";
+    
 	@Autowired
 	MessageSource messageSource;
 	
     @Autowired
 	ImageService service;
     
-    @ApiOperation(value = "Retrives a list of all Images in the repository", response = Image.class)
+    @Autowired
+	ImageRenditionService renditionService;
+    
+    @Autowired
+	ImageVariantService variantService;
+    
+    @Autowired
+	ImageArchiveService archiveService;
+    
+    @Autowired
+	ContentReadPool readPool;
+    
+    @Autowired
+	HotImageTracker hotImages;
+    
+    @Autowired
+	ImageChangeFeed changeFeed;
+    
+    @Autowired
+	ImageMetrics metrics;
+    
+	@Value("${services.image.upload.max-bytes:16777216}")
+	long maxUploadBytes;
+	
+	@Value("${services.image.batch.max-names:100}")
+	int maxBatchNames;
+	
+	@Value("${services.image.changes.timeout-ms:1800000}")
+	long changesTimeoutMillis;
+    
+    @Autowired
+	ObjectMapper objectMapper;
+    
+    @ApiOperation(value = "Retrives a list of all Images in the repository, the images themselves are only included with include=content. "
+    		+ "Pass nextCursor back as cursor to page through by name, type or description without offsets, and count=false to skip the total count. "
+    		+ "With q only the Images whose name or description contain every term are listed by name, metadata only, a term ending with * matching as a prefix", response = ImageSummary.class)
     @ApiResponses(value = {
         @ApiResponse(code = 200, message = "Successfully retrieved list"),
+        @ApiResponse(code = 400, message = "The cursor is not valid for the sort"),
         @ApiResponse(code = 401, message = "You are not authorized to view the resource"),
         @ApiResponse(code = 403, message = "Accessing the resource you were trying to reach is forbidden"),
+        @ApiResponse(code = 503, message = "The search index is still being built"),
     })
 	@ResponseStatus(HttpStatus.OK)
 	@GetMapping()
-	public ImageDto getImages(
+	public ImageDto<?> getImages(
             @RequestParam(defaultValue = "0") Integer offset, 
             @RequestParam(defaultValue = "20") Integer limit,
             @RequestParam(defaultValue = "name") String sortBy,
-            @RequestParam(defaultValue = "ASC") String direction) {
+            @RequestParam(defaultValue = "ASC") String direction,
+            @RequestParam(required = false) String include,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) Boolean count,
+            @RequestParam(required = false) String q) {
 		logger.debug("Get Images");
-		return service.getImages(offset, limit, sortBy, direction);
+		if (q != null) {
+			return metrics.time(ImageMetrics.LIST, () -> service.searchImages(q, offset, limit));
+		}
+		if (INCLUDE_CONTENT.equals(include)) {
+			return metrics.time(ImageMetrics.LIST, () -> service.getImages(offset, limit, sortBy, direction, cursor, count));
+		}
+		return metrics.time(ImageMetrics.LIST, () -> service.getImageSummaries(offset, limit, sortBy, direction, cursor, count));
 	}
 	
 	@ApiOperation("Retrieves a spacific Image by Name")
 	@ApiResponses(value = {@ApiResponse(code=200, message="Service completed successfully"),
+        @ApiResponse(code = 304, message = "Image has not been modified"),
         @ApiResponse(code = 401, message = "You are not authorized to view the resource"),
         @ApiResponse(code = 403, message = "Accessing the resource you were trying to reach is forbidden"),
         @ApiResponse(code=404, message="Image was not found")})
-	@ResponseStatus(HttpStatus.OK)
 	@GetMapping("/{name}")
-	public Image getImageByName(@PathVariable String name) {
-		logger.debug(getImageByName(name).getDescription());
-		Image image = service.getImageByName(name);
+	public Image getImageByName(@PathVariable String name, WebRequest request, HttpServletResponse response) throws IOException {
+		logger.debug("Get Image By Name: " + name);
+		Image image = readImage(name, request, response);
+		/*
+		 * Only names found are counted, so requests for names that do not exist are never tracked
+		 */
+		hotImages.record(name);
+		return image;
+	}
+	
+	private Image readImage(String name, WebRequest request, HttpServletResponse response) throws IOException {
+		if (isNotModified(name, name, request)) {
+			return null;
+		}
+		if (readPool.isAsync()) {
+			/*
+			 * Only the metadata is read on the request thread, the Image itself is read and serialized on the pool
+			 */
+			ImageSummary summary = service.getImageSummary(name);
+			if (summary == null) {
+				throw new ResponseStatusException(HttpStatus.NOT_FOUND, messageSource.getMessage("messages.imageNotFound", null, null));
+			}
+			checkNotModified(summary.getName(), summary.getVersion(), summary.getLastModified(), request);
+			response.setStatus(HttpStatus.OK.value());
+			response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+			writeBody(new BodyParts().produced(() -> serialize(metrics.time(ImageMetrics.GET, () -> service.getImageByName(name)))), request, response);
+			return null;
+		}
+		Image image = metrics.time(ImageMetrics.GET, () -> service.getImageByName(name));
 		if (image == null) {
 			throw new ResponseStatusException(HttpStatus.NOT_FOUND, messageSource.getMessage("messages.imageNotFound", null, null));
 		}
+		checkNotModified(image.getName(), image.getVersion(), image.getLastModified(), request);
 		return image;
 	}
 	
+	/**
+	 * Serializes a body written without the message converters, recording its time and size
+	 */
+	private byte[] serialize(Object body) throws IOException {
+		long start = System.nanoTime();
+		byte[] json = objectMapper.writeValueAsBytes(body);
+		metrics.recordSerialization(body, System.nanoTime() - start, json.length);
+		return json;
+	}
+	
+	@ApiOperation(value = "Retrieves many Images by Name in one request as a map keyed by name, or as one line per Image with Accept: application/x-ndjson. "
+			+ "Names that are not found are returned with status 404 rather than failing the request", response = ImageBatchItem.class, responseContainer = "Map")
+	@ApiResponses(value = {@ApiResponse(code=200, message="Service completed successfully"),
+        @ApiResponse(code = 400, message = "Too many names were requested"),
+        @ApiResponse(code = 401, message = "You are not authorized to view the resource"),
+        @ApiResponse(code = 403, message = "Accessing the resource you were trying to reach is forbidden")})
+	@PostMapping(value = "/batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+	public void getImagesByName(@RequestBody List<String> names, WebRequest request,
+			HttpServletResponse response) throws IOException {
+		logger.debug("Get Images By Name");
+		Set<String> uniqueNames = new LinkedHashSet<>(names);
+		if (uniqueNames.size() > maxBatchNames) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, messageSource.getMessage("messages.batchTooLarge", new Object[] {maxBatchNames}, null));
+		}
+		response.setStatus(HttpStatus.OK.value());
+		OutputStream out = response.getOutputStream();
+		if (acceptsNdjson(request)) {
+			/*
+			 * Each Image is written and flushed as soon as it is found
+			 */
+			response.setContentType(APPLICATION_NDJSON);
+			service.getImagesByName(uniqueNames, item -> {
+				try {
+					out.write(serialize(item));
+					out.write('\n');
+					out.flush();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			return;
+		}
+		Map<String, ImageBatchItem> items = new LinkedHashMap<>();
+		uniqueNames.forEach(name -> items.put(name, null));
+		service.getImagesByName(uniqueNames, item -> items.put(item.getName(), item));
+		response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+		out.write(serialize(items));
+	}
+	
+	@ApiOperation(value = "Streams the creates and replaces of Images as Server-Sent Events, or as one line per change with Accept: application/x-ndjson. "
+			+ "Each change carries the name, version, type and hash of the Image and a cursor, passed back as since or Last-Event-ID to resume after it. "
+			+ "Without a cursor only changes made from now on are streamed", response = ImageChangeEvent.class)
+	@ApiResponses(value = {@ApiResponse(code=200, message="Service completed successfully"),
+        @ApiResponse(code = 400, message = "The cursor is not valid"),
+        @ApiResponse(code = 401, message = "You are not authorized to view the resource"),
+        @ApiResponse(code = 403, message = "Accessing the resource you were trying to reach is forbidden"),
+        @ApiResponse(code = 404, message = "The change feed is not available as the change log is disabled"),
+        @ApiResponse(code = 410, message = "Changes after the cursor are no longer held"),
+        @ApiResponse(code = 503, message = "Too many subscribers to the change feed")})
+	@GetMapping("/changes")
+	public ResponseBodyEmitter getChanges(@RequestParam(required = false) String since,
+			@RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+			WebRequest request) {
+		logger.debug("Get Changes since " + (since != null ? since : lastEventId));
+		String cursor = since != null ? since : lastEventId;
+		if (acceptsNdjson(request)) {
+			ResponseBodyEmitter emitter = new ResponseBodyEmitter(changesTimeoutMillis) {
+				@Override
+				protected void extendResponse(ServerHttpResponse outputMessage) {
+					outputMessage.getHeaders().setContentType(MediaType.valueOf(APPLICATION_NDJSON));
+				}
+			};
+			/*
+			 * The changes of a batch are written and flushed together
+			 */
+			return subscribe(emitter, cursor, new ImageChangeFeed.Sink() {
+				@Override
+				public void send(List<ImageChangeEvent> events) throws IOException {
+					ByteArrayOutputStream lines = new ByteArrayOutputStream();
+					for (ImageChangeEvent event : events) {
+						lines.write(objectMapper.writeValueAsBytes(event));
+						lines.write('\n');
+					}
+					emitter.send(lines.toByteArray(), MediaType.valueOf(APPLICATION_NDJSON));
+				}
+				@Override
+				public void heartbeat() {
+					// blank lines are not valid NDJSON, a closed connection is noticed by the next change
+				}
+				@Override
+				public void close() {
+					emitter.complete();
+				}
+			});
+		}
+		SseEmitter emitter = new SseEmitter(changesTimeoutMillis);
+		return subscribe(emitter, cursor, new ImageChangeFeed.Sink() {
+			@Override
+			public void send(List<ImageChangeEvent> events) throws IOException {
+				for (ImageChangeEvent event : events) {
+					emitter.send(SseEmitter.event().id(event.getCursor()).name("change").data(event, MediaType.APPLICATION_JSON));
+				}
+			}
+			@Override
+			public void heartbeat() throws IOException {
+				emitter.send(SseEmitter.event().comment("heartbeat"));
+			}
+			@Override
+			public void close() {
+				emitter.complete();
+			}
+		});
+	}
+	
+	private ResponseBodyEmitter subscribe(ResponseBodyEmitter emitter, String cursor, ImageChangeFeed.Sink sink) {
+		ImageChangeFeed.Subscription subscription = changeFeed.subscribe(cursor, sink);
+		emitter.onCompletion(subscription::cancel);
+		emitter.onTimeout(subscription::cancel);
+		emitter.onError(e -> subscription.cancel());
+		return emitter;
+	}
+	
+	@ApiOperation(value = "Exports every Image with its image as a zip archive, streamed as the Images are read. "
+			+ "The archive holds manifest.json followed by images/{n}.json and images/{n}.bin for each Image")
+	@ApiResponses(value = {@ApiResponse(code=200, message="Service completed successfully"),
+        @ApiResponse(code = 401, message = "You are not authorized to view the resource"),
+        @ApiResponse(code = 403, message = "Accessing the resource you were trying to reach is forbidden")})
+	@GetMapping("/export")
+	public void exportImages(HttpServletResponse response) throws IOException {
+		logger.debug("Export Images");
+		response.setStatus(HttpStatus.OK.value());
+		response.setContentType(APPLICATION_ZIP);
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.builder("attachment").filename("images.zip").build().toString());
+		OutputStream out = response.getOutputStream();
+		metrics.time(ImageMetrics.EXPORT, () -> {
+			try {
+				return archiveService.exportImages(out);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+	
+	@ApiOperation(value = "Imports the Images of an archive produced by GET /image/export, committing them in batches. "
+			+ "Images whose names already exist are skipped, so an interrupted import can be repeated")
+	@ApiResponses(value = {@ApiResponse(code=200, message="Service completed successfully"),
+        @ApiResponse(code = 400, message = "The archive is not a valid export"),
+        @ApiResponse(code = 401, message = "You are not authorized to view the resource"),
+        @ApiResponse(code = 403, message = "Accessing the resource you were trying to reach is forbidden"),
+        @ApiResponse(code = 413, message = "An image in the archive is too large")})
+	@PostMapping(value = "/import", consumes = APPLICATION_ZIP)
+	public ImageImportResult importImages(HttpServletRequest request) throws IOException {
+		logger.debug("Import Images");
+		InputStream archive = request.getInputStream();
+		return metrics.time(ImageMetrics.IMPORT, () -> {
+			try {
+				return archiveService.importImages(archive);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+	
+	@ApiOperation("Retrieves the binary content of an Image by Name, optionally resized with w, h, fit (cover, contain, fill) and format (jpeg, png). Byte ranges can be requested with Range. "
+			+ "Without rendition parameters a smaller re-encoded variant is served when one is acceptable by Accept")
+	@ApiResponses(value = {@ApiResponse(code=200, message="Service completed successfully"),
+        @ApiResponse(code = 206, message = "The byte ranges requested with Range were returned"),
+        @ApiResponse(code = 304, message = "Image has not been modified"),
+        @ApiResponse(code = 400, message = "Rendition parameters are not valid"),
+        @ApiResponse(code = 401, message = "You are not authorized to view the resource"),
+        @ApiResponse(code = 403, message = "Accessing the resource you were trying to reach is forbidden"),
+        @ApiResponse(code=404, message="Image was not found"),
+        @ApiResponse(code = 416, message = "None of the byte ranges requested can be returned"),
+        @ApiResponse(code = 503, message = "Too many renditions in progress")})
+	@GetMapping("/{name}/content")
+	public void getImageContent(@PathVariable String name,
+			@RequestParam(required = false) Integer w,
+			@RequestParam(required = false) Integer h,
+			@RequestParam(required = false) String fit,
+			@RequestParam(required = false) String format,
+			WebRequest request, HttpServletResponse response) throws IOException {
+		logger.debug("Get Image Content: " + name);
+		writeImageContent(name, renditionService.parameters(w, h, fit, format), request, response);
+		hotImages.record(name);
+	}
+	
+	private void writeImageContent(String name, RenditionParameters parameters, WebRequest request, HttpServletResponse response) throws IOException {
+		if (parameters == null) {
+			writeOriginal(name, request, response);
+			return;
+		}
+		String variant = name + "?" + parameters;
+		if (isNotModified(name, variant, request)) {
+			return;
+		}
+		Image image = service.getImageByName(name);
+		if (image == null) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, messageSource.getMessage("messages.imageNotFound", null, null));
+		}
+		if (checkNotModified(variant, image.getVersion(), image.getLastModified(), request)) {
+			return;
+		}
+		ImageRendition rendition = renditionService.getRendition(image, parameters);
+		writeContent(rendition.getType(), rendition.getContent().length, contentWriter(rendition.getContent()), true,
+				eTag(variant, image.getVersion()), image.getLastModified(), request, response);
+	}
+	
+	/**
+	 * Writes the image as stored, or the smallest variant of it the Accept header allows.
+	 * The length is known from the metadata, so the image is transferred from its store
+	 * to the response without being loaded whole.
+	 * Images stored before their size was recorded are loaded instead.
+	 */
+	private void writeOriginal(String name, WebRequest request, HttpServletResponse response) throws IOException {
+		ImageSummary summary = service.getImageSummary(name);
+		if (summary == null) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, messageSource.getMessage("messages.imageNotFound", null, null));
+		}
+		if (variantService.isEnabled()) {
+			response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+			ImageVariant variant = variantService.select(summary, acceptedTypes(request));
+			if (variant != null) {
+				String eTag = "\"" + variant.getContentKey() + "\"";
+				if (checkNotModified(eTag, summary.getLastModified(), request)) {
+					return;
+				}
+				writeContent(variant.getType(), variant.getSize(), (position, count, target) -> variantService.transferContent(variant, position, count, target),
+						ContentStores.isExternal(variant.getContentStore()), eTag, summary.getLastModified(), request, response);
+				return;
+			}
+		}
+		String eTag = contentETag(summary);
+		if (checkNotModified(eTag, summary.getLastModified(), request)) {
+			return;
+		}
+		if (summary.getSize() == null) {
+			Image image = service.getImageByName(name);
+			writeContent(image.getType(), image.getContent().length, contentWriter(image.getContent()), true, eTag, summary.getLastModified(), request, response);
+			return;
+		}
+		writeContent(summary.getType(), summary.getSize(), (position, count, target) -> service.transferContent(summary, position, count, target),
+				ContentStores.isExternal(summary.getContentStore()), eTag, summary.getLastModified(), request, response);
+	}
+	
+	/**
+	 * The media types of the Accept header, empty when any type is accepted or the header cannot be parsed
+	 */
+	private static List<MediaType> acceptedTypes(WebRequest request) {
+		String accept = request.getHeader(HttpHeaders.ACCEPT);
+		if (accept == null) {
+			return Collections.emptyList();
+		}
+		try {
+			return MediaType.parseMediaTypes(accept);
+		} catch (InvalidMediaTypeException e) {
+			return Collections.emptyList();
+		}
+	}
+	
+	/**
+	 * @return true when the Accept header asks for NDJSON
+	 */
+	private static boolean acceptsNdjson(WebRequest request) {
+		return acceptedTypes(request).stream().anyMatch(MediaType.valueOf(APPLICATION_NDJSON)::equalsTypeAndSubtype);
+	}
+	
+	/**
+	 * Writes an image, or the byte ranges of it requested with a Range header.
+	 * The bytes are written straight to the response so the browser can use
+	 * the URL as an <img src> without any base64 handling.
+	 * @param type media type of the image
+	 * @param length of the image in bytes
+	 * @param writer writes a part of the image
+	 * @param chunked true when parts of the image can be read cheaply, false when the database would read
+	 * the whole image for every part so each range is read in one call
+	 * @param eTag of the image, for If-Range
+	 * @param lastModified of the image, for If-Range
+	 */
+	private void writeContent(String type, long length, ContentWriter writer, boolean chunked, String eTag, Instant lastModified,
+			WebRequest request, HttpServletResponse response) throws IOException {
+		response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+		List<HttpRange> ranges = requestedRanges(request, eTag, lastModified);
+		if (ranges.isEmpty()) {
+			response.setStatus(HttpStatus.OK.value());
+			response.setContentType(type);
+			response.setContentLengthLong(length);
+			metrics.recordResponseSize(ImageMetrics.REPRESENTATION_CONTENT, length);
+			writeBody(new BodyParts().content(writer, 0, length, chunked), request, response);
+			return;
+		}
+		List<long[]> satisfiable = new ArrayList<>();
+		long total = 0;
+		for (HttpRange range : ranges) {
+			long start = range.getRangeStart(length);
+			if (start < length) {
+				long end = range.getRangeEnd(length);
+				satisfiable.add(new long[] {start, end});
+				total += end - start + 1;
+			}
+		}
+		/*
+		 * Overlapping ranges adding up to more than the image are refused rather than amplified
+		 */
+		if (satisfiable.isEmpty() || total > length) {
+			response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+			throw new ResponseStatusException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, messageSource.getMessage("messages.rangeNotSatisfiable", null, null));
+		}
+		response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+		if (satisfiable.size() == 1) {
+			long[] range = satisfiable.get(0);
+			response.setContentType(type);
+			response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(range, length));
+			response.setContentLengthLong(range[1] - range[0] + 1);
+			metrics.recordResponseSize(ImageMetrics.REPRESENTATION_CONTENT, range[1] - range[0] + 1);
+			writeBody(new BodyParts().content(writer, range[0], range[1] - range[0] + 1, chunked), request, response);
+			return;
+		}
+		String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+		List<byte[]> partHeaders = new ArrayList<>();
+		for (long[] range : satisfiable) {
+			partHeaders.add(("\r\n--" + boundary + "\r\n" + HttpHeaders.CONTENT_TYPE + ": " + type + "\r\n"
+					+ HttpHeaders.CONTENT_RANGE + ": " + contentRange(range, length) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		}
+		byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+		long contentLength = total + closing.length;
+		for (byte[] partHeader : partHeaders) {
+			contentLength += partHeader.length;
+		}
+		response.setContentType("multipart/byteranges; boundary=" + boundary);
+		response.setContentLengthLong(contentLength);
+		metrics.recordResponseSize(ImageMetrics.REPRESENTATION_CONTENT, contentLength);
+		BodyParts body = new BodyParts();
+		for (int i = 0; i < satisfiable.size(); i++) {
+			long[] range = satisfiable.get(i);
+			body.bytes(partHeaders.get(i)).content(writer, range[0], range[1] - range[0] + 1, chunked);
+		}
+		writeBody(body.bytes(closing), request, response);
+	}
+	
+	/**
+	 * Writes a body once status and headers are set, on this thread in classic mode
+	 * or without blocking it in async mode
+	 */
+	private void writeBody(BodyParts body, WebRequest request, HttpServletResponse response) throws IOException {
+		if (readPool.isAsync()) {
+			AsyncBodyWriter.start(((NativeWebRequest) request).getNativeRequest(HttpServletRequest.class), response, body, readPool);
+		} else {
+			body.writeTo(response.getOutputStream());
+		}
+	}
+	
+	/**
+	 * The ranges of a Range header, ignored when an If-Range header no longer matches the image
+	 * @return the ranges, empty when the whole image is to be written
+	 */
+	private List<HttpRange> requestedRanges(WebRequest request, String eTag, Instant lastModified) {
+		String range = request.getHeader(HttpHeaders.RANGE);
+		if (range == null || !isIfRangeMatched(request.getHeader(HttpHeaders.IF_RANGE), eTag, lastModified)) {
+			return Collections.emptyList();
+		}
+		try {
+			return HttpRange.parseRanges(range);
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, messageSource.getMessage("messages.rangeNotSatisfiable", null, null));
+		}
+	}
+	
+	/**
+	 * If-Range holds either a strong ETag or an HTTP date, which must match the image exactly
+	 */
+	static boolean isIfRangeMatched(String ifRange, String eTag, Instant lastModified) {
+		if (ifRange == null) {
+			return true;
+		}
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return ifRange.equals(eTag);
+		}
+		try {
+			return lastModified != null && ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond() == lastModified.getEpochSecond();
+		} catch (DateTimeParseException e) {
+			return false;
+		}
+	}
+	
+	private static String contentRange(long[] range, long length) {
+		return "bytes " + range[0] + "-" + range[1] + "/" + length;
+	}
+	
+	private static ContentWriter contentWriter(byte[] content) {
+		return (position, count, target) -> {
+			int start = (int) Math.min(position, content.length);
+			ByteBuffer buffer = ByteBuffer.wrap(content, start, (int) Math.min(count, content.length - start));
+			long written = buffer.remaining();
+			while (buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+			return written;
+		};
+	}
+	
+	/**
+	 * Answers a conditional request from the Image metadata alone, so revalidation
+	 * never reads the image itself. Unconditional requests are not checked here.
+	 * @param name
+	 * @param variant the representation of the Image being requested
+	 * @param request
+	 * @return true when a 304 has been set on the response
+	 */
+	private boolean isNotModified(String name, String variant, WebRequest request) {
+		if (request.getHeader(HttpHeaders.IF_NONE_MATCH) == null && request.getHeader(HttpHeaders.IF_MODIFIED_SINCE) == null) {
+			return false;
+		}
+		ImageSummary summary = service.getImageSummary(name);
+		if (summary == null) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, messageSource.getMessage("messages.imageNotFound", null, null));
+		}
+		return checkNotModified(variant, summary.getVersion(), summary.getLastModified(), request);
+	}
+	
+	/**
+	 * Sets the ETag and Last-Modified headers and checks them against the request
+	 * @return true when a 304 has been set on the response
+	 */
+	private boolean checkNotModified(String variant, Long version, Instant lastModified, WebRequest request) {
+		return checkNotModified(eTag(variant, version), lastModified, request);
+	}
+	
+	/**
+	 * Checks an ETag and Last-Modified against the request, counting each conditional request once
+	 * @return true when a 304 has been set on the response
+	 */
+	private boolean checkNotModified(String eTag, Instant lastModified, WebRequest request) {
+		boolean notModified = request.checkNotModified(eTag, lastModified != null ? lastModified.toEpochMilli() : -1);
+		boolean conditional = request.getHeader(HttpHeaders.IF_NONE_MATCH) != null || request.getHeader(HttpHeaders.IF_MODIFIED_SINCE) != null;
+		if (conditional && request.getAttribute(REVALIDATION_RECORDED, RequestAttributes.SCOPE_REQUEST) == null) {
+			request.setAttribute(REVALIDATION_RECORDED, Boolean.TRUE, RequestAttributes.SCOPE_REQUEST);
+			metrics.recordRevalidation(notModified);
+		}
+		return notModified;
+	}
+	
+	/**
+	 * A strong ETag for the image itself, the SHA-256 of its bytes, so it is unchanged by replacing
+	 * only the metadata and is shared by every Image holding the same image.
+	 * Images written before the hash was recorded fall back to their version.
+	 * @param summary
+	 * @return String
+	 */
+	static String contentETag(ImageSummary summary) {
+		if (summary.getContentHash() != null) {
+			return "\"" + summary.getContentHash() + "\"";
+		}
+		return eTag(summary.getName(), summary.getVersion());
+	}
+	
+	/**
+	 * A strong ETag that changes whenever the Image is replaced
+	 * @param variant name of the Image plus any rendition parameters
+	 * @param version
+	 * @return String
+	 */
+	static String eTag(String variant, Long version) {
+		return "\"" + DigestUtils.md5DigestAsHex((variant + ":" + version).getBytes(StandardCharsets.UTF_8)) + "\"";
+	}
+	
 	@ApiOperation("Adds an Image to the repository")
     @ResponseStatus(HttpStatus.CREATED)
     @PostMapping()
@@ -92,7 +694,9 @@ public class ImageController {
         }
     	
 
-		return service.createImage(image);
+		Image created = metrics.time(ImageMetrics.CREATE, () -> service.createImage(image));
+		metrics.recordContentSize(ImageMetrics.CREATE, created.getSize());
+		return created;
 
 
     }
@@ -112,9 +716,132 @@ public class ImageController {
 
         }
     	
-    	return service.replaceImage(image);
+    	Image replaced = metrics.time(ImageMetrics.REPLACE, () -> service.replaceImage(image));
+    	metrics.recordContentSize(ImageMetrics.REPLACE, replaced.getSize());
+    	return replaced;
 
     }
     
 
+	@ApiOperation("Adds an Image to the repository, streaming the image from the request body with its type and description in X-Image-Type and X-Image-Description")
+	@ApiResponses(value = {@ApiResponse(code=201, message="Image was created"),
+        @ApiResponse(code = 409, message = "Image already exists"),
+        @ApiResponse(code = 413, message = "Image is too large"),
+        @ApiResponse(code = 422, message = "Type or description is missing")})
+    @ResponseStatus(HttpStatus.CREATED)
+    @PostMapping(value = "/{name}/content", consumes = {MediaType.APPLICATION_OCTET_STREAM_VALUE, "image/*"})
+    public ImageSummary postImageContent(@PathVariable String name,
+    		@RequestHeader(value = HEADER_TYPE, required = false) String type,
+    		@RequestHeader(value = HEADER_DESCRIPTION, required = false) String description,
+    		HttpServletRequest request) throws IOException {
+    	logger.debug("Post Image Content: " + name);
+    	Image image = contentMetadata(name, typeOf(type, request.getContentType()), description, null, request.getContentLengthLong());
+    	return createContent(image, request.getInputStream());
+    }
+	
+	@ApiOperation("Adds an Image to the repository from a multipart upload of the file with its type and description")
+	@ApiResponses(value = {@ApiResponse(code=201, message="Image was created"),
+        @ApiResponse(code = 409, message = "Image already exists"),
+        @ApiResponse(code = 413, message = "Image is too large"),
+        @ApiResponse(code = 422, message = "Type or description is missing")})
+    @ResponseStatus(HttpStatus.CREATED)
+    @PostMapping(value = "/{name}/content", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ImageSummary postImageFile(@PathVariable String name,
+    		@RequestParam("file") MultipartFile file,
+    		@RequestParam(required = false) String type,
+    		@RequestParam(required = false) String description) throws IOException {
+    	logger.debug("Post Image File: " + name);
+    	Image image = contentMetadata(name, typeOf(type, file.getContentType()), description, null, file.getSize());
+    	try (InputStream content = file.getInputStream()) {
+    		return createContent(image, content);
+    	}
+    }
+	
+	@ApiOperation("Replaces an Image in the repository, streaming the image from the request body with its type and description in X-Image-Type and X-Image-Description")
+	@ApiResponses(value = {@ApiResponse(code=200, message="Image was replaced"),
+        @ApiResponse(code=404, message="Image was not found"),
+        @ApiResponse(code = 412, message = "Image has been replaced since X-Image-Version"),
+        @ApiResponse(code = 413, message = "Image is too large"),
+        @ApiResponse(code = 422, message = "Type or description is missing")})
+    @ResponseStatus(HttpStatus.OK)
+    @PutMapping(value = "/{name}/content", consumes = {MediaType.APPLICATION_OCTET_STREAM_VALUE, "image/*"})
+    public ImageSummary putImageContent(@PathVariable String name,
+    		@RequestHeader(value = HEADER_TYPE, required = false) String type,
+    		@RequestHeader(value = HEADER_DESCRIPTION, required = false) String description,
+    		@RequestHeader(value = HEADER_VERSION, required = false) Long version,
+    		HttpServletRequest request) throws IOException {
+    	logger.debug("Put Image Content: " + name);
+    	Image image = contentMetadata(name, typeOf(type, request.getContentType()), description, version, request.getContentLengthLong());
+    	return replaceContent(image, request.getInputStream());
+    }
+	
+	@ApiOperation("Replaces an Image in the repository from a multipart upload of the file with its type and description")
+	@ApiResponses(value = {@ApiResponse(code=200, message="Image was replaced"),
+        @ApiResponse(code=404, message="Image was not found"),
+        @ApiResponse(code = 412, message = "Image has been replaced since version"),
+        @ApiResponse(code = 413, message = "Image is too large"),
+        @ApiResponse(code = 422, message = "Type or description is missing")})
+    @ResponseStatus(HttpStatus.OK)
+    @PutMapping(value = "/{name}/content", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ImageSummary putImageFile(@PathVariable String name,
+    		@RequestParam("file") MultipartFile file,
+    		@RequestParam(required = false) String type,
+    		@RequestParam(required = false) String description,
+    		@RequestParam(required = false) Long version) throws IOException {
+    	logger.debug("Put Image File: " + name);
+    	Image image = contentMetadata(name, typeOf(type, file.getContentType()), description, version, file.getSize());
+    	try (InputStream content = file.getInputStream()) {
+    		return replaceContent(image, content);
+    	}
+    }
+	
+	private ImageSummary createContent(Image image, InputStream content) {
+		ImageSummary summary = metrics.time(ImageMetrics.CREATE, () -> service.createImageContent(image, content));
+		metrics.recordContentSize(ImageMetrics.CREATE, summary.getSize());
+		return summary;
+	}
+	
+	private ImageSummary replaceContent(Image image, InputStream content) {
+		ImageSummary summary = metrics.time(ImageMetrics.REPLACE, () -> service.replaceImageContent(image, content));
+		metrics.recordContentSize(ImageMetrics.REPLACE, summary.getSize());
+		return summary;
+	}
+	
+	/**
+	 * Validates the metadata sent with a streamed image, rejecting declared
+	 * lengths over the limit before any of the image is read.
+	 * @return Image holding the metadata only
+	 */
+	private Image contentMetadata(String name, String type, String description, Long version, long contentLength) {
+		StringBuilder errorMessages = new StringBuilder();
+		if (type == null || type.isEmpty()) {
+			errorMessages.append(messageSource.getMessage("validation.image.type", null, null) + "; ");
+		}
+		if (description == null || description.isEmpty()) {
+			errorMessages.append(messageSource.getMessage("validation.image.description", null, null) + "; ");
+		}
+		if (errorMessages.length() > 0) {
+			throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, errorMessages.toString());
+		}
+		if (contentLength > maxUploadBytes) {
+			throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, messageSource.getMessage("messages.imageTooLarge", null, null));
+		}
+		Image image = new Image();
+		image.setName(name);
+		image.setType(type);
+		image.setDescription(description);
+		image.setVersion(version);
+		return image;
+	}
+	
+	/**
+	 * The image type is taken from the request content type unless it is only application/octet-stream
+	 */
+	private static String typeOf(String type, String contentType) {
+		if (type != null || contentType == null || contentType.startsWith(MediaType.APPLICATION_OCTET_STREAM_VALUE)) {
+			return type;
+		}
+		return contentType;
+	}
+
 }
@@ -1,10 +1,16 @@
 package com.burgershopproject.imageserver.models;
 
 import java.io.Serializable;
+import java.time.Instant;
+import java.util.Base64;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Lob;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
 import javax.persistence.Table;
 import javax.persistence.Transient;
 import javax.persistence.Version;
@@ -13,12 +19,20 @@ import javax.validation.constraints.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import io.swagger.annotations.ApiModel;
 import io.swagger.annotations.ApiModelProperty;
 
 @ApiModel("Image Entity")
 @Entity
-@Table(name="images")
+/*
+ * Pages read by cursor seek on the sort column then name, so each sortable column is indexed with the name
+ */
+@Table(name="images", indexes={
+		@Index(name="images_content_key", columnList="content_key"),
+		@Index(name="images_type_name", columnList="image_type, image_name"),
+		@Index(name="images_description_name", columnList="image_description, image_name")})
 public class Image implements Serializable{
 	
 	@Transient
@@ -53,6 +67,47 @@ public class Image implements Serializable{
 	@NotNull(message="{validation.image.image}")
 	private String image;
 	
+	/*
+	 * Binary storage of the image. When this is set image_blob is left empty.
+	 * The column is only ever written through a ContentStore, so it is read only here
+	 * and can hold an image loaded from any store without being written back.
+	 */
+	@Lob
+	@Column(name="image_content", nullable=true, insertable=false, updatable=false)
+	private byte[] content;
+	
+	/*
+	 * ContentStore the image was written to, null for images written before stores were recorded
+	 */
+	@Column(name="content_store", nullable=true)
+	private String contentStore;
+	
+	/*
+	 * Key of the image within its ContentStore, the SHA-256 of the image for images written since it was recorded
+	 */
+	@Column(name="content_key", nullable=true)
+	private String contentKey;
+	
+	/*
+	 * SHA-256 of the image as hex, null for images written before it was recorded
+	 */
+	@Column(name="content_hash", nullable=true, length=64)
+	private String contentHash;
+	
+	@ApiModelProperty(notes="Size of the image in bytes")
+	@Column(name="image_size", nullable=true)
+	private Long size;
+	
+	@ApiModelProperty(notes="Time the image was last created or replaced", readOnly=true)
+	@Column(name="last_modified", nullable=true)
+	private Instant lastModified;
+	
+	@PrePersist
+	@PreUpdate
+	void touch() {
+		lastModified = Instant.now();
+	}
+	
 	@Override
 	public String toString() {
 		return "Image [" + (name != null ? "name=" + name + ", " : "")
@@ -106,6 +161,22 @@ public class Image implements Serializable{
 		this.type = type;
 	}
 
+	public Long getSize() {
+		return size;
+	}
+
+	public void setSize(Long size) {
+		this.size = size;
+	}
+
+	public Instant getLastModified() {
+		return lastModified;
+	}
+
+	public void setLastModified(Instant lastModified) {
+		this.lastModified = lastModified;
+	}
+
 	public String getDescription() {
 		return description;
 	}
@@ -114,7 +185,15 @@ public class Image implements Serializable{
 		this.description = description;
 	}
 
+	/**
+	 * The image as a base64 String, encoded from the binary column when
+	 * the image has been stored in binary form.
+	 * @return String
+	 */
 	public String getImage() {
+		if ((image == null || image.isEmpty()) && content != null) {
+			return Base64.getEncoder().encodeToString(content);
+		}
 		return image;
 	}
 
@@ -122,4 +201,58 @@ public class Image implements Serializable{
 		this.image = image;
 	}
 
+	/**
+	 * The image as bytes, decoded from the base64 String when the image
+	 * has not yet been stored in binary form.
+	 * Line breaks in the base64 String are tolerated.
+	 * @return byte[]
+	 */
+	@JsonIgnore
+	public byte[] getContent() {
+		if (content != null) {
+			return content;
+		}
+		return image != null ? Base64.getMimeDecoder().decode(image) : null;
+	}
+
+	@JsonIgnore
+	public void setContent(byte[] content) {
+		this.content = content;
+	}
+
+	@JsonIgnore
+	public String getContentStore() {
+		return contentStore;
+	}
+
+	public void setContentStore(String contentStore) {
+		this.contentStore = contentStore;
+	}
+
+	@JsonIgnore
+	public String getContentKey() {
+		return contentKey;
+	}
+
+	public void setContentKey(String contentKey) {
+		this.contentKey = contentKey;
+	}
+
+	@JsonIgnore
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	public void setContentHash(String contentHash) {
+		this.contentHash = contentHash;
+	}
+
+	/**
+	 * @return true when the image is still held as a base64 String
+	 */
+	@JsonIgnore
+	public boolean isBase64Stored() {
+		return image != null && !image.isEmpty();
+	}
+
 }
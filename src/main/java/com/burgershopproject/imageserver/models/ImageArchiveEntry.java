@@ -0,0 +1,93 @@
+package com.burgershopproject.imageserver.models;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * The metadata of one Image in an export archive, written just before the image itself
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ImageArchiveEntry implements Serializable {
+
+	@JsonIgnore
+	private static final long serialVersionUID = 1L;
+
+	private String name;
+	private String type;
+	private String description;
+	private Long size;
+	private Instant lastModified;
+	private String contentHash;
+
+	public ImageArchiveEntry() {
+	}
+
+	public ImageArchiveEntry(Image image) {
+		this.name = image.getName();
+		this.type = image.getType();
+		this.description = image.getDescription();
+		this.size = image.getSize();
+		this.lastModified = image.getLastModified();
+		this.contentHash = image.getContentHash();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public void setDescription(String description) {
+		this.description = description;
+	}
+
+	/**
+	 * Size of the image in bytes, null when it was not recorded
+	 * @return Long
+	 */
+	public Long getSize() {
+		return size;
+	}
+
+	public void setSize(Long size) {
+		this.size = size;
+	}
+
+	public Instant getLastModified() {
+		return lastModified;
+	}
+
+	public void setLastModified(Instant lastModified) {
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * SHA-256 of the image as hex, checked on import when present
+	 * @return String
+	 */
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	public void setContentHash(String contentHash) {
+		this.contentHash = contentHash;
+	}
+
+}
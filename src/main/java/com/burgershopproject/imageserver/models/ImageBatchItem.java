@@ -0,0 +1,57 @@
+package com.burgershopproject.imageserver.models;
+
+import java.io.Serializable;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * The result for one name of a batch request, either the Image or the reason it is missing
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ImageBatchItem implements Serializable {
+
+	@JsonIgnore
+	private static final long serialVersionUID = 1L;
+
+	private final String name;
+	private final Integer status;
+	private final Image image;
+	private final String error;
+
+	private ImageBatchItem(String name, Integer status, Image image, String error) {
+		this.name = name;
+		this.status = status;
+		this.image = image;
+		this.error = error;
+	}
+
+	public static ImageBatchItem found(Image image) {
+		return new ImageBatchItem(image.getName(), 200, image, null);
+	}
+
+	public static ImageBatchItem notFound(String name, String error) {
+		return new ImageBatchItem(name, 404, null, error);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * HTTP status the item would have been returned with by GET /image/{name}
+	 * @return Integer
+	 */
+	public Integer getStatus() {
+		return status;
+	}
+
+	public Image getImage() {
+		return image;
+	}
+
+	public String getError() {
+		return error;
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.burgershopproject.imageserver.models;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+
+/**
+ * An entry in the log of writes to Images, appended in the transaction of each write.
+ * Every instance reads the log in id order to drop what it holds in memory about Images
+ * written by the others.
+ */
+@Entity
+@Table(name="image_changes")
+public class ImageChange implements Serializable {
+
+	@Transient
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@GeneratedValue(strategy=GenerationType.IDENTITY)
+	@Column(name="change_id", nullable=false)
+	private Long id;
+
+	@Column(name="image_name", nullable=false)
+	private String name;
+
+	/*
+	 * Version of the Image written
+	 */
+	@Column(name="version", nullable=true)
+	private Long version;
+
+	@Column(name="image_type", nullable=true)
+	private String type;
+
+	/*
+	 * SHA-256 of the image written, null when it was not hashed
+	 */
+	@Column(name="content_hash", nullable=true, length=64)
+	private String contentHash;
+
+	@Column(name="changed_at", nullable=false)
+	private Instant changedAt;
+
+	public ImageChange() {
+	}
+
+	public ImageChange(String name, Long version, String type, String contentHash, Instant changedAt) {
+		this.name = name;
+		this.version = version;
+		this.type = type;
+		this.contentHash = contentHash;
+		this.changedAt = changedAt;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public void setId(Long id) {
+		this.id = id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	public void setContentHash(String contentHash) {
+		this.contentHash = contentHash;
+	}
+
+	public Instant getChangedAt() {
+		return changedAt;
+	}
+
+	public void setChangedAt(Instant changedAt) {
+		this.changedAt = changedAt;
+	}
+
+	@Override
+	public String toString() {
+		return "ImageChange [id=" + id + ", name=" + name + ", version=" + version + ", type=" + type + ", contentHash=" + contentHash + ", changedAt=" + changedAt + "]";
+	}
+
+}
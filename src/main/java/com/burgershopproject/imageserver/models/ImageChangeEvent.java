@@ -0,0 +1,63 @@
+package com.burgershopproject.imageserver.models;
+
+import java.io.Serializable;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * A create or replace of an Image as sent by the change feed, without the image itself
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ImageChangeEvent implements Serializable {
+
+	@JsonIgnore
+	private static final long serialVersionUID = 1L;
+
+	private final String cursor;
+	private final String name;
+	private final Long version;
+	private final String type;
+	private final String hash;
+
+	private ImageChangeEvent(String cursor, String name, Long version, String type, String hash) {
+		this.cursor = cursor;
+		this.name = name;
+		this.version = version;
+		this.type = type;
+		this.hash = hash;
+	}
+
+	public static ImageChangeEvent of(ImageChange change) {
+		return new ImageChangeEvent(String.valueOf(change.getId()), change.getName(), change.getVersion(), change.getType(), change.getContentHash());
+	}
+
+	/**
+	 * Position of the event in the feed, passed back as since to resume after it
+	 * @return String
+	 */
+	public String getCursor() {
+		return cursor;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Long getVersion() {
+		return version;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	/**
+	 * SHA-256 of the image written
+	 * @return String
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+}
@@ -0,0 +1,128 @@
+package com.burgershopproject.imageserver.models;
+
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.Objects;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+
+/**
+ * One distinct image in a ContentStore, keyed by the SHA-256 of its bytes, with the number of Images referring to it.
+ * The bytes are held here for the database ContentStore, other stores only keep the count here.
+ */
+@Entity
+@Table(name="image_contents")
+@IdClass(ImageContent.Key.class)
+public class ImageContent implements Serializable {
+
+	@Transient
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@Column(name="content_hash", nullable=false, length=64)
+	private String hash;
+
+	@Id
+	@Column(name="content_store", nullable=false, length=32)
+	private String store;
+
+	@Column(name="content_size", nullable=false)
+	private Long size;
+
+	@Column(name="ref_count", nullable=false)
+	private Long refCount;
+
+	/*
+	 * Time the image was last written or had a reference added or removed
+	 */
+	@Column(name="last_used", nullable=false)
+	private Instant lastUsed;
+
+	/*
+	 * Only ever written and read by streaming, so it is read only here
+	 */
+	@Lob
+	@Column(name="content", nullable=true, insertable=false, updatable=false)
+	private byte[] content;
+
+	/**
+	 * Identity of an image, its hash within a store
+	 */
+	public static class Key implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private String hash;
+		private String store;
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return Objects.equals(hash, other.hash) && Objects.equals(store, other.store);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(hash, store);
+		}
+
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	public void setHash(String hash) {
+		this.hash = hash;
+	}
+
+	public String getStore() {
+		return store;
+	}
+
+	public void setStore(String store) {
+		this.store = store;
+	}
+
+	public Long getSize() {
+		return size;
+	}
+
+	public void setSize(Long size) {
+		this.size = size;
+	}
+
+	public Long getRefCount() {
+		return refCount;
+	}
+
+	public void setRefCount(Long refCount) {
+		this.refCount = refCount;
+	}
+
+	public Instant getLastUsed() {
+		return lastUsed;
+	}
+
+	public void setLastUsed(Instant lastUsed) {
+		this.lastUsed = lastUsed;
+	}
+
+	public byte[] getContent() {
+		return content;
+	}
+
+	public void setContent(byte[] content) {
+		this.content = content;
+	}
+
+}
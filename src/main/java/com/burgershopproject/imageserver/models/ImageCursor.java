@@ -0,0 +1,80 @@
+package com.burgershopproject.imageserver.models;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position in a listing of Images sorted by one column, the value of that column
+ * and the name of the last Image returned. Clients see it as an opaque String.
+ */
+public class ImageCursor {
+
+	private final String sortBy;
+	private final String direction;
+	private final String value;
+	private final String name;
+
+	public ImageCursor(String sortBy, String direction, String value, String name) {
+		this.sortBy = sortBy;
+		this.direction = direction;
+		this.value = value;
+		this.name = name;
+	}
+
+	/**
+	 * @return the cursor as an opaque URL safe String
+	 */
+	public String encode() {
+		String cursor = String.join(",", encode(sortBy), encode(direction), encode(value), encode(name));
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param cursor
+	 * @return ImageCursor
+	 * @throws IllegalArgumentException when the cursor was not produced by encode
+	 */
+	public static ImageCursor decode(String cursor) {
+		String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(",", -1);
+		if (parts.length != 4) {
+			throw new IllegalArgumentException("Invalid cursor " + cursor);
+		}
+		return new ImageCursor(decodePart(parts[0]), decodePart(parts[1]), decodePart(parts[2]), decodePart(parts[3]));
+	}
+
+	private static String encode(String part) {
+		try {
+			return URLEncoder.encode(part, StandardCharsets.UTF_8.name());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decodePart(String part) {
+		try {
+			return URLDecoder.decode(part, StandardCharsets.UTF_8.name());
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public String getSortBy() {
+		return sortBy;
+	}
+
+	public String getDirection() {
+		return direction;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+}
@@ -5,7 +5,11 @@ import java.util.List;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
-public class ImageDto implements Serializable {
+/**
+ * A page of Images, either full Images or metadata only summaries
+ * @param <T>
+ */
+public class ImageDto<T> implements Serializable {
 
 	@JsonIgnore
 	private static final long serialVersionUID = 1L;
@@ -15,10 +19,16 @@ public class ImageDto implements Serializable {
 	private Integer totalCount;
 	private String sortBy;
 	private String direction;
-	private List<Image> images;
+	private List<T> images;
+	private String nextCursor;
 
 	public ImageDto(Integer offset, Integer limit, Integer totalCount, String sortBy, String direction,
-			List<Image> images) {
+			List<T> images) {
+		this(offset, limit, totalCount, sortBy, direction, images, null);
+	}
+
+	public ImageDto(Integer offset, Integer limit, Integer totalCount, String sortBy, String direction,
+			List<T> images, String nextCursor) {
 		super();
 		this.offset = offset;
 		this.limit = limit;
@@ -26,6 +36,7 @@ public class ImageDto implements Serializable {
 		this.sortBy = sortBy;
 		this.direction = direction;
 		this.images = images;
+		this.nextCursor = nextCursor;
 	}
 
 	public Integer getOffset() {
@@ -48,10 +59,18 @@ public class ImageDto implements Serializable {
 		return direction;
 	}
 
-	public List<Image> getImages() {
+	public List<T> getImages() {
 		return images;
 	}
 
+	/**
+	 * Pass as cursor to retrieve the next page, null on the last page or when the sort column cannot be paged by cursor
+	 * @return String
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
 	
 }
 
@@ -0,0 +1,31 @@
+package com.burgershopproject.imageserver.models;
+
+import java.io.Serializable;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * The number of Images added by an import, and of those skipped as their names already existed
+ */
+public class ImageImportResult implements Serializable {
+
+	@JsonIgnore
+	private static final long serialVersionUID = 1L;
+
+	private final int imported;
+	private final int skipped;
+
+	public ImageImportResult(int imported, int skipped) {
+		this.imported = imported;
+		this.skipped = skipped;
+	}
+
+	public int getImported() {
+		return imported;
+	}
+
+	public int getSkipped() {
+		return skipped;
+	}
+
+}
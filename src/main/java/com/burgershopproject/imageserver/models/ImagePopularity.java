@@ -0,0 +1,71 @@
+package com.burgershopproject.imageserver.models;
+
+import java.io.Serializable;
+import java.time.Instant;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+
+/**
+ * The number of requests recorded for an Image name, kept across restarts so the
+ * most requested Images can be loaded before a new instance takes traffic
+ */
+@Entity
+@Table(name="image_popularity")
+public class ImagePopularity implements Serializable {
+
+	@Transient
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@Column(name="image_name", nullable=false)
+	private String name;
+
+	@Column(name="request_count", nullable=false)
+	private Long requests;
+
+	@Column(name="last_requested", nullable=false)
+	private Instant lastRequested;
+
+	public ImagePopularity() {
+	}
+
+	public ImagePopularity(String name, Long requests, Instant lastRequested) {
+		this.name = name;
+		this.requests = requests;
+		this.lastRequested = lastRequested;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public Long getRequests() {
+		return requests;
+	}
+
+	public void setRequests(Long requests) {
+		this.requests = requests;
+	}
+
+	public Instant getLastRequested() {
+		return lastRequested;
+	}
+
+	public void setLastRequested(Instant lastRequested) {
+		this.lastRequested = lastRequested;
+	}
+
+	@Override
+	public String toString() {
+		return "ImagePopularity [name=" + name + ", requests=" + requests + ", lastRequested=" + lastRequested + "]";
+	}
+
+}
@@ -0,0 +1,32 @@
+package com.burgershopproject.imageserver.models;
+
+import java.io.Serializable;
+
+/**
+ * An encoded rendition of an Image
+ */
+public class ImageRendition implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String type;
+	private final byte[] content;
+
+	public ImageRendition(String type, byte[] content) {
+		super();
+		this.type = type;
+		this.content = content;
+	}
+
+	/**
+	 * @return media type of the rendition e.g. image/jpeg
+	 */
+	public String getType() {
+		return type;
+	}
+
+	public byte[] getContent() {
+		return content;
+	}
+
+}
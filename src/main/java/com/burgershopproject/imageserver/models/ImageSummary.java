@@ -0,0 +1,53 @@
+package com.burgershopproject.imageserver.models;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import org.springframework.web.util.UriUtils;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * Image metadata without the image itself.
+ * Used as a Spring Data projection so listings never read the image columns.
+ */
+public interface ImageSummary {
+
+	public String getName();
+
+	public Long getVersion();
+
+	public String getType();
+
+	public String getDescription();
+
+	/**
+	 * Size of the image in bytes, null until the image has been rewritten or migrated
+	 * @return Long
+	 */
+	public Long getSize();
+
+	public Instant getLastModified();
+
+	@JsonIgnore
+	public String getContentStore();
+
+	@JsonIgnore
+	public String getContentKey();
+
+	/**
+	 * SHA-256 of the image as hex, null for images written before it was recorded
+	 * @return String
+	 */
+	@JsonIgnore
+	public String getContentHash();
+
+	/**
+	 * URL the image bytes can be retrieved from
+	 * @return String
+	 */
+	default String getContentUrl() {
+		return "/image/" + UriUtils.encodePathSegment(getName(), StandardCharsets.UTF_8) + "/content";
+	}
+
+}
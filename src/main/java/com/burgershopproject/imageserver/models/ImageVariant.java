@@ -0,0 +1,141 @@
+package com.burgershopproject.imageserver.models;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+
+/**
+ * A re-encoded copy of an Image in one media type, held in a ContentStore alongside the original.
+ * A variant without a content key records that re-encoding did not make the image any smaller.
+ */
+@Entity
+@Table(name="image_variants")
+@IdClass(ImageVariant.Key.class)
+public class ImageVariant implements Serializable {
+
+	@Transient
+	private static final long serialVersionUID = 1L;
+
+	@Id
+	@Column(name="image_name", nullable=false)
+	private String name;
+
+	@Id
+	@Column(name="variant_type", nullable=false, length=64)
+	private String type;
+
+	/*
+	 * Version of the Image the variant was encoded from
+	 */
+	@Column(name="version", nullable=false)
+	private Long version;
+
+	@Column(name="content_store", nullable=true)
+	private String contentStore;
+
+	/*
+	 * Key of the variant within its ContentStore, null when the original is served instead
+	 */
+	@Column(name="content_key", nullable=true)
+	private String contentKey;
+
+	@Column(name="variant_size", nullable=true)
+	private Long size;
+
+	/**
+	 * Identity of a variant, the Image name and media type
+	 */
+	public static class Key implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private String name;
+		private String type;
+
+		public Key() {
+		}
+
+		public Key(String name, String type) {
+			this.name = name;
+			this.type = type;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return Objects.equals(name, other.name) && Objects.equals(type, other.type);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(name, type);
+		}
+
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @return media type of the variant e.g. image/jpeg
+	 */
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+
+	public String getContentStore() {
+		return contentStore;
+	}
+
+	public void setContentStore(String contentStore) {
+		this.contentStore = contentStore;
+	}
+
+	public String getContentKey() {
+		return contentKey;
+	}
+
+	public void setContentKey(String contentKey) {
+		this.contentKey = contentKey;
+	}
+
+	public Long getSize() {
+		return size;
+	}
+
+	public void setSize(Long size) {
+		this.size = size;
+	}
+
+	@Override
+	public String toString() {
+		return "ImageVariant [name=" + name + ", type=" + type + ", version=" + version + ", contentKey=" + contentKey + ", size=" + size + "]";
+	}
+
+}
@@ -0,0 +1,73 @@
+package com.burgershopproject.imageserver.models;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * The requested size, fit and format of a derived rendition of an Image.
+ * A null width or height keeps the aspect ratio of the original.
+ */
+public class RenditionParameters implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String FIT_COVER = "cover";
+	public static final String FIT_CONTAIN = "contain";
+	public static final String FIT_FILL = "fill";
+
+	private final Integer width;
+	private final Integer height;
+	private final String fit;
+	private final String format;
+
+	public RenditionParameters(Integer width, Integer height, String fit, String format) {
+		super();
+		this.width = width;
+		this.height = height;
+		this.fit = fit;
+		this.format = format;
+	}
+
+	public Integer getWidth() {
+		return width;
+	}
+
+	public Integer getHeight() {
+		return height;
+	}
+
+	public String getFit() {
+		return fit;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	/**
+	 * A stable description of the parameters, used in rendition keys and ETags
+	 */
+	@Override
+	public String toString() {
+		return "w=" + (width != null ? width : "") + "&h=" + (height != null ? height : "") + "&fit=" + fit + "&format=" + format;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(width, height, fit, format);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		RenditionParameters other = (RenditionParameters) obj;
+		return Objects.equals(width, other.width) && Objects.equals(height, other.height)
+				&& Objects.equals(fit, other.fit) && Objects.equals(format, other.format);
+	}
+
+}
@@ -0,0 +1,47 @@
+package com.burgershopproject.imageserver.repositories;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import com.burgershopproject.imageserver.models.Image;
+
+/**
+ * Bulk reads and writes of the whole catalogue for export and import, through JDBC
+ * so neither the rows nor the images pass through the persistence context
+ */
+public interface ImageArchiveRepository {
+
+	/**
+	 * Receives each Image of an export as it is read
+	 */
+	@FunctionalInterface
+	public interface ImageRowHandler {
+
+		/**
+		 * @param image metadata of the Image, with image_blob for Images still held as base64 text
+		 * @param content the image when it is held in the database, only readable until the method returns, otherwise null
+		 * @throws IOException
+		 */
+		public void handle(Image image, InputStream content) throws IOException;
+
+	}
+
+	/**
+	 * Streams every Image in name order with one query over a server side cursor,
+	 * so only the current row is held in memory. Images held in the database are
+	 * read in the same row. No other query may be run until the method returns.
+	 * @param handler
+	 * @return number of Images read
+	 */
+	public int exportImages(ImageRowHandler handler);
+
+	/**
+	 * Inserts Images whose images are already held in a ContentStore as one JDBC batch,
+	 * each at version 0 with an empty image_blob
+	 * @param images
+	 * @return number of rows inserted
+	 */
+	public int insertImages(List<Image> images);
+
+}
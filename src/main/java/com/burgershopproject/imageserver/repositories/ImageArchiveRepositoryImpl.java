@@ -0,0 +1,94 @@
+package com.burgershopproject.imageserver.repositories;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.burgershopproject.imageserver.models.Image;
+
+public class ImageArchiveRepositoryImpl implements ImageArchiveRepository {
+
+	@Autowired
+	JdbcTemplate jdbcTemplate;
+
+	/*
+	 * Rows fetched per round trip by drivers that page a cursor. MySQL Connector/J
+	 * reads the whole result into memory unless the fetch size is Integer.MIN_VALUE,
+	 * which streams it row by row instead.
+	 */
+	@Value("${services.image.export.fetch-size:100}")
+	int fetchSize;
+
+	@Override
+	public int exportImages(ImageRowHandler handler) {
+		int[] count = new int[1];
+		jdbcTemplate.query(this::exportStatement, rs -> {
+			Image image = new Image();
+			image.setName(rs.getString(1));
+			image.setVersion(rs.getObject(2) != null ? rs.getLong(2) : null);
+			image.setType(rs.getString(3));
+			image.setDescription(rs.getString(4));
+			image.setSize(rs.getObject(5) != null ? rs.getLong(5) : null);
+			Timestamp lastModified = rs.getTimestamp(6);
+			image.setLastModified(lastModified != null ? lastModified.toInstant() : null);
+			image.setContentStore(rs.getString(7));
+			image.setContentKey(rs.getString(8));
+			image.setContentHash(rs.getString(9));
+			image.setImage(rs.getString(10));
+			try (InputStream content = rs.getBinaryStream(11)) {
+				handler.handle(image, content);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			count[0]++;
+		});
+		return count[0];
+	}
+
+	private PreparedStatement exportStatement(Connection connection) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement("select i.image_name, i.version, i.image_type, i.image_description, i.image_size, "
+				+ "i.last_modified, i.content_store, i.content_key, i.content_hash, i.image_blob, coalesce(c.content, i.image_content) "
+				+ "from images i left join image_contents c on c.content_hash = i.content_key and c.content_store = i.content_store "
+				+ "order by i.image_name", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		statement.setFetchSize(connection.getMetaData().getDatabaseProductName().startsWith("MySQL") ? Integer.MIN_VALUE : fetchSize);
+		return statement;
+	}
+
+	@Override
+	public int insertImages(List<Image> images) {
+		int[][] counts = jdbcTemplate.batchUpdate("insert into images (image_name, version, image_type, image_description, image_blob, "
+				+ "content_store, content_key, content_hash, image_size, last_modified) values (?, 0, ?, ?, '', ?, ?, ?, ?, ?)",
+				images, images.size(), (ps, image) -> {
+					ps.setString(1, image.getName());
+					ps.setString(2, image.getType());
+					ps.setString(3, image.getDescription());
+					ps.setString(4, image.getContentStore());
+					ps.setString(5, image.getContentKey());
+					ps.setString(6, image.getContentHash());
+					ps.setLong(7, image.getSize());
+					ps.setTimestamp(8, Timestamp.from(image.getLastModified()));
+				});
+		int inserted = 0;
+		for (int[] batch : counts) {
+			for (int count : batch) {
+				/*
+				 * Drivers rewriting a batch into one statement do not report rows per statement
+				 */
+				inserted += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+			}
+		}
+		return inserted;
+	}
+
+}
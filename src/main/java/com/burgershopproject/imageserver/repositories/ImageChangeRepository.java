@@ -0,0 +1,65 @@
+package com.burgershopproject.imageserver.repositories;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import com.burgershopproject.imageserver.models.ImageChange;
+
+public interface ImageChangeRepository extends JpaRepository<ImageChange, Long> {
+
+	/**
+	 * Retrieve the changes after the given id, in id order
+	 * @param id
+	 * @param pageable
+	 * @return
+	 */
+	@Query("select c from ImageChange c where c.id > :id order by c.id")
+	public List<ImageChange> findAfter(@Param("id") long id, Pageable pageable);
+
+	/**
+	 * Retrieve the changes after the given id up to and including another, in id order
+	 * @param after
+	 * @param upTo
+	 * @param pageable
+	 * @return
+	 */
+	@Query("select c from ImageChange c where c.id > :after and c.id <= :upTo order by c.id")
+	public List<ImageChange> findBetween(@Param("after") long after, @Param("upTo") long upTo, Pageable pageable);
+
+	/**
+	 * Retrieve the changes with the given ids
+	 * @param ids
+	 * @return
+	 */
+	public List<ImageChange> findByIdIn(Collection<Long> ids);
+
+	/**
+	 * @return id of the latest change, null when there are none
+	 */
+	@Query("select max(c.id) from ImageChange c")
+	public Long findLastId();
+
+	/**
+	 * @return id of the earliest change held, null when there are none
+	 */
+	@Query("select min(c.id) from ImageChange c")
+	public Long findFirstId();
+
+	/**
+	 * Deletes the changes made before the given time, keeping those from the given id on
+	 * @param before
+	 * @param id
+	 * @return number of changes deleted
+	 */
+	@Modifying
+	@Query("delete from ImageChange c where c.changedAt < :before and c.id < :id")
+	public int deleteChangedBefore(@Param("before") Instant before, @Param("id") long id);
+
+}
@@ -0,0 +1,28 @@
+package com.burgershopproject.imageserver.repositories;
+
+import java.io.OutputStream;
+
+/**
+ * Streaming access to the binary image column, which JPA can only read and write as a whole byte[]
+ */
+public interface ImageContentRepository {
+
+	/**
+	 * Streams part of the binary column of an Image to an OutputStream.
+	 * Only the requested part is read from the database.
+	 * @param name
+	 * @param position first byte to copy
+	 * @param count maximum number of bytes to copy
+	 * @param out
+	 * @return number of bytes copied, or -1 when the Image has no binary image
+	 */
+	public long readContent(String name, long position, long count, OutputStream out);
+
+	/**
+	 * Empties the binary column of an Image once its image is held in another store
+	 * @param name
+	 * @return number of rows updated
+	 */
+	public int clearContent(String name);
+
+}
@@ -0,0 +1,61 @@
+package com.burgershopproject.imageserver.repositories;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+public class ImageContentRepositoryImpl implements ImageContentRepository {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	@Autowired
+	JdbcTemplate jdbcTemplate;
+
+	@Override
+	public long readContent(String name, long position, long count, OutputStream out) {
+		/*
+		 * Only the requested slice is sent by the database. Its end is kept within
+		 * an int, as some databases overflow on a length running past the end.
+		 */
+		Long copied = jdbcTemplate.query("select substring(image_content, ?, ?) from images where image_name = ?", ps -> {
+			ps.setLong(1, position + 1);
+			ps.setLong(2, Math.min(count, Integer.MAX_VALUE - position - 1));
+			ps.setString(3, name);
+		}, rs -> {
+			if (!rs.next()) {
+				return -1L;
+			}
+			try (InputStream content = rs.getBinaryStream(1)) {
+				return content != null ? copy(content, count, out) : -1L;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		return copied != null ? copied : -1L;
+	}
+
+	@Override
+	public int clearContent(String name) {
+		return jdbcTemplate.update("update images set image_content = null where image_name = ?", name);
+	}
+
+	static long copy(InputStream in, long count, OutputStream out) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long copied = 0;
+		while (copied < count) {
+			int n = in.read(buffer, 0, (int) Math.min(buffer.length, count - copied));
+			if (n < 0) {
+				break;
+			}
+			out.write(buffer, 0, n);
+			copied += n;
+		}
+		out.flush();
+		return copied;
+	}
+
+}
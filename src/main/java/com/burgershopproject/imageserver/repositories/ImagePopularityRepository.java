@@ -0,0 +1,45 @@
+package com.burgershopproject.imageserver.repositories;
+
+import java.time.Instant;
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import com.burgershopproject.imageserver.models.ImagePopularity;
+
+public interface ImagePopularityRepository extends JpaRepository<ImagePopularity, String> {
+
+	/**
+	 * Adds requests to the count of an Image name
+	 * @param name
+	 * @param requests
+	 * @param lastRequested
+	 * @return number of rows updated, 0 when the name has no count yet
+	 */
+	@Modifying
+	@Query("update ImagePopularity p set p.requests = p.requests + :requests, p.lastRequested = :lastRequested where p.name = :name")
+	public int addRequests(@Param("name") String name, @Param("requests") long requests, @Param("lastRequested") Instant lastRequested);
+
+	/**
+	 * Retrieve the most requested Image names among those requested since the given time
+	 * @param since
+	 * @param pageable
+	 * @return
+	 */
+	@Query("select p.name from ImagePopularity p where p.lastRequested > :since order by p.requests desc, p.name")
+	public List<String> findMostRequestedSince(@Param("since") Instant since, Pageable pageable);
+
+	/**
+	 * Deletes the counts of Image names not requested since the given time
+	 * @param before
+	 * @return number of rows deleted
+	 */
+	@Modifying
+	@Query("delete from ImagePopularity p where p.lastRequested < :before")
+	public int deleteRequestedBefore(@Param("before") Instant before);
+
+}
@@ -1,11 +1,22 @@
 package com.burgershopproject.imageserver.repositories;
 
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageSummary;
+
+public interface ImageRepository extends JpaRepository<Image, String>, ImageContentRepository, ImageSeekRepository, SharedContentRepository, ImageArchiveRepository {
 
-public interface ImageRepository extends JpaRepository<Image, String> {
-	
 	/**
 	 * Retrieve an Image by name
 	 * @param name
@@ -13,4 +24,140 @@ public interface ImageRepository extends JpaRepository<Image, String> {
 	 */
 	public Image findByName(String name);
 
+	/**
+	 * Retrieve the Images with any of the given names in one query
+	 * @param names
+	 * @return
+	 */
+	public List<Image> findByNameIn(Collection<String> names);
+
+	/**
+	 * Retrieve which of the given names are already taken by Images
+	 * @param names
+	 * @return
+	 */
+	@Query("select i.name from Image i where i.name in :names")
+	public List<String> findNamesIn(@Param("names") Collection<String> names);
+
+	/**
+	 * Retrieve the metadata of an Image by name without the image columns
+	 * @param name
+	 * @return
+	 */
+	public ImageSummary findSummaryByName(String name);
+
+	/**
+	 * Retrieve the metadata of the Images with any of the given names without the image columns
+	 * @param names
+	 * @return
+	 */
+	public List<ImageSummary> findSummariesByNameIn(Collection<String> names);
+
+	/**
+	 * Retrieve a page of Image metadata without the image columns
+	 * @param pageable
+	 * @return
+	 */
+	public Page<ImageSummary> findAllProjectedBy(Pageable pageable);
+
+	/**
+	 * Retrieve a page of Images without counting all Images
+	 * @param pageable
+	 * @return
+	 */
+	public Slice<Image> findSliceBy(Pageable pageable);
+
+	/**
+	 * Retrieve a page of Image metadata without the image columns and without counting all Images
+	 * @param pageable
+	 * @return
+	 */
+	public Slice<ImageSummary> findSliceProjectedBy(Pageable pageable);
+
+	/**
+	 * Retrieve Images still held as base64 text, in name order after the given name
+	 * @param name
+	 * @param pageable
+	 * @return
+	 */
+	@Query("select i from Image i where i.image <> '' and i.name > :name order by i.name")
+	public List<Image> findBase64StoredAfter(@Param("name") String name, Pageable pageable);
+
+	/**
+	 * Retrieve Image names in name order after the given name, reading nothing else
+	 * @param name
+	 * @param pageable
+	 * @return
+	 */
+	@Query("select i.name from Image i where i.name > :name order by i.name")
+	public List<String> findNamesAfter(@Param("name") String name, Pageable pageable);
+
+	/**
+	 * Count the Images referring to an image held under a content key in a ContentStore
+	 * @param contentStore
+	 * @param contentKey
+	 * @return
+	 */
+	public long countByContentStoreAndContentKey(String contentStore, String contentKey);
+
+	/**
+	 * Moves an Image into binary storage without changing its version, once its image has been written to a ContentStore.
+	 * Nothing is updated if the Image has been replaced since it was read.
+	 * @param name
+	 * @param version
+	 * @param contentStore
+	 * @param contentKey SHA-256 the image was stored under
+	 * @param size
+	 * @return number of rows updated
+	 */
+	@Modifying
+	@Query("update Image i set i.contentStore = :contentStore, i.contentKey = :contentKey, i.contentHash = :contentKey, i.size = :size, i.image = '' "
+			+ "where i.name = :name and coalesce(i.version, -1) = :version")
+	public int storeBinary(@Param("name") String name, @Param("version") Long version, @Param("contentStore") String contentStore,
+			@Param("contentKey") String contentKey, @Param("size") Long size);
+
+	/**
+	 * Replaces the metadata of an Image whose image is being rewritten, incrementing its version.
+	 * Nothing is updated if the Image is not at the given version.
+	 * @param name
+	 * @param version
+	 * @param type
+	 * @param description
+	 * @param lastModified
+	 * @param contentStore ContentStore the new image will be written to
+	 * @return number of rows updated
+	 */
+	@Modifying
+	@Query("update Image i set i.type = :type, i.description = :description, i.image = '', i.lastModified = :lastModified, "
+			+ "i.contentStore = :contentStore, i.contentKey = null, i.contentHash = null, "
+			+ "i.version = coalesce(i.version, -1) + 1 where i.name = :name and coalesce(i.version, -1) = :version")
+	public int replaceMetadata(@Param("name") String name, @Param("version") Long version, @Param("type") String type,
+			@Param("description") String description, @Param("lastModified") Instant lastModified,
+			@Param("contentStore") String contentStore);
+
+	/**
+	 * Replaces an Image in one statement, incrementing its version.
+	 * Nothing is updated if the Image is not at the given version.
+	 * @param image the replacement, already converted to its storage format
+	 * @param version
+	 * @return number of rows updated
+	 */
+	@Modifying
+	@Query("update Image i set i.type = :#{#image.type}, i.description = :#{#image.description}, i.image = :#{#image.image}, "
+			+ "i.lastModified = :#{#image.lastModified}, i.contentStore = :#{#image.contentStore}, i.contentKey = :#{#image.contentKey}, "
+			+ "i.contentHash = :#{#image.contentHash}, i.size = :#{#image.size}, i.version = coalesce(i.version, -1) + 1 "
+			+ "where i.name = :#{#image.name} and coalesce(i.version, -1) = :version")
+	public int replaceImage(@Param("image") Image image, @Param("version") Long version);
+
+	/**
+	 * Records where and how large the image of an Image is after it has been streamed
+	 * @param name
+	 * @param contentKey SHA-256 the image was stored under
+	 * @param size
+	 * @return number of rows updated
+	 */
+	@Modifying
+	@Query("update Image i set i.contentKey = :contentKey, i.contentHash = :contentKey, i.size = :size where i.name = :name")
+	public int storeContent(@Param("name") String name, @Param("contentKey") String contentKey, @Param("size") Long size);
+
 }
@@ -0,0 +1,36 @@
+package com.burgershopproject.imageserver.repositories;
+
+import java.util.List;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageSummary;
+
+/**
+ * Keyset paging of Images. Each page seeks past the last Image of the previous page
+ * on the sort column plus image_name, so no rows are skipped over with OFFSET.
+ */
+public interface ImageSeekRepository {
+
+	/**
+	 * Retrieve the Images after a position in the sort order
+	 * @param sortBy column to sort by, which must not be nullable
+	 * @param descending
+	 * @param value sort column value of the last Image returned, null for the first page
+	 * @param name name of the last Image returned, null for the first page
+	 * @param limit
+	 * @return
+	 */
+	public List<Image> findImagesAfter(String sortBy, boolean descending, String value, String name, int limit);
+
+	/**
+	 * Retrieve the metadata of the Images after a position in the sort order without the image columns
+	 * @param sortBy column to sort by, which must not be nullable
+	 * @param descending
+	 * @param value sort column value of the last Image returned, null for the first page
+	 * @param name name of the last Image returned, null for the first page
+	 * @param limit
+	 * @return
+	 */
+	public List<ImageSummary> findSummariesAfter(String sortBy, boolean descending, String value, String name, int limit);
+
+}
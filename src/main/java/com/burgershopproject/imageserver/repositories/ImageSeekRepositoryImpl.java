@@ -0,0 +1,91 @@
+package com.burgershopproject.imageserver.repositories;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Tuple;
+import javax.persistence.TupleElement;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+import org.springframework.data.projection.ProjectionFactory;
+import org.springframework.data.projection.SpelAwareProxyProjectionFactory;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageSummary;
+
+public class ImageSeekRepositoryImpl implements ImageSeekRepository {
+
+	private static final String NAME = "name";
+
+	/*
+	 * The Image attributes of an ImageSummary
+	 */
+	private static final List<String> SUMMARY_ATTRIBUTES = Arrays.asList(NAME, "version", "type", "description", "size", "lastModified", "contentStore", "contentKey", "contentHash");
+
+	private final ProjectionFactory projectionFactory = new SpelAwareProxyProjectionFactory();
+
+	@PersistenceContext
+	EntityManager entityManager;
+
+	@Override
+	public List<Image> findImagesAfter(String sortBy, boolean descending, String value, String name, int limit) {
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Image> query = builder.createQuery(Image.class);
+		Root<Image> root = query.from(Image.class);
+		seek(builder, query, root, sortBy, descending, value, name);
+		return entityManager.createQuery(query.select(root)).setMaxResults(limit).getResultList();
+	}
+
+	@Override
+	public List<ImageSummary> findSummariesAfter(String sortBy, boolean descending, String value, String name, int limit) {
+		CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+		CriteriaQuery<Tuple> query = builder.createTupleQuery();
+		Root<Image> root = query.from(Image.class);
+		seek(builder, query, root, sortBy, descending, value, name);
+		query.multiselect(SUMMARY_ATTRIBUTES.stream().map(attribute -> root.get(attribute).alias(attribute)).collect(Collectors.toList()));
+		return entityManager.createQuery(query).setMaxResults(limit).getResultList().stream()
+				.map(this::toSummary)
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Orders by the sort column then name, and when a position is given restricts to the rows after it:
+	 * sortBy > value or (sortBy = value and name > name), reversed when descending
+	 */
+	private static void seek(CriteriaBuilder builder, CriteriaQuery<?> query, Root<Image> root, String sortBy, boolean descending, String value, String name) {
+		Path<String> sortPath = root.get(sortBy);
+		Path<String> namePath = root.get(NAME);
+		if (name != null) {
+			Predicate afterName = descending ? builder.lessThan(namePath, name) : builder.greaterThan(namePath, name);
+			if (NAME.equals(sortBy)) {
+				query.where(afterName);
+			} else {
+				Predicate afterValue = descending ? builder.lessThan(sortPath, value) : builder.greaterThan(sortPath, value);
+				query.where(builder.or(afterValue, builder.and(builder.equal(sortPath, value), afterName)));
+			}
+		}
+		if (NAME.equals(sortBy)) {
+			query.orderBy(descending ? builder.desc(namePath) : builder.asc(namePath));
+		} else {
+			query.orderBy(descending ? builder.desc(sortPath) : builder.asc(sortPath), descending ? builder.desc(namePath) : builder.asc(namePath));
+		}
+	}
+
+	private ImageSummary toSummary(Tuple tuple) {
+		Map<String, Object> attributes = new HashMap<>();
+		for (TupleElement<?> element : tuple.getElements()) {
+			attributes.put(element.getAlias(), tuple.get(element));
+		}
+		return projectionFactory.createProjection(ImageSummary.class, attributes);
+	}
+
+}
@@ -0,0 +1,26 @@
+package com.burgershopproject.imageserver.repositories;
+
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import com.burgershopproject.imageserver.models.ImageVariant;
+
+public interface ImageVariantRepository extends JpaRepository<ImageVariant, ImageVariant.Key> {
+
+	/**
+	 * Retrieve the variants of an Image, which may have been encoded from an earlier version
+	 * @param name
+	 * @return
+	 */
+	public List<ImageVariant> findByName(String name);
+
+	/**
+	 * Count the variants referring to an image held under a content key in a ContentStore
+	 * @param contentStore
+	 * @param contentKey
+	 * @return
+	 */
+	public long countByContentStoreAndContentKey(String contentStore, String contentKey);
+
+}
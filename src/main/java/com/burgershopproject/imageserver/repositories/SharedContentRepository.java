@@ -0,0 +1,98 @@
+package com.burgershopproject.imageserver.repositories;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.List;
+
+import com.burgershopproject.imageserver.models.ImageContent;
+
+/**
+ * Distinct images held once per SHA-256 in each ContentStore, recorded in the image_contents table
+ * with the number of Images referring to each. Every statement locks only the row of the image it touches.
+ */
+public interface SharedContentRepository {
+
+	/**
+	 * Marks an image as just used, which also locks its row until the transaction completes
+	 * so it cannot be deleted while a reference to it is being added
+	 * @param hash
+	 * @param store ContentStore holding the image
+	 * @return true when the image is held
+	 */
+	public boolean touchSharedContent(String hash, String store);
+
+	/**
+	 * Streams a new image into the image_contents table with no references yet
+	 * @param hash
+	 * @param store ContentStore the image is held by
+	 * @param size
+	 * @param content
+	 * @return false when another write of the same image inserted it first
+	 */
+	public boolean insertSharedContent(String hash, String store, long size, InputStream content);
+
+	/**
+	 * Records an image just written to a store with no references yet, or marks it as used again when
+	 * already recorded. Called outside the transaction that adds the reference, so the record is
+	 * committed even if that transaction rolls back, and the image is swept instead of left in the store.
+	 * @param hash
+	 * @param store ContentStore the image is held by
+	 * @param size
+	 */
+	public void reserveSharedContent(String hash, String store, long size);
+
+	/**
+	 * Adds a reference to an image, recording the image for stores that hold the bytes elsewhere
+	 * @param hash
+	 * @param store ContentStore the image is held by
+	 * @param size
+	 */
+	public void acquireSharedContent(String hash, String store, long size);
+
+	/**
+	 * Removes a reference to an image. The image is kept until it is swept.
+	 * @param hash
+	 * @param store ContentStore holding the image
+	 * @return number of rows updated
+	 */
+	public int releaseSharedContent(String hash, String store);
+
+	/**
+	 * Streams part of an image held in the image_contents table to an OutputStream
+	 * @param hash
+	 * @param store ContentStore the image was written by
+	 * @param position first byte to copy
+	 * @param count maximum number of bytes to copy
+	 * @param out
+	 * @return number of bytes copied, or -1 when the image is not held in the table
+	 */
+	public long readSharedContent(String hash, String store, long position, long count, OutputStream out);
+
+	/**
+	 * Retrieve images without references that have not been used since the given time, without their bytes
+	 * @param usedBefore
+	 * @param limit
+	 * @return
+	 */
+	public List<ImageContent> findUnreferencedSharedContent(Instant usedBefore, int limit);
+
+	/**
+	 * Deletes an image, unless it has been referenced or used again since the given time
+	 * @param hash
+	 * @param store ContentStore holding the image
+	 * @param usedBefore
+	 * @return number of rows deleted
+	 */
+	public int deleteUnreferencedSharedContent(String hash, String store, Instant usedBefore);
+
+	/**
+	 * Corrects the reference count of an image found to be referenced although its count was zero
+	 * @param hash
+	 * @param store ContentStore holding the image
+	 * @param references
+	 * @return number of rows updated
+	 */
+	public int restoreSharedContentReferences(String hash, String store, long references);
+
+}
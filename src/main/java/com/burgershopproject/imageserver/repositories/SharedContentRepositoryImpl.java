@@ -0,0 +1,133 @@
+package com.burgershopproject.imageserver.repositories;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.burgershopproject.imageserver.models.ImageContent;
+
+public class SharedContentRepositoryImpl implements SharedContentRepository {
+
+	@Autowired
+	JdbcTemplate jdbcTemplate;
+
+	@Override
+	public boolean touchSharedContent(String hash, String store) {
+		return jdbcTemplate.update("update image_contents set last_used = ? where content_hash = ? and content_store = ?", now(), hash, store) > 0;
+	}
+
+	@Override
+	public boolean insertSharedContent(String hash, String store, long size, InputStream content) {
+		try {
+			jdbcTemplate.update("insert into image_contents (content_hash, content_store, content_size, ref_count, last_used, content) values (?, ?, ?, 0, ?, ?)", ps -> {
+				ps.setString(1, hash);
+				ps.setString(2, store);
+				ps.setLong(3, size);
+				ps.setTimestamp(4, now());
+				ps.setBinaryStream(5, content, size);
+			});
+			return true;
+		} catch (DuplicateKeyException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void reserveSharedContent(String hash, String store, long size) {
+		if (touchSharedContent(hash, store)) {
+			return;
+		}
+		try {
+			jdbcTemplate.update("insert into image_contents (content_hash, content_store, content_size, ref_count, last_used) values (?, ?, ?, 0, ?)",
+					hash, store, size, now());
+		} catch (DuplicateKeyException e) {
+			touchSharedContent(hash, store);
+		}
+	}
+
+	@Override
+	public void acquireSharedContent(String hash, String store, long size) {
+		if (addReference(hash, store)) {
+			return;
+		}
+		try {
+			jdbcTemplate.update("insert into image_contents (content_hash, content_store, content_size, ref_count, last_used) values (?, ?, ?, 1, ?)",
+					hash, store, size, now());
+		} catch (DuplicateKeyException e) {
+			addReference(hash, store);
+		}
+	}
+
+	@Override
+	public int releaseSharedContent(String hash, String store) {
+		return jdbcTemplate.update("update image_contents set ref_count = ref_count - 1, last_used = ? where content_hash = ? and content_store = ? and ref_count > 0",
+				now(), hash, store);
+	}
+
+	@Override
+	public long readSharedContent(String hash, String store, long position, long count, OutputStream out) {
+		Long copied = jdbcTemplate.query("select substring(content, ?, ?) from image_contents where content_hash = ? and content_store = ?", ps -> {
+			ps.setLong(1, position + 1);
+			ps.setLong(2, Math.min(count, Integer.MAX_VALUE - position - 1));
+			ps.setString(3, hash);
+			ps.setString(4, store);
+		}, rs -> {
+			if (!rs.next()) {
+				return -1L;
+			}
+			try (InputStream content = rs.getBinaryStream(1)) {
+				return content != null ? ImageContentRepositoryImpl.copy(content, count, out) : -1L;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		return copied != null ? copied : -1L;
+	}
+
+	@Override
+	public List<ImageContent> findUnreferencedSharedContent(Instant usedBefore, int limit) {
+		return jdbcTemplate.query("select content_hash, content_store, content_size, ref_count, last_used from image_contents "
+				+ "where ref_count = 0 and last_used < ? order by last_used", ps -> {
+					ps.setTimestamp(1, Timestamp.from(usedBefore));
+					ps.setMaxRows(limit);
+				}, (rs, row) -> {
+					ImageContent content = new ImageContent();
+					content.setHash(rs.getString(1));
+					content.setStore(rs.getString(2));
+					content.setSize(rs.getLong(3));
+					content.setRefCount(rs.getLong(4));
+					content.setLastUsed(rs.getTimestamp(5).toInstant());
+					return content;
+				});
+	}
+
+	@Override
+	public int deleteUnreferencedSharedContent(String hash, String store, Instant usedBefore) {
+		return jdbcTemplate.update("delete from image_contents where content_hash = ? and content_store = ? and ref_count = 0 and last_used < ?",
+				hash, store, Timestamp.from(usedBefore));
+	}
+
+	@Override
+	public int restoreSharedContentReferences(String hash, String store, long references) {
+		return jdbcTemplate.update("update image_contents set ref_count = ?, last_used = ? where content_hash = ? and content_store = ? and ref_count = 0",
+				references, now(), hash, store);
+	}
+
+	private boolean addReference(String hash, String store) {
+		return jdbcTemplate.update("update image_contents set ref_count = ref_count + 1, last_used = ? where content_hash = ? and content_store = ?",
+				now(), hash, store) > 0;
+	}
+
+	private static Timestamp now() {
+		return Timestamp.from(Instant.now());
+	}
+
+}
@@ -0,0 +1,71 @@
+package com.burgershopproject.imageserver.repositories;
+
+import java.io.Serializable;
+
+import javax.persistence.EntityManager;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.data.jpa.repository.support.JpaRepositoryFactoryBean;
+import org.springframework.data.repository.Repository;
+import org.springframework.data.repository.core.support.RepositoryFactorySupport;
+
+import com.burgershopproject.imageserver.services.ImageMetrics;
+
+/**
+ * Creates repositories that record the time of each method as image.repository,
+ * tagged by repository and method, which is the time spent in the database
+ * including the mapping of rows
+ */
+public class TimedJpaRepositoryFactoryBean<T extends Repository<S, ID>, S, ID extends Serializable> extends JpaRepositoryFactoryBean<T, S, ID> {
+
+	private BeanFactory beanFactory;
+
+	/*
+	 * Resolved on first use, as repositories are created before the metrics they record to
+	 */
+	private volatile ImageMetrics metrics;
+
+	public TimedJpaRepositoryFactoryBean(Class<? extends T> repositoryInterface) {
+		super(repositoryInterface);
+	}
+
+	@Override
+	public void setBeanFactory(BeanFactory beanFactory) {
+		super.setBeanFactory(beanFactory);
+		this.beanFactory = beanFactory;
+	}
+
+	@Override
+	protected RepositoryFactorySupport createRepositoryFactory(EntityManager entityManager) {
+		RepositoryFactorySupport factory = super.createRepositoryFactory(entityManager);
+		factory.addRepositoryProxyPostProcessor((proxyFactory, information) -> {
+			String repository = information.getRepositoryInterface().getSimpleName();
+			proxyFactory.addAdvice((MethodInterceptor) invocation -> {
+				ImageMetrics metrics = metrics();
+				if (metrics == null) {
+					return invocation.proceed();
+				}
+				long start = System.nanoTime();
+				Throwable failure = null;
+				try {
+					return invocation.proceed();
+				} catch (Throwable e) {
+					failure = e;
+					throw e;
+				} finally {
+					metrics.recordRepository(repository, invocation.getMethod().getName(), System.nanoTime() - start, failure);
+				}
+			});
+		});
+		return factory;
+	}
+
+	private ImageMetrics metrics() {
+		if (metrics == null && beanFactory != null) {
+			metrics = beanFactory.getBeanProvider(ImageMetrics.class).getIfAvailable();
+		}
+		return metrics;
+	}
+
+}
@@ -0,0 +1,105 @@
+package com.burgershopproject.imageserver.services;
+
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+
+/**
+ * Selects how image bodies are read and written. In classic mode the request thread reads the
+ * image and blocks on the client until it has all been written. In async mode the request thread
+ * is released once the headers are known: the image is read in chunks on this bounded pool and
+ * written with non-blocking servlet output, so a slow client holds no thread at all.
+ * Images held in the database are read in one call, as the database reads the whole image for any part of it.
+ */
+@Component
+public class ContentReadPool implements MeterBinder {
+
+	public static final String MODE_CLASSIC = "classic";
+	public static final String MODE_ASYNC = "async";
+
+	@Value("${services.image.read.mode:classic}")
+	String mode;
+
+	@Value("${services.image.read.threads:8}")
+	int threads;
+
+	@Value("${services.image.read.queue-size:1000}")
+	int queueSize;
+
+	@Value("${services.image.read.chunk-bytes:262144}")
+	int chunkBytes;
+
+	@Value("${services.image.read.timeout-ms:60000}")
+	long timeoutMs;
+
+	private ThreadPoolExecutor executor;
+
+	@PostConstruct
+	void init() {
+		if (!MODE_CLASSIC.equals(mode) && !MODE_ASYNC.equals(mode)) {
+			throw new IllegalStateException("Unknown read mode " + mode + ", expected classic or async");
+		}
+		AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueSize),
+				runnable -> {
+					Thread thread = new Thread(runnable, "image-read-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				},
+				new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	@PreDestroy
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		new ExecutorServiceMetrics(executor, "image.read", Collections.emptyList()).bindTo(registry);
+	}
+
+	/**
+	 * @return true when image bodies are written without blocking the request thread
+	 */
+	public boolean isAsync() {
+		return MODE_ASYNC.equals(mode);
+	}
+
+	/**
+	 * Runs a read on the pool
+	 * @param read
+	 * @throws java.util.concurrent.RejectedExecutionException when the queue is full
+	 */
+	public void execute(Runnable read) {
+		executor.execute(read);
+	}
+
+	/**
+	 * @return the most read from a store and buffered at a time per response
+	 */
+	public int getChunkBytes() {
+		return chunkBytes;
+	}
+
+	/**
+	 * @return how long an async response may take before it is abandoned
+	 */
+	public long getTimeoutMs() {
+		return timeoutMs;
+	}
+
+}
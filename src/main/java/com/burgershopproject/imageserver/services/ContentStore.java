@@ -0,0 +1,73 @@
+package com.burgershopproject.imageserver.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.time.Instant;
+
+/**
+ * Storage for the images themselves. The images table always holds the metadata
+ * and records which store, and under which key, the image of each row was written to.
+ * Images are keyed by the SHA-256 of their bytes, so identical images are held once
+ * and shared by every Image referring to them.
+ */
+public interface ContentStore {
+
+	/**
+	 * Name recorded against each Image written to this store
+	 * @return String
+	 */
+	public String getName();
+
+	/**
+	 * Streams an image into the store, unless the same image is already held.
+	 * A held image counts as used again so it is not deleted before a reference is added.
+	 * @param name
+	 * @param content
+	 * @return key the image was stored under, the SHA-256 of the image as hex
+	 * @throws IOException
+	 */
+	public String write(String name, InputStream content) throws IOException;
+
+	/**
+	 * Writes an image already held in memory
+	 * @param name
+	 * @param content
+	 * @return key the image was stored under, the SHA-256 of the image as hex
+	 * @throws IOException
+	 */
+	default String write(String name, byte[] content) throws IOException {
+		return write(name, new ByteArrayInputStream(content));
+	}
+
+	/**
+	 * Reads a whole image
+	 * @param name
+	 * @param key
+	 * @return byte[]
+	 * @throws IOException
+	 */
+	public byte[] read(String name, String key) throws IOException;
+
+	/**
+	 * Transfers part of an image to a channel without holding it in memory
+	 * @param name
+	 * @param key
+	 * @param position first byte to transfer
+	 * @param count number of bytes to transfer
+	 * @param target
+	 * @return number of bytes transferred
+	 * @throws IOException
+	 */
+	public long transferTo(String name, String key, long position, long count, WritableByteChannel target) throws IOException;
+
+	/**
+	 * Deletes an image no Image refers to any more, unless it has been written again since it was last referenced
+	 * @param key
+	 * @param usedBefore time the image was last referenced
+	 * @throws IOException
+	 */
+	public void delete(String key, Instant usedBefore) throws IOException;
+
+}
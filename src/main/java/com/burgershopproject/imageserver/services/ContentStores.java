@@ -0,0 +1,66 @@
+package com.burgershopproject.imageserver.services;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * The available ContentStores by name. New images are written to the configured store,
+ * existing images are read from whichever store they were written to, so the store
+ * can be changed without moving the images already held.
+ */
+@Component
+public class ContentStores {
+
+	@Autowired
+	List<ContentStore> stores;
+
+	@Value("${services.image.content-store.type:database}")
+	String type;
+
+	private final Map<String, ContentStore> storesByName = new HashMap<>();
+
+	@PostConstruct
+	void init() {
+		stores.forEach(store -> storesByName.put(store.getName(), store));
+		if (!storesByName.containsKey(type)) {
+			throw new IllegalStateException("Unknown content store " + type + ", expected one of " + storesByName.keySet());
+		}
+	}
+
+	/**
+	 * The store new images are written to
+	 * @return ContentStore
+	 */
+	public ContentStore active() {
+		return storesByName.get(type);
+	}
+
+	/**
+	 * The store an image was written to. Images written before stores were recorded are in the database.
+	 * @param name of the store
+	 * @return ContentStore
+	 */
+	public ContentStore get(String name) {
+		ContentStore store = storesByName.get(name != null ? name : DatabaseContentStore.NAME);
+		if (store == null) {
+			throw new IllegalStateException("Unknown content store " + name);
+		}
+		return store;
+	}
+
+	/**
+	 * @param name of the store
+	 * @return true when images in the store are held outside the images table
+	 */
+	public static boolean isExternal(String name) {
+		return name != null && !DatabaseContentStore.NAME.equals(name);
+	}
+
+}
@@ -0,0 +1,111 @@
+package com.burgershopproject.imageserver.services;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.burgershopproject.imageserver.models.ImageContent;
+import com.burgershopproject.imageserver.repositories.ImageRepository;
+import com.burgershopproject.imageserver.repositories.ImageVariantRepository;
+
+/**
+ * Periodically deletes shared images no Image refers to any more.
+ * An image is only deleted once it has been unreferenced for a grace period, so a write of
+ * the same image that has not yet added its reference keeps it. Before anything is deleted
+ * the reference count is checked against the Images and variants, and corrected if it had drifted.
+ */
+@Component
+public class ContentSweeper {
+
+	private final Logger logger = LoggerFactory.getLogger(ContentSweeper.class);
+
+	@Autowired
+	ImageRepository repository;
+
+	@Autowired
+	ImageVariantRepository variantRepository;
+
+	@Autowired
+	ContentStores contentStores;
+
+	@Autowired
+	PlatformTransactionManager transactionManager;
+
+	@Value("${services.image.content-store.sweep.grace-ms:3600000}")
+	long graceMillis;
+
+	@Value("${services.image.content-store.sweep.batch-size:100}")
+	int batchSize;
+
+	@Scheduled(initialDelayString = "${services.image.content-store.sweep.interval-ms:600000}",
+			fixedDelayString = "${services.image.content-store.sweep.interval-ms:600000}")
+	public void start() {
+		try {
+			sweep();
+		} catch (RuntimeException e) {
+			logger.error("Content sweep failed", e);
+		}
+	}
+
+	/**
+	 * Deletes every image that has been unreferenced for longer than the grace period, one transaction per image
+	 * @return number of images deleted
+	 */
+	public int sweep() {
+		Instant usedBefore = Instant.now().minusMillis(graceMillis);
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		int deleted = 0;
+		while (true) {
+			List<ImageContent> unreferenced = transaction.execute(status -> repository.findUnreferencedSharedContent(usedBefore, batchSize));
+			if (unreferenced == null || unreferenced.isEmpty()) {
+				break;
+			}
+			for (ImageContent content : unreferenced) {
+				if (Boolean.TRUE.equals(transaction.execute(status -> remove(content, usedBefore)))) {
+					deleteFromStore(content, usedBefore);
+					deleted++;
+				}
+			}
+			if (unreferenced.size() < batchSize) {
+				break;
+			}
+		}
+		if (deleted > 0) {
+			logger.info("Content sweep deleted " + deleted + " unreferenced images");
+		}
+		return deleted;
+	}
+
+	/**
+	 * Deletes the record of an image unless an Image or variant still refers to it
+	 * @return true when the image is to be deleted from its store
+	 */
+	boolean remove(ImageContent content, Instant usedBefore) {
+		long references = repository.countByContentStoreAndContentKey(content.getStore(), content.getHash())
+				+ variantRepository.countByContentStoreAndContentKey(content.getStore(), content.getHash());
+		if (references > 0) {
+			logger.warn("Content " + content.getHash() + " has " + references + " references but was counted as unreferenced");
+			repository.restoreSharedContentReferences(content.getHash(), content.getStore(), references);
+			return false;
+		}
+		return repository.deleteUnreferencedSharedContent(content.getHash(), content.getStore(), usedBefore) > 0;
+	}
+
+	private void deleteFromStore(ImageContent content, Instant usedBefore) {
+		try {
+			contentStores.get(content.getStore()).delete(content.getHash(), usedBefore);
+		} catch (IOException | RuntimeException e) {
+			logger.warn("Content " + content.getHash() + " could not be deleted from the " + content.getStore() + " store", e);
+		}
+	}
+
+}
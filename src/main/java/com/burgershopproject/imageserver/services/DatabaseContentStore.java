@@ -0,0 +1,135 @@
+package com.burgershopproject.imageserver.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.time.Instant;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.repositories.ImageRepository;
+
+/**
+ * Keeps images in the image_contents table, one row per distinct image keyed by its SHA-256.
+ * Images written before then are read from the image_content column of the images table,
+ * or decoded from base64 text if they were never converted.
+ */
+@Component
+public class DatabaseContentStore implements ContentStore {
+
+	public static final String NAME = "database";
+
+	@Autowired
+	ImageRepository repository;
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	/**
+	 * The image is spooled to a temporary file to find its hash, and only sent to the
+	 * database when the same image is not already held there
+	 */
+	@Override
+	public String write(String name, InputStream content) throws IOException {
+		Path spool = Files.createTempFile("image-content", ".tmp");
+		try {
+			DigestOutputStream digest = new DigestOutputStream(Files.newOutputStream(spool), ContentDigest.sha256());
+			long size;
+			try (OutputStream out = digest) {
+				size = StreamUtils.copy(content, out);
+			}
+			String key = ContentDigest.toHex(digest.getMessageDigest().digest());
+			if (!repository.touchSharedContent(key, NAME)) {
+				try (InputStream spooled = Files.newInputStream(spool)) {
+					insert(key, size, spooled);
+				}
+			}
+			return key;
+		} finally {
+			Files.deleteIfExists(spool);
+		}
+	}
+
+	@Override
+	public String write(String name, byte[] content) {
+		String key = ContentDigest.sha256Hex(content);
+		if (!repository.touchSharedContent(key, NAME)) {
+			insert(key, content.length, new ByteArrayInputStream(content));
+		}
+		return key;
+	}
+
+	@Override
+	public byte[] read(String name, String key) {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		if (read(name, key, 0, Long.MAX_VALUE, content) < 0) {
+			return base64Content(name);
+		}
+		return content.toByteArray();
+	}
+
+	@Override
+	public long transferTo(String name, String key, long position, long count, WritableByteChannel target) throws IOException {
+		long transferred = read(name, key, position, count, Channels.newOutputStream(target));
+		if (transferred >= 0) {
+			return transferred;
+		}
+		byte[] content = base64Content(name);
+		int start = (int) Math.min(position, content.length);
+		ByteBuffer buffer = ByteBuffer.wrap(content, start, (int) Math.min(count, content.length - start));
+		transferred = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			target.write(buffer);
+		}
+		return transferred;
+	}
+
+	/**
+	 * The image is held in the row deleted with its last reference, so there is nothing more to delete
+	 */
+	@Override
+	public void delete(String key, Instant usedBefore) {
+	}
+
+	/**
+	 * A concurrent write of the same image may have inserted it first, in which case it is marked as used instead
+	 */
+	private void insert(String key, long size, InputStream content) {
+		if (!repository.insertSharedContent(key, NAME, size, content)) {
+			repository.touchSharedContent(key, NAME);
+		}
+	}
+
+	/**
+	 * Images without a key were written to the images table before images were shared
+	 */
+	private long read(String name, String key, long position, long count, OutputStream out) {
+		if (key != null) {
+			return repository.readSharedContent(key, NAME, position, count, out);
+		}
+		return repository.readContent(name, position, count, out);
+	}
+
+	/**
+	 * Images not yet converted from base64 text have to be decoded as a whole
+	 */
+	private byte[] base64Content(String name) {
+		Image image = repository.findByName(name);
+		byte[] content = image != null ? image.getContent() : null;
+		return content != null ? content : new byte[0];
+	}
+
+}
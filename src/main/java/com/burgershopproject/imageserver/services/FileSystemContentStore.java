@@ -0,0 +1,169 @@
+package com.burgershopproject.imageserver.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.time.Instant;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps images as files in a local directory, addressed by the SHA-256 of their bytes.
+ * Files are written to a temporary file and moved into place once complete, so a
+ * file under its final name is never partial. Identical images share a file.
+ * Reads use FileChannel.transferTo so the bytes are not copied through the heap.
+ */
+@Component
+public class FileSystemContentStore implements ContentStore {
+
+	private final Logger logger = LoggerFactory.getLogger(FileSystemContentStore.class);
+
+	public static final String NAME = "filesystem";
+
+	private static final int BUFFER_SIZE = 65536;
+
+	@Value("${services.image.content-store.filesystem.path:${java.io.tmpdir}/image-server/content}")
+	String path;
+
+	private Path root;
+
+	private Path uploads;
+
+	@PostConstruct
+	void init() throws IOException {
+		root = Paths.get(path).toAbsolutePath();
+		uploads = root.resolve("tmp");
+		Files.createDirectories(uploads);
+		logger.info("Filesystem content store at " + root);
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public String write(String name, InputStream content) throws IOException {
+		MessageDigest digest = ContentDigest.sha256();
+		Path upload = Files.createTempFile(uploads, "upload", ".tmp");
+		try {
+			try (ReadableByteChannel source = Channels.newChannel(content);
+					FileChannel file = FileChannel.open(upload, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+				while (source.read(buffer) >= 0) {
+					buffer.flip();
+					digest.update(buffer.duplicate());
+					while (buffer.hasRemaining()) {
+						file.write(buffer);
+					}
+					buffer.clear();
+				}
+				file.force(false);
+			}
+			String key = ContentDigest.toHex(digest.digest());
+			Path target = pathOf(key);
+			Files.createDirectories(target.getParent());
+			if (touch(target)) {
+				Files.delete(upload);
+			} else {
+				moveIntoPlace(upload, target);
+			}
+			return key;
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(upload);
+			throw e;
+		}
+	}
+
+	@Override
+	public byte[] read(String name, String key) throws IOException {
+		return Files.readAllBytes(pathOf(key));
+	}
+
+	@Override
+	public long transferTo(String name, String key, long position, long count, WritableByteChannel target) throws IOException {
+		try (FileChannel file = FileChannel.open(pathOf(key), StandardOpenOption.READ)) {
+			long end = Math.min(file.size(), position + count);
+			long transferred = 0;
+			while (position + transferred < end) {
+				long n = file.transferTo(position + transferred, end - position - transferred, target);
+				if (n <= 0) {
+					break;
+				}
+				transferred += n;
+			}
+			return transferred;
+		}
+	}
+
+	/**
+	 * The file's modification time is when it was last written, so one written again
+	 * after its last reference was removed is kept
+	 */
+	@Override
+	public void delete(String key, Instant usedBefore) throws IOException {
+		Path file = pathOf(key);
+		try {
+			if (Files.getLastModifiedTime(file).toInstant().isBefore(usedBefore)) {
+				Files.delete(file);
+			}
+		} catch (NoSuchFileException e) {
+			logger.debug("Content " + key + " was already deleted");
+		}
+	}
+
+	/**
+	 * Files are spread over two levels of directories named from the start of the key
+	 * @param key
+	 * @return Path
+	 */
+	Path pathOf(String key) {
+		if (key == null || key.length() < 4 || !key.matches("[0-9a-f]+")) {
+			throw new IllegalArgumentException("Invalid content key " + key);
+		}
+		return root.resolve(key.substring(0, 2)).resolve(key.substring(2, 4)).resolve(key);
+	}
+
+	/**
+	 * Marks an existing file as just written
+	 * @return false when there is no file
+	 */
+	private static boolean touch(Path target) throws IOException {
+		try {
+			Files.setLastModifiedTime(target, FileTime.from(Instant.now()));
+			return true;
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * A concurrent write of the same image may have moved its file into place first, which is fine
+	 */
+	private static void moveIntoPlace(Path upload, Path target) throws IOException {
+		try {
+			Files.move(upload, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (FileAlreadyExistsException e) {
+			Files.delete(upload);
+		}
+	}
+
+}
@@ -0,0 +1,149 @@
+package com.burgershopproject.imageserver.services;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.burgershopproject.imageserver.models.ImagePopularity;
+import com.burgershopproject.imageserver.repositories.ImagePopularityRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Counts the requests for each Image name and periodically adds the counts to the
+ * image_popularity table, so the next instance to start knows which Images to warm up.
+ * Counts are kept in memory between writes for a bounded number of names, the least
+ * requested names being dropped first. Names not requested within the window are deleted.
+ */
+@Component
+public class HotImageTracker {
+
+	private final Logger logger = LoggerFactory.getLogger(HotImageTracker.class);
+
+	@Autowired
+	ImagePopularityRepository repository;
+
+	@Autowired
+	PlatformTransactionManager transactionManager;
+
+	@Value("${services.image.warmup.tracked-names:10000}")
+	long trackedNames;
+
+	@Value("${services.image.warmup.window-ms:604800000}")
+	long windowMillis;
+
+	private Cache<String, LongAdder> requests;
+
+	@PostConstruct
+	void init() {
+		requests = Caffeine.newBuilder()
+				.maximumSize(trackedNames)
+				.build();
+	}
+
+	/**
+	 * Counts a request for an Image
+	 * @param name
+	 */
+	public void record(String name) {
+		requests.get(name, key -> new LongAdder()).increment();
+	}
+
+	@Scheduled(initialDelayString = "${services.image.warmup.record-interval-ms:60000}",
+			fixedDelayString = "${services.image.warmup.record-interval-ms:60000}")
+	public void start() {
+		try {
+			flush();
+		} catch (RuntimeException e) {
+			logger.error("Recording image requests failed", e);
+		}
+	}
+
+	@PreDestroy
+	void shutdown() {
+		start();
+	}
+
+	/**
+	 * Adds the requests counted since the last flush to the stored counts, one transaction per statement,
+	 * and deletes the counts of names not requested within the window. A count that cannot be written
+	 * is kept for the next flush.
+	 * @return number of names written
+	 */
+	public int flush() {
+		Instant now = Instant.now();
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		int written = 0;
+		for (Map.Entry<String, LongAdder> entry : requests.asMap().entrySet()) {
+			long count = entry.getValue().sumThenReset();
+			if (count == 0) {
+				requests.asMap().remove(entry.getKey(), entry.getValue());
+				continue;
+			}
+			try {
+				if (addRequests(transaction, entry.getKey(), count, now)) {
+					written++;
+					continue;
+				}
+			} catch (RuntimeException e) {
+				logger.warn("Recording requests for " + entry.getKey() + " failed", e);
+			}
+			entry.getValue().add(count);
+		}
+		transaction.execute(status -> repository.deleteRequestedBefore(now.minusMillis(windowMillis)));
+		if (written > 0) {
+			logger.debug("Recorded requests for " + written + " images");
+		}
+		return written;
+	}
+
+	/**
+	 * Adds requests to the stored count of a name, inserting it when it has none. The insert runs in a
+	 * transaction of its own, so when another instance inserted the name first the update is retried
+	 * in a fresh transaction rather than in one already marked for rollback.
+	 * @return true when the requests were added
+	 */
+	private boolean addRequests(TransactionTemplate transaction, String name, long count, Instant now) {
+		if (transaction.execute(status -> repository.addRequests(name, count, now)) > 0) {
+			return true;
+		}
+		try {
+			transaction.execute(status -> repository.saveAndFlush(new ImagePopularity(name, count, now)));
+			return true;
+		} catch (DataIntegrityViolationException e) {
+			/*
+			 * Another instance inserted the name first
+			 */
+			return transaction.execute(status -> repository.addRequests(name, count, now)) > 0;
+		}
+	}
+
+	/**
+	 * Retrieve the names of the Images requested most within the window
+	 * @param limit
+	 * @return names, most requested first
+	 */
+	public List<String> mostRequested(int limit) {
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setReadOnly(true);
+		return transaction.execute(status -> repository.findMostRequestedSince(Instant.now().minusMillis(windowMillis), PageRequest.of(0, limit)));
+	}
+
+}
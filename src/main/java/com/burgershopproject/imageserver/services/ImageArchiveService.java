@@ -0,0 +1,292 @@
+package com.burgershopproject.imageserver.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.MessageSource;
+import org.springframework.data.projection.ProjectionFactory;
+import org.springframework.data.projection.SpelAwareProxyProjectionFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageArchiveEntry;
+import com.burgershopproject.imageserver.models.ImageImportResult;
+import com.burgershopproject.imageserver.models.ImageSummary;
+import com.burgershopproject.imageserver.repositories.ImageRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Export and import of the whole catalogue as a zip archive, for moving Images between environments.
+ * The archive starts with manifest.json, followed for each Image by its metadata in images/{n}.json
+ * and then its image in images/{n}.bin. Keeping the metadata next to each image lets both directions
+ * work in a single pass holding one Image at a time, however many Images there are.
+ */
+@Service
+@Transactional(readOnly=true)
+public class ImageArchiveService {
+
+	private final Logger logger = LoggerFactory.getLogger(ImageArchiveService.class);
+
+	public static final String MANIFEST = "manifest.json";
+
+	public static final int FORMAT = 1;
+
+	private static final String ENTRY_PREFIX = "images/";
+	private static final String METADATA_SUFFIX = ".json";
+	private static final String CONTENT_SUFFIX = ".bin";
+
+	/*
+	 * Bound on the JSON entries, which only ever hold metadata
+	 */
+	private static final long MAX_METADATA_BYTES = 65536;
+
+	private final ProjectionFactory projectionFactory = new SpelAwareProxyProjectionFactory();
+
+	@Autowired
+	MessageSource messageSource;
+
+	@Autowired
+	ImageRepository repository;
+
+	@Autowired
+	PlatformTransactionManager transactionManager;
+
+	@Autowired
+	ContentStores contentStores;
+
+	@Autowired
+	ImageSearchIndex searchIndex;
+
+	@Autowired
+	ImageVariantService variantService;
+
+	@Autowired
+	ImageNameFilter nameFilter;
+
+	@Autowired
+	ImageChangeLog changeLog;
+
+	@Autowired
+	ObjectMapper objectMapper;
+
+	@Value("${services.image.import.batch-size:100}")
+	int batchSize;
+
+	@Value("${services.image.upload.max-bytes:16777216}")
+	long maxUploadBytes;
+
+	/**
+	 * Writes every Image to a zip archive, reading the images table once through a cursor.
+	 * Images in other stores are copied from their store as their row is reached.
+	 * Images are stored without compression, as image formats are compressed already.
+	 * @param out receives the archive, which is finished but not closed
+	 * @return number of Images written
+	 * @throws IOException
+	 */
+	public int exportImages(OutputStream out) throws IOException {
+		logger.debug("Export Images");
+		ZipOutputStream zip = new ZipOutputStream(out);
+		Map<String, Object> manifest = new LinkedHashMap<>();
+		manifest.put("format", FORMAT);
+		manifest.put("created", Instant.now());
+		putEntry(zip, MANIFEST, Deflater.DEFAULT_COMPRESSION);
+		zip.write(objectMapper.writeValueAsBytes(manifest));
+		int[] exported = new int[1];
+		repository.exportImages((image, content) -> {
+			if (content == null && !image.isBase64Stored() && (!ContentStores.isExternal(image.getContentStore()) || image.getContentKey() == null)) {
+				logger.warn("Image " + image.getName() + " has no image and was not exported");
+				return;
+			}
+			String entry = ENTRY_PREFIX + exported[0];
+			putEntry(zip, entry + METADATA_SUFFIX, Deflater.DEFAULT_COMPRESSION);
+			zip.write(objectMapper.writeValueAsBytes(new ImageArchiveEntry(image)));
+			putEntry(zip, entry + CONTENT_SUFFIX, Deflater.NO_COMPRESSION);
+			if (content != null) {
+				StreamUtils.copy(content, zip);
+			} else if (image.isBase64Stored()) {
+				zip.write(image.getContent());
+			} else {
+				contentStores.get(image.getContentStore()).transferTo(image.getName(), image.getContentKey(), 0, Long.MAX_VALUE,
+						Channels.newChannel(zip));
+			}
+			exported[0]++;
+		});
+		zip.finish();
+		logger.info("Exported " + exported[0] + " images");
+		return exported[0];
+	}
+
+	private static void putEntry(ZipOutputStream zip, String name, int level) throws IOException {
+		zip.setLevel(level);
+		zip.putNextEntry(new ZipEntry(name));
+	}
+
+	/**
+	 * Adds the Images of an archive written by exportImages, streaming each image into the
+	 * active ContentStore as it is read and inserting the rows in JDBC batches, one transaction
+	 * per batch. Images whose names already exist are skipped, so an interrupted import can
+	 * be run again with the same archive.
+	 * @param archive
+	 * @return ImageImportResult
+	 * @throws IOException
+	 */
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public ImageImportResult importImages(InputStream archive) throws IOException {
+		logger.debug("Import Images");
+		ZipInputStream zip = new ZipInputStream(archive);
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		ContentStore store = contentStores.active();
+		List<Image> batch = new ArrayList<>(batchSize);
+		int read = 0;
+		int imported = 0;
+		try {
+			readManifest(zip);
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				String name = entry.getName();
+				if (!name.startsWith(ENTRY_PREFIX) || !name.endsWith(METADATA_SUFFIX)) {
+					throw invalidArchive("Unexpected entry " + name);
+				}
+				Image image = toImage(objectMapper.readValue(readMetadata(zip), ImageArchiveEntry.class));
+				String contentName = name.substring(0, name.length() - METADATA_SUFFIX.length()) + CONTENT_SUFFIX;
+				entry = zip.getNextEntry();
+				if (entry == null || !contentName.equals(entry.getName())) {
+					throw invalidArchive("Missing " + contentName);
+				}
+				writeContent(store, image, zip);
+				batch.add(image);
+				read++;
+				if (batch.size() >= batchSize) {
+					imported += transaction.execute(status -> insertBatch(batch));
+					batch.clear();
+				}
+			}
+			if (!batch.isEmpty()) {
+				imported += transaction.execute(status -> insertBatch(batch));
+			}
+		} catch (ZipException | JsonProcessingException e) {
+			throw invalidArchive(e.getMessage());
+		}
+		logger.info("Imported " + imported + " images, " + (read - imported) + " skipped");
+		return new ImageImportResult(imported, read - imported);
+	}
+
+	private void readManifest(ZipInputStream zip) throws IOException {
+		ZipEntry entry = zip.getNextEntry();
+		if (entry == null || !MANIFEST.equals(entry.getName())) {
+			throw invalidArchive("Missing " + MANIFEST);
+		}
+		Object format = objectMapper.readValue(readMetadata(zip), Map.class).get("format");
+		if (!Integer.valueOf(FORMAT).equals(format)) {
+			throw invalidArchive("Unsupported format " + format);
+		}
+	}
+
+	private static byte[] readMetadata(ZipInputStream zip) throws IOException {
+		SizeLimitedInputStream limited = new SizeLimitedInputStream(StreamUtils.nonClosing(zip), MAX_METADATA_BYTES);
+		return StreamUtils.copyToByteArray(limited);
+	}
+
+	private Image toImage(ImageArchiveEntry entry) {
+		if (isEmpty(entry.getName()) || isEmpty(entry.getType()) || isEmpty(entry.getDescription())) {
+			throw invalidArchive("Name, type or description is missing from " + entry.getName());
+		}
+		Image image = new Image();
+		image.setName(entry.getName());
+		image.setVersion(0L);
+		image.setType(entry.getType());
+		image.setDescription(entry.getDescription());
+		image.setImage("");
+		image.setLastModified(entry.getLastModified() != null ? entry.getLastModified() : Instant.now());
+		image.setContentHash(entry.getContentHash());
+		return image;
+	}
+
+	private static boolean isEmpty(String value) {
+		return value == null || value.isEmpty();
+	}
+
+	/**
+	 * Streams the image of an entry into a ContentStore, checking it against the hash it was exported with.
+	 * The image is recorded with no references until the batch holding the Image is inserted, so only the
+	 * sweep grace period keeps it, and it is swept if the batch is never inserted.
+	 */
+	private void writeContent(ContentStore store, Image image, ZipInputStream zip) throws IOException {
+		SizeLimitedInputStream limited = new SizeLimitedInputStream(StreamUtils.nonClosing(zip), maxUploadBytes);
+		String key;
+		try {
+			key = store.write(image.getName(), limited);
+		} catch (IOException e) {
+			if (limited.isExceeded()) {
+				throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, messageSource.getMessage("messages.imageTooLarge", null, "Image is too large", Locale.ENGLISH));
+			}
+			throw e;
+		}
+		repository.reserveSharedContent(key, store.getName(), limited.getCount());
+		if (image.getContentHash() != null && !image.getContentHash().equals(key)) {
+			throw invalidArchive("Image " + image.getName() + " does not match its hash");
+		}
+		image.setContentStore(store.getName());
+		image.setContentKey(key);
+		image.setContentHash(key);
+		image.setSize(limited.getCount());
+	}
+
+	/**
+	 * Inserts the Images of a batch whose names are not taken, adding their references
+	 * to their images in the same transaction
+	 * @param batch
+	 * @return number of Images inserted
+	 */
+	int insertBatch(List<Image> batch) {
+		Set<String> taken = new HashSet<>(repository.findNamesIn(batch.stream().map(Image::getName).collect(Collectors.toList())));
+		List<Image> images = batch.stream().filter(image -> taken.add(image.getName())).collect(Collectors.toList());
+		if (images.isEmpty()) {
+			return 0;
+		}
+		images.forEach(image -> repository.acquireSharedContent(image.getContentKey(), image.getContentStore(), image.getSize()));
+		int inserted = repository.insertImages(images);
+		for (Image image : images) {
+			nameFilter.add(image.getName());
+			ImageSummary summary = projectionFactory.createProjection(ImageSummary.class, image);
+			searchIndex.put(summary);
+			changeLog.record(summary);
+			variantService.schedule(summary);
+		}
+		return inserted;
+	}
+
+	private ResponseStatusException invalidArchive(String reason) {
+		logger.debug("Invalid archive: " + reason);
+		return new ResponseStatusException(HttpStatus.BAD_REQUEST, messageSource.getMessage("messages.archiveInvalid", null, "Archive is not a valid image export", Locale.ENGLISH));
+	}
+
+}
@@ -0,0 +1,200 @@
+package com.burgershopproject.imageserver.services;
+
+import java.util.function.Function;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * In process cache of Images by name, bounded by the total size of the cached
+ * images rather than the number of entries. Eviction is W-TinyLFU.
+ * Images with identical images share one copy of the bytes, found by SHA-256,
+ * although the bound still counts the bytes once for each of them.
+ * Hit, miss and eviction metrics are published as cache.* metrics tagged cache=images.
+ */
+@Component
+public class ImageCache implements MeterBinder {
+
+	private final Logger logger = LoggerFactory.getLogger(ImageCache.class);
+
+	public static final String CACHE_NAME = "images";
+
+	@Value("${services.image.cache.max-bytes:67108864}")
+	long maxBytes;
+
+	private Cache<String, Image> cache;
+
+	/*
+	 * Image bytes by SHA-256, held only as long as a cached Image refers to them
+	 */
+	private Cache<String, byte[]> contents;
+
+	@PostConstruct
+	void init() {
+		cache = Caffeine.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher((String name, Image image) -> weigh(image))
+				.recordStats()
+				.build();
+		contents = Caffeine.newBuilder()
+				.weakValues()
+				.build();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		CaffeineCacheMetrics.monitor(registry, cache, CACHE_NAME);
+	}
+
+	/**
+	 * Retrieve an Image, loading it on a miss. Images that are not found are not cached.
+	 * @param name
+	 * @param loader
+	 * @return Image or null
+	 */
+	public Image get(String name, Function<String, Image> loader) {
+		return cache.get(name, key -> share(loader.apply(key)));
+	}
+
+	/**
+	 * Retrieve an Image only if it is already cached
+	 * @param name
+	 * @return Image or null
+	 */
+	public Image getIfPresent(String name) {
+		return cache.getIfPresent(name);
+	}
+
+	/**
+	 * Caches a written Image once the current transaction commits.
+	 * An Image is only replaced by a newer version.
+	 * @param image
+	 */
+	public void put(Image image) {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int status) {
+					if (status == STATUS_COMMITTED) {
+						putIfNewer(image);
+					} else {
+						invalidate(image.getName());
+					}
+				}
+			});
+		} else {
+			putIfNewer(image);
+		}
+	}
+
+	/**
+	 * Removes an Image from the cache
+	 * @param name
+	 */
+	public void invalidate(String name) {
+		cache.invalidate(name);
+	}
+
+	/**
+	 * Removes an Image from the cache now and again when the current transaction
+	 * completes, so a copy read while the write was in progress is not kept.
+	 * @param name
+	 */
+	public void invalidateOnCompletion(String name) {
+		invalidate(name);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int status) {
+					invalidate(name);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Removes an Image from the cache unless the cached copy is at least the given version
+	 * @param name
+	 * @param version
+	 */
+	public void invalidate(String name, Long version) {
+		cache.asMap().computeIfPresent(name, (key, cached) -> isNewer(version, cached.getVersion()) ? null : cached);
+	}
+
+	/**
+	 * Retrieve the bytes of an image held by any cached Image
+	 * @param hash SHA-256 of the image
+	 * @return byte[] or null
+	 */
+	public byte[] getSharedContent(String hash) {
+		return contents.getIfPresent(hash);
+	}
+
+	/**
+	 * @return number of cached Images
+	 */
+	public long size() {
+		cache.cleanUp();
+		return cache.estimatedSize();
+	}
+
+	void putIfNewer(Image image) {
+		logger.debug("Cache Image: " + image.getName() + " version " + image.getVersion());
+		cache.asMap().compute(image.getName(), (name, cached) ->
+			cached == null || isNewer(image.getVersion(), cached.getVersion()) ? share(image) : cached);
+	}
+
+	/**
+	 * Replaces the bytes of an Image with those already held for the same image
+	 * @param image
+	 * @return the Image
+	 */
+	private Image share(Image image) {
+		if (image == null || image.getContentHash() == null || image.isBase64Stored() || image.getContent() == null) {
+			return image;
+		}
+		byte[] content = image.getContent();
+		image.setContent(contents.get(image.getContentHash(), hash -> content));
+		return image;
+	}
+
+	private static boolean isNewer(Long version, Long cachedVersion) {
+		if (version == null || cachedVersion == null) {
+			return true;
+		}
+		return version > cachedVersion;
+	}
+
+	/**
+	 * Approximate heap size of an Image, dominated by the image itself
+	 * @param image
+	 * @return weight in bytes
+	 */
+	static int weigh(Image image) {
+		long weight = 64L;
+		weight += image.getName() != null ? image.getName().length() * 2L : 0;
+		weight += image.getType() != null ? image.getType().length() * 2L : 0;
+		weight += image.getDescription() != null ? image.getDescription().length() * 2L : 0;
+		if (image.isBase64Stored()) {
+			weight += image.getImage().length() * 2L;
+		} else if (image.getContent() != null) {
+			weight += image.getContent().length;
+		}
+		return (int) Math.min(weight, Integer.MAX_VALUE);
+	}
+
+}
@@ -0,0 +1,478 @@
+package com.burgershopproject.imageserver.services;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.MessageSource;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.burgershopproject.imageserver.models.ImageChange;
+import com.burgershopproject.imageserver.models.ImageChangeEvent;
+import com.burgershopproject.imageserver.repositories.ImageChangeRepository;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Streams the creates and replaces of Images to subscribers in the order of the change log,
+ * so they can follow the catalogue without reading it again. The cursor of an event is the id
+ * of its change, and a subscriber resuming from a cursor is sent every change after it.
+ * Changes are only sent once every change before them has been applied by this instance,
+ * so a change committed late is not skipped, unless it commits after the gap timeout of the log.
+ * The changes of recent polls are held in memory, so subscribers that have caught up are sent
+ * new changes without reading the log again. The feed is only available while the change log is enabled.
+ * Changes are read on a shared pool into a bounded queue for each subscriber and written by a
+ * thread of its own, so a subscriber that stops reading falls behind without holding up the others,
+ * and is closed once a write has been blocked for longer than the write timeout.
+ */
+@Service
+public class ImageChangeFeed implements MeterBinder {
+
+	private final Logger logger = LoggerFactory.getLogger(ImageChangeFeed.class);
+
+	@Autowired
+	MessageSource messageSource;
+
+	@Autowired
+	ImageChangeRepository repository;
+
+	@Autowired
+	ImageChangeLog changeLog;
+
+	@Autowired
+	PlatformTransactionManager transactionManager;
+
+	@Value("${services.image.changes.max-subscribers:1000}")
+	int maxSubscribers;
+
+	@Value("${services.image.changes.buffer-size:10000}")
+	int bufferSize;
+
+	@Value("${services.image.changes.batch-size:500}")
+	int batchSize;
+
+	@Value("${services.image.changes.threads:2}")
+	int threads;
+
+	@Value("${services.image.changes.queue-size:1000}")
+	int queueSize;
+
+	@Value("${services.image.changes.write-timeout-ms:30000}")
+	long writeTimeoutMillis;
+
+	private ThreadPoolExecutor executor;
+
+	/*
+	 * Writes to subscribers, a thread is only held while a subscriber has changes queued
+	 */
+	private ThreadPoolExecutor writers;
+
+	private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+	/*
+	 * Changes applied by recent polls by id
+	 */
+	private final NavigableMap<Long, ImageChange> recent = new ConcurrentSkipListMap<>();
+
+	/*
+	 * Id after which every change applied is held in recent, -1 before the first poll
+	 */
+	private volatile long recentAfter = -1;
+
+	/*
+	 * Id up to which changes can be sent, the safe id of the change log as of the last poll published
+	 */
+	private volatile long safeId = -1;
+
+	@PostConstruct
+	void init() {
+		AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(),
+				runnable -> {
+					Thread thread = new Thread(runnable, "image-changes-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		AtomicInteger writerCount = new AtomicInteger();
+		writers = new ThreadPoolExecutor(maxSubscribers, maxSubscribers, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(),
+				runnable -> {
+					Thread thread = new Thread(runnable, "image-changes-writer-" + writerCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		writers.allowCoreThreadTimeOut(true);
+		changeLog.addListener(this::publish);
+	}
+
+	@PreDestroy
+	void shutdown() {
+		executor.shutdownNow();
+		writers.shutdownNow();
+		subscriptions.forEach(subscription -> subscription.sink.close());
+		subscriptions.clear();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("image.changes.subscribers", subscriptions, Set::size)
+				.description("Subscribers to the change feed")
+				.register(registry);
+	}
+
+	/**
+	 * Subscribes to the changes after a cursor. Without a cursor only changes made from now on are sent.
+	 * @param since cursor of the last event received, or null
+	 * @param sink
+	 * @return the Subscription, to be cancelled once the sink is closed
+	 */
+	public Subscription subscribe(String since, Sink sink) {
+		if (!changeLog.isEnabled()) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, messageSource.getMessage("messages.changeFeedDisabled", null, "The change feed is not available, the change log is disabled", Locale.ENGLISH));
+		}
+		long cursor = since != null ? parseCursor(since) : -1;
+		if (cursor >= 0) {
+			Long first = new TransactionTemplate(transactionManager).execute(status -> repository.findFirstId());
+			if (first != null && cursor < first - 1) {
+				throw new ResponseStatusException(HttpStatus.GONE, messageSource.getMessage("messages.changeCursorExpired", null, "Changes after the cursor are no longer held, read the Images again", Locale.ENGLISH));
+			}
+		}
+		if (subscriptions.size() >= maxSubscribers) {
+			throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, messageSource.getMessage("messages.changeFeedBusy", null, "Too many subscribers to the change feed, try again later", Locale.ENGLISH));
+		}
+		Subscription subscription = new Subscription(cursor >= 0 ? cursor : safeId, sink);
+		subscriptions.add(subscription);
+		signal(subscription);
+		return subscription;
+	}
+
+	private long parseCursor(String since) {
+		try {
+			long cursor = Long.parseLong(since);
+			if (cursor >= 0) {
+				return cursor;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new ResponseStatusException(HttpStatus.BAD_REQUEST, messageSource.getMessage("messages.changeCursorInvalid", null, "Cursor is not a change feed cursor", Locale.ENGLISH));
+	}
+
+	/**
+	 * Holds the changes applied by a poll and wakes every subscriber
+	 * @param changes
+	 */
+	void publish(List<ImageChange> changes) {
+		synchronized (recent) {
+			if (recentAfter < 0) {
+				recentAfter = changeLog.getFirstId();
+			}
+			changes.forEach(change -> recent.put(change.getId(), change));
+			while (recent.size() > bufferSize) {
+				recentAfter = Math.max(recentAfter, recent.pollFirstEntry().getKey());
+			}
+			safeId = changeLog.getSafeId();
+		}
+		subscriptions.forEach(this::signal);
+	}
+
+	/**
+	 * Sends a heartbeat to every subscriber, so connections closed by clients are noticed,
+	 * and closes subscribers whose write has been blocked for longer than the write timeout
+	 */
+	@Scheduled(initialDelayString = "${services.image.changes.heartbeat-interval-ms:15000}",
+			fixedDelayString = "${services.image.changes.heartbeat-interval-ms:15000}")
+	public void heartbeat() {
+		long stalled = System.currentTimeMillis() - writeTimeoutMillis;
+		subscriptions.forEach(subscription -> {
+			long writing = subscription.writingSince;
+			if (writing > 0 && writing < stalled) {
+				logger.debug("Change feed subscriber closed: write blocked since " + writing);
+				close(subscription);
+				return;
+			}
+			subscription.heartbeatDue = true;
+			signal(subscription);
+		});
+	}
+
+	/**
+	 * Queues delivery to a subscriber unless it is already queued or running, in which case that delivery runs again
+	 */
+	private void signal(Subscription subscription) {
+		if (subscription.signals.getAndIncrement() != 0) {
+			return;
+		}
+		try {
+			executor.execute(() -> drain(subscription));
+		} catch (RejectedExecutionException e) {
+			close(subscription);
+		}
+	}
+
+	private void drain(Subscription subscription) {
+		int missed = 1;
+		do {
+			try {
+				deliver(subscription);
+			} catch (RuntimeException e) {
+				logger.debug("Change feed subscriber closed: " + e.getMessage());
+				close(subscription);
+				return;
+			}
+			missed = subscription.signals.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	/**
+	 * Queues the subscriber every change after its cursor up to the safe id, until its queue is full.
+	 * Reading resumes from the cursor once the queue has been written.
+	 */
+	void deliver(Subscription subscription) {
+		long safe = safeId;
+		if (subscription.cancelled || safe < 0) {
+			return;
+		}
+		if (subscription.cursor < 0) {
+			/*
+			 * Subscribed from now before the first poll
+			 */
+			subscription.cursor = safe;
+			subscription.written = safe;
+		}
+		boolean queued = false;
+		while (subscription.cursor < safe && !subscription.cancelled && subscription.queued.get() < queueSize) {
+			List<ImageChange> changes = read(subscription.cursor, safe);
+			if (changes.isEmpty()) {
+				/*
+				 * Ids up to the safe id that are not in the log were rolled back or have expired
+				 */
+				subscription.cursor = safe;
+				break;
+			}
+			subscription.queued.addAndGet(changes.size());
+			subscription.pending.add(changes.stream().map(ImageChangeEvent::of).collect(Collectors.toList()));
+			subscription.cursor = changes.get(changes.size() - 1).getId();
+			queued = true;
+		}
+		if (subscription.heartbeatDue) {
+			subscription.heartbeatDue = false;
+			if (!queued && subscription.pending.isEmpty()) {
+				/*
+				 * No events are written as a heartbeat
+				 */
+				subscription.pending.add(Collections.emptyList());
+				queued = true;
+			}
+		}
+		if (queued) {
+			signalWrite(subscription);
+		}
+	}
+
+	/**
+	 * Starts the writer of a subscriber unless it is already running, in which case it writes again
+	 */
+	private void signalWrite(Subscription subscription) {
+		if (subscription.writes.getAndIncrement() != 0) {
+			return;
+		}
+		try {
+			writers.execute(() -> write(subscription));
+		} catch (RejectedExecutionException e) {
+			subscription.cancel();
+		}
+	}
+
+	/**
+	 * Writes the events queued for a subscriber in order, and closes it once dropped by the feed
+	 */
+	private void write(Subscription subscription) {
+		int missed = 1;
+		do {
+			List<ImageChangeEvent> events;
+			while (!subscription.cancelled && (events = subscription.pending.poll()) != null) {
+				subscription.writingSince = System.currentTimeMillis();
+				try {
+					if (events.isEmpty()) {
+						subscription.sink.heartbeat();
+					} else {
+						subscription.sink.send(events);
+						subscription.written = Long.parseLong(events.get(events.size() - 1).getCursor());
+					}
+				} catch (IOException | RuntimeException e) {
+					logger.debug("Change feed subscriber closed: " + e.getMessage());
+					close(subscription);
+				} finally {
+					subscription.writingSince = 0;
+				}
+				if (!events.isEmpty() && subscription.queued.addAndGet(-events.size()) < queueSize) {
+					signal(subscription);
+				}
+			}
+			if (subscription.cancelled) {
+				subscription.pending.clear();
+				if (subscription.closing && subscription.closed.compareAndSet(false, true)) {
+					subscription.sink.close();
+				}
+			}
+			missed = subscription.writes.addAndGet(-missed);
+		} while (missed != 0);
+	}
+
+	/**
+	 * Reads a batch of changes after a cursor up to the safe id, from those held when they all are
+	 */
+	private List<ImageChange> read(long cursor, long safe) {
+		long after = recentAfter;
+		if (after >= 0 && cursor >= after) {
+			List<ImageChange> changes = new ArrayList<>(Math.min(batchSize, recent.size()));
+			for (ImageChange change : recent.subMap(cursor, false, safe, true).values()) {
+				changes.add(change);
+				if (changes.size() == batchSize) {
+					break;
+				}
+			}
+			/*
+			 * Changes evicted meanwhile are read from the log instead
+			 */
+			if (recentAfter <= cursor) {
+				return changes;
+			}
+		}
+		List<ImageChange> changes = new TransactionTemplate(transactionManager)
+				.execute(status -> repository.findBetween(cursor, safe, PageRequest.of(0, batchSize)));
+		return changes != null ? changes : Collections.emptyList();
+	}
+
+	/**
+	 * Drops a subscriber, its response is ended by its writer once any write in progress returns
+	 */
+	private void close(Subscription subscription) {
+		subscription.closing = true;
+		subscription.cancel();
+		signalWrite(subscription);
+	}
+
+	public int getSubscribers() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * Where the events of a subscription are written
+	 */
+	public interface Sink {
+
+		/**
+		 * Writes events in cursor order
+		 * @param events
+		 * @throws IOException when the subscriber can no longer be written to
+		 */
+		void send(List<ImageChangeEvent> events) throws IOException;
+
+		/**
+		 * Writes something that is not an event, when there have been no events for a while
+		 * @throws IOException when the subscriber can no longer be written to
+		 */
+		void heartbeat() throws IOException;
+
+		/**
+		 * Ends the response, when the subscriber is dropped by the feed
+		 */
+		void close();
+
+	}
+
+	/**
+	 * A subscriber, the cursor of the last change queued for it and of the last change sent to it
+	 */
+	public class Subscription {
+
+		private final Sink sink;
+
+		private volatile long cursor;
+
+		private volatile long written;
+
+		private volatile boolean cancelled;
+
+		private volatile boolean closing;
+
+		private final AtomicBoolean closed = new AtomicBoolean();
+
+		private volatile boolean heartbeatDue;
+
+		private final AtomicInteger signals = new AtomicInteger();
+
+		/*
+		 * Batches of events waiting to be written, an empty batch is a heartbeat
+		 */
+		private final Queue<List<ImageChangeEvent>> pending = new ConcurrentLinkedQueue<>();
+
+		/*
+		 * Events queued or being written
+		 */
+		private final AtomicInteger queued = new AtomicInteger();
+
+		private final AtomicInteger writes = new AtomicInteger();
+
+		/*
+		 * When the write in progress started, 0 when not writing
+		 */
+		private volatile long writingSince;
+
+		private Subscription(long cursor, Sink sink) {
+			this.cursor = cursor;
+			this.written = cursor;
+			this.sink = sink;
+		}
+
+		/**
+		 * Stops sending events, once the response has completed or failed
+		 */
+		public void cancel() {
+			cancelled = true;
+			subscriptions.remove(this);
+		}
+
+		/**
+		 * @return cursor of the last change sent
+		 */
+		public long getCursor() {
+			return written;
+		}
+
+	}
+
+}
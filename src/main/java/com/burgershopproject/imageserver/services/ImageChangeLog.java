@@ -0,0 +1,275 @@
+package com.burgershopproject.imageserver.services;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.burgershopproject.imageserver.models.ImageChange;
+import com.burgershopproject.imageserver.models.ImageSummary;
+import com.burgershopproject.imageserver.repositories.ImageChangeRepository;
+import com.burgershopproject.imageserver.repositories.ImageRepository;
+
+/**
+ * Keeps what each instance holds in memory about Images in step with writes made by the others.
+ * Writes append the name and version of the Image to the change log in their own transaction.
+ * Every instance polls the log by id for changes after the last one it has seen, dropping
+ * older cached copies and variants and indexing the Images again.
+ * Ids are assigned when a row is inserted but become visible when its transaction commits,
+ * so ids skipped by a poll are looked up again until they appear or the gap timeout passes.
+ * Listeners are given the changes applied by each poll, and every change up to the safe id
+ * has been applied once the poll completes.
+ */
+@Component
+public class ImageChangeLog {
+
+	private final Logger logger = LoggerFactory.getLogger(ImageChangeLog.class);
+
+	@Autowired
+	ImageChangeRepository repository;
+
+	@Autowired
+	ImageRepository imageRepository;
+
+	@Autowired
+	ImageCache cache;
+
+	@Autowired
+	ImageVariantService variantService;
+
+	@Autowired
+	ImageSearchIndex searchIndex;
+
+	@Autowired
+	ImageNameFilter nameFilter;
+
+	@Autowired
+	PlatformTransactionManager transactionManager;
+
+	@Value("${services.image.invalidation.enabled:true}")
+	boolean enabled;
+
+	@Value("${services.image.invalidation.batch-size:500}")
+	int batchSize;
+
+	@Value("${services.image.invalidation.gap-timeout-ms:60000}")
+	long gapTimeoutMillis;
+
+	@Value("${services.image.invalidation.max-gaps:1000}")
+	int maxGaps;
+
+	@Value("${services.image.invalidation.retention-ms:86400000}")
+	long retentionMillis;
+
+	/*
+	 * Id of the last change seen, -1 until the first poll
+	 */
+	private long lastId = -1;
+
+	/*
+	 * Id of the last change when polling started, every later change has been seen since
+	 */
+	private volatile long firstId = -1;
+
+	/*
+	 * Id up to which every change has been applied, which is before the first id still skipped
+	 */
+	private volatile long safeId = -1;
+
+	/*
+	 * Ids skipped by a poll, with when they were first skipped
+	 */
+	private final Map<Long, Long> gaps = new LinkedHashMap<>();
+
+	private final List<Consumer<List<ImageChange>>> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Appends the change of a written Image to the log in the current transaction, just before it commits.
+	 * The write is flushed first, so the version recorded is the one written, and the id of
+	 * the change is taken as late as possible, so polls skip it for a shorter time.
+	 * @param summary the written Image, ignored when null
+	 */
+	public void record(ImageSummary summary) {
+		if (!enabled || summary == null) {
+			return;
+		}
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void beforeCommit(boolean readOnly) {
+					repository.flush();
+					save(summary);
+				}
+			});
+		} else {
+			save(summary);
+		}
+	}
+
+	private void save(ImageSummary summary) {
+		repository.save(new ImageChange(summary.getName(), summary.getVersion(), summary.getType(), summary.getContentHash(), Instant.now()));
+	}
+
+	/**
+	 * Adds a listener given the changes applied by each poll, in the order they were applied
+	 * @param listener
+	 */
+	public void addListener(Consumer<List<ImageChange>> listener) {
+		listeners.add(listener);
+	}
+
+	@Scheduled(initialDelayString = "${services.image.invalidation.poll-interval-ms:1000}",
+			fixedDelayString = "${services.image.invalidation.poll-interval-ms:1000}")
+	public void start() {
+		if (!enabled) {
+			return;
+		}
+		try {
+			poll();
+		} catch (RuntimeException e) {
+			logger.error("Polling image changes failed", e);
+		}
+	}
+
+	@Scheduled(initialDelayString = "${services.image.invalidation.purge-interval-ms:3600000}",
+			fixedDelayString = "${services.image.invalidation.purge-interval-ms:3600000}")
+	public void purge() {
+		if (!enabled) {
+			return;
+		}
+		try {
+			Instant before = Instant.now().minusMillis(retentionMillis);
+			/*
+			 * The latest change is kept, so a cursor before every change held is known to have expired
+			 */
+			Integer deleted = new TransactionTemplate(transactionManager).execute(status -> {
+				Long last = repository.findLastId();
+				return last != null ? repository.deleteChangedBefore(before, last) : 0;
+			});
+			logger.debug("Purged " + deleted + " image changes before " + before);
+		} catch (RuntimeException e) {
+			logger.error("Purging image changes failed", e);
+		}
+	}
+
+	/**
+	 * Applies the changes committed since the last poll. The first poll only finds where the log ends,
+	 * as nothing has been read into memory before it.
+	 * @return number of changes applied
+	 */
+	public synchronized int poll() {
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setReadOnly(true);
+		List<ImageChange> applied = new ArrayList<>();
+		if (lastId < 0) {
+			Long last = transaction.execute(status -> repository.findLastId());
+			firstId = last != null ? last : 0;
+			lastId = firstId;
+			nameFilter.follow();
+		} else {
+			if (!gaps.isEmpty()) {
+				List<ImageChange> filled = transaction.execute(status -> repository.findByIdIn(new ArrayList<>(gaps.keySet())));
+				filled.forEach(change -> gaps.remove(change.getId()));
+				long expired = System.currentTimeMillis() - gapTimeoutMillis;
+				gaps.values().removeIf(skipped -> skipped < expired);
+				apply(filled, transaction);
+				applied.addAll(filled);
+			}
+			while (true) {
+				long after = lastId;
+				List<ImageChange> batch = transaction.execute(status -> repository.findAfter(after, PageRequest.of(0, batchSize)));
+				long now = System.currentTimeMillis();
+				for (ImageChange change : batch) {
+					for (long skipped = lastId + 1; skipped < change.getId() && gaps.size() < maxGaps; skipped++) {
+						gaps.put(skipped, now);
+					}
+					lastId = change.getId();
+				}
+				apply(batch, transaction);
+				applied.addAll(batch);
+				if (batch.size() < batchSize) {
+					break;
+				}
+			}
+		}
+		safeId = gaps.isEmpty() ? lastId : gaps.keySet().iterator().next() - 1;
+		for (Consumer<List<ImageChange>> listener : listeners) {
+			listener.accept(applied);
+		}
+		return applied.size();
+	}
+
+	/**
+	 * Drops cached copies and variants of the changed Images unless newer than the change,
+	 * and indexes the Images as they now are
+	 * @param changes
+	 * @param transaction
+	 */
+	private void apply(List<ImageChange> changes, TransactionTemplate transaction) {
+		if (changes.isEmpty()) {
+			return;
+		}
+		Map<String, Long> versions = new HashMap<>();
+		for (ImageChange change : changes) {
+			versions.merge(change.getName(), versionOf(change.getVersion()), Math::max);
+		}
+		versions.forEach((name, version) -> {
+			cache.invalidate(name, version);
+			variantService.invalidate(name);
+			nameFilter.add(name);
+		});
+		List<ImageSummary> summaries = transaction.execute(status -> imageRepository.findSummariesByNameIn(versions.keySet()));
+		summaries.forEach(searchIndex::refresh);
+		logger.debug("Applied " + changes.size() + " image changes up to " + lastId);
+	}
+
+	private static long versionOf(Long version) {
+		return version != null ? version : -1L;
+	}
+
+	/**
+	 * @return true when changes are recorded and polled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return id up to which every change committed has been applied, -1 before the first poll
+	 */
+	public long getSafeId() {
+		return safeId;
+	}
+
+	/**
+	 * @return id of the last change when polling started, -1 before the first poll
+	 */
+	public long getFirstId() {
+		return firstId;
+	}
+
+	long getLastId() {
+		return lastId;
+	}
+
+	synchronized int getGaps() {
+		return gaps.size();
+	}
+
+}
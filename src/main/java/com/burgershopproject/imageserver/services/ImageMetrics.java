@@ -0,0 +1,215 @@
+package com.burgershopproject.imageserver.services;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.hibernate.StaleObjectStateException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageBatchItem;
+import com.burgershopproject.imageserver.models.ImageDto;
+import com.burgershopproject.imageserver.models.ImageSummary;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Latency and size metrics of the image server, published with the other metrics at
+ * /actuator/metrics and /actuator/prometheus:
+ * <ul>
+ * <li>image.operation, time of each operation including its commit, by operation and outcome</li>
+ * <li>image.repository, time spent in each repository method, which is the database time</li>
+ * <li>image.serialization, time spent writing each JSON response, by representation</li>
+ * <li>image.response.size, bytes of each JSON or image response, by representation</li>
+ * <li>image.content.size, bytes of each image written, by operation</li>
+ * <li>image.revalidations, conditional requests answered by whether the image was modified</li>
+ * </ul>
+ * The hit ratio of the Image cache is published as cache.gets tagged cache=images.
+ */
+@Component
+public class ImageMetrics {
+
+	public static final String GET = "get";
+	public static final String LIST = "list";
+	public static final String CREATE = "create";
+	public static final String REPLACE = "replace";
+	public static final String EXPORT = "export";
+	public static final String IMPORT = "import";
+
+	public static final String OUTCOME_SUCCESS = "SUCCESS";
+	public static final String OUTCOME_NOT_FOUND = "NOT_FOUND";
+	public static final String OUTCOME_CLIENT_ERROR = "CLIENT_ERROR";
+	public static final String OUTCOME_SERVER_ERROR = "SERVER_ERROR";
+
+	/*
+	 * Representation of an image body rather than JSON
+	 */
+	public static final String REPRESENTATION_CONTENT = "content";
+
+	private static final String NONE = "None";
+
+	@Autowired
+	MeterRegistry registry;
+
+	@Value("${services.image.upload.max-bytes:16777216}")
+	long maxUploadBytes;
+
+	/**
+	 * Times an operation. An operation returning null found nothing.
+	 * @param operation
+	 * @param call
+	 * @return the result of the call
+	 */
+	public <T> T time(String operation, Supplier<T> call) {
+		Timer.Sample sample = Timer.start(registry);
+		String outcome = OUTCOME_SERVER_ERROR;
+		String exception = NONE;
+		try {
+			T result = call.get();
+			outcome = result != null ? OUTCOME_SUCCESS : OUTCOME_NOT_FOUND;
+			return result;
+		} catch (RuntimeException e) {
+			outcome = outcome(e);
+			exception = e.getClass().getSimpleName();
+			throw e;
+		} finally {
+			sample.stop(Timer.builder("image.operation")
+					.description("Image operations including their commit")
+					.tags("operation", operation, "outcome", outcome, "exception", exception)
+					.publishPercentileHistogram()
+					.register(registry));
+		}
+	}
+
+	/**
+	 * The outcome of a failed operation, following the status it is answered with
+	 */
+	static String outcome(RuntimeException e) {
+		if (e instanceof ResponseStatusException) {
+			HttpStatus status = ((ResponseStatusException) e).getStatus();
+			if (status == HttpStatus.NOT_FOUND) {
+				return OUTCOME_NOT_FOUND;
+			}
+			return status.is4xxClientError() ? OUTCOME_CLIENT_ERROR : OUTCOME_SERVER_ERROR;
+		}
+		if (e instanceof StaleObjectStateException || e instanceof OptimisticLockingFailureException
+				|| e instanceof DataIntegrityViolationException || e instanceof org.hibernate.exception.ConstraintViolationException) {
+			return OUTCOME_CLIENT_ERROR;
+		}
+		return OUTCOME_SERVER_ERROR;
+	}
+
+	/**
+	 * Records the time of a repository method
+	 * @param repository
+	 * @param method
+	 * @param nanos
+	 * @param failure thrown by the method, or null
+	 */
+	public void recordRepository(String repository, String method, long nanos, Throwable failure) {
+		Timer.builder("image.repository")
+				.description("Time spent in repository methods, which is the database time")
+				.tags("repository", repository, "method", method, "exception", failure != null ? failure.getClass().getSimpleName() : NONE)
+				.register(registry)
+				.record(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Records the time and size of a JSON response
+	 * @param body
+	 * @param nanos
+	 * @param bytes
+	 */
+	public void recordSerialization(Object body, long nanos, long bytes) {
+		String representation = representation(body);
+		Timer.builder("image.serialization")
+				.description("Time spent writing JSON responses")
+				.tags("representation", representation)
+				.publishPercentileHistogram()
+				.register(registry)
+				.record(nanos, TimeUnit.NANOSECONDS);
+		recordResponseSize(representation, bytes);
+	}
+
+	/**
+	 * Summaries are projections, so the classes of bodies are mapped to a fixed set of names
+	 */
+	static String representation(Object body) {
+		if (body instanceof Image) {
+			return "Image";
+		}
+		if (body instanceof ImageSummary) {
+			return "ImageSummary";
+		}
+		if (body instanceof ImageDto) {
+			return "ImageDto";
+		}
+		if (body instanceof ImageBatchItem) {
+			return "ImageBatchItem";
+		}
+		if (body instanceof Map) {
+			return "ImageBatch";
+		}
+		return "other";
+	}
+
+	/**
+	 * Records the size of a response body
+	 * @param representation
+	 * @param bytes
+	 */
+	public void recordResponseSize(String representation, long bytes) {
+		DistributionSummary.builder("image.response.size")
+				.description("Size of response bodies")
+				.baseUnit("bytes")
+				.tags("representation", representation)
+				.publishPercentileHistogram()
+				.minimumExpectedValue(1L)
+				.maximumExpectedValue(maxUploadBytes * 2)
+				.register(registry)
+				.record(bytes);
+	}
+
+	/**
+	 * Records the size of an image written
+	 * @param operation
+	 * @param bytes of the image, nothing is recorded when not known
+	 */
+	public void recordContentSize(String operation, Long bytes) {
+		if (bytes == null) {
+			return;
+		}
+		DistributionSummary.builder("image.content.size")
+				.description("Size of images written")
+				.baseUnit("bytes")
+				.tags("operation", operation)
+				.publishPercentileHistogram()
+				.minimumExpectedValue(1L)
+				.maximumExpectedValue(maxUploadBytes)
+				.register(registry)
+				.record(bytes);
+	}
+
+	/**
+	 * Counts a conditional request
+	 * @param notModified whether it was answered with 304
+	 */
+	public void recordRevalidation(boolean notModified) {
+		Counter.builder("image.revalidations")
+				.description("Conditional requests by whether they were answered with 304")
+				.tags("outcome", notModified ? "not_modified" : "modified")
+				.register(registry)
+				.increment();
+	}
+
+}
@@ -0,0 +1,356 @@
+package com.burgershopproject.imageserver.services;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.burgershopproject.imageserver.repositories.ImageRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Bloom filter over the names of all Images, so names that do not exist are answered
+ * without a query. The filter is built in the background at startup from the names alone
+ * and names are added as Images are created. Until it is built every name may exist.
+ * Names the filter lets through that turn out not to exist are remembered for a short time.
+ * The filter is rebuilt periodically, sized for the number of names it then holds.
+ * Images created by other instances are only added as the change log applies them, so every
+ * name may exist until the change log is followed and a filter has been built since.
+ * With the change log disabled, services.image.invalidation.enabled=false, nothing is answered from the filter.
+ */
+@Component
+public class ImageNameFilter implements MeterBinder {
+
+	private final Logger logger = LoggerFactory.getLogger(ImageNameFilter.class);
+
+	public static final String MISSES_CACHE_NAME = "image-misses";
+
+	@Autowired
+	ImageRepository repository;
+
+	@Autowired
+	PlatformTransactionManager transactionManager;
+
+	@Value("${services.image.name-filter.enabled:true}")
+	boolean enabled;
+
+	@Value("${services.image.name-filter.expected-names:1000000}")
+	long expectedNames;
+
+	@Value("${services.image.name-filter.false-positive-rate:0.01}")
+	double falsePositiveRate;
+
+	@Value("${services.image.name-filter.batch-size:10000}")
+	int batchSize;
+
+	@Value("${services.image.name-filter.negative-cache.ttl-ms:10000}")
+	long negativeTtlMillis;
+
+	@Value("${services.image.name-filter.negative-cache.max-names:10000}")
+	long negativeMaxNames;
+
+	/*
+	 * Filter answering lookups, null until the first build has finished
+	 */
+	private volatile Bloom filter;
+
+	/*
+	 * Filter being built, which names created meanwhile are added to as well
+	 */
+	private volatile Bloom building;
+
+	/*
+	 * Names found not to exist although the filter let them through
+	 */
+	private Cache<String, Boolean> misses;
+
+	/*
+	 * Whether the change log adds the names of Images created by other instances, and since when by System.nanoTime
+	 */
+	private volatile boolean followed;
+
+	private volatile long followedSince;
+
+	private final LongAdder rejected = new LongAdder();
+
+	private final LongAdder falsePositives = new LongAdder();
+
+	@PostConstruct
+	void init() {
+		misses = Caffeine.newBuilder()
+				.maximumSize(negativeMaxNames)
+				.expireAfterWrite(negativeTtlMillis, TimeUnit.MILLISECONDS)
+				.recordStats()
+				.build();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		CaffeineCacheMetrics.monitor(registry, misses, MISSES_CACHE_NAME);
+		Gauge.builder("image.name.filter.names", this, f -> f.filter != null ? f.filter.count.sum() : 0)
+				.description("Names added to the filter")
+				.register(registry);
+		Gauge.builder("image.name.filter.bits", this, f -> f.filter != null ? f.filter.size : 0)
+				.description("Size of the filter in bits")
+				.register(registry);
+		Gauge.builder("image.name.filter.false.positive.rate", this, f -> f.filter != null ? f.filter.falsePositiveRate() : 1)
+				.description("Expected rate of names that do not exist being let through, from the names held")
+				.register(registry);
+		FunctionCounter.builder("image.name.filter.lookups", rejected, LongAdder::sum)
+				.description("Lookups of names that do not exist")
+				.tag("result", "rejected")
+				.register(registry);
+		FunctionCounter.builder("image.name.filter.lookups", falsePositives, LongAdder::sum)
+				.description("Lookups of names that do not exist")
+				.tag("result", "false_positive")
+				.register(registry);
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void start() {
+		if (!enabled) {
+			return;
+		}
+		Thread thread = new Thread(this::build, "image-name-filter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Scheduled(initialDelayString = "${services.image.name-filter.rebuild-interval-ms:600000}",
+			fixedDelayString = "${services.image.name-filter.rebuild-interval-ms:600000}")
+	public void rebuild() {
+		if (enabled && filter != null) {
+			build();
+		}
+	}
+
+	/**
+	 * Builds a new filter from the names of all Images, reading them in name order one batch per
+	 * transaction, and replaces the current filter with it
+	 * @return number of names added
+	 */
+	public synchronized long build() {
+		long started = System.currentTimeMillis();
+		Bloom current = filter;
+		long names = current != null ? current.count.sum() * 2 : 0;
+		Bloom next = new Bloom(Math.max(expectedNames, names), falsePositiveRate);
+		building = next;
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setReadOnly(true);
+		String lastName = "";
+		try {
+			while (true) {
+				String after = lastName;
+				List<String> batch = transaction.execute(status -> repository.findNamesAfter(after, PageRequest.of(0, batchSize)));
+				if (batch == null || batch.isEmpty()) {
+					break;
+				}
+				batch.forEach(next::add);
+				lastName = batch.get(batch.size() - 1);
+			}
+			filter = next;
+			logger.info("Image name filter built, " + next.count.sum() + " names in " + next.size + " bits in " + (System.currentTimeMillis() - started) + "ms");
+		} catch (RuntimeException e) {
+			logger.error("Image name filter build failed after " + next.count.sum() + " names", e);
+		} finally {
+			building = null;
+		}
+		return next.count.sum();
+	}
+
+	/**
+	 * Called by the change log once it has found where the log ends, after which it adds the names
+	 * of Images created by any instance. A filter built before then may lack names created by others,
+	 * so it is built again.
+	 */
+	public void follow() {
+		followedSince = System.nanoTime();
+		followed = true;
+		if (enabled && (filter != null || building != null)) {
+			Thread thread = new Thread(this::build, "image-name-filter");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Adds the name of a created Image, and again once the current transaction completes
+	 * so a build that read the names before it committed still holds it
+	 * @param name
+	 */
+	public void add(String name) {
+		addNow(name);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int status) {
+					addNow(name);
+				}
+			});
+		}
+	}
+
+	private void addNow(String name) {
+		/*
+		 * Read in the opposite order to a build replacing them, so one of the two is always the newest filter
+		 */
+		Bloom next = building;
+		Bloom current = filter;
+		if (next != null) {
+			next.add(name);
+		}
+		if (current != null) {
+			current.add(name);
+		}
+		misses.invalidate(name);
+	}
+
+	/**
+	 * @param name
+	 * @return false when no Image has the name, true when one may have it
+	 */
+	public boolean mightExist(String name) {
+		if (!enabled || !followed) {
+			return true;
+		}
+		Bloom current = filter;
+		if (current != null && current.started - followedSince >= 0 && !current.mightContain(name)) {
+			rejected.increment();
+			return false;
+		}
+		return misses.getIfPresent(name) == null;
+	}
+
+	/**
+	 * Remembers that a name let through by mightExist does not exist
+	 * @param name
+	 */
+	public void recordMiss(String name) {
+		if (!enabled || !followed) {
+			return;
+		}
+		if (filter != null) {
+			falsePositives.increment();
+		}
+		misses.put(name, Boolean.TRUE);
+	}
+
+	public boolean isReady() {
+		return filter != null;
+	}
+
+	/**
+	 * Fixed size Bloom filter, whose bits can be set by many threads at once
+	 */
+	static class Bloom {
+
+		final long size;
+
+		final int hashes;
+
+		final LongAdder count = new LongAdder();
+
+		/*
+		 * System.nanoTime when created, before the build reads any names
+		 */
+		final long started;
+
+		private final AtomicLongArray bits;
+
+		Bloom(long names, double falsePositiveRate) {
+			started = System.nanoTime();
+			long optimal = (long) Math.ceil(-Math.max(names, 1) * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+			/*
+			 * Bit positions are derived from 32 bit hashes, so larger filters would leave bits unused
+			 */
+			long words = Math.min(1L << 26, Math.max(1, (optimal + 63) / 64));
+			size = words * 64;
+			hashes = (int) Math.max(1, Math.round((double) size / Math.max(names, 1) * Math.log(2)));
+			bits = new AtomicLongArray((int) words);
+		}
+
+		void add(String name) {
+			long hash = hash(name);
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+			boolean added = false;
+			for (int i = 0; i < hashes; i++) {
+				long bit = Integer.toUnsignedLong(h1 + i * h2) % size;
+				int word = (int) (bit >>> 6);
+				long mask = 1L << bit;
+				long value;
+				while (((value = bits.get(word)) & mask) == 0) {
+					if (bits.compareAndSet(word, value, value | mask)) {
+						added = true;
+						break;
+					}
+				}
+			}
+			if (added) {
+				count.increment();
+			}
+		}
+
+		boolean mightContain(String name) {
+			long hash = hash(name);
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32);
+			for (int i = 0; i < hashes; i++) {
+				long bit = Integer.toUnsignedLong(h1 + i * h2) % size;
+				if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Expected false positive rate for the names added so far
+		 */
+		double falsePositiveRate() {
+			return Math.pow(1 - Math.exp(-(double) hashes * count.sum() / size), hashes);
+		}
+
+		/**
+		 * 64 bit FNV-1a over the characters of a name, finished with the MurmurHash3 mix
+		 */
+		static long hash(String name) {
+			long hash = 0xcbf29ce484222325L;
+			for (int i = 0; i < name.length(); i++) {
+				hash ^= name.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+			hash ^= hash >>> 33;
+			hash *= 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 33;
+			hash *= 0xc4ceb9fe1a85ec53L;
+			hash ^= hash >>> 33;
+			return hash;
+		}
+
+	}
+
+}
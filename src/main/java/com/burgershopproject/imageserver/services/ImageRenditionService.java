@@ -0,0 +1,377 @@
+package com.burgershopproject.imageserver.services;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.MessageSource;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageRendition;
+import com.burgershopproject.imageserver.models.RenditionParameters;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+
+/**
+ * Produces resized and re-encoded renditions of Images.
+ * Rendering runs on a bounded worker pool so it cannot starve the request threads,
+ * and renditions are cached by name, version and parameters so each is only
+ * rendered once per version of an Image.
+ */
+@Service
+public class ImageRenditionService implements MeterBinder {
+
+	private final Logger logger = LoggerFactory.getLogger(ImageRenditionService.class);
+
+	public static final String CACHE_NAME = "renditions";
+
+	public static final String FORMAT_JPEG = "jpeg";
+	public static final String FORMAT_PNG = "png";
+
+	@Autowired
+	MessageSource messageSource;
+
+	@Value("${services.image.rendition.threads:2}")
+	int threads;
+
+	@Value("${services.image.rendition.queue-size:64}")
+	int queueSize;
+
+	@Value("${services.image.rendition.timeout-ms:10000}")
+	long timeoutMs;
+
+	@Value("${services.image.rendition.max-dimension:2048}")
+	int maxDimension;
+
+	/*
+	 * Largest stored image decoded, in pixels, checked from its header before its pixels are allocated
+	 */
+	@Value("${services.image.decode.max-pixels:25000000}")
+	long maxSourcePixels;
+
+	@Value("${services.image.rendition.cache.max-bytes:33554432}")
+	long maxBytes;
+
+	private ThreadPoolExecutor executor;
+
+	private AsyncCache<String, ImageRendition> cache;
+
+	@PostConstruct
+	void init() {
+		AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueSize),
+				runnable -> {
+					Thread thread = new Thread(runnable, "image-rendition-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				},
+				new ThreadPoolExecutor.AbortPolicy());
+		cache = Caffeine.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher((String key, ImageRendition rendition) -> rendition.getContent().length)
+				.recordStats()
+				.buildAsync();
+	}
+
+	@PreDestroy
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		CaffeineCacheMetrics.monitor(registry, cache.synchronous(), CACHE_NAME);
+		new ExecutorServiceMetrics(executor, "image.rendition", Collections.emptyList()).bindTo(registry);
+	}
+
+	/**
+	 * Validates requested rendition parameters
+	 * @param width
+	 * @param height
+	 * @param fit
+	 * @param format
+	 * @return RenditionParameters, or null when the original Image is requested
+	 */
+	public RenditionParameters parameters(Integer width, Integer height, String fit, String format) {
+		if (width == null && height == null && format == null) {
+			return null;
+		}
+		if (!isValidDimension(width) || !isValidDimension(height)) {
+			throw badRequest("messages.renditionInvalidSize", "Rendition width and height must be between 1 and " + maxDimension);
+		}
+		String resolvedFit = fit != null ? fit.toLowerCase(Locale.ENGLISH) : RenditionParameters.FIT_CONTAIN;
+		if (!RenditionParameters.FIT_CONTAIN.equals(resolvedFit) && !RenditionParameters.FIT_COVER.equals(resolvedFit)
+				&& !RenditionParameters.FIT_FILL.equals(resolvedFit)) {
+			throw badRequest("messages.renditionInvalidFit", "Rendition fit must be cover, contain or fill");
+		}
+		String resolvedFormat = null;
+		if (format != null) {
+			resolvedFormat = formatOf(format);
+			if (resolvedFormat == null) {
+				throw badRequest("messages.renditionInvalidFormat", "Rendition format must be jpeg or png");
+			}
+		}
+		return new RenditionParameters(width, height, resolvedFit, resolvedFormat);
+	}
+
+	/**
+	 * Retrieve a rendition of an Image, rendering it on the worker pool if it is not cached.
+	 * Concurrent requests for the same rendition share one render.
+	 * @param image
+	 * @param parameters
+	 * @return ImageRendition
+	 */
+	public ImageRendition getRendition(Image image, RenditionParameters parameters) {
+		RenditionParameters resolved = parameters.getFormat() != null ? parameters
+				: new RenditionParameters(parameters.getWidth(), parameters.getHeight(), parameters.getFit(), defaultFormat(image.getType()));
+		String key = image.getName() + "@" + image.getVersion() + "?" + resolved;
+		CompletableFuture<ImageRendition> future;
+		try {
+			future = cache.get(key, (k, cacheExecutor) -> CompletableFuture.supplyAsync(() -> {
+				logger.debug("Render Image: " + k);
+				return render(image.getContent(), resolved);
+			}, executor));
+		} catch (RejectedExecutionException e) {
+			throw unavailable();
+		}
+		try {
+			return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw unavailable();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw unavailable();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ResponseStatusException) {
+				throw (ResponseStatusException) e.getCause();
+			}
+			throw new IllegalStateException("Rendition of " + key + " failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Scales and encodes an image
+	 * @param source encoded original image
+	 * @param parameters with the format resolved
+	 * @return ImageRendition
+	 */
+	ImageRendition render(byte[] source, RenditionParameters parameters) {
+		try {
+			BufferedImage original;
+			try {
+				original = decode(source, maxSourcePixels);
+			} catch (ImageTooLargeException e) {
+				throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, messageSource.getMessage("messages.renditionTooLarge", null, "Image is too large to be rendered", Locale.ENGLISH));
+			}
+			if (original == null) {
+				throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, messageSource.getMessage("messages.renditionUnreadable", null, "Image cannot be rendered", Locale.ENGLISH));
+			}
+			boolean opaque = FORMAT_JPEG.equals(parameters.getFormat());
+			int sourceWidth = original.getWidth();
+			int sourceHeight = original.getHeight();
+			Integer width = parameters.getWidth();
+			Integer height = parameters.getHeight();
+			int targetWidth;
+			int targetHeight;
+			int drawWidth;
+			int drawHeight;
+			if (width == null && height == null) {
+				targetWidth = drawWidth = sourceWidth;
+				targetHeight = drawHeight = sourceHeight;
+			} else if (width == null) {
+				targetHeight = drawHeight = height;
+				targetWidth = drawWidth = derivedDimension(sourceWidth * (double) height / sourceHeight);
+			} else if (height == null) {
+				targetWidth = drawWidth = width;
+				targetHeight = drawHeight = derivedDimension(sourceHeight * (double) width / sourceWidth);
+			} else if (RenditionParameters.FIT_FILL.equals(parameters.getFit())) {
+				targetWidth = drawWidth = width;
+				targetHeight = drawHeight = height;
+			} else if (RenditionParameters.FIT_COVER.equals(parameters.getFit())) {
+				/*
+				 * The centre of the source with the aspect ratio of the target is scaled to fill it,
+				 * rather than scaling the whole source past the target and cutting it there
+				 */
+				int cropWidth = Math.max(1, Math.min(sourceWidth, (int) Math.round(sourceHeight * width / (double) height)));
+				int cropHeight = Math.max(1, Math.min(sourceHeight, (int) Math.round(sourceWidth * height / (double) width)));
+				original = original.getSubimage((sourceWidth - cropWidth) / 2, (sourceHeight - cropHeight) / 2, cropWidth, cropHeight);
+				targetWidth = drawWidth = width;
+				targetHeight = drawHeight = height;
+			} else {
+				double scale = Math.min(width / (double) sourceWidth, height / (double) sourceHeight);
+				targetWidth = drawWidth = Math.max(1, (int) Math.round(sourceWidth * scale));
+				targetHeight = drawHeight = Math.max(1, (int) Math.round(sourceHeight * scale));
+			}
+
+			BufferedImage scaled = scale(original, drawWidth, drawHeight);
+			BufferedImage target = new BufferedImage(targetWidth, targetHeight, opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+			Graphics2D graphics = target.createGraphics();
+			try {
+				if (opaque) {
+					graphics.setColor(Color.WHITE);
+					graphics.fillRect(0, 0, targetWidth, targetHeight);
+				}
+				graphics.drawImage(scaled, (targetWidth - drawWidth) / 2, (targetHeight - drawHeight) / 2, null);
+			} finally {
+				graphics.dispose();
+			}
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ImageIO.write(target, parameters.getFormat(), out);
+			return new ImageRendition("image/" + parameters.getFormat(), out.toByteArray());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Decodes an image, reading its dimensions from the header first so an image declaring
+	 * more pixels than allowed is refused before anything is allocated for them
+	 * @param source encoded image
+	 * @param maxPixels
+	 * @return the image, or null when no reader understands it
+	 * @throws ImageTooLargeException when the image has more pixels than allowed
+	 */
+	static BufferedImage decode(byte[] source, long maxPixels) throws IOException {
+		try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(source))) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()) {
+				return null;
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+				if (pixels > maxPixels) {
+					throw new ImageTooLargeException(reader.getWidth(0) + "x" + reader.getHeight(0));
+				}
+				return reader.read(0);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Thrown when an image declares more pixels than may be decoded
+	 */
+	static class ImageTooLargeException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		ImageTooLargeException(String dimensions) {
+			super("Image of " + dimensions + " pixels is too large to decode");
+		}
+
+	}
+
+	/**
+	 * Scales in steps of at most half so large reductions keep their detail
+	 */
+	private static BufferedImage scale(BufferedImage image, int width, int height) {
+		BufferedImage current = image;
+		int currentWidth = image.getWidth();
+		int currentHeight = image.getHeight();
+		do {
+			currentWidth = currentWidth / 2 >= width ? currentWidth / 2 : width;
+			currentHeight = currentHeight / 2 >= height ? currentHeight / 2 : height;
+			BufferedImage next = new BufferedImage(currentWidth, currentHeight, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D graphics = next.createGraphics();
+			try {
+				graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+				graphics.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+			} finally {
+				graphics.dispose();
+			}
+			current = next;
+		} while (currentWidth != width || currentHeight != height);
+		return current;
+	}
+
+	/**
+	 * Rounds the side of a rendition derived from the aspect ratio of the source
+	 * @param dimension
+	 * @return the side, at least 1
+	 * @throws ResponseStatusException when it is larger than the maximum dimension
+	 */
+	private int derivedDimension(double dimension) {
+		if (dimension > maxDimension) {
+			throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, messageSource.getMessage("messages.renditionAspectTooLarge", null, "Rendition would be larger than the maximum dimension, request both width and height", Locale.ENGLISH));
+		}
+		return Math.max(1, (int) Math.round(dimension));
+	}
+
+	private boolean isValidDimension(Integer dimension) {
+		return dimension == null || (dimension > 0 && dimension <= maxDimension);
+	}
+
+	/**
+	 * @param format requested format or media type
+	 * @return the ImageIO format name, or null if not supported
+	 */
+	static String formatOf(String format) {
+		String lower = format.toLowerCase(Locale.ENGLISH);
+		if (lower.startsWith("image/")) {
+			lower = lower.substring("image/".length());
+		}
+		if ("jpeg".equals(lower) || "jpg".equals(lower)) {
+			return FORMAT_JPEG;
+		}
+		if ("png".equals(lower)) {
+			return FORMAT_PNG;
+		}
+		return null;
+	}
+
+	/**
+	 * Renditions keep JPEG for JPEG originals, everything else becomes PNG
+	 */
+	static String defaultFormat(String type) {
+		return type != null && FORMAT_JPEG.equals(formatOf(type)) ? FORMAT_JPEG : FORMAT_PNG;
+	}
+
+	private ResponseStatusException badRequest(String message, String defaultMessage) {
+		return new ResponseStatusException(HttpStatus.BAD_REQUEST, messageSource.getMessage(message, null, defaultMessage, Locale.ENGLISH));
+	}
+
+	private ResponseStatusException unavailable() {
+		return new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, messageSource.getMessage("messages.renditionBusy", null, "Too many renditions in progress", Locale.ENGLISH));
+	}
+
+}
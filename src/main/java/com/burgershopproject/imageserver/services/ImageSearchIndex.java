@@ -0,0 +1,394 @@
+package com.burgershopproject.imageserver.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.projection.ProjectionFactory;
+import org.springframework.data.projection.SpelAwareProxyProjectionFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.burgershopproject.imageserver.models.ImageSummary;
+import com.burgershopproject.imageserver.repositories.ImageRepository;
+
+/**
+ * In process inverted index over the names and descriptions of all Images.
+ * Each term maps to a posting list of document ids in the order the documents were
+ * added, and terms are held sorted so a prefix selects a contiguous range of them.
+ * Queries are answered from memory and return metadata only.
+ * The index is built in the background at startup and updated as Images are written.
+ */
+@Component
+public class ImageSearchIndex {
+
+	private final Logger logger = LoggerFactory.getLogger(ImageSearchIndex.class);
+
+	/*
+	 * A query term ending with this matches every term starting with the rest of it
+	 */
+	public static final String PREFIX_WILDCARD = "*";
+
+	private static final Pattern TOKEN_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}*]+");
+
+	private final ProjectionFactory projectionFactory = new SpelAwareProxyProjectionFactory();
+
+	@Autowired
+	ImageRepository repository;
+
+	@Autowired
+	PlatformTransactionManager transactionManager;
+
+	@Value("${services.image.search.batch-size:1000}")
+	int batchSize;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final TreeMap<String, PostingList> terms = new TreeMap<>();
+
+	private final Map<String, Integer> documentsByName = new HashMap<>();
+
+	/*
+	 * Indexed Images by document id, null once an Image has been replaced
+	 */
+	private final List<Document> documents = new ArrayList<>();
+
+	private int removed;
+
+	private volatile boolean ready;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void start() {
+		Thread thread = new Thread(this::build, "image-search-index");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Indexes all Images, reading them in name order one batch per transaction
+	 */
+	public void build() {
+		long started = System.currentTimeMillis();
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setReadOnly(true);
+		String lastName = null;
+		int indexed = 0;
+		try {
+			while (true) {
+				String after = lastName;
+				List<ImageSummary> summaries = transaction.execute(status -> repository.findSummariesAfter("name", false, after, after, batchSize));
+				if (summaries == null || summaries.isEmpty()) {
+					break;
+				}
+				for (ImageSummary summary : summaries) {
+					add(snapshot(summary), false);
+				}
+				indexed += summaries.size();
+				lastName = summaries.get(summaries.size() - 1).getName();
+			}
+			ready = true;
+			logger.info("Image search index built, " + indexed + " images in " + (System.currentTimeMillis() - started) + "ms");
+		} catch (RuntimeException e) {
+			logger.error("Image search index build failed after " + indexed + " images", e);
+		}
+	}
+
+	/**
+	 * Indexes a written Image once the current transaction commits
+	 * @param summary the written Image, ignored when null
+	 */
+	public void put(ImageSummary summary) {
+		if (summary == null) {
+			return;
+		}
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					add(snapshot(summary), true);
+				}
+			});
+		} else {
+			add(snapshot(summary), true);
+		}
+	}
+
+	/**
+	 * Indexes an Image read back after it was written elsewhere, unless its version is already indexed
+	 * @param summary
+	 */
+	public void refresh(ImageSummary summary) {
+		add(snapshot(summary), false);
+	}
+
+	/**
+	 * Finds the Images whose name or description contain every term of the query.
+	 * Only the requested page of hits is ordered, holding at most offset + limit of them.
+	 * @param query terms separated by spaces or punctuation, a term ending with * matches as a prefix
+	 * @param offset number of hits to skip
+	 * @param limit maximum number of hits to return
+	 * @return the page of matching Images in name order, and the number of matching Images
+	 */
+	public Hits search(String query, int offset, int limit) {
+		Set<String> queryTerms = new LinkedHashSet<>(tokenize(query));
+		lock.readLock().lock();
+		try {
+			BitSet matches = null;
+			for (String term : queryTerms) {
+				BitSet termMatches = match(term);
+				if (matches == null) {
+					matches = termMatches;
+				} else {
+					matches.and(termMatches);
+				}
+				if (matches.isEmpty()) {
+					break;
+				}
+			}
+			if (matches == null) {
+				return new Hits(Collections.emptyList(), 0);
+			}
+			int wanted = Math.max(offset, 0) + Math.max(limit, 0);
+			PriorityQueue<Document> first = new PriorityQueue<>(Comparator.comparing((Document document) -> document.name).reversed());
+			int total = 0;
+			for (int id = matches.nextSetBit(0); id >= 0; id = matches.nextSetBit(id + 1)) {
+				Document document = documents.get(id);
+				if (document == null) {
+					continue;
+				}
+				total++;
+				if (first.size() < wanted) {
+					first.add(document);
+				} else if (wanted > 0 && document.name.compareTo(first.peek().name) < 0) {
+					first.poll();
+					first.add(document);
+				}
+			}
+			List<Document> ordered = new ArrayList<>(first);
+			ordered.sort(Comparator.comparing(document -> document.name));
+			List<ImageSummary> page = new ArrayList<>();
+			for (int i = Math.max(offset, 0); i < ordered.size(); i++) {
+				page.add(ordered.get(i).summary);
+			}
+			return new Hits(page, total);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true once the index holds every Image
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * @return number of indexed Images
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return documentsByName.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private BitSet match(String term) {
+		BitSet matches = new BitSet(documents.size());
+		if (term.endsWith(PREFIX_WILDCARD)) {
+			String prefix = term.substring(0, term.length() - PREFIX_WILDCARD.length());
+			if (prefix.isEmpty()) {
+				return matches;
+			}
+			terms.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values().forEach(postings -> postings.addTo(matches));
+		} else {
+			PostingList postings = terms.get(term);
+			if (postings != null) {
+				postings.addTo(matches);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Adds or replaces the document of an Image
+	 * @param summary
+	 * @param replaceSameVersion whether an indexed document of the same version is replaced
+	 */
+	void add(ImageSummary summary, boolean replaceSameVersion) {
+		lock.writeLock().lock();
+		try {
+			Integer existing = documentsByName.get(summary.getName());
+			if (existing != null) {
+				long indexedVersion = versionOf(documents.get(existing).summary);
+				long version = versionOf(summary);
+				if (version < indexedVersion || (version == indexedVersion && !replaceSameVersion)) {
+					return;
+				}
+				documents.set(existing, null);
+				removed++;
+			}
+			append(new Document(summary));
+			if (removed > 1024 && removed > documents.size() / 2) {
+				compact();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Rebuilds the posting lists without the documents of replaced Images
+	 */
+	private void compact() {
+		List<Document> live = new ArrayList<>(documentsByName.size());
+		documents.stream().filter(document -> document != null).forEach(live::add);
+		terms.clear();
+		documentsByName.clear();
+		documents.clear();
+		removed = 0;
+		live.forEach(this::append);
+	}
+
+	private void append(Document document) {
+		int id = documents.size();
+		documents.add(document);
+		documentsByName.put(document.name, id);
+		for (String term : terms(document.summary)) {
+			terms.computeIfAbsent(term, key -> new PostingList()).add(id);
+		}
+	}
+
+	private static Set<String> terms(ImageSummary summary) {
+		Set<String> terms = new LinkedHashSet<>(tokenize(summary.getName()));
+		terms.addAll(tokenize(summary.getDescription()));
+		terms.removeIf(term -> term.contains(PREFIX_WILDCARD));
+		return terms;
+	}
+
+	/**
+	 * Lower cased runs of letters and digits, keeping a trailing * for prefix queries
+	 */
+	static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<>();
+		if (text == null) {
+			return tokens;
+		}
+		for (String token : TOKEN_SEPARATOR.split(text.toLowerCase(Locale.ROOT))) {
+			if (!token.isEmpty()) {
+				tokens.add(token);
+			}
+		}
+		return tokens;
+	}
+
+	private static long versionOf(ImageSummary summary) {
+		return summary.getVersion() != null ? summary.getVersion() : -1L;
+	}
+
+	/**
+	 * An immutable copy of the metadata, as the summary may be backed by an entity
+	 */
+	private ImageSummary snapshot(ImageSummary summary) {
+		Map<String, Object> attributes = new HashMap<>();
+		attributes.put("name", summary.getName());
+		attributes.put("version", summary.getVersion());
+		attributes.put("type", summary.getType());
+		attributes.put("description", summary.getDescription());
+		attributes.put("size", summary.getSize());
+		attributes.put("lastModified", summary.getLastModified());
+		attributes.put("contentStore", summary.getContentStore());
+		attributes.put("contentKey", summary.getContentKey());
+		attributes.put("contentHash", summary.getContentHash());
+		return projectionFactory.createProjection(ImageSummary.class, attributes);
+	}
+
+	/**
+	 * A page of search hits
+	 */
+	public static final class Hits {
+
+		private final List<ImageSummary> summaries;
+		private final int total;
+
+		Hits(List<ImageSummary> summaries, int total) {
+			this.summaries = summaries;
+			this.total = total;
+		}
+
+		public List<ImageSummary> getSummaries() {
+			return summaries;
+		}
+
+		/**
+		 * @return number of matching Images, including those outside the page
+		 */
+		public int getTotal() {
+			return total;
+		}
+
+	}
+
+	/**
+	 * An indexed Image, with its name held outside the summary for ordering hits
+	 */
+	private static final class Document {
+
+		private final String name;
+		private final ImageSummary summary;
+
+		Document(ImageSummary summary) {
+			this.name = summary.getName();
+			this.summary = summary;
+		}
+
+	}
+
+	/**
+	 * Ascending document ids, appended to as documents are added
+	 */
+	private static final class PostingList {
+
+		private int[] ids = new int[4];
+		private int size;
+
+		void add(int id) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+
+		void addTo(BitSet matches) {
+			for (int i = 0; i < size; i++) {
+				matches.set(ids[i]);
+			}
+		}
+
+	}
+
+}
@@ -1,24 +1,50 @@
 package com.burgershopproject.imageserver.services;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
+import org.hibernate.StaleObjectStateException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.MessageSource;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
 import org.springframework.data.domain.Sort;
+import org.springframework.data.projection.ProjectionFactory;
+import org.springframework.data.projection.SpelAwareProxyProjectionFactory;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.server.ResponseStatusException;
 
 import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageBatchItem;
+import com.burgershopproject.imageserver.models.ImageCursor;
 import com.burgershopproject.imageserver.models.ImageDto;
+import com.burgershopproject.imageserver.models.ImageSummary;
 import com.burgershopproject.imageserver.repositories.ImageRepository;
 
 @Service
@@ -27,69 +53,664 @@ public class ImageService {
 	
 	private final Logger logger = LoggerFactory.getLogger(ImageService.class);
 	
+	public static final String BINARY_STORAGE = "binary";
+	
+	public static final String OPTIMISTIC_WRITES = "optimistic";
+	
+	private final ProjectionFactory projectionFactory = new SpelAwareProxyProjectionFactory();
+	
+	/*
+	 * Loads of Images and their metadata running for concurrent requests of the same name
+	 */
+	private final SingleFlight<String, Image> imageLoads = new SingleFlight<>();
+	
+	private final SingleFlight<String, ImageSummary> summaryLoads = new SingleFlight<>();
+	
+	/*
+	 * Columns that can be paged by cursor, which are those that are never null
+	 */
+	private static final Map<String, Function<ImageSummary, String>> CURSOR_COLUMNS = new HashMap<>();
+	static {
+		CURSOR_COLUMNS.put("name", ImageSummary::getName);
+		CURSOR_COLUMNS.put("type", ImageSummary::getType);
+		CURSOR_COLUMNS.put("description", ImageSummary::getDescription);
+	}
+	
 	@Autowired
 	MessageSource messageSource;
 	
 	@Autowired
 	ImageRepository repository;
 	
+	@Autowired
+	ImageCache cache;
+	
+	@Autowired
+	ContentStores contentStores;
+	
+	@Autowired
+	ImageSearchIndex searchIndex;
+	
+	@Autowired
+	ImageVariantService variantService;
+	
+	@Autowired
+	ImageNameFilter nameFilter;
+	
+	@Autowired
+	ImageChangeLog changeLog;
+	
+	@Autowired
+	PlatformTransactionManager transactionManager;
+	
+	/*
+	 * Storage format for written images, base64 or binary
+	 */
+	@Value("${services.image.storage:base64}")
+	String storage;
+	
+	@Value("${services.image.upload.max-bytes:16777216}")
+	long maxUploadBytes;
+	
+	/*
+	 * Concurrency control of writes, serializable or optimistic
+	 */
+	@Value("${services.image.write.mode:serializable}")
+	String writeMode;
+	
+	/*
+	 * Longest a request waits for a load of the same name started by another request
+	 */
+	@Value("${services.image.single-flight.timeout-ms:10000}")
+	long singleFlightTimeoutMs;
+	
 	/**
-	 * Retrieve all Images
+	 * Retrieve all Images including the images themselves.
+	 * With a cursor the page starts after the position it holds and offset is ignored.
 	 * @param direction 
 	 * @param sortBy 
 	 * @param limit 
 	 * @param offset 
+	 * @param cursor nextCursor of the previous page, or null
+	 * @param count whether to count all Images, by default only when paging by offset
 	 * @return ImageDto
 	 */
-	public ImageDto getImages(Integer offset, Integer limit, String sortBy, String direction) {
+	public ImageDto<Image> getImages(Integer offset, Integer limit, String sortBy, String direction, String cursor, Boolean count) {
 		logger.debug("Get All Images");
-		Pageable pageable = PageRequest.of(offset, limit, Sort.by(direction == "DESC" ? Sort.Direction.DESC : Sort.Direction.ASC, sortBy));
-		Page<Image> page = repository.findAll(pageable);
-		return new ImageDto(offset, page.getSize(), Long.valueOf(page.getTotalElements()).intValue(), sortBy, direction, page.getContent());
+		ImageDto<Image> images;
+		if (cursor != null) {
+			ImageCursor position = position(cursor, sortBy, direction);
+			List<Image> found = repository.findImagesAfter(sortBy, isDescending(direction), position.getValue(), position.getName(), limit + 1);
+			images = seekPage(found, limit, sortBy, direction, count, image -> projectionFactory.createProjection(ImageSummary.class, image));
+		} else {
+			Pageable pageable = pageRequest(offset, limit, sortBy, direction);
+			Slice<Image> page = count == null || count ? repository.findAll(pageable) : repository.findSliceBy(pageable);
+			images = offsetPage(page, offset, sortBy, direction, image -> projectionFactory.createProjection(ImageSummary.class, image));
+		}
+		images.getImages().forEach(this::withContent);
+		return images;
+	}
+	
+	/**
+	 * Retrieve the metadata of all Images without loading the images themselves.
+	 * With a cursor the page starts after the position it holds and offset is ignored.
+	 * @param direction 
+	 * @param sortBy 
+	 * @param limit 
+	 * @param offset 
+	 * @param cursor nextCursor of the previous page, or null
+	 * @param count whether to count all Images, by default only when paging by offset
+	 * @return ImageDto
+	 */
+	public ImageDto<ImageSummary> getImageSummaries(Integer offset, Integer limit, String sortBy, String direction, String cursor, Boolean count) {
+		logger.debug("Get All Image Summaries");
+		if (cursor != null) {
+			ImageCursor position = position(cursor, sortBy, direction);
+			List<ImageSummary> found = repository.findSummariesAfter(sortBy, isDescending(direction), position.getValue(), position.getName(), limit + 1);
+			return seekPage(found, limit, sortBy, direction, count, Function.identity());
+		}
+		Pageable pageable = pageRequest(offset, limit, sortBy, direction);
+		Slice<ImageSummary> page = count == null || count ? repository.findAllProjectedBy(pageable) : repository.findSliceProjectedBy(pageable);
+		return offsetPage(page, offset, sortBy, direction, Function.identity());
+	}
+	
+	/**
+	 * Search the names and descriptions of all Images, returning metadata only in name order
+	 * @param query terms that must all match, a term ending with * matches as a prefix
+	 * @param offset
+	 * @param limit
+	 * @return ImageDto
+	 */
+	public ImageDto<ImageSummary> searchImages(String query, Integer offset, Integer limit) {
+		logger.debug("Search Images: " + query);
+		if (!searchIndex.isReady()) {
+			throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, messageSource.getMessage("messages.searchNotReady", null, "Search is not available yet", Locale.ENGLISH));
+		}
+		ImageSearchIndex.Hits hits = searchIndex.search(query, offset * limit, limit);
+		return new ImageDto<>(offset, limit, hits.getTotal(), "name", "ASC", hits.getSummaries());
+	}
+	
+	/**
+	 * Ties on the sort column are broken by name so offset pages follow the same order as cursor pages
+	 */
+	private Pageable pageRequest(Integer offset, Integer limit, String sortBy, String direction) {
+		Sort.Direction sortDirection = isDescending(direction) ? Sort.Direction.DESC : Sort.Direction.ASC;
+		Sort sort = Sort.by(sortDirection, sortBy);
+		if (!"name".equals(sortBy)) {
+			sort = sort.and(Sort.by(sortDirection, "name"));
+		}
+		return PageRequest.of(offset, limit, sort);
+	}
+	
+	private static boolean isDescending(String direction) {
+		return "DESC".equalsIgnoreCase(direction);
 	}
 	
 	/**
-	 * Retrieve an Image by its name
+	 * A page read by offset. The total is only known when a count was run.
+	 */
+	private <T> ImageDto<T> offsetPage(Slice<T> page, Integer offset, String sortBy, String direction, Function<T, ImageSummary> summary) {
+		Integer totalCount = page instanceof Page ? Long.valueOf(((Page<T>) page).getTotalElements()).intValue() : null;
+		return new ImageDto<>(offset, page.getSize(), totalCount, sortBy, direction, page.getContent(),
+				nextCursor(page.getContent(), page.hasNext(), sortBy, direction, summary));
+	}
+	
+	/**
+	 * A page read after a cursor. One more Image than the limit is read to tell whether there is a next page.
+	 */
+	private <T> ImageDto<T> seekPage(List<T> found, Integer limit, String sortBy, String direction, Boolean count, Function<T, ImageSummary> summary) {
+		boolean hasNext = found.size() > limit;
+		List<T> images = hasNext ? found.subList(0, limit) : found;
+		Integer totalCount = count != null && count ? Long.valueOf(repository.count()).intValue() : null;
+		return new ImageDto<>(null, limit, totalCount, sortBy, direction, images, nextCursor(images, hasNext, sortBy, direction, summary));
+	}
+	
+	/**
+	 * A cursor after the last Image of a page, when there are more Images and the sort column can be paged by cursor
+	 */
+	private static <T> String nextCursor(List<T> images, boolean hasNext, String sortBy, String direction, Function<T, ImageSummary> summary) {
+		Function<ImageSummary, String> column = CURSOR_COLUMNS.get(sortBy);
+		if (!hasNext || column == null || images.isEmpty()) {
+			return null;
+		}
+		ImageSummary last = summary.apply(images.get(images.size() - 1));
+		return new ImageCursor(sortBy, isDescending(direction) ? "DESC" : "ASC", column.apply(last), last.getName()).encode();
+	}
+	
+	/**
+	 * Decodes a cursor, which must have been produced for the same sort
+	 */
+	private ImageCursor position(String cursor, String sortBy, String direction) {
+		if (!CURSOR_COLUMNS.containsKey(sortBy)) {
+			throw new ResponseStatusException(HttpStatus.BAD_REQUEST, messageSource.getMessage("messages.cursorSortUnsupported", null, "Only name, type and description can be paged by cursor", Locale.ENGLISH));
+		}
+		try {
+			ImageCursor position = ImageCursor.decode(cursor);
+			if (position.getSortBy().equals(sortBy) && position.getDirection().equals(isDescending(direction) ? "DESC" : "ASC")) {
+				return position;
+			}
+		} catch (IllegalArgumentException e) {
+			logger.debug("Invalid cursor " + cursor);
+		}
+		throw new ResponseStatusException(HttpStatus.BAD_REQUEST, messageSource.getMessage("messages.cursorInvalid", null, "Cursor is not valid for this sort", Locale.ENGLISH));
+	}
+	
+	/**
+	 * Retrieve an Image by its name. Concurrent requests for an Image that is not
+	 * cached share a single read of it, and names that do not exist are mostly
+	 * answered by the name filter without one.
 	 * @param name
 	 * @return
 	 */
 	public Image getImageByName(String name) {
 		logger.debug("Get Image By Name: " + name);
-		
-		String[] st = "12345054321".split("0");
-		int i = st.length;
-		return repository.findByName(name);
+		Image image = cache.getIfPresent(name);
+		if (image != null) {
+			return image;
+		}
+		if (!nameFilter.mightExist(name)) {
+			return null;
+		}
+		return coalesce(imageLoads, name, () -> cache.get(name, key -> withContent(recordMiss(key, repository.findByName(key)))));
+	}
+	
+	/**
+	 * Tells the name filter about a name that was looked up and not found
+	 * @param name
+	 * @param found
+	 * @return found
+	 */
+	private <T> T recordMiss(String name, T found) {
+		if (found == null) {
+			nameFilter.recordMiss(name);
+		}
+		return found;
+	}
+	
+	/**
+	 * Runs a load unless one of the same name is running for another request, waiting for its result instead
+	 * @param loads
+	 * @param name
+	 * @param loader
+	 * @return the loaded value, may be null
+	 */
+	private <T> T coalesce(SingleFlight<String, T> loads, String name, Supplier<T> loader) {
+		try {
+			return loads.load(name, loader, singleFlightTimeoutMs);
+		} catch (TimeoutException e) {
+			logger.debug("Timed out waiting for the load of " + name);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, messageSource.getMessage("messages.imageBusy", null, "Image is still being loaded, try again later", Locale.ENGLISH));
+	}
+	
+	/**
+	 * Loads the image itself into an Image held in a ContentStore, using the bytes of
+	 * a cached Image holding the same image when there is one
+	 * @param image
+	 * @return Image
+	 */
+	private Image withContent(Image image) {
+		if (image == null || (image.getContentKey() == null && !ContentStores.isExternal(image.getContentStore()))) {
+			return image;
+		}
+		byte[] shared = image.getContentHash() != null ? cache.getSharedContent(image.getContentHash()) : null;
+		if (shared != null) {
+			image.setContent(shared);
+			return image;
+		}
+		try {
+			image.setContent(contentStores.get(image.getContentStore()).read(image.getName(), image.getContentKey()));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return image;
+	}
+	
+	/**
+	 * Transfers part of the image of an Image to a channel. Cached images are written
+	 * from memory and whole images in the images table are loaded through the cache.
+	 * Anything else is transferred straight from its store, reading only the part requested.
+	 * No transaction is held while the image is written.
+	 * @param summary
+	 * @param position first byte to transfer
+	 * @param count number of bytes to transfer
+	 * @param target
+	 * @return number of bytes transferred
+	 * @throws IOException
+	 */
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public long transferContent(ImageSummary summary, long position, long count, WritableByteChannel target) throws IOException {
+		Image image = cache.getIfPresent(summary.getName());
+		boolean whole = position == 0 && summary.getSize() != null && count >= summary.getSize();
+		if (image == null && whole && !ContentStores.isExternal(summary.getContentStore())) {
+			image = getImageByName(summary.getName());
+		}
+		if (image == null) {
+			return contentStores.get(summary.getContentStore()).transferTo(summary.getName(), summary.getContentKey(), position, count, target);
+		}
+		byte[] content = image.getContent();
+		int start = (int) Math.min(position, content.length);
+		ByteBuffer buffer = ByteBuffer.wrap(content, start, (int) Math.min(count, content.length - start));
+		int transferred = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			target.write(buffer);
+		}
+		return transferred;
 	}
 	
 	/**
-	 * Creates a new Image
+	 * Retrieve many Images by name. Cached Images are passed on first, the rest are
+	 * read with a single query unless the name filter rules them out. Each name is passed on exactly once, as the Image or
+	 * as not found, so results can be written out as they arrive.
+	 * @param names
+	 * @param consumer receives an ImageBatchItem per name
+	 */
+	public void getImagesByName(Collection<String> names, Consumer<ImageBatchItem> consumer) {
+		logger.debug("Get Images By Name: " + names);
+		Set<String> uncached = new LinkedHashSet<>();
+		Set<String> missing = new LinkedHashSet<>();
+		for (String name : names) {
+			Image image = cache.getIfPresent(name);
+			if (image != null) {
+				consumer.accept(ImageBatchItem.found(image));
+			} else if (nameFilter.mightExist(name)) {
+				uncached.add(name);
+			} else {
+				missing.add(name);
+			}
+		}
+		if (!uncached.isEmpty()) {
+			for (Image image : repository.findByNameIn(uncached)) {
+				if (uncached.remove(image.getName())) {
+					cache.put(withContent(image));
+					consumer.accept(ImageBatchItem.found(image));
+				}
+			}
+			uncached.forEach(nameFilter::recordMiss);
+			missing.addAll(uncached);
+		}
+		String notFound = messageSource.getMessage("messages.imageNotFound", null, "Image not found", Locale.ENGLISH);
+		missing.forEach(name -> consumer.accept(ImageBatchItem.notFound(name, notFound)));
+	}
+	
+	/**
+	 * Retrieve the metadata of an Image by its name without loading the image itself.
+	 * A cached Image is used when there is one, otherwise concurrent requests share one query.
+	 * @param name
+	 * @return ImageSummary or null
+	 */
+	public ImageSummary getImageSummary(String name) {
+		logger.debug("Get Image Summary By Name: " + name);
+		Image image = cache.getIfPresent(name);
+		if (image != null) {
+			return projectionFactory.createProjection(ImageSummary.class, image);
+		}
+		if (!nameFilter.mightExist(name)) {
+			return null;
+		}
+		return coalesce(summaryLoads, name, () -> recordMiss(name, repository.findSummaryByName(name)));
+	}
+	
+	/**
+	 * Creates a new Image. With optimistic writes the row is inserted straight away,
+	 * so an existing name fails on the duplicate key of that one statement.
 	 * @param Image
 	 * @return Image
 	 */
-	@Transactional(readOnly = false, propagation = Propagation.REQUIRES_NEW, isolation = Isolation.SERIALIZABLE)
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
 	public Image createImage(Image image) {
-		
 		logger.debug("Create Image: " + image.getName());
-		/*
-		 * A new image will not yet have a version number
-		 */
-		image.setVersion(null);
-		return repository.save(image);
+		byte[] content = toStorageFormat(image);
+		return write(() -> {
+			/*
+			 * A new image will not yet have a version number
+			 */
+			image.setVersion(null);
+			acquireContent(image);
+			Image savedImage = isOptimisticWrites() ? repository.saveAndFlush(image) : repository.save(image);
+			storeContent(savedImage, content);
+			nameFilter.add(savedImage.getName());
+			cache.put(savedImage);
+			ImageSummary summary = projectionFactory.createProjection(ImageSummary.class, savedImage);
+			searchIndex.put(summary);
+			changeLog.record(summary);
+			variantService.schedule(summary);
+			return savedImage;
+		});
 	}
 	
 	/**
-	 * Replaces an Image
+	 * Replaces an Image. With optimistic writes the Image is replaced by one update
+	 * conditional on its version, and the only read before it takes no locks.
 	 * @param Image
 	 * @return Image
 	 */
-	@Transactional(readOnly = false, propagation = Propagation.REQUIRES_NEW, isolation = Isolation.SERIALIZABLE)
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
 	public Image replaceImage(Image image) {
 		logger.debug("Replace Image: " + image.getName());
-		Image returnedImage = repository.findByName(image.getName());
-		if (returnedImage == null) {
+		byte[] content = toStorageFormat(image);
+		return write(() -> {
+			if (isOptimisticWrites()) {
+				return replaceImageIfCurrent(image, content);
+			}
+			Image returnedImage = repository.findByName(image.getName());
+			if (returnedImage == null) {
+				throw new ResponseStatusException(HttpStatus.NOT_FOUND, messageSource.getMessage("messages.imageNotFound", null, "Image not found", Locale.ENGLISH));
+			}
+			String previousStore = returnedImage.getContentStore();
+			String previousKey = returnedImage.getContentKey();
+			acquireContent(image);
+			Image savedImage = repository.save(image);
+			storeContent(savedImage, content);
+			releaseContent(savedImage.getName(), previousStore, previousKey);
+			cache.put(savedImage);
+			ImageSummary summary = projectionFactory.createProjection(ImageSummary.class, savedImage);
+			searchIndex.put(summary);
+			changeLog.record(summary);
+			variantService.schedule(summary);
+			return savedImage;
+		});
+	}
+	
+	/**
+	 * Replaces an Image with an update conditional on the version read, failing as stale when
+	 * another write got there first. When a version is given it must match the stored version.
+	 * @param image
+	 * @param content the image as bytes, already written in binary storage
+	 * @return Image
+	 */
+	private Image replaceImageIfCurrent(Image image, byte[] content) {
+		ImageSummary current = repository.findSummaryByName(image.getName());
+		if (current == null) {
+			throw new ResponseStatusException(HttpStatus.NOT_FOUND, messageSource.getMessage("messages.imageNotFound", null, "Image not found", Locale.ENGLISH));
+		}
+		if (image.getVersion() != null && !image.getVersion().equals(current.getVersion())) {
+			throw new StaleObjectStateException(Image.class.getName(), image.getName());
+		}
+		Long version = current.getVersion() != null ? current.getVersion() : -1L;
+		image.setLastModified(Instant.now());
+		if (repository.replaceImage(image, version) == 0) {
+			throw new StaleObjectStateException(Image.class.getName(), image.getName());
+		}
+		acquireContent(image);
+		image.setVersion(version + 1);
+		storeContent(image, content);
+		releaseContent(image.getName(), current.getContentStore(), current.getContentKey());
+		cache.put(image);
+		ImageSummary summary = projectionFactory.createProjection(ImageSummary.class, image);
+		searchIndex.put(summary);
+		changeLog.record(summary);
+		variantService.schedule(summary);
+		return image;
+	}
+	
+	/**
+	 * Creates a new Image, streaming the image itself into the active ContentStore.
+	 * The stream is never held in memory as a whole, and is read before the transaction
+	 * starts, so a slow client holds neither a connection nor a lock.
+	 * @param image name, type and description of the Image
+	 * @param content
+	 * @return ImageSummary
+	 */
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public ImageSummary createImageContent(Image image, InputStream content) {
+		logger.debug("Create Image Content: " + image.getName());
+		ContentStore store = contentStores.active();
+		SizeLimitedInputStream limited = new SizeLimitedInputStream(content, maxUploadBytes);
+		String key = writeContent(store, image.getName(), limited);
+		return write(() -> {
+			image.setVersion(null);
+			image.setImage("");
+			image.setContent(null);
+			image.setSize(0L);
+			image.setContentStore(store.getName());
+			repository.saveAndFlush(image);
+			acquireContent(store, image.getName(), key, limited.getCount());
+			nameFilter.add(image.getName());
+			cache.invalidateOnCompletion(image.getName());
+			ImageSummary summary = repository.findSummaryByName(image.getName());
+			searchIndex.put(summary);
+			changeLog.record(summary);
+			variantService.schedule(summary);
+			return summary;
+		});
+	}
+	
+	/**
+	 * Replaces an Image, streaming the image itself into the active ContentStore before the transaction starts.
+	 * When a version is given it must match the stored version.
+	 * @param image name, type, description and optionally version of the Image
+	 * @param content
+	 * @return ImageSummary
+	 */
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public ImageSummary replaceImageContent(Image image, InputStream content) {
+		logger.debug("Replace Image Content: " + image.getName());
+		ContentStore store = contentStores.active();
+		/*
+		 * A missing or stale Image is refused before the upload is read, and checked again once it has been
+		 */
+		currentSummary(image);
+		SizeLimitedInputStream limited = new SizeLimitedInputStream(content, maxUploadBytes);
+		String key = writeContent(store, image.getName(), limited);
+		return write(() -> {
+			ImageSummary current = currentSummary(image);
+			String previousStore = current.getContentStore();
+			String previousKey = current.getContentKey();
+			Long version = current.getVersion() != null ? current.getVersion() : -1L;
+			if (repository.replaceMetadata(image.getName(), version, image.getType(), image.getDescription(), Instant.now(), store.getName()) == 0) {
+				throw new StaleObjectStateException(Image.class.getName(), image.getName());
+			}
+			acquireContent(store, image.getName(), key, limited.getCount());
+			releaseContent(image.getName(), previousStore, previousKey);
+			cache.invalidateOnCompletion(image.getName());
+			ImageSummary summary = repository.findSummaryByName(image.getName());
+			searchIndex.put(summary);
+			changeLog.record(summary);
+			variantService.schedule(summary);
+			return summary;
+		});
+	}
+	
+	/**
+	 * Reads the stored Image to be replaced, which must exist and match the version given if any
+	 * @param image
+	 * @return ImageSummary
+	 */
+	private ImageSummary currentSummary(Image image) {
+		ImageSummary current = repository.findSummaryByName(image.getName());
+		if (current == null) {
 			throw new ResponseStatusException(HttpStatus.NOT_FOUND, messageSource.getMessage("messages.imageNotFound", null, "Image not found", Locale.ENGLISH));
 		}
-		return repository.save(image);
+		if (image.getVersion() != null && !image.getVersion().equals(current.getVersion())) {
+			throw new StaleObjectStateException(Image.class.getName(), image.getName());
+		}
+		return current;
+	}
+	
+	/**
+	 * Runs a write in a new transaction. Serializable writes lock every row they read until
+	 * they commit. Optimistic writes run at READ COMMITTED, relying on the version checked by
+	 * each update and the primary key checked by each insert, so they take no range locks.
+	 * @param write
+	 * @return the result of the write
+	 */
+	private <T> T write(Supplier<T> write) {
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		transaction.setIsolationLevel(isOptimisticWrites() ? TransactionDefinition.ISOLATION_READ_COMMITTED : TransactionDefinition.ISOLATION_SERIALIZABLE);
+		return transaction.execute(status -> write.get());
+	}
+	
+	private boolean isOptimisticWrites() {
+		return OPTIMISTIC_WRITES.equals(writeMode);
+	}
+	
+	/**
+	 * Streams an image into a ContentStore, enforcing the upload size limit while reading.
+	 * Runs outside any transaction, so the image and its record commit by themselves.
+	 * @param store
+	 * @param name
+	 * @param limited
+	 * @return key the image was stored under
+	 */
+	private String writeContent(ContentStore store, String name, SizeLimitedInputStream limited) {
+		String key;
+		try {
+			key = store.write(name, limited);
+		} catch (IOException | RuntimeException e) {
+			if (limited.isExceeded()) {
+				throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, messageSource.getMessage("messages.imageTooLarge", null, "Image is too large", Locale.ENGLISH));
+			}
+			throw e instanceof IOException ? new UncheckedIOException((IOException) e) : (RuntimeException) e;
+		}
+		repository.reserveSharedContent(key, store.getName(), limited.getCount());
+		return key;
+	}
+	
+	/**
+	 * Adds the reference of an existing row to an image already written to a ContentStore, and records it against the row
+	 * @param store
+	 * @param name
+	 * @param key
+	 * @param size
+	 */
+	private void acquireContent(ContentStore store, String name, String key, long size) {
+		repository.acquireSharedContent(key, store.getName(), size);
+		repository.storeContent(name, key, size);
+	}
+	
+	/**
+	 * Adds the reference of an Image about to be saved to the image written for it by toStorageFormat, if any
+	 * @param image
+	 */
+	private void acquireContent(Image image) {
+		if (image.getContentKey() != null) {
+			repository.acquireSharedContent(image.getContentKey(), image.getContentStore(), image.getSize());
+		}
+	}
+	
+	/**
+	 * Removes the reference a replaced Image held to its previous image.
+	 * Images written before images were shared were held in the images table, which is emptied instead.
+	 * @param name
+	 * @param previousStore ContentStore of the image before it was replaced
+	 * @param previousKey content key of the image before it was replaced
+	 */
+	private void releaseContent(String name, String previousStore, String previousKey) {
+		if (previousKey != null) {
+			repository.releaseSharedContent(previousKey, contentStores.get(previousStore).getName());
+		} else {
+			repository.clearContent(name);
+		}
+	}
+	
+	/**
+	 * Keeps the image of a saved Image in binary storage with it for the cache,
+	 * as the image is never read back from the store
+	 * @param image
+	 * @param content
+	 */
+	private void storeContent(Image image, byte[] content) {
+		if (BINARY_STORAGE.equals(storage)) {
+			image.setContent(content);
+		}
+	}
+	
+	/**
+	 * Converts an Image to the configured storage format and records the SHA-256 of the image.
+	 * In binary storage image_blob is left empty and the image is written to the active
+	 * ContentStore before the Image is saved, so the key is saved with it. An identical
+	 * image already held is not written again. This runs before the transaction saving the Image,
+	 * and the image is recorded with no references yet, so a save that rolls back leaves it to be swept.
+	 * @param image
+	 * @return the image as bytes
+	 */
+	byte[] toStorageFormat(Image image) {
+		byte[] content;
+		try {
+			content = image.getContent();
+		} catch (IllegalArgumentException e) {
+			throw new ResponseStatusException(HttpStatus.UNPROCESSABLE_ENTITY, messageSource.getMessage("messages.imageInvalid", null, "Image is not valid base64", Locale.ENGLISH));
+		}
+		image.setSize(content != null ? Long.valueOf(content.length) : null);
+		image.setContentHash(content != null ? ContentDigest.sha256Hex(content) : null);
+		image.setContentKey(null);
+		if (BINARY_STORAGE.equals(storage)) {
+			ContentStore store = contentStores.active();
+			image.setImage("");
+			image.setContent(null);
+			image.setContentStore(store.getName());
+			try {
+				image.setContentKey(store.write(image.getName(), content));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			repository.reserveSharedContent(image.getContentKey(), store.getName(), content.length);
+		}
+		return content;
 	}
 	
 	/**
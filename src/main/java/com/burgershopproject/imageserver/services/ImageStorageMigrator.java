@@ -0,0 +1,155 @@
+package com.burgershopproject.imageserver.services;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.repositories.ImageRepository;
+
+/**
+ * One time background conversion of Images held as base64 text into binary storage
+ * in the active ContentStore. Runs only when binary storage is configured and stops
+ * once no base64 rows remain.
+ */
+@Component
+public class ImageStorageMigrator {
+
+	private final Logger logger = LoggerFactory.getLogger(ImageStorageMigrator.class);
+
+	@Autowired
+	ImageRepository repository;
+
+	@Autowired
+	PlatformTransactionManager transactionManager;
+
+	@Autowired
+	ContentStores contentStores;
+
+	@Value("${services.image.storage:base64}")
+	String storage;
+
+	@Value("${services.image.migration.batch-size:50}")
+	int batchSize;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void start() {
+		if (!ImageService.BINARY_STORAGE.equals(storage)) {
+			return;
+		}
+		Thread thread = new Thread(this::migrate, "image-storage-migrator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Converts all base64 Images, writing the images of a batch before the transaction that stores their keys
+	 * @return number of Images converted
+	 */
+	public int migrate() {
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		String lastName = "";
+		int migrated = 0;
+		try {
+			while (true) {
+				String after = lastName;
+				List<Image> images = transaction.execute(status -> repository.findBase64StoredAfter(after, PageRequest.of(0, batchSize)));
+				if (images == null || images.isEmpty()) {
+					break;
+				}
+				List<Converted> converted = write(images);
+				migrated += transaction.execute(status -> migrateBatch(converted));
+				lastName = images.get(images.size() - 1).getName();
+			}
+			logger.info("Image storage migration complete, " + migrated + " images converted");
+		} catch (RuntimeException e) {
+			logger.error("Image storage migration stopped after " + migrated + " images", e);
+		}
+		return migrated;
+	}
+
+	/**
+	 * Writes the images of a batch to the active store and records them, outside any transaction,
+	 * so an image written for a batch that rolls back is still known and is swept later
+	 * @param images
+	 * @return the Images with valid base64 and where their images were written
+	 */
+	List<Converted> write(List<Image> images) {
+		ContentStore store = contentStores.active();
+		List<Converted> converted = new ArrayList<>(images.size());
+		for (Image image : images) {
+			byte[] content;
+			try {
+				content = image.getContent();
+			} catch (IllegalArgumentException e) {
+				logger.warn("Image " + image.getName() + " is not valid base64 and was not converted");
+				continue;
+			}
+			String key;
+			try {
+				key = store.write(image.getName(), content);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			repository.reserveSharedContent(key, store.getName(), content.length);
+			converted.add(new Converted(image, store.getName(), key, content.length));
+		}
+		return converted;
+	}
+
+	/**
+	 * Stores the keys of a batch of written images. Images replaced since they were read are
+	 * skipped, as the replacement will already have been stored as binary.
+	 * An image written for a skipped Image is left unreferenced and is swept later.
+	 * @param converted
+	 * @return number of Images converted
+	 */
+	int migrateBatch(List<Converted> converted) {
+		int migrated = 0;
+		for (Converted image : converted) {
+			if (repository.storeBinary(image.name, image.version, image.store, image.key, Long.valueOf(image.size)) > 0) {
+				repository.acquireSharedContent(image.key, image.store, image.size);
+				migrated++;
+			}
+		}
+		return migrated;
+	}
+
+	/**
+	 * An Image whose image has been written to a store
+	 */
+	static class Converted {
+
+		private final String name;
+
+		private final Long version;
+
+		private final String store;
+
+		private final String key;
+
+		private final long size;
+
+		Converted(Image image, String store, String key, long size) {
+			this.name = image.getName();
+			this.version = image.getVersion() != null ? image.getVersion() : -1L;
+			this.store = store;
+			this.key = key;
+			this.size = size;
+		}
+
+	}
+
+}
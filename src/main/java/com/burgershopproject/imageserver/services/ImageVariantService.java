@@ -0,0 +1,486 @@
+package com.burgershopproject.imageserver.services;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageSummary;
+import com.burgershopproject.imageserver.models.ImageVariant;
+import com.burgershopproject.imageserver.repositories.ImageRepository;
+import com.burgershopproject.imageserver.repositories.ImageVariantRepository;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+
+/**
+ * Re-encodes Images into better compressed variants, a JPEG at a lower quality and a PNG
+ * at a higher deflate level, held in the active ContentStore alongside the original.
+ * Variants are encoded on a background pool after an Image is written, so serving
+ * one never waits for encoding, and the original is served until they are ready.
+ */
+@Service
+public class ImageVariantService implements MeterBinder {
+
+	private final Logger logger = LoggerFactory.getLogger(ImageVariantService.class);
+
+	public static final String CACHE_NAME = "variants";
+
+	@Autowired
+	ImageRepository repository;
+
+	@Autowired
+	ImageVariantRepository variantRepository;
+
+	@Autowired
+	ContentStores contentStores;
+
+	@Autowired
+	PlatformTransactionManager transactionManager;
+
+	@Value("${services.image.variant.enabled:true}")
+	boolean enabled;
+
+	/*
+	 * Formats variants are encoded in, jpeg and png
+	 */
+	@Value("${services.image.variant.formats:jpeg,png}")
+	String[] formats;
+
+	@Value("${services.image.variant.jpeg-quality:0.8}")
+	float jpegQuality;
+
+	@Value("${services.image.variant.png-deflate-level:9}")
+	int pngDeflateLevel;
+
+	@Value("${services.image.variant.threads:1}")
+	int threads;
+
+	@Value("${services.image.variant.queue-size:256}")
+	int queueSize;
+
+	@Value("${services.image.variant.cache.max-names:10000}")
+	long maxNames;
+
+	@Value("${services.image.decode.max-pixels:25000000}")
+	long maxSourcePixels;
+
+	private ThreadPoolExecutor executor;
+
+	/*
+	 * Variants by Image name, reloaded once variants have been encoded
+	 */
+	private LoadingCache<String, List<ImageVariant>> variants;
+
+	/*
+	 * Images with encoding queued or running, as name@version
+	 */
+	private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+	@PostConstruct
+	void init() {
+		AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueSize),
+				runnable -> {
+					Thread thread = new Thread(runnable, "image-variant-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				},
+				new ThreadPoolExecutor.AbortPolicy());
+		variants = Caffeine.newBuilder()
+				.maximumSize(maxNames)
+				.recordStats()
+				.build(name -> variantRepository.findByName(name));
+	}
+
+	@PreDestroy
+	void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		CaffeineCacheMetrics.monitor(registry, variants, CACHE_NAME);
+		new ExecutorServiceMetrics(executor, "image.variant", Collections.emptyList()).bindTo(registry);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Loads the variants of an Image into the cache ahead of its first request
+	 * @param name
+	 */
+	public void preload(String name) {
+		if (enabled) {
+			variants.get(name);
+		}
+	}
+
+	/**
+	 * Drops the cached variants of an Image, so they are read again when it is next served
+	 * @param name
+	 */
+	public void invalidate(String name) {
+		variants.invalidate(name);
+	}
+
+	/**
+	 * Queues encoding of the variants of a written Image once the current transaction commits.
+	 * Encoding is skipped when the queue is full, it is queued again when the Image is next served.
+	 * @param summary the written Image, ignored when null
+	 */
+	public void schedule(ImageSummary summary) {
+		if (!enabled || summary == null) {
+			return;
+		}
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					submit(summary.getName(), summary.getVersion());
+				}
+			});
+		} else {
+			submit(summary.getName(), summary.getVersion());
+		}
+	}
+
+	private void submit(String name, Long version) {
+		if (version == null) {
+			return;
+		}
+		String job = name + "@" + version;
+		if (!pending.add(job)) {
+			return;
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					encode(name, version);
+				} catch (RuntimeException e) {
+					logger.warn("Encoding variants of " + job + " failed", e);
+				} finally {
+					pending.remove(job);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pending.remove(job);
+			logger.debug("Variant queue full, skipped " + job);
+		}
+	}
+
+	/**
+	 * Chooses the smallest representation of an Image acceptable to the client.
+	 * A variant in the format of the original is served wherever the original would be.
+	 * A variant in another format is only served when the client names its type and
+	 * prefers it at least as much as the original, so wildcards never change the format.
+	 * When the variants of the current version are not ready they are queued and the original is served.
+	 * @param summary the Image being served
+	 * @param accepted media types of the Accept header, empty when any type is accepted
+	 * @return the variant to serve, or null to serve the original
+	 */
+	public ImageVariant select(ImageSummary summary, List<MediaType> accepted) {
+		if (!enabled || summary.getVersion() == null || summary.getType() == null) {
+			return null;
+		}
+		List<ImageVariant> found = variants.get(summary.getName());
+		if (found.stream().noneMatch(variant -> summary.getVersion().equals(variant.getVersion()))) {
+			submit(summary.getName(), summary.getVersion());
+			return null;
+		}
+		MediaType originalType;
+		try {
+			originalType = MediaType.valueOf(summary.getType());
+		} catch (InvalidMediaTypeException e) {
+			return null;
+		}
+		String originalFormat = ImageRenditionService.formatOf(summary.getType());
+		double originalQuality = quality(originalType, accepted, false);
+		ImageVariant selected = null;
+		long selectedSize = summary.getSize() != null ? summary.getSize() : Long.MAX_VALUE;
+		for (ImageVariant variant : found) {
+			if (!summary.getVersion().equals(variant.getVersion()) || variant.getContentKey() == null || variant.getSize() >= selectedSize) {
+				continue;
+			}
+			boolean acceptable;
+			if (ImageRenditionService.formatOf(variant.getType()).equals(originalFormat)) {
+				acceptable = originalQuality > 0;
+			} else {
+				double variantQuality = quality(MediaType.valueOf(variant.getType()), accepted, true);
+				acceptable = variantQuality > 0 && variantQuality >= originalQuality;
+			}
+			if (acceptable) {
+				selected = variant;
+				selectedSize = variant.getSize();
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Quality given to a media type by an Accept header, from the most specific range including it
+	 * @param type
+	 * @param accepted
+	 * @param explicit whether only a range naming the type itself counts
+	 * @return quality between 0 and 1, 0 when not acceptable
+	 */
+	static double quality(MediaType type, List<MediaType> accepted, boolean explicit) {
+		if (accepted.isEmpty()) {
+			return explicit ? 0 : 1;
+		}
+		double subtypeWildcard = -1;
+		double wildcard = -1;
+		for (MediaType range : accepted) {
+			if (range.equalsTypeAndSubtype(type)) {
+				return range.getQualityValue();
+			}
+			if (range.isWildcardType()) {
+				wildcard = Math.max(wildcard, range.getQualityValue());
+			} else if (range.isWildcardSubtype() && range.getType().equalsIgnoreCase(type.getType())) {
+				subtypeWildcard = Math.max(subtypeWildcard, range.getQualityValue());
+			}
+		}
+		if (explicit) {
+			return 0;
+		}
+		return subtypeWildcard >= 0 ? subtypeWildcard : Math.max(wildcard, 0);
+	}
+
+	/**
+	 * Transfers part of a variant from its store to a channel
+	 * @param variant
+	 * @param position first byte to transfer
+	 * @param count number of bytes to transfer
+	 * @param target
+	 * @return number of bytes transferred
+	 * @throws IOException
+	 */
+	public long transferContent(ImageVariant variant, long position, long count, WritableByteChannel target) throws IOException {
+		return contentStores.get(variant.getContentStore()).transferTo(variant.getName(), variant.getContentKey(), position, count, target);
+	}
+
+	/**
+	 * Encodes the variants of a version of an Image, unless it has been replaced or they already exist.
+	 * Every configured format is recorded, without a content key when the variant would not be smaller.
+	 * @param name
+	 * @param version
+	 */
+	void encode(String name, Long version) {
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		Image image = transaction.execute(status -> {
+			Image found = repository.findByName(name);
+			if (found == null || !version.equals(found.getVersion())
+					|| variantRepository.findByName(name).stream().anyMatch(variant -> variant.getVersion() >= version)) {
+				return null;
+			}
+			return withContent(found);
+		});
+		if (image == null) {
+			variants.invalidate(name);
+			return;
+		}
+		long started = System.currentTimeMillis();
+		byte[] original = image.getContent();
+		Map<String, byte[]> encoded = new LinkedHashMap<>();
+		BufferedImage decoded = decode(original);
+		for (String format : formats) {
+			String resolved = ImageRenditionService.formatOf(format.trim());
+			if (resolved == null) {
+				continue;
+			}
+			byte[] content = decoded != null ? encode(decoded, resolved) : null;
+			encoded.put("image/" + resolved, content != null && content.length < original.length ? content : null);
+		}
+		/*
+		 * Variants are written and recorded before the transaction, so a variant whose Image
+		 * was replaced meanwhile is swept like any other unreferenced image
+		 */
+		ContentStore store = contentStores.active();
+		Map<String, String> keys = new HashMap<>();
+		encoded.forEach((type, content) -> {
+			if (content != null) {
+				keys.put(type, write(store, name, content));
+			}
+		});
+		transaction.execute(status -> {
+			ImageSummary current = repository.findSummaryByName(name);
+			if (current != null && version.equals(current.getVersion())) {
+				encoded.forEach((type, content) -> store(store, name, version, type, content, keys.get(type)));
+			}
+			return null;
+		});
+		variants.invalidate(name);
+		logger.debug("Encoded variants of " + name + "@" + version + " in " + (System.currentTimeMillis() - started) + "ms");
+	}
+
+	/**
+	 * Writes a variant to the store and records it with no references yet
+	 * @return key the variant was stored under
+	 */
+	private String write(ContentStore store, String name, byte[] content) {
+		String key;
+		try {
+			key = store.write(name, content);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		repository.reserveSharedContent(key, store.getName(), content.length);
+		return key;
+	}
+
+	/**
+	 * Records a variant already written to the store, moving its reference from the variant it replaces
+	 */
+	private void store(ContentStore store, String name, Long version, String type, byte[] content, String key) {
+		ImageVariant variant = variantRepository.findById(new ImageVariant.Key(name, type)).orElse(null);
+		if (variant != null && variant.getVersion() >= version) {
+			return;
+		}
+		String previousStore = variant != null ? variant.getContentStore() : null;
+		String previousKey = variant != null ? variant.getContentKey() : null;
+		if (variant == null) {
+			variant = new ImageVariant();
+			variant.setName(name);
+			variant.setType(type);
+		}
+		variant.setVersion(version);
+		variant.setContentStore(null);
+		variant.setContentKey(null);
+		variant.setSize(null);
+		if (content != null) {
+			variant.setContentKey(key);
+			variant.setContentStore(store.getName());
+			variant.setSize(Long.valueOf(content.length));
+			repository.acquireSharedContent(variant.getContentKey(), store.getName(), content.length);
+		}
+		variantRepository.save(variant);
+		if (previousKey != null) {
+			repository.releaseSharedContent(previousKey, contentStores.get(previousStore).getName());
+		}
+	}
+
+	private Image withContent(Image image) {
+		if (image.getContentKey() == null && !ContentStores.isExternal(image.getContentStore())) {
+			return image;
+		}
+		try {
+			image.setContent(contentStores.get(image.getContentStore()).read(image.getName(), image.getContentKey()));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return image;
+	}
+
+	/**
+	 * Decodes an original, or returns null when it cannot be read or has too many pixels to decode,
+	 * in which case the original is served as it is
+	 */
+	private BufferedImage decode(byte[] content) {
+		try {
+			return content != null ? ImageRenditionService.decode(content, maxSourcePixels) : null;
+		} catch (IOException e) {
+			logger.debug("Variants not encoded: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Encodes an image, or returns null when it cannot be held in the format without losing transparency
+	 * @param image
+	 * @param format ImageIO format name
+	 * @return the encoded image, or null
+	 */
+	byte[] encode(BufferedImage image, String format) {
+		boolean jpeg = ImageRenditionService.FORMAT_JPEG.equals(format);
+		if (jpeg && image.getColorModel().hasAlpha()) {
+			return null;
+		}
+		ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+		try {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			if (param.canWriteCompressed()) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				if (param.getCompressionType() == null) {
+					param.setCompressionType(param.getCompressionTypes()[0]);
+				}
+				/*
+				 * The PNG writer maps quality 0 to the highest deflate level
+				 */
+				param.setCompressionQuality(jpeg ? jpegQuality : (9 - pngDeflateLevel) / 9f);
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try (ImageOutputStream output = ImageIO.createImageOutputStream(out)) {
+				writer.setOutput(output);
+				writer.write(null, new IIOImage(jpeg ? opaque(image) : image, null, null), param);
+			}
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	/**
+	 * The JPEG writer only takes RGB or grey images without an index
+	 */
+	private static BufferedImage opaque(BufferedImage image) {
+		if (image.getType() == BufferedImage.TYPE_3BYTE_BGR || image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+			return image;
+		}
+		BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = rgb.createGraphics();
+		try {
+			graphics.setColor(Color.WHITE);
+			graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+			graphics.drawImage(image, 0, 0, null);
+		} finally {
+			graphics.dispose();
+		}
+		return rgb;
+	}
+
+}
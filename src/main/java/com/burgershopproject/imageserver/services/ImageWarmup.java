@@ -0,0 +1,166 @@
+package com.burgershopproject.imageserver.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.burgershopproject.imageserver.models.Image;
+
+/**
+ * Loads the configured Images, followed by the Images requested most before the last
+ * shutdown, into the Image cache and variant cache at startup. Images are fetched in
+ * parallel until the Image cache is full. Until warm-up has finished the imageWarmup
+ * health indicator is OUT_OF_SERVICE, which keeps the readiness health group down.
+ */
+@Component("imageWarmup")
+public class ImageWarmup implements HealthIndicator {
+
+	private final Logger logger = LoggerFactory.getLogger(ImageWarmup.class);
+
+	@Autowired
+	ImageService service;
+
+	@Autowired
+	ImageVariantService variantService;
+
+	@Autowired
+	HotImageTracker hotImages;
+
+	@Value("${services.image.warmup.enabled:true}")
+	boolean enabled;
+
+	/*
+	 * Names always warmed up, ahead of the most requested
+	 */
+	@Value("${services.image.warmup.names:}")
+	String[] names;
+
+	@Value("${services.image.warmup.top:100}")
+	int top;
+
+	@Value("${services.image.warmup.threads:4}")
+	int threads;
+
+	@Value("${services.image.warmup.timeout-ms:120000}")
+	long timeoutMillis;
+
+	@Value("${services.image.cache.max-bytes:67108864}")
+	long maxBytes;
+
+	private volatile boolean warm;
+
+	private final AtomicInteger loaded = new AtomicInteger();
+
+	private volatile int total;
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void start() {
+		if (!enabled) {
+			warm = true;
+			return;
+		}
+		Thread thread = new Thread(this::warmUp, "image-warmup");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Loads the Images to warm up, then reports warm whether or not every Image could be loaded
+	 * @return number of Images loaded
+	 */
+	public int warmUp() {
+		long started = System.currentTimeMillis();
+		try {
+			List<String> selected = select();
+			total = selected.size();
+			load(selected);
+			logger.info("Image warm-up loaded " + loaded.get() + " of " + total + " images in " + (System.currentTimeMillis() - started) + "ms");
+		} catch (RuntimeException e) {
+			logger.error("Image warm-up failed after " + loaded.get() + " images", e);
+		} catch (InterruptedException e) {
+			logger.warn("Image warm-up interrupted after " + loaded.get() + " images");
+			Thread.currentThread().interrupt();
+		} finally {
+			warm = true;
+		}
+		return loaded.get();
+	}
+
+	List<String> select() {
+		Set<String> selected = new LinkedHashSet<>();
+		if (names != null) {
+			Arrays.stream(names).map(String::trim).filter(name -> !name.isEmpty()).forEach(selected::add);
+		}
+		if (top > 0) {
+			selected.addAll(hotImages.mostRequested(top));
+		}
+		return new ArrayList<>(selected);
+	}
+
+	private void load(List<String> selected) throws InterruptedException {
+		if (selected.isEmpty()) {
+			return;
+		}
+		AtomicLong bytes = new AtomicLong();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, selected.size())), runnable -> {
+			Thread thread = new Thread(runnable, "image-warmup-" + loaded.get());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			for (String name : selected) {
+				executor.execute(() -> {
+					if (bytes.get() >= maxBytes) {
+						return;
+					}
+					try {
+						Image image = service.getImageByName(name);
+						if (image == null) {
+							logger.debug("Image " + name + " to warm up was not found");
+							return;
+						}
+						variantService.preload(name);
+						bytes.addAndGet(image.getSize() != null ? image.getSize() : 0);
+						loaded.incrementAndGet();
+					} catch (RuntimeException e) {
+						logger.warn("Image " + name + " could not be warmed up", e);
+					}
+				});
+			}
+			executor.shutdown();
+			if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				logger.warn("Image warm-up timed out after " + timeoutMillis + "ms");
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	public boolean isWarm() {
+		return warm;
+	}
+
+	@Override
+	public Health health() {
+		Health.Builder builder = warm ? Health.up() : Health.outOfService();
+		return builder.withDetail("loaded", loaded.get()).withDetail("total", total).build();
+	}
+
+}
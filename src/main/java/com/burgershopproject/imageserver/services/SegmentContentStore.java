@@ -0,0 +1,733 @@
+package com.burgershopproject.imageserver.services;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps images appended to large segment files, so many small images cost one file
+ * rather than one file or row each. Each record is a header holding the key, the time
+ * it was written and the length, then the image, then a CRC32 of the image. Deletes append
+ * a record without an image. When a segment reaches its size it is sealed with a footer
+ * listing its records and a new segment is started.
+ * An in-memory index maps each key to the segment and offset of its image. It is rebuilt
+ * at startup from the footers, scanning only the unsealed segment, whose incomplete last
+ * record after a crash is truncated. Reads are positioned reads of one segment.
+ * Appends are made by one writer at a time. Uploads are spooled to a temporary file first,
+ * so a slow upload does not hold up other writes.
+ * Sealed segments in which enough images have been deleted are compacted by copying
+ * the images still held to the current segment and deleting the segment.
+ * The store is single-node: the index and the writer live in one instance, so the directory
+ * is locked while it is open. An instance finding it locked by another refuses to start when
+ * this is its active store, and otherwise leaves the store closed. Several instances sharing
+ * images need the database or filesystem store instead.
+ */
+@Component
+public class SegmentContentStore implements ContentStore {
+
+	private final Logger logger = LoggerFactory.getLogger(SegmentContentStore.class);
+
+	public static final String NAME = "segment";
+
+	static final byte PUT = 1;
+	static final byte DELETE = 2;
+
+	private static final int RECORD_MAGIC = 0x494d4752;
+	private static final long FOOTER_MAGIC = 0x494d47464f4f5452L;
+
+	private static final int KEY_BYTES = 32;
+	static final int HEADER_BYTES = 4 + 1 + KEY_BYTES + 8 + 8;
+	static final int CRC_BYTES = 4;
+	private static final int FOOTER_ENTRY_BYTES = 1 + KEY_BYTES + 8 + 8 + 8;
+	private static final int TRAILER_BYTES = 8 + 4 + 8;
+
+	private static final int BUFFER_SIZE = 65536;
+
+	private static final int READ_ATTEMPTS = 3;
+
+	private static final Pattern SEGMENT_FILE = Pattern.compile("segment-(\\d+)\\.dat");
+
+	private static final String LOCK_FILE = "segments.lock";
+
+	@Value("${services.image.content-store.segment.path:${java.io.tmpdir}/image-server/segments}")
+	String path;
+
+	@Value("${services.image.content-store.type:database}")
+	String activeType;
+
+	@Value("${services.image.content-store.segment.max-bytes:1073741824}")
+	long maxSegmentBytes;
+
+	/*
+	 * Share of a sealed segment taken up by deleted or copied images at which it is compacted
+	 */
+	@Value("${services.image.content-store.segment.compaction.garbage-ratio:0.5}")
+	double garbageRatio;
+
+	private Path root;
+
+	private Path uploads;
+
+	/*
+	 * Lock on the directory held while the store is open, null when another instance holds it
+	 */
+	private FileChannel lockFile;
+
+	private final Map<String, Location> index = new ConcurrentHashMap<>();
+
+	private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+	/*
+	 * Held while appending, sealing and retiring segments
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private Segment active;
+
+	@PostConstruct
+	void init() throws IOException {
+		root = Paths.get(path).toAbsolutePath();
+		uploads = root.resolve("tmp");
+		Files.createDirectories(uploads);
+		if (!lock()) {
+			if (NAME.equals(activeType)) {
+				throw new IllegalStateException("Segment content store at " + root + " is in use by another instance, "
+						+ "the segment store cannot be shared so each instance needs a path of its own");
+			}
+			logger.warn("Segment content store at " + root + " is in use by another instance and was not opened");
+			return;
+		}
+		List<Long> ids = new ArrayList<>();
+		try (Stream<Path> files = Files.list(root)) {
+			files.forEach(file -> {
+				Matcher matcher = SEGMENT_FILE.matcher(file.getFileName().toString());
+				if (matcher.matches()) {
+					ids.add(Long.parseLong(matcher.group(1)));
+				}
+			});
+		}
+		ids.sort(null);
+		for (Long id : ids) {
+			Segment segment = new Segment(id, segmentPath(id));
+			segments.put(id, segment);
+			for (Record record : load(segment, id.equals(ids.get(ids.size() - 1)))) {
+				if (record.type == PUT) {
+					index.put(record.key, new Location(segment, record.offset, record.length, record.written));
+				} else {
+					index.remove(record.key);
+				}
+			}
+		}
+		index.values().forEach(location -> location.segment.live.addAndGet(recordBytes(location.length)));
+		lock.lock();
+		try {
+			active = segments.isEmpty() || segments.lastEntry().getValue().sealed ? newSegment() : segments.lastEntry().getValue();
+		} finally {
+			lock.unlock();
+		}
+		logger.info("Segment content store at " + root + ", " + index.size() + " images in " + segments.size() + " segments");
+	}
+
+	/**
+	 * Locks the directory for this instance, before anything in it is read or repaired
+	 * @return false when another instance, or another store in this one, holds the lock
+	 */
+	private boolean lock() throws IOException {
+		FileChannel channel = FileChannel.open(root.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		FileLock acquired;
+		try {
+			acquired = channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			acquired = null;
+		}
+		if (acquired == null) {
+			channel.close();
+			return false;
+		}
+		lockFile = channel;
+		return true;
+	}
+
+	@PreDestroy
+	void shutdown() {
+		segments.values().forEach(Segment::close);
+		if (lockFile != null) {
+			try {
+				lockFile.close();
+			} catch (IOException e) {
+				logger.warn("Segment content store lock could not be released", e);
+			}
+			lockFile = null;
+		}
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public String write(String name, InputStream content) throws IOException {
+		if (lockFile == null) {
+			throw new IOException("Segment content store at " + root + " is not open");
+		}
+		MessageDigest digest = ContentDigest.sha256();
+		Path upload = Files.createTempFile(uploads, "upload", ".tmp");
+		try (FileChannel file = FileChannel.open(upload, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			try (ReadableByteChannel source = Channels.newChannel(content)) {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+				while (source.read(buffer) >= 0) {
+					buffer.flip();
+					digest.update(buffer.duplicate());
+					while (buffer.hasRemaining()) {
+						file.write(buffer);
+					}
+					buffer.clear();
+				}
+			}
+			String key = ContentDigest.toHex(digest.digest());
+			lock.lock();
+			try {
+				Location held = index.get(key);
+				if (held != null) {
+					held.written = System.currentTimeMillis();
+				} else {
+					index.put(key, append(PUT, key, System.currentTimeMillis(), file, 0, file.size()));
+				}
+			} finally {
+				lock.unlock();
+			}
+			return key;
+		} finally {
+			Files.deleteIfExists(upload);
+		}
+	}
+
+	@Override
+	public byte[] read(String name, String key) throws IOException {
+		Location location = locate(key);
+		if (location.length > Integer.MAX_VALUE) {
+			throw new IOException("Content " + key + " is too large to read into memory");
+		}
+		byte[] content = new byte[(int) location.length];
+		ByteBuffer buffer = ByteBuffer.wrap(content);
+		for (int attempt = 1; ; attempt++) {
+			try {
+				FileChannel channel = location.segment.channel();
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, location.offset + buffer.position()) < 0) {
+						throw new IOException("Segment " + location.segment.id + " ends before content " + key);
+					}
+				}
+				return content;
+			} catch (ClosedChannelException e) {
+				retryOrThrow(e, attempt);
+				location = locate(key);
+			}
+		}
+	}
+
+	@Override
+	public long transferTo(String name, String key, long position, long count, WritableByteChannel target) throws IOException {
+		long transferred = 0;
+		for (int attempt = 1; ; attempt++) {
+			Location location = locate(key);
+			long end = Math.min(location.length, position + count);
+			try {
+				FileChannel channel = location.segment.channel();
+				while (position + transferred < end) {
+					long n = channel.transferTo(location.offset + position + transferred, end - position - transferred, target);
+					if (n <= 0) {
+						break;
+					}
+					transferred += n;
+				}
+				return transferred;
+			} catch (ClosedChannelException e) {
+				if (!target.isOpen()) {
+					throw e;
+				}
+				retryOrThrow(e, attempt);
+			}
+		}
+	}
+
+	/**
+	 * A segment channel is closed when the segment is compacted, or when a thread reading
+	 * it is interrupted, in which case the read is continued from the current location
+	 */
+	private static void retryOrThrow(ClosedChannelException e, int attempt) throws IOException {
+		if (e instanceof ClosedByInterruptException || attempt >= READ_ATTEMPTS) {
+			throw e;
+		}
+	}
+
+	/**
+	 * An image written again since it was last referenced is kept
+	 */
+	@Override
+	public void delete(String key, Instant usedBefore) throws IOException {
+		lock.lock();
+		try {
+			Location location = index.get(key);
+			if (location == null) {
+				logger.debug("Content " + key + " was already deleted");
+				return;
+			}
+			if (location.written >= usedBefore.toEpochMilli()) {
+				return;
+			}
+			append(DELETE, key, System.currentTimeMillis(), null, 0, 0);
+			index.remove(key);
+			location.segment.live.addAndGet(-recordBytes(location.length));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Scheduled(initialDelayString = "${services.image.content-store.segment.compaction.interval-ms:600000}",
+			fixedDelayString = "${services.image.content-store.segment.compaction.interval-ms:600000}")
+	public void start() {
+		try {
+			compact();
+		} catch (IOException | RuntimeException e) {
+			logger.error("Segment compaction failed", e);
+		}
+	}
+
+	/**
+	 * Compacts every sealed segment in which at least the garbage ratio is taken up by images no longer held
+	 * @return number of segments compacted
+	 * @throws IOException
+	 */
+	public int compact() throws IOException {
+		int compacted = 0;
+		for (Segment segment : new ArrayList<>(segments.values())) {
+			if (segment.sealed && segment.garbageRatio() >= garbageRatio) {
+				compact(segment);
+				compacted++;
+			}
+		}
+		return compacted;
+	}
+
+	/**
+	 * Copies the images of a segment that are still held to the current segment, then deletes it.
+	 * Deletes are copied too while an older segment could still hold the image they delete.
+	 * A crash part way through leaves copies in a newer segment, which take precedence.
+	 */
+	void compact(Segment segment) throws IOException {
+		long started = System.currentTimeMillis();
+		List<Record> records = readFooter(segment);
+		if (records == null) {
+			logger.warn("Segment " + segment.id + " has no footer and was not compacted");
+			return;
+		}
+		int copied = 0;
+		for (Record record : records) {
+			lock.lock();
+			try {
+				Location location = index.get(record.key);
+				if (record.type == PUT) {
+					if (location != null && location.segment == segment && location.offset == record.offset) {
+						index.put(record.key, append(PUT, record.key, location.written, segment.channel(), record.offset, record.length));
+						copied++;
+					}
+				} else if (location == null && segments.firstKey() < segment.id) {
+					append(DELETE, record.key, record.written, null, 0, 0);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		lock.lock();
+		try {
+			segments.remove(segment.id);
+			segment.retire();
+			Files.deleteIfExists(segment.path);
+		} finally {
+			lock.unlock();
+		}
+		logger.info("Compacted segment " + segment.id + ", " + copied + " images copied in " + (System.currentTimeMillis() - started) + "ms");
+	}
+
+	/**
+	 * Appends a record to the current segment, sealing it and starting another once it is full
+	 * @param source channel holding the image, null for a delete
+	 * @return Location of the image
+	 */
+	private Location append(byte type, String key, long written, FileChannel source, long sourcePosition, long length) throws IOException {
+		Segment segment = active;
+		FileChannel channel = segment.channel();
+		long start = segment.end;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(RECORD_MAGIC).put(type).put(ContentDigest.fromHex(key)).putLong(written).putLong(length).flip();
+		writeFully(channel, header, start);
+		CRC32 crc = new CRC32();
+		if (source != null) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			long copied = 0;
+			while (copied < length) {
+				buffer.clear().limit((int) Math.min(BUFFER_SIZE, length - copied));
+				if (source.read(buffer, sourcePosition + copied) < 0) {
+					throw new IOException("Content " + key + " ended after " + copied + " bytes");
+				}
+				buffer.flip();
+				crc.update(buffer.duplicate());
+				copied += writeFully(channel, buffer, start + HEADER_BYTES + copied);
+			}
+		}
+		ByteBuffer footer = ByteBuffer.allocate(CRC_BYTES);
+		footer.putInt((int) crc.getValue()).flip();
+		writeFully(channel, footer, start + HEADER_BYTES + length);
+		channel.force(false);
+		long bytes = recordBytes(length);
+		segment.end = start + bytes;
+		segment.records.addAndGet(bytes);
+		segment.entries.add(new Record(type, key, written, start + HEADER_BYTES, length));
+		if (type == PUT) {
+			segment.live.addAndGet(bytes);
+		}
+		Location location = new Location(segment, start + HEADER_BYTES, length, written);
+		if (segment.end >= maxSegmentBytes) {
+			seal(segment);
+			active = newSegment();
+		}
+		return location;
+	}
+
+	private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int written = 0;
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer, position + written);
+		}
+		return written;
+	}
+
+	/**
+	 * Writes the footer listing the records of a segment, after which nothing more is appended to it
+	 */
+	private void seal(Segment segment) throws IOException {
+		FileChannel channel = segment.channel();
+		ByteBuffer footer = ByteBuffer.allocate(segment.entries.size() * FOOTER_ENTRY_BYTES + TRAILER_BYTES);
+		for (Record record : segment.entries) {
+			footer.put(record.type).put(ContentDigest.fromHex(record.key)).putLong(record.written).putLong(record.offset).putLong(record.length);
+		}
+		footer.putLong(segment.end).putInt(segment.entries.size()).putLong(FOOTER_MAGIC).flip();
+		writeFully(channel, footer, segment.end);
+		channel.truncate(segment.end + footer.limit());
+		channel.force(true);
+		segment.sealed = true;
+		segment.entries = null;
+	}
+
+	private Segment newSegment() throws IOException {
+		long id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		Segment segment = new Segment(id, segmentPath(id));
+		segment.entries = new ArrayList<>();
+		segment.channel();
+		segments.put(id, segment);
+		return segment;
+	}
+
+	/**
+	 * Reads the records of a segment from its footer, or by scanning it when it has none.
+	 * A segment without a footer that is not the last was being sealed when the store stopped,
+	 * and is sealed now.
+	 */
+	private List<Record> load(Segment segment, boolean last) throws IOException {
+		List<Record> records = readFooter(segment);
+		if (records != null) {
+			segment.sealed = true;
+			return records;
+		}
+		records = scan(segment);
+		segment.entries = new ArrayList<>(records);
+		if (!last) {
+			seal(segment);
+		}
+		return records;
+	}
+
+	/**
+	 * @return the records listed in the footer of a sealed segment, or null when it has no valid footer
+	 */
+	private List<Record> readFooter(Segment segment) throws IOException {
+		FileChannel channel = segment.channel();
+		long size = channel.size();
+		if (size < TRAILER_BYTES) {
+			return null;
+		}
+		ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+		readFully(channel, trailer, size - TRAILER_BYTES);
+		long footerStart = trailer.getLong();
+		int count = trailer.getInt();
+		if (trailer.getLong() != FOOTER_MAGIC || count < 0 || footerStart + (long) count * FOOTER_ENTRY_BYTES + TRAILER_BYTES != size) {
+			return null;
+		}
+		ByteBuffer footer = ByteBuffer.allocate(count * FOOTER_ENTRY_BYTES);
+		readFully(channel, footer, footerStart);
+		List<Record> records = new ArrayList<>(count);
+		byte[] key = new byte[KEY_BYTES];
+		for (int i = 0; i < count; i++) {
+			byte type = footer.get();
+			footer.get(key);
+			records.add(new Record(type, ContentDigest.toHex(key), footer.getLong(), footer.getLong(), footer.getLong()));
+		}
+		segment.end = footerStart;
+		segment.records.set(footerStart);
+		return records;
+	}
+
+	/**
+	 * Reads the records of a segment one after another, checking each image against its CRC,
+	 * and truncates the segment after the last complete record
+	 */
+	private List<Record> scan(Segment segment) throws IOException {
+		FileChannel channel = segment.channel();
+		long size = channel.size();
+		List<Record> records = new ArrayList<>();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		ByteBuffer footer = ByteBuffer.allocate(CRC_BYTES);
+		byte[] key = new byte[KEY_BYTES];
+		long position = 0;
+		while (position + HEADER_BYTES + CRC_BYTES <= size) {
+			header.clear();
+			readFully(channel, header, position);
+			if (header.getInt() != RECORD_MAGIC) {
+				break;
+			}
+			byte type = header.get();
+			header.get(key);
+			long written = header.getLong();
+			long length = header.getLong();
+			if ((type != PUT && type != DELETE) || length < 0 || position + recordBytes(length) > size) {
+				break;
+			}
+			CRC32 crc = new CRC32();
+			for (long read = 0; read < length; ) {
+				buffer.clear().limit((int) Math.min(BUFFER_SIZE, length - read));
+				readFully(channel, buffer, position + HEADER_BYTES + read);
+				read += buffer.remaining();
+				crc.update(buffer);
+			}
+			footer.clear();
+			readFully(channel, footer, position + HEADER_BYTES + length);
+			if (footer.getInt() != (int) crc.getValue()) {
+				break;
+			}
+			records.add(new Record(type, ContentDigest.toHex(key), written, position + HEADER_BYTES, length));
+			position += recordBytes(length);
+		}
+		if (position < size) {
+			logger.warn("Segment " + segment.id + " truncated from " + size + " to " + position + " bytes after its last complete record");
+			channel.truncate(position);
+		}
+		segment.end = position;
+		segment.records.set(position);
+		return records;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of segment");
+			}
+		}
+		buffer.flip();
+	}
+
+	private Location locate(String key) throws FileNotFoundException {
+		Location location = index.get(key);
+		if (location == null) {
+			throw new FileNotFoundException("Content " + key + " is not in the segment store");
+		}
+		return location;
+	}
+
+	private Path segmentPath(long id) {
+		return root.resolve(String.format("segment-%010d.dat", id));
+	}
+
+	static long recordBytes(long length) {
+		return HEADER_BYTES + length + CRC_BYTES;
+	}
+
+	/**
+	 * @return number of images held
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * @return ids of the segments held, oldest first
+	 */
+	public List<Long> segmentIds() {
+		return new ArrayList<>(segments.keySet());
+	}
+
+	/**
+	 * Where the image under a key is held
+	 */
+	private static class Location {
+
+		final Segment segment;
+
+		final long offset;
+
+		final long length;
+
+		/*
+		 * When the image was last written, in epoch milliseconds
+		 */
+		volatile long written;
+
+		Location(Segment segment, long offset, long length, long written) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.written = written;
+		}
+
+	}
+
+	/**
+	 * A record as listed in a footer, offset being where its image starts
+	 */
+	private static class Record {
+
+		final byte type;
+
+		final String key;
+
+		final long written;
+
+		final long offset;
+
+		final long length;
+
+		Record(byte type, String key, long written, long offset, long length) {
+			this.type = type;
+			this.key = key;
+			this.written = written;
+			this.offset = offset;
+			this.length = length;
+		}
+
+	}
+
+	static class Segment {
+
+		final long id;
+
+		final Path path;
+
+		private volatile FileChannel channel;
+
+		volatile boolean sealed;
+
+		private volatile boolean retired;
+
+		/*
+		 * End of the records, where the next record or the footer is written
+		 */
+		volatile long end;
+
+		/*
+		 * Bytes taken up by all records, and by the records of images still held here
+		 */
+		final AtomicLong records = new AtomicLong();
+
+		final AtomicLong live = new AtomicLong();
+
+		/*
+		 * Records appended so far, listed in the footer when the segment is sealed
+		 */
+		List<Record> entries;
+
+		Segment(long id, Path path) {
+			this.id = id;
+			this.path = path;
+		}
+
+		/**
+		 * The channel of the segment, reopened when a thread interrupted while using it closed it
+		 */
+		FileChannel channel() throws IOException {
+			FileChannel current = channel;
+			if (current != null && current.isOpen()) {
+				return current;
+			}
+			synchronized (this) {
+				if (retired) {
+					throw new AsynchronousCloseException();
+				}
+				if (channel == null || !channel.isOpen()) {
+					channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				}
+				return channel;
+			}
+		}
+
+		double garbageRatio() {
+			long total = records.get();
+			return total == 0 ? 0 : 1 - (double) live.get() / total;
+		}
+
+		synchronized void retire() {
+			retired = true;
+			close();
+		}
+
+		synchronized void close() {
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+			} catch (IOException e) {
+				// nothing to do while discarding the segment
+			}
+		}
+
+	}
+
+}
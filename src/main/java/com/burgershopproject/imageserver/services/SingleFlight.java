@@ -0,0 +1,65 @@
+package com.burgershopproject.imageserver.services;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Shares one load between concurrent callers asking for the same key. The first caller
+ * runs the load on its own thread while callers arriving before it finishes wait for its
+ * result, or its exception, for up to a timeout. Nothing is kept once a load has finished,
+ * so callers arriving afterwards load again.
+ */
+public class SingleFlight<K, V> {
+
+	private final ConcurrentMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+
+	/**
+	 * Runs the load for a key unless one is already running, in which case its result is waited for
+	 * @param key
+	 * @param loader run on the calling thread when no load of the key is running
+	 * @param timeoutMillis longest time to wait for a running load
+	 * @return the loaded value, may be null
+	 * @throws TimeoutException when the running load did not finish in time
+	 * @throws InterruptedException when interrupted while waiting
+	 */
+	public V load(K key, Supplier<V> loader, long timeoutMillis) throws TimeoutException, InterruptedException {
+		CompletableFuture<V> flight = new CompletableFuture<>();
+		CompletableFuture<V> running = flights.putIfAbsent(key, flight);
+		if (running == null) {
+			try {
+				V value = loader.get();
+				flight.complete(value);
+				return value;
+			} catch (RuntimeException | Error e) {
+				flight.completeExceptionally(e);
+				throw e;
+			} finally {
+				flights.remove(key, flight);
+			}
+		}
+		try {
+			return running.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException("Load of " + key + " failed", e.getCause());
+		}
+	}
+
+	/**
+	 * @return number of keys being loaded
+	 */
+	public int inFlight() {
+		return flights.size();
+	}
+
+}
@@ -0,0 +1,76 @@
+package com.burgershopproject.imageserver.services;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through it and fails once more than the limit has been read,
+ * so an upload can be bounded while it is streamed rather than after it is buffered.
+ */
+public class SizeLimitedInputStream extends FilterInputStream {
+
+	private final long limit;
+
+	private long count;
+
+	private boolean exceeded;
+
+	public SizeLimitedInputStream(InputStream in, long limit) {
+		super(in);
+		this.limit = limit;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b >= 0) {
+			count(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = super.read(b, off, len);
+		if (read > 0) {
+			count(read);
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		count(skipped);
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	private void count(long read) throws IOException {
+		count += read;
+		if (count > limit) {
+			exceeded = true;
+			throw new IOException("Content exceeds the limit of " + limit + " bytes");
+		}
+	}
+
+	/**
+	 * @return number of bytes read so far
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return true if reading stopped because the limit was exceeded
+	 */
+	public boolean isExceeded() {
+		return exceeded;
+	}
+
+}
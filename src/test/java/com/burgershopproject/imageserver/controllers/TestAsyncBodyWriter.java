@@ -0,0 +1,195 @@
+package com.burgershopproject.imageserver.controllers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.burgershopproject.imageserver.services.ContentReadPool;
+
+public class TestAsyncBodyWriter {
+
+	private ExecutorService executor;
+
+	private ContentReadPool readPool;
+
+	private AsyncContext async;
+
+	private HttpServletResponse response;
+
+	private ReadyOutputStream out;
+
+	private final byte[] content = "0123456789abcdefghij".getBytes(StandardCharsets.US_ASCII);
+
+	@Before
+	public void setup() {
+		executor = Executors.newSingleThreadExecutor();
+		readPool = mock(ContentReadPool.class);
+		when(readPool.getChunkBytes()).thenReturn(3);
+		when(readPool.getTimeoutMs()).thenReturn(5000L);
+		doAnswer(invocation -> {
+			executor.execute(invocation.getArgument(0));
+			return null;
+		}).when(readPool).execute(any());
+
+		out = new ReadyOutputStream();
+		response = mock(HttpServletResponse.class);
+		async = mock(AsyncContext.class);
+		when(async.getResponse()).thenReturn(response);
+	}
+
+	@After
+	public void teardown() {
+		executor.shutdownNow();
+	}
+
+	private ContentWriter contentWriter() {
+		return (position, count, target) -> target.write(ByteBuffer.wrap(content, (int) position, (int) count));
+	}
+
+	@Test
+	public void writesPartsInOrderWhileClientIsReady() throws Exception {
+
+		BodyParts body = new BodyParts()
+				.bytes("[".getBytes(StandardCharsets.US_ASCII))
+				.content(contentWriter(), 2, 10)
+				.produced(() -> "]".getBytes(StandardCharsets.US_ASCII));
+		AsyncBodyWriter writer = new AsyncBodyWriter(async, out, body, readPool);
+
+		out.ready = false;
+		writer.onWritePossible();
+		assertEquals(0, out.written.size());
+
+		/*
+		 * Each time the client catches up the container calls onWritePossible again
+		 */
+		out.ready = true;
+		writer.onWritePossible();
+		verify(async, timeout(5000)).complete();
+		assertArrayEquals("[23456789ab]".getBytes(StandardCharsets.US_ASCII), out.written.toByteArray());
+
+	}
+
+	@Test
+	public void stopsWhenClientIsNotReady() throws Exception {
+
+		out.writesBeforeBusy = 1;
+		AsyncBodyWriter writer = new AsyncBodyWriter(async, out, new BodyParts().content(contentWriter(), 0, 9), readPool);
+
+		writer.onWritePossible();
+		out.busy.await(5, TimeUnit.SECONDS);
+		Thread.sleep(100);
+		assertEquals(3, out.written.size());
+		verify(async, never()).complete();
+
+		out.writesBeforeBusy = Integer.MAX_VALUE;
+		out.ready = true;
+		writer.onWritePossible();
+		verify(async, timeout(5000)).complete();
+		assertArrayEquals("012345678".getBytes(StandardCharsets.US_ASCII), out.written.toByteArray());
+
+	}
+
+	@Test
+	public void readsUnchunkedPartInOneCall() throws Exception {
+
+		List<Long> counts = new CopyOnWriteArrayList<>();
+		ContentWriter whole = (position, count, target) -> {
+			counts.add(count);
+			return contentWriter().write(position, count, target);
+		};
+		AsyncBodyWriter writer = new AsyncBodyWriter(async, out, new BodyParts().content(whole, 1, 9, false), readPool);
+
+		writer.onWritePossible();
+		verify(async, timeout(5000)).complete();
+		assertArrayEquals("123456789".getBytes(StandardCharsets.US_ASCII), out.written.toByteArray());
+		assertEquals(Collections.singletonList(9L), counts);
+
+	}
+
+	@Test
+	public void failedReadSetsErrorStatus() throws Exception {
+
+		AsyncBodyWriter writer = new AsyncBodyWriter(async, out, new BodyParts().content((position, count, target) -> 0, 0, 9), readPool);
+
+		writer.onWritePossible();
+		verify(async, timeout(5000)).complete();
+		verify(response).setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+
+	}
+
+	@Test
+	public void rejectedReadSetsServiceUnavailable() throws Exception {
+
+		doThrow(new RejectedExecutionException()).when(readPool).execute(any());
+		AsyncBodyWriter writer = new AsyncBodyWriter(async, out, new BodyParts().content(contentWriter(), 0, 9), readPool);
+
+		writer.onWritePossible();
+		verify(async).complete();
+		verify(response).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+
+	}
+
+	/**
+	 * Output that reports it is not ready when told to, or after a number of writes
+	 */
+	private static class ReadyOutputStream extends ServletOutputStream {
+
+		final ByteArrayOutputStream written = new ByteArrayOutputStream();
+		final CountDownLatch busy = new CountDownLatch(1);
+		volatile boolean ready = true;
+		volatile int writesBeforeBusy = Integer.MAX_VALUE;
+
+		@Override
+		public boolean isReady() {
+			return ready;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+		}
+
+		@Override
+		public void write(int b) {
+			written.write(b);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			written.write(b, off, len);
+			if (--writesBeforeBusy <= 0) {
+				ready = false;
+				busy.countDown();
+			}
+		}
+
+	}
+
+}
@@ -8,40 +8,108 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.MessageSource;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.projection.ProjectionFactory;
+import org.springframework.data.projection.SpelAwareProxyProjectionFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.web.server.ResponseStatusException;
 
 import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageBatchItem;
+import com.burgershopproject.imageserver.models.ImageChange;
+import com.burgershopproject.imageserver.models.ImageChangeEvent;
 import com.burgershopproject.imageserver.models.ImageDto;
+import com.burgershopproject.imageserver.models.ImageImportResult;
+import com.burgershopproject.imageserver.models.ImageRendition;
+import com.burgershopproject.imageserver.models.ImageSummary;
+import com.burgershopproject.imageserver.models.ImageVariant;
+import com.burgershopproject.imageserver.models.RenditionParameters;
+import com.burgershopproject.imageserver.services.ContentReadPool;
+import com.burgershopproject.imageserver.services.HotImageTracker;
+import com.burgershopproject.imageserver.services.ImageArchiveService;
+import com.burgershopproject.imageserver.services.ImageChangeFeed;
+import com.burgershopproject.imageserver.services.ImageMetrics;
+import com.burgershopproject.imageserver.services.ImageRenditionService;
 import com.burgershopproject.imageserver.services.ImageService;
+import com.burgershopproject.imageserver.services.ImageVariantService;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.sql.SQLException;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.function.Consumer;
 
 @RunWith(SpringRunner.class)
 @WebMvcTest(ImageController.class)
 @ActiveProfiles("test")
+@Import(ImageMetrics.class)
 public class TestImageController {
 	
+	@TestConfiguration
+	static class MetricsConfiguration {
+		
+		@Bean
+		MeterRegistry meterRegistry() {
+			return new SimpleMeterRegistry();
+		}
+		
+	}
+	
+	@Autowired
+	MeterRegistry meterRegistry;
+	
 	@Autowired
 	MessageSource messageSource;
 	
@@ -55,6 +123,26 @@ public class TestImageController {
 
 	@MockBean
 	private ImageService service;
+	
+	@MockBean
+	private ImageRenditionService renditionService;
+	
+	@MockBean
+	private ImageVariantService variantService;
+	
+	@MockBean
+	private ContentReadPool readPool;
+	
+	@MockBean
+	private ImageArchiveService archiveService;
+	
+	@MockBean
+	private HotImageTracker hotImages;
+	
+	@MockBean
+	private ImageChangeFeed changeFeed;
+	
+	private final ProjectionFactory projectionFactory = new SpelAwareProxyProjectionFactory();
 
 	@Autowired
 	private MockMvc mvc;
@@ -94,12 +182,19 @@ public class TestImageController {
 	@Rule
 	public final ExpectedException exception = ExpectedException.none();
 	
+	private long timerCount(String name, String... tags) {
+		Timer timer = meterRegistry.find(name).tags(tags).timer();
+		return timer != null ? timer.count() : 0;
+	}
+	
 	@Test
 	public void getImagesDefaultSucceeds() throws Exception {
 		
-		ImageDto imageDto = new ImageDto(0, 20, 3, "name", "ASC", images);
+		List<ImageSummary> summaries = new ArrayList<>();
+		images.forEach(image -> summaries.add(projectionFactory.createProjection(ImageSummary.class, image)));
+		ImageDto<ImageSummary> imageDto = new ImageDto<>(0, 20, 3, "name", "ASC", summaries);
 
-		when(service.getImages(0, 20, "name", "ASC")).thenReturn(imageDto);
+		when(service.getImageSummaries(0, 20, "name", "ASC", null, null)).thenReturn(imageDto);
 
 		mvc.perform(get("/image"))
 			.andExpect(jsonPath("$.offset", equalTo(0)))
@@ -111,6 +206,22 @@ public class TestImageController {
 			.andExpect(jsonPath("$.images.[*].version", hasItems(0, 1, 2)))
 			.andExpect(jsonPath("$.images.[*].type", hasItems("image/png", "image/jpg", "image/gif")))
 			.andExpect(jsonPath("$.images.[*].description", hasItems("image1", "image2", "image3")))
+			.andExpect(jsonPath("$.images.[*].contentUrl", hasItems("/image/image1/content", "/image/image2/content", "/image/image3/content")))
+			.andExpect(jsonPath("$.images.[*].image").isEmpty())
+			.andExpect(status().isOk());
+		
+	}
+	
+	@Test
+	public void getImagesIncludeContentSucceeds() throws Exception {
+		
+		ImageDto<Image> imageDto = new ImageDto<>(0, 20, 3, "name", "ASC", images);
+
+		when(service.getImages(0, 20, "name", "ASC", null, null)).thenReturn(imageDto);
+
+		mvc.perform(get("/image?include=content"))
+			.andExpect(jsonPath("$.totalCount", equalTo(3)))
+			.andExpect(jsonPath("$.images.[*].name", hasItems("image1", "image2", "image3")))
 			.andExpect(jsonPath("$.images.[*].image", hasItems("long image blob1", "long image blob2", "long image blob3")))
 			.andExpect(status().isOk());
 		
@@ -121,9 +232,9 @@ public class TestImageController {
 		
 		ImageDto imageDto = new ImageDto(1, 5, 3, "type", "DESC", images);
 
-		when(service.getImages(1, 5, "type", "DESC")).thenReturn(imageDto);
+		when(service.getImages(1, 5, "type", "DESC", null, null)).thenReturn(imageDto);
 
-		mvc.perform(get("/image?offset=1&limit=5&sortBy=type&direction=DESC"))
+		mvc.perform(get("/image?offset=1&limit=5&sortBy=type&direction=DESC&include=content"))
 			.andExpect(jsonPath("$.offset", equalTo(1)))
 			.andExpect(jsonPath("$.limit", equalTo(5)))
 			.andExpect(jsonPath("$.totalCount", equalTo(3)))
@@ -138,6 +249,197 @@ public class TestImageController {
 		
 	}
 	
+	@Test
+	public void getImagesCursorSucceeds() throws Exception {
+		
+		List<ImageSummary> summaries = new ArrayList<>();
+		images.forEach(image -> summaries.add(projectionFactory.createProjection(ImageSummary.class, image)));
+		ImageDto<ImageSummary> imageDto = new ImageDto<>(null, 3, null, "name", "ASC", summaries, "bmV4dA");
+
+		when(service.getImageSummaries(0, 3, "name", "ASC", "Y3Vyc29y", false)).thenReturn(imageDto);
+
+		mvc.perform(get("/image?limit=3&cursor=Y3Vyc29y&count=false"))
+			.andExpect(status().isOk())
+			.andExpect(jsonPath("$.totalCount").value(nullValue()))
+			.andExpect(jsonPath("$.nextCursor", equalTo("bmV4dA")))
+			.andExpect(jsonPath("$.images.[*].name", hasItems("image1", "image2", "image3")));
+		
+	}
+	
+	@Test
+	public void searchImagesSucceeds() throws Exception {
+		
+		List<ImageSummary> summaries = new ArrayList<>();
+		summaries.add(projectionFactory.createProjection(ImageSummary.class, images.get(1)));
+		ImageDto<ImageSummary> imageDto = new ImageDto<>(0, 20, 1, "name", "ASC", summaries);
+
+		when(service.searchImages("image2 blob*", 0, 20)).thenReturn(imageDto);
+
+		mvc.perform(get("/image?q=image2 blob*"))
+			.andExpect(status().isOk())
+			.andExpect(jsonPath("$.totalCount", equalTo(1)))
+			.andExpect(jsonPath("$.images.[*].name", hasItems("image2")))
+			.andExpect(jsonPath("$.images.[0].image").doesNotExist());
+		
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void batchResults() {
+		doAnswer(invocation -> {
+			Consumer<ImageBatchItem> consumer = invocation.getArgument(1, Consumer.class);
+			consumer.accept(ImageBatchItem.found(images.get(2)));
+			consumer.accept(ImageBatchItem.found(images.get(0)));
+			consumer.accept(ImageBatchItem.notFound("image5", "Image not found"));
+			return null;
+		}).when(service).getImagesByName(any(), any());
+	}
+	
+	@Test
+	public void getImagesByNameSucceeds() throws Exception {
+		
+		batchResults();
+
+		mvc.perform(post("/image/batch")
+				.content("[\"image1\", \"image5\", \"image3\", \"image1\"]")
+				.contentType(MediaType.APPLICATION_JSON))
+			.andExpect(status().isOk())
+			.andExpect(content().contentType(MediaType.APPLICATION_JSON))
+			.andExpect(content().string(startsWith("{\"image1\":{\"name\":\"image1\",\"status\":200")))
+			.andExpect(jsonPath("$.image1.image.image", equalTo("long image blob1")))
+			.andExpect(jsonPath("$.image3.image.name", equalTo("image3")))
+			.andExpect(jsonPath("$.image5.status", equalTo(404)))
+			.andExpect(jsonPath("$.image5.error", equalTo("Image not found")));
+		
+		verify(service).getImagesByName(eq(new LinkedHashSet<>(Arrays.asList("image1", "image5", "image3"))), any());
+	}
+	
+	@Test
+	public void getImagesByNameNdjsonSucceeds() throws Exception {
+		
+		batchResults();
+
+		String body = mvc.perform(post("/image/batch")
+				.content("[\"image1\", \"image5\", \"image3\"]")
+				.contentType(MediaType.APPLICATION_JSON)
+				.accept("application/x-ndjson"))
+			.andExpect(status().isOk())
+			.andExpect(content().contentType("application/x-ndjson"))
+			.andReturn().getResponse().getContentAsString();
+		
+		String[] lines = body.split("\n");
+		assertEquals(3, lines.length);
+		assertEquals("image3", objectMapper.readTree(lines[0]).path("name").asText());
+		assertEquals("image1", objectMapper.readTree(lines[1]).path("image").path("name").asText());
+		assertEquals(404, objectMapper.readTree(lines[2]).path("status").asInt());
+	}
+	
+	@Test
+	public void getImagesByNameIgnoresMalformedAccept() throws Exception {
+		
+		batchResults();
+
+		mvc.perform(post("/image/batch")
+				.content("[\"image1\"]")
+				.contentType(MediaType.APPLICATION_JSON)
+				.header(HttpHeaders.ACCEPT, "not a media type"))
+			.andExpect(status().isOk())
+			.andExpect(content().contentType(MediaType.APPLICATION_JSON))
+			.andExpect(jsonPath("$.image1.status", equalTo(200)));
+	}
+	
+	/**
+	 * Sends two changes through the sink given to the feed and completes the response
+	 */
+	private void changes(String since) throws Exception {
+		List<ImageChangeEvent> events = new ArrayList<>();
+		for (long id = 6; id <= 7; id++) {
+			ImageChange change = new ImageChange("image" + id, 1L, "image/png", "ab" + id, Instant.now());
+			change.setId(id);
+			events.add(ImageChangeEvent.of(change));
+		}
+		when(changeFeed.subscribe(eq(since), any())).thenAnswer(invocation -> {
+			ImageChangeFeed.Sink sink = invocation.getArgument(1);
+			sink.send(events);
+			sink.close();
+			return mock(ImageChangeFeed.Subscription.class);
+		});
+	}
+	
+	@Test
+	public void getChangesStreamsEvents() throws Exception {
+		
+		changes("5");
+		
+		MvcResult result = mvc.perform(get("/image/changes").header("Last-Event-ID", "5"))
+			.andExpect(request().asyncStarted())
+			.andReturn();
+		String body = mvc.perform(asyncDispatch(result))
+			.andExpect(status().isOk())
+			.andExpect(content().contentTypeCompatibleWith(MediaType.TEXT_EVENT_STREAM))
+			.andReturn().getResponse().getContentAsString();
+		
+		assertEquals("id:6\nevent:change\ndata:{\"cursor\":\"6\",\"name\":\"image6\",\"version\":1,\"type\":\"image/png\",\"hash\":\"ab6\"}\n\n"
+				+ "id:7\nevent:change\ndata:{\"cursor\":\"7\",\"name\":\"image7\",\"version\":1,\"type\":\"image/png\",\"hash\":\"ab7\"}\n\n", body);
+	}
+	
+	@Test
+	public void getChangesNdjsonStreamsLines() throws Exception {
+		
+		changes("5");
+		
+		MvcResult result = mvc.perform(get("/image/changes?since=5").accept("application/x-ndjson"))
+			.andExpect(request().asyncStarted())
+			.andReturn();
+		String body = mvc.perform(asyncDispatch(result))
+			.andExpect(status().isOk())
+			.andExpect(content().contentType("application/x-ndjson"))
+			.andReturn().getResponse().getContentAsString();
+		
+		String[] lines = body.split("\n");
+		assertEquals(2, lines.length);
+		assertEquals("6", objectMapper.readTree(lines[0]).path("cursor").asText());
+		assertEquals("image7", objectMapper.readTree(lines[1]).path("name").asText());
+		assertEquals("ab7", objectMapper.readTree(lines[1]).path("hash").asText());
+	}
+	
+	@Test
+	public void getChangesIgnoresMalformedAccept() throws Exception {
+		
+		changes("5");
+		
+		MvcResult result = mvc.perform(get("/image/changes?since=5").header(HttpHeaders.ACCEPT, "not a media type"))
+			.andExpect(request().asyncStarted())
+			.andReturn();
+		mvc.perform(asyncDispatch(result))
+			.andExpect(status().isOk())
+			.andExpect(content().contentTypeCompatibleWith(MediaType.TEXT_EVENT_STREAM));
+	}
+	
+	@Test
+	public void getChangesFailsExpiredCursor() throws Exception {
+		
+		when(changeFeed.subscribe(eq("1"), any())).thenThrow(new ResponseStatusException(HttpStatus.GONE));
+		
+		mvc.perform(get("/image/changes?since=1"))
+			.andExpect(status().isGone());
+	}
+	
+	@Test
+	public void getImagesByNameFailsTooMany() throws Exception {
+		
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i <= 100; i++) {
+			names.add("image" + i);
+		}
+
+		mvc.perform(post("/image/batch")
+				.content(objectMapper.writeValueAsString(names))
+				.contentType(MediaType.APPLICATION_JSON))
+			.andExpect(status().isBadRequest());
+		
+		verify(service, never()).getImagesByName(any(), any());
+	}
+	
 	@Test
 	public void getImageByNameSucceeds() throws Exception {
 
@@ -150,6 +452,7 @@ public class TestImageController {
 			.andExpect(jsonPath("$.description", equalTo("image1")))
 			.andExpect(jsonPath("$.image", equalTo("long image blob1")))
 			.andExpect(status().isOk());
+		verify(hotImages).record("image1");
 	}
 	
 	@Test
@@ -160,8 +463,338 @@ public class TestImageController {
 		mvc.perform(get("/image/image5"))
 		.andExpect(status().isNotFound())
 		.andExpect(jsonPath("$", containsString("Image not found")));
+		verify(hotImages, never()).record(any());
+	}
+	
+	@Test
+	public void getImageByNameSetsValidators() throws Exception {
+		
+		image = images.get(0);
+		image.setLastModified(Instant.parse("2020-01-01T10:00:00Z"));
+
+		when(service.getImageByName("image1")).thenReturn(image);
+
+		mvc.perform(get("/image/image1"))
+			.andExpect(status().isOk())
+			.andExpect(header().string("ETag", ImageController.eTag("image1", 0L)))
+			.andExpect(header().string("Last-Modified", "Wed, 01 Jan 2020 10:00:00 GMT"));
+	}
+	
+	@Test
+	public void getImageByNameNotModifiedETag() throws Exception {
+		
+		ImageSummary summary = projectionFactory.createProjection(ImageSummary.class, images.get(0));
+
+		when(service.getImageSummary("image1")).thenReturn(summary);
+
+		mvc.perform(get("/image/image1").header("If-None-Match", ImageController.eTag("image1", 0L)))
+			.andExpect(status().isNotModified())
+			.andExpect(header().string("ETag", ImageController.eTag("image1", 0L)))
+			.andExpect(content().string(""));
+		
+		verify(service, never()).getImageByName("image1");
+	}
+	
+	@Test
+	public void getImageByNameNotModifiedRecordsRevalidation() throws Exception {
+		
+		ImageSummary summary = projectionFactory.createProjection(ImageSummary.class, images.get(0));
+		double notModified = meterRegistry.counter("image.revalidations", "outcome", "not_modified").count();
+
+		when(service.getImageSummary("image1")).thenReturn(summary);
+
+		mvc.perform(get("/image/image1").header("If-None-Match", ImageController.eTag("image1", 0L)))
+			.andExpect(status().isNotModified());
+		
+		assertEquals(notModified + 1, meterRegistry.counter("image.revalidations", "outcome", "not_modified").count(), 0);
+	}
+	
+	@Test
+	public void getImageByNameModifiedETag() throws Exception {
+		
+		ImageSummary summary = projectionFactory.createProjection(ImageSummary.class, images.get(0));
+
+		when(service.getImageSummary("image1")).thenReturn(summary);
+		when(service.getImageByName("image1")).thenReturn(images.get(0));
+
+		mvc.perform(get("/image/image1").header("If-None-Match", ImageController.eTag("image1", 5L)))
+			.andExpect(status().isOk())
+			.andExpect(jsonPath("$.name", equalTo("image1")));
 	}
 	
+	@Test
+	public void getImageContentNotModifiedSince() throws Exception {
+		
+		image = images.get(0);
+		image.setLastModified(Instant.parse("2020-01-01T10:00:00Z"));
+		ImageSummary summary = projectionFactory.createProjection(ImageSummary.class, image);
+
+		when(service.getImageSummary("image1")).thenReturn(summary);
+
+		mvc.perform(get("/image/image1/content").header("If-Modified-Since", "Wed, 01 Jan 2020 10:00:00 GMT"))
+			.andExpect(status().isNotModified());
+		
+		verify(service, never()).getImageByName("image1");
+	}
+	
+	@Test
+	public void getImageByNameConditionalNotFound() throws Exception {
+
+		when(service.getImageSummary("image5")).thenReturn(null);
+
+		mvc.perform(get("/image/image5").header("If-None-Match", ImageController.eTag("image5", 0L)))
+			.andExpect(status().isNotFound());
+	}
+	
+	@Test
+	public void getImageContentSucceeds() throws Exception {
+		
+		byte[] bytes = new byte[] {(byte) 0x89, 'P', 'N', 'G', 0, 1, 2, 3};
+		
+		image = new Image();
+		image.setName("image4");
+		image.setVersion(0L);
+		image.setType("image/png");
+		image.setDescription("image4");
+		image.setImage(Base64.getEncoder().encodeToString(bytes));
+
+		when(service.getImageSummary("image4")).thenReturn(projectionFactory.createProjection(ImageSummary.class, image));
+		when(service.getImageByName("image4")).thenReturn(image);
+
+		mvc.perform(get("/image/image4/content"))
+			.andExpect(status().isOk())
+			.andExpect(content().contentType(MediaType.IMAGE_PNG))
+			.andExpect(header().longValue("Content-Length", bytes.length))
+			.andExpect(content().bytes(bytes));
+	}
+	
+	@Test
+	public void getImageContentTransferSucceeds() throws Exception {
+		
+		byte[] bytes = new byte[] {(byte) 0x89, 'P', 'N', 'G', 0, 1, 2, 3};
+		
+		image = new Image();
+		image.setName("image4");
+		image.setVersion(0L);
+		image.setType("image/png");
+		image.setDescription("image4");
+		image.setSize(Long.valueOf(bytes.length));
+		ImageSummary summary = projectionFactory.createProjection(ImageSummary.class, image);
+
+		when(service.getImageSummary("image4")).thenReturn(summary);
+		when(service.transferContent(eq(summary), eq(0L), eq(8L), any())).thenAnswer(invocation -> {
+			return Long.valueOf(invocation.getArgument(3, WritableByteChannel.class).write(ByteBuffer.wrap(bytes)));
+		});
+
+		mvc.perform(get("/image/image4/content"))
+			.andExpect(status().isOk())
+			.andExpect(content().contentType(MediaType.IMAGE_PNG))
+			.andExpect(header().longValue("Content-Length", bytes.length))
+			.andExpect(header().string("ETag", ImageController.eTag("image4", 0L)))
+			.andExpect(content().bytes(bytes));
+		
+		verify(service, never()).getImageByName("image4");
+	}
+	
+	private ImageSummary rangeSummary(byte[] bytes) throws Exception {
+		
+		image = new Image();
+		image.setName("image4");
+		image.setVersion(0L);
+		image.setType("image/png");
+		image.setDescription("image4");
+		image.setSize(Long.valueOf(bytes.length));
+		image.setLastModified(Instant.parse("2020-01-01T10:00:00Z"));
+		ImageSummary summary = projectionFactory.createProjection(ImageSummary.class, image);
+
+		when(service.getImageSummary("image4")).thenReturn(summary);
+		when(service.transferContent(eq(summary), anyLong(), anyLong(), any())).thenAnswer(invocation -> {
+			int position = invocation.getArgument(1, Long.class).intValue();
+			int count = invocation.getArgument(2, Long.class).intValue();
+			return Long.valueOf(invocation.getArgument(3, WritableByteChannel.class).write(ByteBuffer.wrap(bytes, position, count)));
+		});
+		return summary;
+	}
+	
+	@Test
+	public void getImageContentHashETag() throws Exception {
+		
+		byte[] bytes = new byte[] {0, 1, 2, 3};
+		String hash = "9f64a747e1b97f131fabb6b447296c9b6f0201e79fb3c5356e6c77e89b6a806a";
+		rangeSummary(bytes);
+		image.setContentHash(hash);
+
+		mvc.perform(get("/image/image4/content"))
+			.andExpect(status().isOk())
+			.andExpect(header().string("ETag", "\"" + hash + "\""))
+			.andExpect(content().bytes(bytes));
+		
+		mvc.perform(get("/image/image4/content").header("If-None-Match", "\"" + hash + "\""))
+			.andExpect(status().isNotModified());
+	}
+	
+	@Test
+	public void getImageContentServesVariant() throws Exception {
+		
+		ImageSummary summary = rangeSummary(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+		ImageVariant variant = new ImageVariant();
+		variant.setName("image4");
+		variant.setType("image/jpeg");
+		variant.setVersion(0L);
+		variant.setContentKey("abcdef");
+		variant.setSize(3L);
+		
+		when(variantService.isEnabled()).thenReturn(true);
+		when(variantService.select(eq(summary), any())).thenAnswer(invocation -> {
+			List<MediaType> accepted = invocation.getArgument(1);
+			return accepted.contains(MediaType.IMAGE_JPEG) ? variant : null;
+		});
+		when(variantService.transferContent(eq(variant), anyLong(), anyLong(), any())).thenAnswer(invocation ->
+			Long.valueOf(invocation.getArgument(3, WritableByteChannel.class).write(ByteBuffer.wrap(new byte[] {7, 8, 9}))));
+		
+		mvc.perform(get("/image/image4/content").header("Accept", "image/jpeg"))
+			.andExpect(status().isOk())
+			.andExpect(content().contentType(MediaType.IMAGE_JPEG))
+			.andExpect(header().string("ETag", "\"abcdef\""))
+			.andExpect(header().string("Vary", "Accept"))
+			.andExpect(content().bytes(new byte[] {7, 8, 9}));
+		
+		mvc.perform(get("/image/image4/content").header("Accept", "image/jpeg").header("If-None-Match", "\"abcdef\""))
+			.andExpect(status().isNotModified());
+		
+		mvc.perform(get("/image/image4/content").header("Accept", "image/png"))
+			.andExpect(status().isOk())
+			.andExpect(content().contentType(MediaType.IMAGE_PNG))
+			.andExpect(header().string("Vary", "Accept"))
+			.andExpect(header().longValue("Content-Length", 10));
+	}
+	
+	@Test
+	public void getImageContentRangeSucceeds() throws Exception {
+		
+		ImageSummary summary = rangeSummary(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+
+		mvc.perform(get("/image/image4/content").header("Range", "bytes=2-5"))
+			.andExpect(status().isPartialContent())
+			.andExpect(content().contentType(MediaType.IMAGE_PNG))
+			.andExpect(header().string("Accept-Ranges", "bytes"))
+			.andExpect(header().string("Content-Range", "bytes 2-5/10"))
+			.andExpect(header().longValue("Content-Length", 4))
+			.andExpect(content().bytes(new byte[] {2, 3, 4, 5}));
+		
+		verify(service).transferContent(eq(summary), eq(2L), eq(4L), any());
+	}
+	
+	@Test
+	public void getImageContentSuffixRangeSucceeds() throws Exception {
+		
+		rangeSummary(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+
+		mvc.perform(get("/image/image4/content").header("Range", "bytes=-3"))
+			.andExpect(status().isPartialContent())
+			.andExpect(header().string("Content-Range", "bytes 7-9/10"))
+			.andExpect(content().bytes(new byte[] {7, 8, 9}));
+		
+		mvc.perform(get("/image/image4/content").header("Range", "bytes=8-"))
+			.andExpect(status().isPartialContent())
+			.andExpect(header().string("Content-Range", "bytes 8-9/10"))
+			.andExpect(content().bytes(new byte[] {8, 9}));
+	}
+	
+	@Test
+	public void getImageContentMultipleRangesSucceeds() throws Exception {
+		
+		rangeSummary(new byte[] {'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j'});
+
+		MvcResult result = mvc.perform(get("/image/image4/content").header("Range", "bytes=0-1,8-9"))
+			.andExpect(status().isPartialContent())
+			.andExpect(header().string("Content-Type", startsWith("multipart/byteranges; boundary=")))
+			.andReturn();
+		
+		String boundary = result.getResponse().getContentType().substring("multipart/byteranges; boundary=".length());
+		String body = result.getResponse().getContentAsString();
+		assertEquals("\r\n--" + boundary + "\r\nContent-Type: image/png\r\nContent-Range: bytes 0-1/10\r\n\r\nab"
+				+ "\r\n--" + boundary + "\r\nContent-Type: image/png\r\nContent-Range: bytes 8-9/10\r\n\r\nij"
+				+ "\r\n--" + boundary + "--\r\n", body);
+		assertEquals(body.length(), result.getResponse().getContentLength());
+	}
+	
+	@Test
+	public void getImageContentRangeNotSatisfiable() throws Exception {
+		
+		rangeSummary(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+
+		mvc.perform(get("/image/image4/content").header("Range", "bytes=10-20"))
+			.andExpect(status().isRequestedRangeNotSatisfiable())
+			.andExpect(header().string("Content-Range", "bytes */10"));
+		
+		mvc.perform(get("/image/image4/content").header("Range", "bytes=0-9,0-9"))
+			.andExpect(status().isRequestedRangeNotSatisfiable());
+		
+		verify(service, never()).transferContent(any(), anyLong(), anyLong(), any());
+	}
+	
+	@Test
+	public void getImageContentIfRangeChanged() throws Exception {
+		
+		ImageSummary summary = rangeSummary(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+
+		mvc.perform(get("/image/image4/content").header("Range", "bytes=2-5").header("If-Range", ImageController.eTag("image4", 1L)))
+			.andExpect(status().isOk())
+			.andExpect(header().longValue("Content-Length", 10));
+		
+		mvc.perform(get("/image/image4/content").header("Range", "bytes=2-5").header("If-Range", ImageController.eTag("image4", 0L)))
+			.andExpect(status().isPartialContent());
+		
+		mvc.perform(get("/image/image4/content").header("Range", "bytes=2-5").header("If-Range", "Wed, 01 Jan 2020 10:00:00 GMT"))
+			.andExpect(status().isPartialContent());
+		
+		verify(service).transferContent(eq(summary), eq(0L), eq(10L), any());
+	}
+	
+	@Test
+	public void getImageContentRenditionSucceeds() throws Exception {
+		
+		byte[] bytes = new byte[] {(byte) 0xff, (byte) 0xd8, 1, 2, 3};
+		RenditionParameters parameters = new RenditionParameters(128, 128, "cover", "jpeg");
+		
+		when(renditionService.parameters(128, 128, "cover", "jpeg")).thenReturn(parameters);
+		when(service.getImageByName("image1")).thenReturn(images.get(0));
+		when(renditionService.getRendition(images.get(0), parameters)).thenReturn(new ImageRendition("image/jpeg", bytes));
+
+		mvc.perform(get("/image/image1/content?w=128&h=128&fit=cover&format=jpeg"))
+			.andExpect(status().isOk())
+			.andExpect(content().contentType(MediaType.IMAGE_JPEG))
+			.andExpect(header().longValue("Content-Length", bytes.length))
+			.andExpect(header().string("ETag", ImageController.eTag("image1?" + parameters, 0L)))
+			.andExpect(content().bytes(bytes));
+	}
+	
+	@Test
+	public void getImageContentRenditionBusy() throws Exception {
+		
+		RenditionParameters parameters = new RenditionParameters(128, null, "contain", null);
+		
+		when(renditionService.parameters(128, null, null, null)).thenReturn(parameters);
+		when(service.getImageByName("image1")).thenReturn(images.get(0));
+		when(renditionService.getRendition(images.get(0), parameters)).thenThrow(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many renditions in progress"));
+
+		mvc.perform(get("/image/image1/content?w=128"))
+			.andExpect(status().isServiceUnavailable());
+	}
+	
+	@Test
+	public void getImageContentNotFound() throws Exception {
+
+		when(service.getImageByName("image5")).thenReturn(null);
+
+		mvc.perform(get("/image/image5/content"))
+		.andExpect(status().isNotFound())
+		.andExpect(jsonPath("$", containsString("Image not found")));
+		verify(hotImages, never()).record(any());
+	}
+	
+	
 	
 	@Test
 	public void addImageSucceeds() throws Exception {
@@ -188,6 +821,38 @@ public class TestImageController {
 				.andExpect(jsonPath("$.image", equalTo("long image blob4")));
 	}
 	
+	@Test
+	public void addImageRecordsMetrics() throws Exception {
+		
+		image = new Image();
+		image.setName("image4");
+		image.setVersion(0L);
+		image.setType("image/png");
+		image.setDescription("image4");
+		image.setImage("long image blob4");
+		image.setSize(12L);
+
+		long created = timerCount("image.operation", "operation", "create", "outcome", "SUCCESS");
+		long conflict = timerCount("image.operation", "operation", "replace", "outcome", "CLIENT_ERROR", "exception", "ConstraintViolationException");
+		double contentSize = meterRegistry.summary("image.content.size", "operation", "create").totalAmount();
+
+		when(service.createImage(image)).thenReturn(image);
+		when(service.replaceImage(image)).thenThrow(new ConstraintViolationException("Duplicate Image", new SQLException(), ""));
+		
+		mvc.perform(post("/image")
+				.content(objectMapper.writeValueAsString(image))
+				.contentType(MediaType.APPLICATION_JSON))
+		        .andExpect(status().isCreated());
+		mvc.perform(put("/image")
+				.content(objectMapper.writeValueAsString(image))
+				.contentType(MediaType.APPLICATION_JSON))
+				.andExpect(status().isConflict());
+		
+		assertEquals(created + 1, timerCount("image.operation", "operation", "create", "outcome", "SUCCESS"));
+		assertEquals(conflict + 1, timerCount("image.operation", "operation", "replace", "outcome", "CLIENT_ERROR", "exception", "ConstraintViolationException"));
+		assertEquals(contentSize + 12, meterRegistry.summary("image.content.size", "operation", "create").totalAmount(), 0);
+	}
+	
 	@Test
 	public void addImageFailsValidationName() throws Exception {
 		
@@ -290,6 +955,123 @@ public class TestImageController {
 				.andExpect(status().isConflict());
 	}
 	
+	@Test
+	public void addImageContentSucceeds() throws Exception {
+		
+		byte[] bytes = new byte[] {(byte) 0x89, 'P', 'N', 'G', 0, 1, 2, 3};
+		image = images.get(0);
+		image.setSize(8L);
+		ImageSummary summary = projectionFactory.createProjection(ImageSummary.class, image);
+		
+		when(service.createImageContent(any(Image.class), any(InputStream.class))).thenReturn(summary);
+		
+		mvc.perform(post("/image/image1/content")
+				.content(bytes)
+				.contentType(MediaType.IMAGE_PNG)
+				.header("X-Image-Description", "image1")
+				.accept(MediaType.APPLICATION_JSON))
+		        .andExpect(status().isCreated())
+				.andExpect(jsonPath("$.name", equalTo("image1")))
+				.andExpect(jsonPath("$.size", equalTo(8)))
+				.andExpect(jsonPath("$.contentUrl", equalTo("/image/image1/content")));
+		
+		ArgumentCaptor<Image> captor = ArgumentCaptor.forClass(Image.class);
+		verify(service).createImageContent(captor.capture(), any(InputStream.class));
+		assertEquals("image1", captor.getValue().getName());
+		assertEquals("image/png", captor.getValue().getType());
+		assertEquals("image1", captor.getValue().getDescription());
+	}
+	
+	@Test
+	public void addImageContentOctetStreamSucceeds() throws Exception {
+		
+		ImageSummary summary = projectionFactory.createProjection(ImageSummary.class, images.get(1));
+		
+		when(service.createImageContent(any(Image.class), any(InputStream.class))).thenReturn(summary);
+		
+		mvc.perform(post("/image/image2/content")
+				.content(new byte[] {1, 2, 3})
+				.contentType(MediaType.APPLICATION_OCTET_STREAM)
+				.header("X-Image-Type", "image/jpg")
+				.header("X-Image-Description", "image2")
+				.accept(MediaType.APPLICATION_JSON))
+		        .andExpect(status().isCreated())
+				.andExpect(jsonPath("$.name", equalTo("image2")));
+		
+		ArgumentCaptor<Image> captor = ArgumentCaptor.forClass(Image.class);
+		verify(service).createImageContent(captor.capture(), any(InputStream.class));
+		assertEquals("image/jpg", captor.getValue().getType());
+	}
+	
+	@Test
+	public void addImageContentFailsValidation() throws Exception {
+		
+		mvc.perform(post("/image/image2/content")
+				.content(new byte[] {1, 2, 3})
+				.contentType(MediaType.APPLICATION_OCTET_STREAM)
+				.accept(MediaType.APPLICATION_JSON))
+				.andExpect(jsonPath("$", containsString("type is required;")))
+				.andExpect(jsonPath("$", containsString("description is required;")))
+				.andExpect(status().isUnprocessableEntity());
+		
+		verify(service, never()).createImageContent(any(Image.class), any(InputStream.class));
+	}
+	
+	@Test
+	public void addImageFileSucceeds() throws Exception {
+		
+		ImageSummary summary = projectionFactory.createProjection(ImageSummary.class, images.get(2));
+		MockMultipartFile file = new MockMultipartFile("file", "image3.gif", "image/gif", new byte[] {1, 2, 3});
+		
+		when(service.createImageContent(any(Image.class), any(InputStream.class))).thenReturn(summary);
+		
+		mvc.perform(multipart("/image/image3/content")
+				.file(file)
+				.param("description", "image3")
+				.accept(MediaType.APPLICATION_JSON))
+		        .andExpect(status().isCreated())
+				.andExpect(jsonPath("$.name", equalTo("image3")));
+		
+		ArgumentCaptor<Image> captor = ArgumentCaptor.forClass(Image.class);
+		verify(service).createImageContent(captor.capture(), any(InputStream.class));
+		assertEquals("image/gif", captor.getValue().getType());
+		assertEquals("image3", captor.getValue().getDescription());
+	}
+	
+	@Test
+	public void replaceImageContentSucceeds() throws Exception {
+		
+		ImageSummary summary = projectionFactory.createProjection(ImageSummary.class, images.get(0));
+		
+		when(service.replaceImageContent(any(Image.class), any(InputStream.class))).thenReturn(summary);
+		
+		mvc.perform(put("/image/image1/content")
+				.content(new byte[] {1, 2, 3})
+				.contentType(MediaType.IMAGE_PNG)
+				.header("X-Image-Description", "image1")
+				.header("X-Image-Version", "0")
+				.accept(MediaType.APPLICATION_JSON))
+		        .andExpect(status().isOk())
+				.andExpect(jsonPath("$.name", equalTo("image1")));
+		
+		ArgumentCaptor<Image> captor = ArgumentCaptor.forClass(Image.class);
+		verify(service).replaceImageContent(captor.capture(), any(InputStream.class));
+		assertEquals(new Long(0), captor.getValue().getVersion());
+	}
+	
+	@Test
+	public void replaceImageContentFailsTooLarge() throws Exception {
+		
+		when(service.replaceImageContent(any(Image.class), any(InputStream.class))).thenThrow(new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Image is too large"));
+		
+		mvc.perform(put("/image/image1/content")
+				.content(new byte[] {1, 2, 3})
+				.contentType(MediaType.IMAGE_PNG)
+				.header("X-Image-Description", "image1")
+				.accept(MediaType.APPLICATION_JSON))
+		        .andExpect(status().isPayloadTooLarge());
+	}
+	
 	@Test
 	public void replaceImageSucceeds() throws Exception {
 		
@@ -419,4 +1201,45 @@ public class TestImageController {
 	}
 	
 
+	@Test
+	public void exportImagesStreamsArchive() throws Exception {
+		
+		byte[] archive = new byte[] {'P', 'K', 3, 4};
+		doAnswer(invocation -> {
+			((OutputStream) invocation.getArgument(0)).write(archive);
+			return 1;
+		}).when(archiveService).exportImages(any());
+		
+		mvc.perform(get("/image/export"))
+			.andExpect(status().isOk())
+			.andExpect(content().contentType("application/zip"))
+			.andExpect(header().string("Content-Disposition", containsString("images.zip")))
+			.andExpect(content().bytes(archive));
+	}
+	
+	@Test
+	public void importImagesReturnsCounts() throws Exception {
+		
+		when(archiveService.importImages(any())).thenReturn(new ImageImportResult(2, 1));
+		
+		mvc.perform(post("/image/import")
+				.content(new byte[] {'P', 'K', 3, 4})
+				.contentType("application/zip"))
+			.andExpect(status().isOk())
+			.andExpect(jsonPath("$.imported", is(2)))
+			.andExpect(jsonPath("$.skipped", is(1)));
+	}
+	
+	@Test
+	public void importImagesFailsInvalidArchive() throws Exception {
+		
+		when(archiveService.importImages(any())).thenThrow(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Archive is not a valid image export"));
+		
+		mvc.perform(post("/image/import")
+				.content(new byte[] {1, 2, 3})
+				.contentType("application/zip"))
+			.andExpect(status().isBadRequest());
+	}
+	
+
 }
@@ -0,0 +1,109 @@
+package com.burgershopproject.imageserver.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.burgershopproject.imageserver.models.ImageContent;
+import com.burgershopproject.imageserver.repositories.ImageRepository;
+import com.burgershopproject.imageserver.repositories.ImageVariantRepository;
+
+public class TestContentSweeper {
+
+	@InjectMocks
+	private ContentSweeper sweeper;
+
+	@Mock
+	private ImageRepository repository;
+
+	@Mock
+	private ImageVariantRepository variantRepository;
+
+	@Mock
+	private ContentStore fileSystemStore;
+
+	@Before
+	public void setup() {
+
+		MockitoAnnotations.initMocks(this);
+
+		DatabaseContentStore databaseStore = new DatabaseContentStore();
+		databaseStore.repository = repository;
+		when(fileSystemStore.getName()).thenReturn(FileSystemContentStore.NAME);
+		ContentStores contentStores = new ContentStores();
+		contentStores.stores = Arrays.asList(databaseStore, fileSystemStore);
+		contentStores.type = DatabaseContentStore.NAME;
+		contentStores.init();
+		sweeper.contentStores = contentStores;
+		sweeper.transactionManager = mock(PlatformTransactionManager.class);
+		sweeper.graceMillis = 60000;
+		sweeper.batchSize = 10;
+
+	}
+
+	private ImageContent content(String hash, String store) {
+		ImageContent content = new ImageContent();
+		content.setHash(hash);
+		content.setStore(store);
+		content.setSize(3L);
+		content.setRefCount(0L);
+		content.setLastUsed(Instant.now().minusSeconds(3600));
+		return content;
+	}
+
+	@Test
+	public void sweepDeletesUnreferencedImages() throws Exception {
+
+		when(repository.findUnreferencedSharedContent(any(), anyInt()))
+				.thenReturn(Arrays.asList(content("aaaa", DatabaseContentStore.NAME), content("bbbb", FileSystemContentStore.NAME)));
+		when(repository.deleteUnreferencedSharedContent(eq("aaaa"), eq(DatabaseContentStore.NAME), any())).thenReturn(1);
+		when(repository.deleteUnreferencedSharedContent(eq("bbbb"), eq(FileSystemContentStore.NAME), any())).thenReturn(1);
+
+		assertEquals(2, sweeper.sweep());
+
+		verify(fileSystemStore).delete(eq("bbbb"), any());
+
+	}
+
+	@Test
+	public void sweepKeepsImagesUsedAgain() throws Exception {
+
+		when(repository.findUnreferencedSharedContent(any(), anyInt())).thenReturn(Arrays.asList(content("bbbb", FileSystemContentStore.NAME)));
+		when(repository.deleteUnreferencedSharedContent(eq("bbbb"), eq(FileSystemContentStore.NAME), any())).thenReturn(0);
+
+		assertEquals(0, sweeper.sweep());
+
+		verify(fileSystemStore, never()).delete(any(), any());
+
+	}
+
+	@Test
+	public void sweepRestoresMiscountedReferences() throws Exception {
+
+		when(repository.findUnreferencedSharedContent(any(), anyInt())).thenReturn(Arrays.asList(content("bbbb", FileSystemContentStore.NAME)));
+		when(repository.countByContentStoreAndContentKey(FileSystemContentStore.NAME, "bbbb")).thenReturn(2L);
+
+		assertEquals(0, sweeper.sweep());
+
+		verify(repository).restoreSharedContentReferences("bbbb", FileSystemContentStore.NAME, 2L);
+		verify(repository, never()).deleteUnreferencedSharedContent(any(), any(), any());
+		verify(fileSystemStore, never()).delete(any(), any());
+
+	}
+
+}
@@ -0,0 +1,124 @@
+package com.burgershopproject.imageserver.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestFileSystemContentStore {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private FileSystemContentStore store;
+
+	@Before
+	public void setup() throws IOException {
+
+		store = new FileSystemContentStore();
+		store.path = folder.getRoot().getPath();
+		store.init();
+
+	}
+
+	@Test
+	public void writeIsContentAddressed() throws IOException {
+
+		String key = store.write("image1", new ByteArrayInputStream("abc".getBytes()));
+
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", key);
+		assertTrue(Files.exists(folder.getRoot().toPath().resolve("ba").resolve("78").resolve(key)));
+		assertArrayEquals("abc".getBytes(), store.read("image1", key));
+
+	}
+
+	@Test
+	public void writeSharesIdenticalImages() throws IOException {
+
+		String key1 = store.write("image1", new ByteArrayInputStream(new byte[100000]));
+		String key2 = store.write("image2", new ByteArrayInputStream(new byte[100000]));
+
+		assertEquals(key1, key2);
+		try (Stream<Path> uploads = Files.list(folder.getRoot().toPath().resolve("tmp"))) {
+			assertFalse(uploads.findAny().isPresent());
+		}
+
+	}
+
+	@Test
+	public void deleteKeepsRewrittenImage() throws IOException {
+
+		String key = store.write("image1", new ByteArrayInputStream("abc".getBytes()));
+		Path file = store.pathOf(key);
+		Files.setLastModifiedTime(file, FileTime.from(Instant.now().minusSeconds(3600)));
+
+		store.write("image2", new ByteArrayInputStream("abc".getBytes()));
+		store.delete(key, Instant.now().minusSeconds(60));
+
+		assertTrue(Files.exists(file));
+
+		Files.setLastModifiedTime(file, FileTime.from(Instant.now().minusSeconds(3600)));
+		store.delete(key, Instant.now().minusSeconds(60));
+
+		assertFalse(Files.exists(file));
+
+		store.delete(key, Instant.now());
+
+	}
+
+	@Test
+	public void writeFailureLeavesNoFile() throws IOException {
+
+		InputStream failing = new SizeLimitedInputStream(new ByteArrayInputStream(new byte[100]), 10);
+
+		try {
+			store.write("image1", failing);
+		} catch (IOException e) {
+			// expected
+		}
+
+		try (Stream<Path> files = Files.walk(folder.getRoot().toPath())) {
+			assertFalse(files.anyMatch(Files::isRegularFile));
+		}
+
+	}
+
+	@Test
+	public void transferToCopiesRange() throws IOException {
+
+		String key = store.write("image1", new ByteArrayInputStream(new byte[] {0, 1, 2, 3, 4, 5, 6, 7}));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		assertEquals(3L, store.transferTo("image1", key, 2, 3, Channels.newChannel(out)));
+		assertArrayEquals(new byte[] {2, 3, 4}, out.toByteArray());
+
+		out.reset();
+		assertEquals(2L, store.transferTo("image1", key, 6, 10, Channels.newChannel(out)));
+		assertArrayEquals(new byte[] {6, 7}, out.toByteArray());
+
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidKey() throws IOException {
+
+		store.read("image1", "../../etc/passwd");
+
+	}
+
+}
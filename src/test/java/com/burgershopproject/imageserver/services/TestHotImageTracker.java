@@ -0,0 +1,125 @@
+package com.burgershopproject.imageserver.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.burgershopproject.imageserver.repositories.ImagePopularityRepository;
+
+public class TestHotImageTracker {
+
+	@InjectMocks
+	private HotImageTracker tracker;
+
+	@Mock
+	private ImagePopularityRepository repository;
+
+	@Before
+	public void setup() {
+
+		MockitoAnnotations.initMocks(this);
+
+		tracker.transactionManager = mock(PlatformTransactionManager.class);
+		tracker.trackedNames = 100;
+		tracker.windowMillis = 60000;
+		tracker.init();
+
+	}
+
+	@Test
+	public void flushAddsRequestsCountedSinceLastFlush() {
+
+		when(repository.addRequests(anyString(), anyLong(), any())).thenReturn(1);
+
+		tracker.record("image1");
+		tracker.record("image1");
+		tracker.record("image2");
+
+		assertEquals(2, tracker.flush());
+
+		verify(repository).addRequests(eq("image1"), eq(2L), any());
+		verify(repository).addRequests(eq("image2"), eq(1L), any());
+		verify(repository).deleteRequestedBefore(any());
+
+		assertEquals(0, tracker.flush());
+		verify(repository, times(2)).addRequests(anyString(), anyLong(), any());
+
+	}
+
+	@Test
+	public void flushInsertsNamesWithoutCount() {
+
+		when(repository.addRequests(anyString(), anyLong(), any())).thenReturn(0);
+
+		tracker.record("image1");
+
+		assertEquals(1, tracker.flush());
+
+		verify(repository).saveAndFlush(argThat(popularity -> "image1".equals(popularity.getName()) && popularity.getRequests() == 1L));
+
+	}
+
+	@Test
+	public void flushAddsRequestsWhenNameInsertedConcurrently() {
+
+		when(repository.addRequests(anyString(), anyLong(), any())).thenReturn(0, 1);
+		when(repository.saveAndFlush(any())).thenThrow(new DataIntegrityViolationException("duplicate"));
+
+		tracker.record("image1");
+
+		assertEquals(1, tracker.flush());
+
+		verify(repository, times(2)).addRequests(eq("image1"), eq(1L), any());
+		/*
+		 * The failed insert is rolled back alone, the update is retried in a transaction of its own
+		 */
+		verify(tracker.transactionManager).rollback(any());
+		verify(tracker.transactionManager, times(4)).getTransaction(any());
+
+	}
+
+	@Test
+	public void flushKeepsCountsNotWritten() {
+
+		when(repository.addRequests(eq("image1"), anyLong(), any())).thenThrow(new QueryTimeoutException("timeout")).thenReturn(1);
+		when(repository.addRequests(eq("image2"), anyLong(), any())).thenReturn(1);
+
+		tracker.record("image1");
+		tracker.record("image2");
+
+		assertEquals(1, tracker.flush());
+		verify(repository).addRequests(eq("image2"), eq(1L), any());
+
+		assertEquals(1, tracker.flush());
+		verify(repository, times(2)).addRequests(eq("image1"), eq(1L), any());
+
+	}
+
+	@Test
+	public void flushWithoutRequestsOnlyDeletesExpiredCounts() {
+
+		assertEquals(0, tracker.flush());
+
+		verify(repository, never()).addRequests(anyString(), anyLong(), any());
+		verify(repository).deleteRequestedBefore(any());
+
+	}
+
+}
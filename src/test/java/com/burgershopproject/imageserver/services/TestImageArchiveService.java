@@ -0,0 +1,245 @@
+package com.burgershopproject.imageserver.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.context.MessageSource;
+import org.springframework.http.HttpStatus;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageImportResult;
+import com.burgershopproject.imageserver.repositories.ImageArchiveRepository.ImageRowHandler;
+import com.burgershopproject.imageserver.repositories.ImageRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class TestImageArchiveService {
+
+	private static final byte[] CONTENT1 = {1, 2, 3};
+	private static final byte[] CONTENT2 = {4, 5, 6, 7};
+
+	@InjectMocks
+	private ImageArchiveService archiveService;
+
+	@Mock
+	private MessageSource messageSource;
+
+	@Mock
+	private ImageRepository repository;
+
+	@Mock
+	private PlatformTransactionManager transactionManager;
+
+	@Mock
+	private ImageSearchIndex searchIndex;
+
+	@Mock
+	private ImageVariantService variantService;
+
+	@Mock
+	private ImageNameFilter nameFilter;
+
+	@Mock
+	private ImageChangeLog changeLog;
+
+	@Mock
+	private ContentStore store;
+
+	/*
+	 * Images written to the mocked store by key
+	 */
+	private Map<String, byte[]> written;
+
+	@Before
+	public void setup() throws IOException {
+
+		MockitoAnnotations.initMocks(this);
+
+		archiveService.objectMapper = new ObjectMapper().findAndRegisterModules();
+		archiveService.batchSize = 100;
+		archiveService.maxUploadBytes = 1024;
+
+		written = new HashMap<>();
+		when(store.getName()).thenReturn(DatabaseContentStore.NAME);
+		when(store.write(anyString(), any(InputStream.class))).thenAnswer(invocation -> {
+			byte[] content = StreamUtils.copyToByteArray(invocation.getArgument(1));
+			String key = ContentDigest.sha256Hex(content);
+			written.put(key, content);
+			return key;
+		});
+		ContentStores contentStores = new ContentStores();
+		contentStores.stores = Arrays.asList(store);
+		contentStores.type = DatabaseContentStore.NAME;
+		contentStores.init();
+		archiveService.contentStores = contentStores;
+
+		when(repository.insertImages(any())).thenAnswer(invocation -> ((List<?>) invocation.getArgument(0)).size());
+
+		doAnswer(invocation -> {
+			ImageRowHandler handler = invocation.getArgument(0);
+			Image image = new Image();
+			image.setName("image1");
+			image.setVersion(3L);
+			image.setType("image/png");
+			image.setDescription("first");
+			image.setImage("");
+			image.setSize((long) CONTENT1.length);
+			image.setLastModified(Instant.parse("2020-01-02T03:04:05Z"));
+			image.setContentStore(DatabaseContentStore.NAME);
+			image.setContentKey(ContentDigest.sha256Hex(CONTENT1));
+			image.setContentHash(ContentDigest.sha256Hex(CONTENT1));
+			handler.handle(image, new ByteArrayInputStream(CONTENT1));
+			image = new Image();
+			image.setName("image2");
+			image.setType("image/jpeg");
+			image.setDescription("second, still base64");
+			image.setImage(Base64.getEncoder().encodeToString(CONTENT2));
+			handler.handle(image, null);
+			return 2;
+		}).when(repository).exportImages(any());
+
+	}
+
+	private byte[] export() throws IOException {
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		assertEquals(2, archiveService.exportImages(archive));
+		return archive.toByteArray();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void exportedArchiveImportsTheSameImages() throws IOException {
+
+		ImageImportResult result = archiveService.importImages(new ByteArrayInputStream(export()));
+
+		assertEquals(2, result.getImported());
+		assertEquals(0, result.getSkipped());
+		ArgumentCaptor<List<Image>> inserted = ArgumentCaptor.forClass(List.class);
+		verify(repository).insertImages(inserted.capture());
+		Image image1 = inserted.getValue().get(0);
+		assertEquals("image1", image1.getName());
+		assertEquals(Long.valueOf(0), image1.getVersion());
+		assertEquals("image/png", image1.getType());
+		assertEquals("first", image1.getDescription());
+		assertEquals(Instant.parse("2020-01-02T03:04:05Z"), image1.getLastModified());
+		assertEquals(Long.valueOf(CONTENT1.length), image1.getSize());
+		assertEquals(ContentDigest.sha256Hex(CONTENT1), image1.getContentKey());
+		Image image2 = inserted.getValue().get(1);
+		assertEquals("image2", image2.getName());
+		assertEquals("", image2.getImage());
+		assertArrayEquals(CONTENT2, written.get(image2.getContentKey()));
+		verify(repository).acquireSharedContent(ContentDigest.sha256Hex(CONTENT1), DatabaseContentStore.NAME, CONTENT1.length);
+		verify(repository).acquireSharedContent(ContentDigest.sha256Hex(CONTENT2), DatabaseContentStore.NAME, CONTENT2.length);
+		verify(searchIndex, times(2)).put(any());
+		verify(variantService, times(2)).schedule(any());
+		verify(changeLog, times(2)).record(any());
+		verify(nameFilter).add("image1");
+		verify(nameFilter).add("image2");
+
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void importSkipsExistingNames() throws IOException {
+
+		when(repository.findNamesIn(any())).thenReturn(Arrays.asList("image1"));
+
+		ImageImportResult result = archiveService.importImages(new ByteArrayInputStream(export()));
+
+		assertEquals(1, result.getImported());
+		assertEquals(1, result.getSkipped());
+		ArgumentCaptor<List<Image>> inserted = ArgumentCaptor.forClass(List.class);
+		verify(repository).insertImages(inserted.capture());
+		assertEquals(1, inserted.getValue().size());
+		assertEquals("image2", inserted.getValue().get(0).getName());
+		verify(repository, never()).acquireSharedContent(eq(ContentDigest.sha256Hex(CONTENT1)), any(), anyLong());
+
+	}
+
+	@Test
+	public void importInsertsOneBatchAtATime() throws IOException {
+
+		archiveService.batchSize = 1;
+
+		ImageImportResult result = archiveService.importImages(new ByteArrayInputStream(export()));
+
+		assertEquals(2, result.getImported());
+		verify(repository, times(2)).insertImages(any());
+		verify(transactionManager, times(2)).commit(any());
+
+	}
+
+	@Test
+	public void importRejectsArchiveWithoutManifest() throws IOException {
+
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(archive)) {
+			zip.putNextEntry(new ZipEntry("images/0.json"));
+			zip.write("{}".getBytes());
+		}
+
+		try {
+			archiveService.importImages(new ByteArrayInputStream(archive.toByteArray()));
+			fail("Expected ResponseStatusException");
+		} catch (ResponseStatusException e) {
+			assertEquals(HttpStatus.BAD_REQUEST, e.getStatus());
+		}
+		verify(repository, never()).insertImages(any());
+
+	}
+
+	@Test
+	public void importRejectsImageNotMatchingItsHash() throws IOException {
+
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(archive)) {
+			zip.putNextEntry(new ZipEntry(ImageArchiveService.MANIFEST));
+			zip.write("{\"format\":1}".getBytes());
+			zip.putNextEntry(new ZipEntry("images/0.json"));
+			zip.write(("{\"name\":\"image1\",\"type\":\"image/png\",\"description\":\"first\",\"contentHash\":\"" + ContentDigest.sha256Hex(CONTENT2) + "\"}").getBytes());
+			zip.putNextEntry(new ZipEntry("images/0.bin"));
+			zip.write(CONTENT1);
+		}
+
+		try {
+			archiveService.importImages(new ByteArrayInputStream(archive.toByteArray()));
+			fail("Expected ResponseStatusException");
+		} catch (ResponseStatusException e) {
+			assertEquals(HttpStatus.BAD_REQUEST, e.getStatus());
+		}
+		verify(repository, never()).insertImages(any());
+
+	}
+
+}
@@ -0,0 +1,79 @@
+package com.burgershopproject.imageserver.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.burgershopproject.imageserver.models.Image;
+
+public class TestImageCache {
+
+	private ImageCache cache;
+
+	@Before
+	public void setup() {
+
+		cache = new ImageCache();
+		cache.maxBytes = 4096;
+		cache.init();
+
+	}
+
+	private Image image(String name, Long version, int size) {
+		Image image = new Image();
+		image.setName(name);
+		image.setVersion(version);
+		image.setType("image/png");
+		image.setDescription(name);
+		image.setContent(new byte[size]);
+		image.setImage("");
+		return image;
+	}
+
+	@Test
+	public void putKeepsNewerVersion() {
+
+		cache.put(image("image1", 2L, 10));
+		cache.put(image("image1", 1L, 10));
+
+		assertEquals(new Long(2), cache.get("image1", name -> null).getVersion());
+
+	}
+
+	@Test
+	public void invalidateOlderVersion() {
+
+		cache.put(image("image1", 1L, 10));
+		cache.invalidate("image1", 1L);
+
+		assertEquals(new Long(1), cache.get("image1", name -> null).getVersion());
+
+		cache.invalidate("image1", 2L);
+
+		assertNull(cache.get("image1", name -> null));
+
+	}
+
+	@Test
+	public void boundedByImageSize() {
+
+		for (int i = 0; i < 10; i++) {
+			cache.put(image("image" + i, 0L, 1024));
+		}
+
+		assertEquals(3, cache.size());
+
+	}
+
+	@Test
+	public void missesAreNotCached() {
+
+		assertNull(cache.get("image1", name -> null));
+
+		assertEquals(0, cache.size());
+
+	}
+
+}
@@ -0,0 +1,261 @@
+package com.burgershopproject.imageserver.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.context.MessageSource;
+import org.springframework.http.HttpStatus;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.burgershopproject.imageserver.models.ImageChange;
+import com.burgershopproject.imageserver.models.ImageChangeEvent;
+import com.burgershopproject.imageserver.repositories.ImageChangeRepository;
+
+public class TestImageChangeFeed {
+
+	@InjectMocks
+	private ImageChangeFeed feed;
+
+	@Mock
+	private MessageSource messageSource;
+
+	@Mock
+	private ImageChangeRepository repository;
+
+	@Mock
+	private ImageChangeLog changeLog;
+
+	private final List<String> cursors = Collections.synchronizedList(new ArrayList<>());
+
+	private volatile boolean closed;
+
+	private final ImageChangeFeed.Sink sink = new ImageChangeFeed.Sink() {
+		@Override
+		public void send(List<ImageChangeEvent> events) {
+			cursors.addAll(events.stream().map(ImageChangeEvent::getCursor).collect(Collectors.toList()));
+		}
+		@Override
+		public void heartbeat() {
+		}
+		@Override
+		public void close() {
+			closed = true;
+		}
+	};
+
+	@Before
+	public void setup() {
+
+		MockitoAnnotations.initMocks(this);
+
+		feed.transactionManager = mock(PlatformTransactionManager.class);
+		feed.maxSubscribers = 10;
+		feed.bufferSize = 100;
+		feed.batchSize = 2;
+		feed.threads = 1;
+		feed.queueSize = 4;
+		feed.writeTimeoutMillis = 30000;
+		feed.init();
+
+		when(changeLog.isEnabled()).thenReturn(true);
+		when(changeLog.getFirstId()).thenReturn(5L);
+		publish(5);
+
+	}
+
+	@After
+	public void shutdown() {
+
+		feed.shutdown();
+
+	}
+
+	private static ImageChange change(long id) {
+		ImageChange change = new ImageChange("image" + id, 1L, "image/png", null, Instant.now());
+		change.setId(id);
+		return change;
+	}
+
+	private void publish(long safeId, long... ids) {
+		when(changeLog.getSafeId()).thenReturn(safeId);
+		feed.publish(Arrays.stream(ids).mapToObj(TestImageChangeFeed::change).collect(Collectors.toList()));
+	}
+
+	private static void await(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void subscriberWithoutCursorIsSentNewChanges() throws InterruptedException {
+
+		feed.subscribe(null, sink);
+		publish(7, 6, 7);
+
+		await(() -> cursors.size() == 2);
+		assertEquals(Arrays.asList("6", "7"), cursors);
+		verify(repository, never()).findBetween(anyLong(), anyLong(), any());
+
+	}
+
+	@Test
+	public void subscriberBehindReadsLogThenHeldChanges() throws InterruptedException {
+
+		publish(6, 6);
+		when(repository.findFirstId()).thenReturn(1L);
+		when(repository.findBetween(eq(2L), eq(6L), any())).thenReturn(Arrays.asList(change(3), change(4)));
+		when(repository.findBetween(eq(4L), eq(6L), any())).thenReturn(Collections.singletonList(change(5)));
+
+		feed.subscribe("2", sink);
+
+		await(() -> cursors.size() == 4);
+		assertEquals(Arrays.asList("3", "4", "5", "6"), cursors);
+
+	}
+
+	@Test
+	public void changesAfterSkippedIdAreHeldBack() throws InterruptedException {
+
+		ImageChangeFeed.Subscription subscription = feed.subscribe(null, sink);
+		publish(6, 6, 8);
+
+		await(() -> subscription.getCursor() == 6);
+		assertEquals(Arrays.asList("6"), cursors);
+
+		publish(8, 7);
+
+		await(() -> cursors.size() == 3);
+		assertEquals(Arrays.asList("6", "7", "8"), cursors);
+
+	}
+
+	@Test
+	public void expiredCursorIsGone() {
+
+		when(repository.findFirstId()).thenReturn(10L);
+
+		try {
+			feed.subscribe("5", sink);
+			fail("Expected ResponseStatusException");
+		} catch (ResponseStatusException e) {
+			assertEquals(HttpStatus.GONE, e.getStatus());
+		}
+
+		try {
+			feed.subscribe("next", sink);
+			fail("Expected ResponseStatusException");
+		} catch (ResponseStatusException e) {
+			assertEquals(HttpStatus.BAD_REQUEST, e.getStatus());
+		}
+
+	}
+
+	@Test
+	public void disabledChangeLogIsNotFound() {
+
+		when(changeLog.isEnabled()).thenReturn(false);
+
+		try {
+			feed.subscribe(null, sink);
+			fail("Expected ResponseStatusException");
+		} catch (ResponseStatusException e) {
+			assertEquals(HttpStatus.NOT_FOUND, e.getStatus());
+		}
+		assertEquals(0, feed.getSubscribers());
+
+	}
+
+	@Test
+	public void failedSubscriberIsDropped() throws InterruptedException {
+
+		feed.subscribe(null, new ImageChangeFeed.Sink() {
+			@Override
+			public void send(List<ImageChangeEvent> events) throws IOException {
+				throw new IOException("Broken pipe");
+			}
+			@Override
+			public void heartbeat() {
+			}
+			@Override
+			public void close() {
+				closed = true;
+			}
+		});
+		assertEquals(1, feed.getSubscribers());
+
+		publish(6, 6);
+
+		await(() -> closed);
+		assertEquals(0, feed.getSubscribers());
+
+	}
+
+	@Test
+	public void stalledSubscriberDoesNotHoldUpOthersAndIsDropped() throws InterruptedException {
+
+		CountDownLatch stalled = new CountDownLatch(1);
+		List<String> stalledCursors = Collections.synchronizedList(new ArrayList<>());
+		ImageChangeFeed.Subscription subscription = feed.subscribe(null, new ImageChangeFeed.Sink() {
+			@Override
+			public void send(List<ImageChangeEvent> events) throws IOException {
+				try {
+					stalled.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				stalledCursors.addAll(events.stream().map(ImageChangeEvent::getCursor).collect(Collectors.toList()));
+			}
+			@Override
+			public void heartbeat() {
+			}
+			@Override
+			public void close() {
+				closed = true;
+			}
+		});
+		feed.subscribe(null, sink);
+
+		publish(11, 6, 7, 8, 9, 10, 11);
+
+		await(() -> cursors.size() == 6);
+		assertEquals(Arrays.asList("6", "7", "8", "9", "10", "11"), cursors);
+		assertEquals(5, subscription.getCursor());
+
+		feed.writeTimeoutMillis = 0;
+		Thread.sleep(5);
+		feed.heartbeat();
+
+		assertEquals(1, feed.getSubscribers());
+		stalled.countDown();
+		await(() -> closed);
+		assertEquals(Arrays.asList("6", "7"), stalledCursors);
+
+	}
+
+}
@@ -0,0 +1,162 @@
+package com.burgershopproject.imageserver.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageChange;
+import com.burgershopproject.imageserver.models.ImageSummary;
+import com.burgershopproject.imageserver.repositories.ImageChangeRepository;
+import com.burgershopproject.imageserver.repositories.ImageRepository;
+
+public class TestImageChangeLog {
+
+	@InjectMocks
+	private ImageChangeLog changeLog;
+
+	@Mock
+	private ImageChangeRepository repository;
+
+	@Mock
+	private ImageRepository imageRepository;
+
+	@Mock
+	private ImageVariantService variantService;
+
+	@Mock
+	private ImageSearchIndex searchIndex;
+
+	@Mock
+	private ImageNameFilter nameFilter;
+
+	private ImageCache cache;
+
+	@Before
+	public void setup() {
+
+		MockitoAnnotations.initMocks(this);
+
+		cache = new ImageCache();
+		cache.maxBytes = 4096;
+		cache.init();
+		changeLog.cache = cache;
+		changeLog.transactionManager = mock(PlatformTransactionManager.class);
+		changeLog.enabled = true;
+		changeLog.batchSize = 10;
+		changeLog.gapTimeoutMillis = 60000;
+		changeLog.maxGaps = 100;
+
+		when(repository.findLastId()).thenReturn(5L);
+		when(repository.findAfter(anyLong(), any())).thenReturn(Collections.emptyList());
+		when(repository.findByIdIn(anyCollection())).thenReturn(Collections.emptyList());
+		when(imageRepository.findSummariesByNameIn(anyCollection())).thenReturn(Collections.emptyList());
+
+	}
+
+	private static ImageChange change(long id, String name, Long version) {
+		ImageChange change = new ImageChange(name, version, "image/png", null, Instant.now());
+		change.setId(id);
+		return change;
+	}
+
+	private static Image image(String name, Long version) {
+		Image image = new Image();
+		image.setName(name);
+		image.setVersion(version);
+		image.setContent(new byte[10]);
+		image.setImage("");
+		return image;
+	}
+
+	@Test
+	public void firstPollStartsAtEndOfLog() {
+
+		assertEquals(0, changeLog.poll());
+
+		assertEquals(5, changeLog.getLastId());
+		assertEquals(5, changeLog.getSafeId());
+		verify(repository, never()).findAfter(anyLong(), any());
+		verify(nameFilter).follow();
+
+	}
+
+	@Test
+	public void pollDropsCachedCopiesOlderThanChanges() {
+
+		changeLog.poll();
+		cache.put(image("image1", 1L));
+		cache.put(image("image2", 5L));
+		ImageSummary summary = mock(ImageSummary.class);
+		when(repository.findAfter(eq(5L), any())).thenReturn(Arrays.asList(change(6, "image1", 2L), change(7, "image2", 3L)));
+		when(imageRepository.findSummariesByNameIn(anyCollection())).thenReturn(Collections.singletonList(summary));
+
+		assertEquals(2, changeLog.poll());
+
+		assertNull(cache.getIfPresent("image1"));
+		assertEquals(new Long(5), cache.getIfPresent("image2").getVersion());
+		assertEquals(7, changeLog.getLastId());
+		verify(variantService).invalidate("image1");
+		verify(nameFilter).add("image1");
+		verify(searchIndex).refresh(summary);
+
+	}
+
+	@Test
+	public void skippedIdsAreAppliedOnceCommitted() {
+
+		changeLog.poll();
+		cache.put(image("image1", 1L));
+		when(repository.findAfter(eq(5L), any())).thenReturn(Collections.singletonList(change(7, "image2", 1L)));
+
+		assertEquals(1, changeLog.poll());
+		assertEquals(1, changeLog.getGaps());
+		assertEquals(5, changeLog.getSafeId());
+		assertEquals(new Long(1), cache.getIfPresent("image1").getVersion());
+
+		when(repository.findByIdIn(Collections.singletonList(6L))).thenReturn(Collections.singletonList(change(6, "image1", 2L)));
+
+		assertEquals(1, changeLog.poll());
+		assertEquals(0, changeLog.getGaps());
+		assertEquals(7, changeLog.getSafeId());
+		assertNull(cache.getIfPresent("image1"));
+		verify(repository).findAfter(eq(7L), any());
+
+	}
+
+	@Test
+	public void skippedIdsExpire() throws InterruptedException {
+
+		changeLog.gapTimeoutMillis = 0;
+		changeLog.poll();
+		when(repository.findAfter(eq(5L), any())).thenReturn(Collections.singletonList(change(8, "image1", 1L)));
+
+		changeLog.poll();
+		assertEquals(2, changeLog.getGaps());
+
+		Thread.sleep(5);
+		changeLog.poll();
+
+		assertEquals(0, changeLog.getGaps());
+
+	}
+
+}
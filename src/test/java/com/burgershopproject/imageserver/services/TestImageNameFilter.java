@@ -0,0 +1,177 @@
+package com.burgershopproject.imageserver.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.burgershopproject.imageserver.repositories.ImageRepository;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class TestImageNameFilter {
+
+	@InjectMocks
+	private ImageNameFilter nameFilter;
+
+	@Mock
+	private ImageRepository repository;
+
+	@Before
+	public void setup() {
+
+		MockitoAnnotations.initMocks(this);
+
+		nameFilter.transactionManager = mock(PlatformTransactionManager.class);
+		nameFilter.enabled = true;
+		nameFilter.expectedNames = 1000;
+		nameFilter.falsePositiveRate = 0.01;
+		nameFilter.batchSize = 2;
+		nameFilter.negativeTtlMillis = 60000;
+		nameFilter.negativeMaxNames = 100;
+		nameFilter.init();
+		nameFilter.follow();
+
+	}
+
+	@Test
+	public void everyNameMightExistUntilBuilt() {
+
+		assertFalse(nameFilter.isReady());
+		assertTrue(nameFilter.mightExist("image1"));
+
+	}
+
+	@Test
+	public void buildReadsNamesInBatches() {
+
+		when(repository.findNamesAfter(eq(""), any())).thenReturn(Arrays.asList("image1", "image2"));
+		when(repository.findNamesAfter(eq("image2"), any())).thenReturn(Arrays.asList("image3"));
+		when(repository.findNamesAfter(eq("image3"), any())).thenReturn(Collections.emptyList());
+
+		assertEquals(3, nameFilter.build());
+
+		assertTrue(nameFilter.isReady());
+		assertTrue(nameFilter.mightExist("image1"));
+		assertTrue(nameFilter.mightExist("image2"));
+		assertTrue(nameFilter.mightExist("image3"));
+		assertFalse(nameFilter.mightExist("image4"));
+
+	}
+
+	@Test
+	public void addedNamesMightExist() {
+
+		nameFilter.build();
+		nameFilter.recordMiss("image1");
+		assertFalse(nameFilter.mightExist("image1"));
+
+		nameFilter.add("image1");
+
+		assertTrue(nameFilter.mightExist("image1"));
+
+	}
+
+	@Test
+	public void missesAreRemembered() {
+
+		nameFilter.recordMiss("image1");
+
+		assertFalse(nameFilter.mightExist("image1"));
+		assertTrue(nameFilter.mightExist("image2"));
+
+	}
+
+	@Test
+	public void disabledLetsEveryNameThrough() {
+
+		nameFilter.enabled = false;
+		nameFilter.recordMiss("image1");
+
+		assertTrue(nameFilter.mightExist("image1"));
+
+	}
+
+	@Test
+	public void everyNameMightExistUntilChangeLogFollowed() throws InterruptedException {
+
+		ImageNameFilter unfollowed = new ImageNameFilter();
+		unfollowed.repository = repository;
+		unfollowed.transactionManager = nameFilter.transactionManager;
+		unfollowed.enabled = true;
+		unfollowed.expectedNames = 1000;
+		unfollowed.falsePositiveRate = 0.01;
+		unfollowed.batchSize = 2;
+		unfollowed.negativeTtlMillis = 60000;
+		unfollowed.negativeMaxNames = 100;
+		unfollowed.init();
+		when(repository.findNamesAfter(eq(""), any())).thenReturn(Arrays.asList("image1"));
+		when(repository.findNamesAfter(eq("image1"), any())).thenReturn(Collections.emptyList());
+
+		unfollowed.build();
+		unfollowed.recordMiss("image2");
+
+		assertTrue(unfollowed.mightExist("image2"));
+		assertTrue(unfollowed.mightExist("image3"));
+
+		unfollowed.follow();
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (unfollowed.mightExist("image3") && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertFalse(unfollowed.mightExist("image3"));
+		assertTrue(unfollowed.mightExist("image1"));
+
+	}
+
+	@Test
+	public void falsePositiveRateIsNearTarget() {
+
+		ImageNameFilter.Bloom bloom = new ImageNameFilter.Bloom(10000, 0.01);
+		for (int i = 0; i < 10000; i++) {
+			bloom.add("image" + i);
+		}
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			assertTrue(bloom.mightContain("image" + i));
+			if (bloom.mightContain("missing" + i)) {
+				falsePositives++;
+			}
+		}
+
+		assertTrue("False positives " + falsePositives, falsePositives < 200);
+		assertEquals(0.01, bloom.falsePositiveRate(), 0.005);
+
+	}
+
+	@Test
+	public void metricsArePublished() {
+
+		MeterRegistry registry = new SimpleMeterRegistry();
+		nameFilter.bindTo(registry);
+		nameFilter.build();
+		nameFilter.add("image1");
+		nameFilter.mightExist("image2");
+
+		assertEquals(1, registry.get("image.name.filter.names").gauge().value(), 0);
+		assertTrue(registry.get("image.name.filter.bits").gauge().value() > 0);
+		assertEquals(1, registry.get("image.name.filter.lookups").tag("result", "rejected").functionCounter().count(), 0);
+
+	}
+
+}
@@ -0,0 +1,216 @@
+package com.burgershopproject.imageserver.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.context.MessageSource;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageRendition;
+import com.burgershopproject.imageserver.models.RenditionParameters;
+
+public class TestImageRenditionService {
+
+	@InjectMocks
+	private ImageRenditionService renditionService;
+
+	@Mock
+	private MessageSource messageSource;
+
+	private Image image;
+
+	@Rule
+	public final ExpectedException exception = ExpectedException.none();
+
+	@Before
+	public void setup() throws Exception {
+
+		MockitoAnnotations.initMocks(this);
+
+		renditionService.threads = 1;
+		renditionService.queueSize = 4;
+		renditionService.timeoutMs = 10000;
+		renditionService.maxDimension = 1024;
+		renditionService.maxBytes = 1024 * 1024;
+		renditionService.maxSourcePixels = 1000 * 1000;
+		renditionService.init();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(400, 200, BufferedImage.TYPE_INT_ARGB), "png", out);
+
+		image = new Image();
+		image.setName("image1");
+		image.setVersion(1L);
+		image.setType("image/png");
+		image.setImage(Base64.getEncoder().encodeToString(out.toByteArray()));
+
+	}
+
+	@After
+	public void teardown() {
+		renditionService.shutdown();
+	}
+
+	private BufferedImage read(ImageRendition rendition) throws Exception {
+		return ImageIO.read(new ByteArrayInputStream(rendition.getContent()));
+	}
+
+	@Test
+	public void parametersNoneRequested() {
+
+		assertNull(renditionService.parameters(null, null, "cover", null));
+
+	}
+
+	@Test
+	public void parametersDefaults() {
+
+		RenditionParameters parameters = renditionService.parameters(64, null, null, "JPG");
+
+		assertEquals("contain", parameters.getFit());
+		assertEquals("jpeg", parameters.getFormat());
+
+	}
+
+	@Test
+	public void parametersInvalidSize() {
+
+		exception.expect(ResponseStatusException.class);
+
+		renditionService.parameters(0, 64, null, null);
+
+	}
+
+	@Test
+	public void parametersInvalidFit() {
+
+		exception.expect(ResponseStatusException.class);
+
+		renditionService.parameters(64, 64, "stretch", null);
+
+	}
+
+	@Test
+	public void parametersInvalidFormat() {
+
+		exception.expect(ResponseStatusException.class);
+
+		renditionService.parameters(64, 64, null, "webp");
+
+	}
+
+	@Test
+	public void renditionKeepsAspectRatio() throws Exception {
+
+		ImageRendition rendition = renditionService.getRendition(image, renditionService.parameters(100, null, null, null));
+		BufferedImage result = read(rendition);
+
+		assertEquals("image/png", rendition.getType());
+		assertEquals(100, result.getWidth());
+		assertEquals(50, result.getHeight());
+
+	}
+
+	@Test
+	public void renditionContain() throws Exception {
+
+		BufferedImage result = read(renditionService.getRendition(image, renditionService.parameters(100, 100, "contain", null)));
+
+		assertEquals(100, result.getWidth());
+		assertEquals(50, result.getHeight());
+
+	}
+
+	@Test
+	public void renditionCoverJpeg() throws Exception {
+
+		ImageRendition rendition = renditionService.getRendition(image, renditionService.parameters(100, 100, "cover", "jpeg"));
+		BufferedImage result = read(rendition);
+
+		assertEquals("image/jpeg", rendition.getType());
+		assertEquals(100, result.getWidth());
+		assertEquals(100, result.getHeight());
+
+	}
+
+	@Test
+	public void renditionExtremeAspectRatio() throws Exception {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(1000, 2, BufferedImage.TYPE_INT_ARGB), "png", out);
+		image.setImage(Base64.getEncoder().encodeToString(out.toByteArray()));
+
+		BufferedImage result = read(renditionService.getRendition(image, renditionService.parameters(100, 100, "cover", null)));
+
+		assertEquals(100, result.getWidth());
+		assertEquals(100, result.getHeight());
+
+		try {
+			renditionService.getRendition(image, renditionService.parameters(null, 1024, null, null));
+			fail("Expected ResponseStatusException");
+		} catch (ResponseStatusException e) {
+			assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, e.getStatus());
+		}
+
+	}
+
+	@Test
+	public void renditionCachedPerVersion() throws Exception {
+
+		RenditionParameters parameters = renditionService.parameters(64, 64, "fill", null);
+
+		ImageRendition rendition = renditionService.getRendition(image, parameters);
+
+		assertSame(rendition, renditionService.getRendition(image, parameters));
+
+		image.setVersion(2L);
+
+		assertEquals(64, read(renditionService.getRendition(image, parameters)).getWidth());
+
+	}
+
+	@Test
+	public void renditionUnreadableImage() throws Exception {
+
+		image.setImage(Base64.getEncoder().encodeToString(new byte[] {1, 2, 3}));
+
+		exception.expect(ResponseStatusException.class);
+
+		renditionService.getRendition(image, renditionService.parameters(64, 64, null, null));
+
+	}
+
+	@Test
+	public void renditionImageTooLargeToDecode() throws Exception {
+
+		renditionService.maxSourcePixels = 400 * 200 - 1;
+
+		try {
+			renditionService.getRendition(image, renditionService.parameters(64, 64, null, null));
+			fail("Expected ResponseStatusException");
+		} catch (ResponseStatusException e) {
+			assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, e.getStatus());
+		}
+
+	}
+
+}
@@ -0,0 +1,169 @@
+package com.burgershopproject.imageserver.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.projection.SpelAwareProxyProjectionFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageSummary;
+import com.burgershopproject.imageserver.repositories.ImageRepository;
+
+public class TestImageSearchIndex {
+
+	private ImageSearchIndex index;
+
+	@Before
+	public void setup() {
+
+		index = new ImageSearchIndex();
+
+	}
+
+	private ImageSummary summary(String name, Long version, String description) {
+		Image image = new Image();
+		image.setName(name);
+		image.setVersion(version);
+		image.setType("image/png");
+		image.setDescription(description);
+		return new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, image);
+	}
+
+	private List<String> names(String query) {
+		return index.search(query, 0, 100).getSummaries().stream().map(ImageSummary::getName).collect(Collectors.toList());
+	}
+
+	@Test
+	public void matchesEveryTerm() {
+
+		index.put(summary("cheese-burger", 0L, "Double cheese burger with bacon"));
+		index.put(summary("veggie-burger", 0L, "Vegan burger, no cheese"));
+		index.put(summary("fries", 0L, "Salted fries"));
+
+		assertEquals(Arrays.asList("cheese-burger", "veggie-burger"), names("burger"));
+		assertEquals(Arrays.asList("cheese-burger", "veggie-burger"), names("Cheese BURGER"));
+		assertEquals(Arrays.asList("cheese-burger"), names("bacon burger"));
+		assertEquals(Collections.emptyList(), names("bacon fries"));
+		assertEquals(Collections.emptyList(), names(""));
+
+	}
+
+	@Test
+	public void matchesPrefix() {
+
+		index.put(summary("cheese-burger", 0L, "Double cheese burger"));
+		index.put(summary("burrito", 0L, "Bean burrito"));
+		index.put(summary("fries", 0L, "Salted fries"));
+
+		assertEquals(Collections.emptyList(), names("bur"));
+		assertEquals(Arrays.asList("burrito", "cheese-burger"), names("bur*"));
+		assertEquals(Arrays.asList("burrito"), names("bur* bean"));
+		assertEquals(Collections.emptyList(), names("*"));
+
+	}
+
+	@Test
+	public void pagesHitsInNameOrder() {
+
+		for (int i = 9; i >= 0; i--) {
+			index.put(summary("image" + i, 0L, "burger"));
+		}
+
+		ImageSearchIndex.Hits hits = index.search("burger", 3, 4);
+
+		assertEquals(10, hits.getTotal());
+		assertEquals(Arrays.asList("image3", "image4", "image5", "image6"),
+				hits.getSummaries().stream().map(ImageSummary::getName).collect(Collectors.toList()));
+		assertEquals(10, index.search("burger", 20, 4).getTotal());
+		assertEquals(Collections.emptyList(), index.search("burger", 20, 4).getSummaries());
+		assertEquals(Collections.emptyList(), index.search("burger", 0, 0).getSummaries());
+
+	}
+
+	@Test
+	public void replaceRemovesOldTerms() {
+
+		index.put(summary("image1", 0L, "red square"));
+		index.put(summary("image1", 1L, "blue circle"));
+
+		assertEquals(Collections.emptyList(), names("red"));
+		assertEquals(Arrays.asList("image1"), names("blue"));
+		assertEquals(1, index.size());
+
+	}
+
+	@Test
+	public void keepsNewerVersion() {
+
+		index.put(summary("image1", 2L, "blue circle"));
+		index.add(summary("image1", 1L, "red square"), true);
+		index.add(summary("image1", 2L, "green square"), false);
+
+		assertEquals(Arrays.asList("image1"), names("blue"));
+		assertEquals(Collections.emptyList(), names("square"));
+
+	}
+
+	@Test
+	public void compactsReplacedImages() {
+
+		for (int version = 0; version < 3000; version++) {
+			index.put(summary("image1", (long) version, "version" + version));
+			index.put(summary("image2", (long) version, "version" + version));
+		}
+
+		assertEquals(2, index.size());
+		assertEquals(Arrays.asList("image1", "image2"), names("version2999"));
+		assertEquals(Collections.emptyList(), names("version1"));
+
+	}
+
+	@Test
+	public void buildReadsAllImages() {
+
+		ImageRepository repository = mock(ImageRepository.class);
+		when(repository.findSummariesAfter(eq("name"), anyBoolean(), isNull(), isNull(), anyInt()))
+				.thenReturn(Arrays.asList(summary("image1", 0L, "red square"), summary("image2", 0L, "blue square")));
+		when(repository.findSummariesAfter(eq("name"), anyBoolean(), eq("image2"), eq("image2"), anyInt()))
+				.thenReturn(Arrays.asList(summary("image3", 0L, "red circle")));
+		when(repository.findSummariesAfter(eq("name"), anyBoolean(), eq("image3"), eq("image3"), anyInt()))
+				.thenReturn(Collections.emptyList());
+		index.repository = repository;
+		index.transactionManager = mock(PlatformTransactionManager.class);
+		index.batchSize = 2;
+
+		assertFalse(index.isReady());
+
+		index.build();
+
+		assertTrue(index.isReady());
+		assertEquals(3, index.size());
+		assertEquals(Arrays.asList("image1", "image3"), names("red"));
+
+	}
+
+	@Test
+	public void tokenize() {
+
+		assertEquals(Arrays.asList("cheese", "burger", "2020", "bur*"), ImageSearchIndex.tokenize("Cheese-Burger, #2020 BUR*"));
+		assertEquals(Collections.emptyList(), ImageSearchIndex.tokenize(null));
+		assertEquals(Collections.emptyList(), ImageSearchIndex.tokenize(" - "));
+
+	}
+
+}
@@ -3,12 +3,36 @@ package com.burgershopproject.imageserver.services;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.hasItems;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import org.hibernate.StaleObjectStateException;
 import org.hibernate.exception.ConstraintViolationException;
@@ -17,9 +41,11 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.MessageSource;
@@ -28,15 +54,24 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.SliceImpl;
 import org.springframework.data.domain.Sort;
+import org.springframework.data.projection.SpelAwareProxyProjectionFactory;
+import org.springframework.http.HttpStatus;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.server.ResponseStatusException;
 
 import com.burgershopproject.imageserver.ImageServerApplication;
 import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageBatchItem;
+import com.burgershopproject.imageserver.models.ImageCursor;
 import com.burgershopproject.imageserver.models.ImageDto;
+import com.burgershopproject.imageserver.models.ImageSummary;
 import com.burgershopproject.imageserver.repositories.ImageRepository;
 
 @RunWith(SpringRunner.class)
@@ -59,12 +94,56 @@ public class TestImageService {
 	@Mock
 	private ImageRepository repository;
 	
+	@Spy
+	private ImageCache cache = new ImageCache();
+	
+	@Mock
+	private ContentStore fileSystemStore;
+	
+	@Spy
+	private ImageSearchIndex searchIndex = new ImageSearchIndex();
+	
+	@Mock
+	private ImageVariantService variantService;
+	
+	@Spy
+	private ImageNameFilter nameFilter = new ImageNameFilter();
+	
+	@Mock
+	private ImageChangeLog changeLog;
+	
+	@Mock
+	private PlatformTransactionManager transactionManager;
+	
+	private ContentStores contentStores;
+	
 	
 	@Before
 	public void setup() {
 		
 		MockitoAnnotations.initMocks(this);
 		
+		cache.maxBytes = 1024 * 1024;
+		cache.init();
+		
+		nameFilter.enabled = true;
+		nameFilter.expectedNames = 100;
+		nameFilter.falsePositiveRate = 0.01;
+		nameFilter.batchSize = 10;
+		nameFilter.negativeTtlMillis = 60000;
+		nameFilter.negativeMaxNames = 100;
+		nameFilter.init();
+		nameFilter.follow();
+		
+		DatabaseContentStore databaseStore = new DatabaseContentStore();
+		databaseStore.repository = repository;
+		when(fileSystemStore.getName()).thenReturn(FileSystemContentStore.NAME);
+		contentStores = new ContentStores();
+		contentStores.stores = Arrays.asList(databaseStore, fileSystemStore);
+		contentStores.type = DatabaseContentStore.NAME;
+		contentStores.init();
+		service.contentStores = contentStores;
+		
 		images = new ArrayList<>();
 		
 		Image image = new Image();
@@ -106,7 +185,7 @@ public class TestImageService {
 		
 		when(repository.findAll(pageable)).thenReturn(page);
 		
-		ImageDto returnedImageDto = service.getImages(0, 20, "name", "DESC");
+		ImageDto<Image> returnedImageDto = service.getImages(0, 20, "name", "DESC", null, null);
 		
         assertEquals(new Integer(0), returnedImageDto.getOffset());
         assertEquals(new Integer(20), returnedImageDto.getLimit());
@@ -132,6 +211,139 @@ public class TestImageService {
 		
 	}
 	
+	@Test
+	public void getImageSummariesSucceeds() throws Exception {
+		
+		Pageable pageable = PageRequest.of(1, 5, Sort.by(Sort.Direction.ASC, "type", "name"));
+		List<ImageSummary> summaries = new ArrayList<>();
+		images.forEach(image -> summaries.add(new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, image)));
+		Page<ImageSummary> page = new PageImpl<>(summaries, pageable, 8L);
+		
+		when(repository.findAllProjectedBy(pageable)).thenReturn(page);
+		
+		ImageDto<ImageSummary> returnedImageDto = service.getImageSummaries(1, 5, "type", "asc", null, null);
+		
+        assertEquals(new Integer(1), returnedImageDto.getOffset());
+        assertEquals(new Integer(5), returnedImageDto.getLimit());
+        assertEquals(new Integer(8), returnedImageDto.getTotalCount());
+        assertEquals(3, returnedImageDto.getImages().size());
+        assertEquals("image1", returnedImageDto.getImages().get(0).getName());
+        assertEquals("/image/image1/content", returnedImageDto.getImages().get(0).getContentUrl());
+		
+	}
+	
+	@Test
+	public void getImageSummariesWithoutCount() throws Exception {
+		
+		Pageable pageable = PageRequest.of(0, 3, Sort.by(Sort.Direction.ASC, "type", "name"));
+		List<ImageSummary> summaries = new ArrayList<>();
+		images.forEach(image -> summaries.add(new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, image)));
+		
+		when(repository.findSliceProjectedBy(pageable)).thenReturn(new SliceImpl<>(summaries, pageable, true));
+		
+		ImageDto<ImageSummary> returnedImageDto = service.getImageSummaries(0, 3, "type", "ASC", null, false);
+		
+        assertEquals(null, returnedImageDto.getTotalCount());
+        assertEquals(3, returnedImageDto.getImages().size());
+        ImageCursor cursor = ImageCursor.decode(returnedImageDto.getNextCursor());
+        assertEquals("image/gif", cursor.getValue());
+        assertEquals("image3", cursor.getName());
+        verify(repository, never()).findAllProjectedBy(any());
+		
+	}
+	
+	@Test
+	public void getImageSummariesAfterCursor() throws Exception {
+		
+		List<ImageSummary> summaries = new ArrayList<>();
+		images.forEach(image -> summaries.add(new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, image)));
+		String cursor = new ImageCursor("description", "DESC", "image 4", "image4").encode();
+		
+		when(repository.findSummariesAfter("description", true, "image 4", "image4", 3)).thenReturn(summaries);
+		
+		ImageDto<ImageSummary> returnedImageDto = service.getImageSummaries(0, 2, "description", "desc", cursor, null);
+		
+        assertEquals(null, returnedImageDto.getOffset());
+        assertEquals(null, returnedImageDto.getTotalCount());
+        assertEquals(2, returnedImageDto.getImages().size());
+        ImageCursor nextCursor = ImageCursor.decode(returnedImageDto.getNextCursor());
+        assertEquals("image2", nextCursor.getValue());
+        assertEquals("image2", nextCursor.getName());
+        verify(repository, never()).count();
+		
+	}
+	
+	@Test
+	public void getImagesAfterCursorLastPage() throws Exception {
+		
+		String cursor = new ImageCursor("name", "ASC", "image0", "image0").encode();
+		
+		when(repository.findImagesAfter("name", false, "image0", "image0", 21)).thenReturn(images);
+		when(repository.count()).thenReturn(4L);
+		
+		ImageDto<Image> returnedImageDto = service.getImages(0, 20, "name", "ASC", cursor, true);
+		
+        assertEquals(new Integer(4), returnedImageDto.getTotalCount());
+        assertEquals(3, returnedImageDto.getImages().size());
+        assertEquals(null, returnedImageDto.getNextCursor());
+		
+	}
+	
+	@Test
+	public void getImageSummariesFailsCursorForOtherSort() throws Exception {
+		
+		String cursor = new ImageCursor("name", "ASC", "image1", "image1").encode();
+		
+		try {
+			service.getImageSummaries(0, 20, "type", "ASC", cursor, null);
+			fail();
+		} catch (ResponseStatusException e) {
+			assertEquals(HttpStatus.BAD_REQUEST, e.getStatus());
+		}
+		try {
+			service.getImageSummaries(0, 20, "name", "ASC", "not a cursor", null);
+			fail();
+		} catch (ResponseStatusException e) {
+			assertEquals(HttpStatus.BAD_REQUEST, e.getStatus());
+		}
+		try {
+			service.getImageSummaries(0, 20, "size", "ASC", cursor, null);
+			fail();
+		} catch (ResponseStatusException e) {
+			assertEquals(HttpStatus.BAD_REQUEST, e.getStatus());
+		}
+		
+	}
+	
+	@Test
+	public void searchImagesSucceeds() throws Exception {
+		
+		when(repository.findSummariesAfter(eq("name"), eq(false), any(), any(), anyInt())).thenReturn(new ArrayList<>());
+		searchIndex.repository = repository;
+		searchIndex.transactionManager = mock(PlatformTransactionManager.class);
+		searchIndex.build();
+		images.forEach(image -> searchIndex.put(new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, image)));
+		
+		ImageDto<ImageSummary> returnedImageDto = service.searchImages("IMAGE*", 1, 2);
+		
+		assertEquals(new Integer(images.size()), returnedImageDto.getTotalCount());
+		assertEquals(Arrays.asList("image3"), returnedImageDto.getImages().stream().map(ImageSummary::getName).collect(Collectors.toList()));
+		assertEquals(0, service.searchImages("image1 image2", 0, 20).getImages().size());
+		
+	}
+	
+	@Test
+	public void searchImagesFailsNotReady() throws Exception {
+		
+		try {
+			service.searchImages("image1", 0, 20);
+			fail();
+		} catch (ResponseStatusException e) {
+			assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatus());
+		}
+		
+	}
+	
 	@Test
 	public void getImageByNameSucceeds() throws Exception {
 		
@@ -154,6 +366,144 @@ public class TestImageService {
 		
 	}
 	
+	@Test
+	public void getImageByNameCached() throws Exception {
+		
+		when(repository.findByName("image3")).thenReturn(images.get(2));
+		
+		service.getImageByName("image3");
+		Image returnedImage = service.getImageByName("image3");
+		
+		assertEquals("image3", returnedImage.getName());
+		verify(repository, times(1)).findByName("image3");
+		
+	}
+	
+	@Test
+	public void getImageByNameWaitingForRunningReadTimesOut() throws Exception {
+		
+		CountDownLatch reading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		when(repository.findByName("image3")).thenAnswer(invocation -> {
+			reading.countDown();
+			release.await(10, TimeUnit.SECONDS);
+			return images.get(2);
+		});
+		service.singleFlightTimeoutMs = 50;
+		
+		Thread first = new Thread(() -> service.getImageByName("image3"));
+		first.start();
+		assertTrue(reading.await(10, TimeUnit.SECONDS));
+		try {
+			service.getImageByName("image3");
+			fail("Expected ResponseStatusException");
+		} catch (ResponseStatusException e) {
+			assertEquals(HttpStatus.SERVICE_UNAVAILABLE, e.getStatus());
+		} finally {
+			release.countDown();
+			first.join();
+		}
+		
+		assertEquals("image3", service.getImageByName("image3").getName());
+		verify(repository, times(1)).findByName("image3");
+		
+	}
+	
+	@Test
+	public void replaceImageRefreshesCache() throws Exception {
+		
+		image = new Image();
+		image.setName("image3");
+		image.setVersion(3L);
+		image.setType("image/gif");
+		image.setDescription("image3 replaced");
+		image.setImage("long image blob3");
+		
+		when(repository.findByName("image3")).thenReturn(images.get(2));
+		when(repository.save(image)).thenReturn(image);
+		
+		service.getImageByName("image3");
+		service.replaceImage(image);
+		
+		assertEquals("image3 replaced", service.getImageByName("image3").getDescription());
+		
+	}
+	
+	@Test
+	public void getImageSummaryFromCache() throws Exception {
+		
+		when(repository.findByName("image3")).thenReturn(images.get(2));
+		
+		service.getImageByName("image3");
+		ImageSummary summary = service.getImageSummary("image3");
+		
+		assertEquals("image3", summary.getName());
+		assertEquals(new Long(2), summary.getVersion());
+		verify(repository, never()).findSummaryByName("image3");
+		
+	}
+	
+	@Test
+	public void getImageSummaryNotCached() throws Exception {
+		
+		ImageSummary summary = new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, images.get(2));
+		
+		when(repository.findSummaryByName("image3")).thenReturn(summary);
+		
+		assertEquals(summary, service.getImageSummary("image3"));
+		verify(repository, never()).findByName("image3");
+		
+	}
+	
+	@Test
+	public void getImageByNameRuledOutByNameFilter() throws Exception {
+		
+		nameFilter.transactionManager = transactionManager;
+		nameFilter.repository = repository;
+		when(repository.findNamesAfter(eq(""), any())).thenReturn(Arrays.asList("image1", "image2", "image3"));
+		nameFilter.build();
+		
+		assertEquals(null, service.getImageByName("image9"));
+		assertEquals(null, service.getImageSummary("image9"));
+		verify(repository, never()).findByName("image9");
+		verify(repository, never()).findSummaryByName("image9");
+		
+	}
+	
+	@Test
+	public void getImageByNameNotFoundIsRemembered() throws Exception {
+		
+		when(repository.findByName("image9")).thenReturn(null);
+		
+		assertEquals(null, service.getImageByName("image9"));
+		assertEquals(null, service.getImageByName("image9"));
+		verify(repository, times(1)).findByName("image9");
+		
+	}
+	
+	@Test
+	public void createImageAddsToNameFilter() throws Exception {
+		
+		nameFilter.transactionManager = transactionManager;
+		nameFilter.repository = repository;
+		nameFilter.build();
+		when(repository.findByName("image9")).thenReturn(null);
+		assertEquals(null, service.getImageByName("image9"));
+		
+		image = new Image();
+		image.setName("image9");
+		image.setType("image/png");
+		image.setDescription("image9");
+		image.setImage("AQID");
+		when(repository.save(image)).thenReturn(image);
+		service.createImage(image);
+		cache.invalidate("image9");
+		when(repository.findByName("image9")).thenReturn(image);
+		
+		assertEquals("image9", service.getImageByName("image9").getName());
+		
+	}
+	
 	@Test
 	public void getImageByNameFails() throws Exception {
 		
@@ -187,6 +537,276 @@ public class TestImageService {
         assertEquals("image/gif", returnedImage.getType());
         assertEquals("image3", returnedImage.getDescription());
         assertEquals("long image blob3", returnedImage.getImage());
+        verify(variantService).schedule(any(ImageSummary.class));
+        verify(changeLog).record(argThat(summary -> "image3".equals(summary.getName())));
+        
+	}
+	
+	@Test
+	public void addImageBinaryStorageSucceeds() throws Exception {
+		
+		service.storage = ImageService.BINARY_STORAGE;
+		
+		byte[] bytes = new byte[] {1, 2, 3, 4, 5};
+		
+		image = new Image();
+		image.setName("image3");
+		image.setType("image/gif");
+		image.setDescription("image3");
+		image.setImage(Base64.getEncoder().encodeToString(bytes));
+		
+		when(repository.save(image)).thenReturn(image);
+		
+		Image returnedImage = service.createImage(image);
+		
+		assertTrue(Arrays.equals(bytes, returnedImage.getContent()));
+		assertEquals(new Long(5), returnedImage.getSize());
+		assertFalse(returnedImage.isBase64Stored());
+		assertEquals(Base64.getEncoder().encodeToString(bytes), returnedImage.getImage());
+		assertEquals(DatabaseContentStore.NAME, returnedImage.getContentStore());
+		String hash = ContentDigest.sha256Hex(bytes);
+		assertEquals(hash, returnedImage.getContentKey());
+		assertEquals(hash, returnedImage.getContentHash());
+		verify(repository).insertSharedContent(eq(hash), eq(DatabaseContentStore.NAME), eq(5L), any(InputStream.class));
+		verify(repository).acquireSharedContent(hash, DatabaseContentStore.NAME, 5L);
+        
+	}
+	
+	@Test
+	public void addImageIdenticalContentStoredOnce() throws Exception {
+		
+		service.storage = ImageService.BINARY_STORAGE;
+		
+		byte[] bytes = new byte[] {1, 2, 3, 4, 5};
+		String hash = ContentDigest.sha256Hex(bytes);
+		
+		image = new Image();
+		image.setName("image5");
+		image.setType("image/gif");
+		image.setDescription("image5");
+		image.setImage(Base64.getEncoder().encodeToString(bytes));
+		
+		when(repository.save(image)).thenReturn(image);
+		when(repository.touchSharedContent(hash, DatabaseContentStore.NAME)).thenReturn(true);
+		
+		Image returnedImage = service.createImage(image);
+		
+		assertEquals(hash, returnedImage.getContentKey());
+		verify(repository, never()).insertSharedContent(any(), any(), anyLong(), any());
+		verify(repository).acquireSharedContent(hash, DatabaseContentStore.NAME, 5L);
+        
+	}
+	
+	@Test
+	public void addImageFileSystemStoreSucceeds() throws Exception {
+		
+		service.storage = ImageService.BINARY_STORAGE;
+		contentStores.type = FileSystemContentStore.NAME;
+		
+		byte[] bytes = new byte[] {1, 2, 3, 4, 5};
+		
+		image = new Image();
+		image.setName("image3");
+		image.setType("image/gif");
+		image.setDescription("image3");
+		image.setImage(Base64.getEncoder().encodeToString(bytes));
+		
+		when(repository.save(image)).thenReturn(image);
+		when(fileSystemStore.write(eq("image3"), any(byte[].class))).thenReturn("abcdef");
+		
+		Image returnedImage = service.createImage(image);
+		
+		assertTrue(Arrays.equals(bytes, returnedImage.getContent()));
+		assertEquals(FileSystemContentStore.NAME, returnedImage.getContentStore());
+		assertEquals("abcdef", returnedImage.getContentKey());
+		verify(repository).acquireSharedContent("abcdef", FileSystemContentStore.NAME, 5L);
+        
+	}
+	
+	@Test
+	public void addImageFileSystemStoreFailsDuplicateLeavesContentRecorded() throws Exception {
+		
+		service.storage = ImageService.BINARY_STORAGE;
+		contentStores.type = FileSystemContentStore.NAME;
+		
+		image = new Image();
+		image.setName("image3");
+		image.setType("image/gif");
+		image.setDescription("image3");
+		image.setImage(Base64.getEncoder().encodeToString(new byte[] {1, 2, 3, 4, 5}));
+		
+		when(repository.save(image)).thenThrow(new ConstraintViolationException("Duplicate entry 'image3' for key 'PRIMARY'", null, null));
+		when(fileSystemStore.write(eq("image3"), any(byte[].class))).thenReturn("abcdef");
+		
+		try {
+			service.createImage(image);
+			fail();
+		} catch (ConstraintViolationException e) {
+			// the image written stays recorded without a reference, so it is swept
+		}
+		InOrder order = inOrder(repository, transactionManager);
+		order.verify(repository).reserveSharedContent("abcdef", FileSystemContentStore.NAME, 5L);
+		order.verify(transactionManager).getTransaction(any());
+		order.verify(repository).acquireSharedContent("abcdef", FileSystemContentStore.NAME, 5L);
+        
+	}
+	
+	@Test
+	public void getImageByNameFileSystemStoreSucceeds() throws Exception {
+		
+		byte[] bytes = new byte[] {1, 2, 3};
+		
+		image = new Image();
+		image.setName("image4");
+		image.setType("image/png");
+		image.setDescription("image4");
+		image.setImage("");
+		image.setContentStore(FileSystemContentStore.NAME);
+		image.setContentKey("abcdef");
+		
+		when(repository.findByName("image4")).thenReturn(image);
+		when(fileSystemStore.read("image4", "abcdef")).thenReturn(bytes);
+		
+		Image returnedImage = service.getImageByName("image4");
+		
+		assertTrue(Arrays.equals(bytes, returnedImage.getContent()));
+		assertEquals(Base64.getEncoder().encodeToString(bytes), returnedImage.getImage());
+        
+	}
+	
+	@Test
+	public void getImageByNameSharesCachedContent() throws Exception {
+		
+		byte[] bytes = new byte[] {1, 2, 3};
+		
+		Image cached = new Image();
+		cached.setName("image4");
+		cached.setVersion(0L);
+		cached.setImage("");
+		cached.setContentStore(FileSystemContentStore.NAME);
+		cached.setContentKey("abcdef");
+		cached.setContentHash("abcdef");
+		cached.setContent(bytes);
+		cache.putIfNewer(cached);
+		
+		image = new Image();
+		image.setName("image5");
+		image.setImage("");
+		image.setContentStore(FileSystemContentStore.NAME);
+		image.setContentKey("abcdef");
+		image.setContentHash("abcdef");
+		
+		when(repository.findByName("image5")).thenReturn(image);
+		
+		Image returnedImage = service.getImageByName("image5");
+		
+		assertTrue(bytes == returnedImage.getContent());
+		verify(fileSystemStore, never()).read(any(), any());
+        
+	}
+	
+	@Test
+	public void getImagesByNameSucceeds() throws Exception {
+		
+		cache.putIfNewer(images.get(0));
+		when(repository.findByNameIn(new LinkedHashSet<>(Arrays.asList("image3", "image5")))).thenReturn(Arrays.asList(images.get(2)));
+		when(messageSource.getMessage("messages.imageNotFound", null, "Image not found", Locale.ENGLISH)).thenReturn("Image not found");
+		
+		List<ImageBatchItem> items = new ArrayList<>();
+		service.getImagesByName(Arrays.asList("image1", "image3", "image5"), items::add);
+		
+		assertEquals(3, items.size());
+		assertEquals("image1", items.get(0).getImage().getName());
+		assertEquals("image3", items.get(1).getImage().getName());
+		assertEquals("image5", items.get(2).getName());
+		assertEquals(new Integer(404), items.get(2).getStatus());
+		assertEquals("Image not found", items.get(2).getError());
+		verify(repository, times(1)).findByNameIn(any());
+		verify(repository, never()).findByName(any());
+		assertEquals(images.get(2), cache.getIfPresent("image3"));
+        
+	}
+	
+	@Test
+	public void getImagesByNameAllCached() throws Exception {
+		
+		cache.putIfNewer(images.get(0));
+		
+		List<ImageBatchItem> items = new ArrayList<>();
+		service.getImagesByName(Arrays.asList("image1"), items::add);
+		
+		assertEquals(1, items.size());
+		verify(repository, never()).findByNameIn(any());
+        
+	}
+	
+	@Test
+	public void transferContentFromFileSystemStore() throws Exception {
+		
+		image = new Image();
+		image.setName("image4");
+		image.setContentStore(FileSystemContentStore.NAME);
+		image.setContentKey("abcdef");
+		image.setSize(10L);
+		ImageSummary summary = new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, image);
+		
+		WritableByteChannel target = Channels.newChannel(new ByteArrayOutputStream());
+		when(fileSystemStore.transferTo("image4", "abcdef", 0, 10, target)).thenReturn(10L);
+		
+		assertEquals(10L, service.transferContent(summary, 0, 10, target));
+		verify(repository, never()).findByName(any());
+        
+	}
+	
+	@Test
+	public void transferContentRangeFromDatabase() throws Exception {
+		
+		image = new Image();
+		image.setName("image4");
+		image.setContentStore(DatabaseContentStore.NAME);
+		image.setSize(10L);
+		ImageSummary summary = new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, image);
+		
+		when(repository.readContent(eq("image4"), eq(2L), eq(4L), any())).thenReturn(4L);
+		
+		assertEquals(4L, service.transferContent(summary, 2, 4, Channels.newChannel(new ByteArrayOutputStream())));
+		verify(repository, never()).findByName(any());
+        
+	}
+	
+	@Test
+	public void transferContentFromCache() throws Exception {
+		
+		image = new Image();
+		image.setName("image4");
+		image.setImage("");
+		image.setContent(new byte[] {1, 2, 3, 4});
+		image.setContentStore(FileSystemContentStore.NAME);
+		cache.put(image);
+		ImageSummary summary = new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, image);
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		assertEquals(2L, service.transferContent(summary, 1, 2, Channels.newChannel(out)));
+		assertTrue(Arrays.equals(new byte[] {2, 3}, out.toByteArray()));
+		verify(fileSystemStore, never()).transferTo(any(), any(), anyLong(), anyLong(), any());
+        
+	}
+	
+	@Test
+	public void addImageBinaryStorageFailsInvalidBase64() throws Exception {
+		
+		service.storage = ImageService.BINARY_STORAGE;
+		
+		image = new Image();
+		image.setName("image3");
+		image.setType("image/gif");
+		image.setDescription("image3");
+		image.setImage("not base64!");
+		
+		exception.expect(ResponseStatusException.class);
+		
+		service.createImage(image);
         
 	}
 	
@@ -208,6 +828,168 @@ public class TestImageService {
         
 	}
 	
+	@Test
+	public void addImageContentSucceeds() throws Exception {
+		
+		service.maxUploadBytes = 16;
+		
+		image = new Image();
+		image.setName("image4");
+		image.setType("image/png");
+		image.setDescription("image4");
+		
+		when(repository.insertSharedContent(any(), any(), anyLong(), any(InputStream.class))).thenAnswer(invocation -> {
+			StreamUtils.copyToByteArray(invocation.getArgument(3, InputStream.class));
+			return true;
+		});
+		
+		service.createImageContent(image, new ByteArrayInputStream(new byte[10]));
+		
+		String hash = ContentDigest.sha256Hex(new byte[10]);
+		assertEquals("", image.getImage());
+		verify(repository).saveAndFlush(image);
+		verify(repository).insertSharedContent(eq(hash), eq(DatabaseContentStore.NAME), eq(10L), any(InputStream.class));
+		verify(repository).acquireSharedContent(hash, DatabaseContentStore.NAME, 10L);
+		verify(repository).storeContent("image4", hash, 10L);
+		verify(repository).findSummaryByName("image4");
+		InOrder order = inOrder(repository, transactionManager);
+		order.verify(repository).insertSharedContent(eq(hash), eq(DatabaseContentStore.NAME), eq(10L), any(InputStream.class));
+		order.verify(transactionManager).getTransaction(any());
+		order.verify(repository).saveAndFlush(image);
+        
+	}
+	
+	@Test
+	public void addImageContentFailsTooLarge() throws Exception {
+		
+		service.maxUploadBytes = 16;
+		
+		image = new Image();
+		image.setName("image4");
+		image.setType("image/png");
+		image.setDescription("image4");
+		
+		try {
+			service.createImageContent(image, new ByteArrayInputStream(new byte[17]));
+			fail();
+		} catch (ResponseStatusException e) {
+			assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, e.getStatus());
+		}
+		verify(repository, never()).storeContent(any(), any(), any());
+		verify(repository, never()).acquireSharedContent(any(), any(), anyLong());
+        
+	}
+	
+	@Test
+	public void replaceImageContentSucceeds() throws Exception {
+		
+		service.maxUploadBytes = 16;
+		
+		image = new Image();
+		image.setName("image3");
+		image.setType("image/png");
+		image.setDescription("image3 replaced");
+		image.setVersion(2L);
+		
+		ImageSummary summary = new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, images.get(2));
+		
+		when(repository.findSummaryByName("image3")).thenReturn(summary);
+		when(repository.replaceMetadata(eq("image3"), eq(2L), eq("image/png"), eq("image3 replaced"), any(), eq(DatabaseContentStore.NAME))).thenReturn(1);
+		
+		service.replaceImageContent(image, new ByteArrayInputStream(new byte[10]));
+		
+		String hash = ContentDigest.sha256Hex(new byte[10]);
+		verify(repository).insertSharedContent(eq(hash), eq(DatabaseContentStore.NAME), eq(10L), any(InputStream.class));
+		verify(repository).storeContent("image3", hash, 10L);
+		verify(repository).clearContent("image3");
+		verify(repository, never()).releaseSharedContent(any(), any());
+        
+	}
+	
+	@Test
+	public void replaceImageContentReleasesPreviousContent() throws Exception {
+		
+		service.maxUploadBytes = 16;
+		
+		image = new Image();
+		image.setName("image3");
+		image.setType("image/png");
+		image.setDescription("image3 replaced");
+		
+		images.get(2).setContentKey("abcdef");
+		ImageSummary summary = new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, images.get(2));
+		
+		when(repository.findSummaryByName("image3")).thenReturn(summary);
+		when(repository.replaceMetadata(eq("image3"), eq(2L), eq("image/png"), eq("image3 replaced"), any(), eq(DatabaseContentStore.NAME))).thenReturn(1);
+		
+		service.replaceImageContent(image, new ByteArrayInputStream(new byte[10]));
+		
+		verify(repository).acquireSharedContent(ContentDigest.sha256Hex(new byte[10]), DatabaseContentStore.NAME, 10L);
+		verify(repository).releaseSharedContent("abcdef", DatabaseContentStore.NAME);
+		verify(repository, never()).clearContent(any());
+        
+	}
+	
+	@Test
+	public void replaceImageContentFileSystemStoreSucceeds() throws Exception {
+		
+		service.maxUploadBytes = 16;
+		contentStores.type = FileSystemContentStore.NAME;
+		
+		image = new Image();
+		image.setName("image3");
+		image.setType("image/png");
+		image.setDescription("image3 replaced");
+		
+		ImageSummary summary = new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, images.get(2));
+		
+		when(repository.findSummaryByName("image3")).thenReturn(summary);
+		when(repository.replaceMetadata(eq("image3"), eq(2L), eq("image/png"), eq("image3 replaced"), any(), eq(FileSystemContentStore.NAME))).thenReturn(1);
+		when(fileSystemStore.write(eq("image3"), any(InputStream.class))).thenAnswer(invocation -> {
+			StreamUtils.copyToByteArray(invocation.getArgument(1, InputStream.class));
+			return "abcdef";
+		});
+		
+		service.replaceImageContent(image, new ByteArrayInputStream(new byte[10]));
+		
+		verify(repository).storeContent("image3", "abcdef", 10L);
+		verify(repository).clearContent("image3");
+        
+	}
+	
+	@Test
+	public void replaceImageContentFailsVersionStale() throws Exception {
+		
+		image = new Image();
+		image.setName("image3");
+		image.setType("image/png");
+		image.setDescription("image3 replaced");
+		image.setVersion(1L);
+		
+		ImageSummary summary = new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, images.get(2));
+		
+		when(repository.findSummaryByName("image3")).thenReturn(summary);
+		
+		exception.expect(StaleObjectStateException.class);
+		
+		service.replaceImageContent(image, new ByteArrayInputStream(new byte[10]));
+        
+	}
+	
+	@Test
+	public void replaceImageContentFailsNotFound() throws Exception {
+		
+		image = new Image();
+		image.setName("image5");
+		image.setType("image/png");
+		image.setDescription("image5");
+		
+		exception.expect(ResponseStatusException.class);
+		
+		service.replaceImageContent(image, new ByteArrayInputStream(new byte[10]));
+        
+	}
+	
 	@Test
 	public void replaceImageSucceeds() throws Exception {
 		
@@ -228,6 +1010,37 @@ public class TestImageService {
         assertEquals("image3", returnedImage.getDescription());
         assertEquals("long image blob3", returnedImage.getImage());
         
+        verify(changeLog).record(argThat(summary -> "image3".equals(summary.getName())));
+	}
+	
+	@Test
+	public void replaceImageBinaryStorageReleasesPreviousContent() throws Exception {
+		
+		service.storage = ImageService.BINARY_STORAGE;
+		
+		byte[] bytes = new byte[] {1, 2, 3, 4, 5};
+		String hash = ContentDigest.sha256Hex(bytes);
+		
+		Image stored = new Image();
+		stored.setName("image3");
+		stored.setContentKey("abcdef");
+		
+		image = new Image();
+		image.setName("image3");
+		image.setType("image/gif");
+		image.setDescription("image3");
+		image.setImage(Base64.getEncoder().encodeToString(bytes));
+		
+		when(repository.findByName("image3")).thenReturn(stored);
+		when(repository.save(image)).thenReturn(image);
+		
+		Image returnedImage = service.replaceImage(image);
+		
+		assertEquals(hash, returnedImage.getContentKey());
+		verify(repository).acquireSharedContent(hash, DatabaseContentStore.NAME, 5L);
+		verify(repository).releaseSharedContent("abcdef", DatabaseContentStore.NAME);
+		verify(repository, never()).clearContent(any());
+        
 	}
 	
 	@Test
@@ -269,4 +1082,135 @@ public class TestImageService {
 	
 	
 
+	@Test
+	public void writesAreSerializableByDefault() throws Exception {
+		
+		image = new Image();
+		image.setName("image3");
+		image.setType("image/gif");
+		image.setDescription("image3");
+		image.setImage("long image blob3");
+		
+		when(repository.save(image)).thenReturn(image);
+		
+		service.createImage(image);
+		
+		verify(transactionManager).getTransaction(argThat(definition -> definition.getIsolationLevel() == TransactionDefinition.ISOLATION_SERIALIZABLE
+				&& definition.getPropagationBehavior() == TransactionDefinition.PROPAGATION_REQUIRES_NEW));
+		verify(repository, never()).saveAndFlush(any());
+		
+	}
+	
+	@Test
+	public void createImageOptimisticInsertsAtReadCommitted() throws Exception {
+		
+		service.writeMode = ImageService.OPTIMISTIC_WRITES;
+		
+		image = new Image();
+		image.setName("image3");
+		image.setVersion(4L);
+		image.setType("image/gif");
+		image.setDescription("image3");
+		image.setImage("long image blob3");
+		
+		when(repository.saveAndFlush(image)).thenReturn(image);
+		
+		Image returnedImage = service.createImage(image);
+		
+		assertEquals(null, returnedImage.getVersion());
+		verify(transactionManager).getTransaction(argThat(definition -> definition.getIsolationLevel() == TransactionDefinition.ISOLATION_READ_COMMITTED));
+		verify(repository, never()).findByName(any());
+		
+	}
+	
+	@Test
+	public void replaceImageOptimisticUpdatesIfVersionCurrent() throws Exception {
+		
+		service.writeMode = ImageService.OPTIMISTIC_WRITES;
+		service.storage = ImageService.BINARY_STORAGE;
+		
+		byte[] bytes = new byte[] {1, 2, 3, 4, 5};
+		String hash = ContentDigest.sha256Hex(bytes);
+		
+		Image stored = new Image();
+		stored.setName("image3");
+		stored.setVersion(2L);
+		stored.setContentStore(DatabaseContentStore.NAME);
+		stored.setContentKey("abcdef");
+		
+		image = new Image();
+		image.setName("image3");
+		image.setVersion(2L);
+		image.setType("image/gif");
+		image.setDescription("image3");
+		image.setImage(Base64.getEncoder().encodeToString(bytes));
+		
+		when(repository.findSummaryByName("image3")).thenReturn(new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, stored));
+		when(repository.replaceImage(image, 2L)).thenReturn(1);
+		
+		Image returnedImage = service.replaceImage(image);
+		
+		assertEquals(Long.valueOf(3), returnedImage.getVersion());
+		assertEquals(hash, returnedImage.getContentKey());
+		verify(repository, never()).findByName(any());
+		verify(repository, never()).save(any());
+		verify(repository).acquireSharedContent(hash, DatabaseContentStore.NAME, 5L);
+		verify(repository).releaseSharedContent("abcdef", DatabaseContentStore.NAME);
+		assertEquals(Long.valueOf(3), cache.getIfPresent("image3").getVersion());
+		
+	}
+	
+	@Test
+	public void replaceImageOptimisticFailsVersionChanged() throws Exception {
+		
+		service.writeMode = ImageService.OPTIMISTIC_WRITES;
+		
+		Image stored = new Image();
+		stored.setName("image3");
+		stored.setVersion(2L);
+		
+		image = new Image();
+		image.setName("image3");
+		image.setType("image/gif");
+		image.setDescription("image3");
+		image.setImage("long image blob3");
+		
+		when(repository.findSummaryByName("image3")).thenReturn(new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, stored));
+		when(repository.replaceImage(image, 2L)).thenReturn(0);
+		
+		exception.expect(StaleObjectStateException.class);
+		
+		service.replaceImage(image);
+		
+	}
+	
+	@Test
+	public void replaceImageOptimisticFailsVersionStale() throws Exception {
+		
+		service.writeMode = ImageService.OPTIMISTIC_WRITES;
+		
+		Image stored = new Image();
+		stored.setName("image3");
+		stored.setVersion(2L);
+		
+		image = new Image();
+		image.setName("image3");
+		image.setVersion(1L);
+		image.setType("image/gif");
+		image.setDescription("image3");
+		image.setImage("long image blob3");
+		
+		when(repository.findSummaryByName("image3")).thenReturn(new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, stored));
+		
+		exception.expect(StaleObjectStateException.class);
+		
+		try {
+			service.replaceImage(image);
+		} finally {
+			verify(repository, never()).replaceImage(any(), any());
+		}
+		
+	}
+	
+
 }
@@ -0,0 +1,131 @@
+package com.burgershopproject.imageserver.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.repositories.ImageRepository;
+
+public class TestImageStorageMigrator {
+
+	private List<Image> images;
+
+	@InjectMocks
+	private ImageStorageMigrator migrator;
+
+	@Mock
+	private ImageRepository repository;
+
+	@Mock
+	private PlatformTransactionManager transactionManager;
+
+	private DatabaseContentStore store;
+
+	@Before
+	public void setup() {
+
+		MockitoAnnotations.initMocks(this);
+
+		store = new DatabaseContentStore();
+		store.repository = repository;
+		when(repository.insertSharedContent(anyString(), eq(DatabaseContentStore.NAME), anyLong(), any())).thenReturn(true);
+		ContentStores contentStores = new ContentStores();
+		contentStores.stores = Arrays.asList(store);
+		contentStores.type = DatabaseContentStore.NAME;
+		contentStores.init();
+		migrator.contentStores = contentStores;
+
+		images = new ArrayList<>();
+
+		Image image = new Image();
+		image.setName("image1");
+		image.setVersion(0L);
+		image.setImage(Base64.getEncoder().encodeToString(new byte[] {1, 2, 3}));
+		images.add(image);
+
+		image = new Image();
+		image.setName("image2");
+		image.setImage(Base64.getEncoder().encodeToString(new byte[] {4, 5, 6}));
+		images.add(image);
+
+		image = new Image();
+		image.setName("image3");
+		image.setVersion(2L);
+		image.setImage("not base64!");
+		images.add(image);
+
+	}
+
+	@Test
+	public void migrateBatchConvertsValidImages() {
+
+		String hash1 = ContentDigest.sha256Hex(new byte[] {1, 2, 3});
+		String hash2 = ContentDigest.sha256Hex(new byte[] {4, 5, 6});
+		when(repository.storeBinary(eq("image1"), eq(0L), any(), any(), any())).thenReturn(1);
+		when(repository.storeBinary(eq("image2"), eq(-1L), any(), any(), any())).thenReturn(1);
+
+		assertEquals(2, migrator.migrateBatch(migrator.write(images)));
+
+		verify(repository).insertSharedContent(eq(hash1), eq(DatabaseContentStore.NAME), eq(3L), any());
+		verify(repository).storeBinary("image1", 0L, DatabaseContentStore.NAME, hash1, 3L);
+		verify(repository).acquireSharedContent(hash1, DatabaseContentStore.NAME, 3L);
+		verify(repository).storeBinary("image2", -1L, DatabaseContentStore.NAME, hash2, 3L);
+		verify(repository).acquireSharedContent(hash2, DatabaseContentStore.NAME, 3L);
+		verify(repository, never()).storeBinary(eq("image3"), any(), any(), any(), any());
+
+	}
+
+	@Test
+	public void migrateBatchSkipsReplacedImages() {
+
+		when(repository.storeBinary(eq("image1"), eq(0L), any(), any(), any())).thenReturn(0);
+		when(repository.storeBinary(eq("image2"), eq(-1L), any(), any(), any())).thenReturn(1);
+
+		assertEquals(1, migrator.migrateBatch(migrator.write(images)));
+
+		verify(repository, never()).acquireSharedContent(eq(ContentDigest.sha256Hex(new byte[] {1, 2, 3})), any(), anyLong());
+
+	}
+
+	@Test
+	public void migrateWritesImagesBeforeTransaction() {
+
+		String hash1 = ContentDigest.sha256Hex(new byte[] {1, 2, 3});
+		migrator.batchSize = 3;
+		when(repository.findBase64StoredAfter(eq(""), any())).thenReturn(images);
+		when(repository.findBase64StoredAfter(eq("image3"), any())).thenReturn(Collections.emptyList());
+		when(repository.storeBinary(any(), any(), any(), any(), any())).thenReturn(1);
+
+		assertEquals(2, migrator.migrate());
+
+		InOrder inOrder = inOrder(repository, transactionManager);
+		inOrder.verify(repository).insertSharedContent(eq(hash1), eq(DatabaseContentStore.NAME), eq(3L), any());
+		inOrder.verify(repository).reserveSharedContent(hash1, DatabaseContentStore.NAME, 3L);
+		inOrder.verify(transactionManager).getTransaction(any());
+		inOrder.verify(repository).storeBinary("image1", 0L, DatabaseContentStore.NAME, hash1, 3L);
+		inOrder.verify(repository).acquireSharedContent(hash1, DatabaseContentStore.NAME, 3L);
+
+	}
+
+}
@@ -0,0 +1,262 @@
+package com.burgershopproject.imageserver.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.data.projection.SpelAwareProxyProjectionFactory;
+import org.springframework.http.MediaType;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import com.burgershopproject.imageserver.models.Image;
+import com.burgershopproject.imageserver.models.ImageSummary;
+import com.burgershopproject.imageserver.models.ImageVariant;
+import com.burgershopproject.imageserver.repositories.ImageRepository;
+import com.burgershopproject.imageserver.repositories.ImageVariantRepository;
+
+public class TestImageVariantService {
+
+	@InjectMocks
+	private ImageVariantService variantService;
+
+	@Mock
+	private ImageRepository repository;
+
+	@Mock
+	private ImageVariantRepository variantRepository;
+
+	@Mock
+	private PlatformTransactionManager transactionManager;
+
+	@Mock
+	private ContentStore fileSystemStore;
+
+	private Image image;
+
+	@Before
+	public void setup() throws Exception {
+
+		MockitoAnnotations.initMocks(this);
+
+		when(fileSystemStore.getName()).thenReturn(FileSystemContentStore.NAME);
+		ContentStores contentStores = new ContentStores();
+		contentStores.stores = Arrays.asList(fileSystemStore);
+		contentStores.type = FileSystemContentStore.NAME;
+		contentStores.init();
+		variantService.contentStores = contentStores;
+
+		variantService.enabled = true;
+		variantService.formats = new String[] {"jpeg", "png"};
+		variantService.jpegQuality = 0.8f;
+		variantService.pngDeflateLevel = 0;
+		variantService.threads = 1;
+		variantService.queueSize = 4;
+		variantService.maxNames = 100;
+		variantService.maxSourcePixels = 1000 * 1000;
+		variantService.init();
+
+		image = new Image();
+		image.setName("image1");
+		image.setVersion(1L);
+		image.setType("image/png");
+		image.setDescription("image1");
+		image.setImage(Base64.getEncoder().encodeToString(variantService.encode(gradient(BufferedImage.TYPE_INT_RGB), ImageRenditionService.FORMAT_PNG)));
+		image.setSize(Long.valueOf(image.getContent().length));
+
+		variantService.pngDeflateLevel = 9;
+
+	}
+
+	@After
+	public void teardown() {
+		variantService.shutdown();
+	}
+
+	private static BufferedImage gradient(int type) {
+		BufferedImage gradient = new BufferedImage(200, 100, type);
+		Graphics2D graphics = gradient.createGraphics();
+		graphics.setPaint(new GradientPaint(0, 0, Color.RED, 200, 100, Color.BLUE));
+		graphics.fillRect(0, 0, 200, 100);
+		graphics.dispose();
+		return gradient;
+	}
+
+	private ImageSummary summary() {
+		return new SpelAwareProxyProjectionFactory().createProjection(ImageSummary.class, image);
+	}
+
+	private static ImageVariant variant(String type, Long version, String key, long size) {
+		ImageVariant variant = new ImageVariant();
+		variant.setName("image1");
+		variant.setType(type);
+		variant.setVersion(version);
+		variant.setContentStore(FileSystemContentStore.NAME);
+		variant.setContentKey(key);
+		variant.setSize(size);
+		return variant;
+	}
+
+	private ImageVariant select(String accept) {
+		List<MediaType> accepted = accept != null ? MediaType.parseMediaTypes(accept) : Collections.emptyList();
+		return variantService.select(summary(), accepted);
+	}
+
+	@Test
+	public void selectSameFormatWhereverOriginalIsAccepted() {
+
+		ImageVariant png = variant("image/png", 1L, "png", 60);
+		when(variantRepository.findByName("image1")).thenReturn(Arrays.asList(png));
+
+		assertSame(png, select(null));
+		assertSame(png, select("*/*"));
+		assertSame(png, select("image/webp,image/*;q=0.8"));
+		assertNull(select("image/jpeg"));
+		assertNull(select("image/*, image/png;q=0"));
+
+	}
+
+	@Test
+	public void selectOtherFormatOnlyWhenNamed() {
+
+		ImageVariant png = variant("image/png", 1L, "png", 80);
+		ImageVariant jpeg = variant("image/jpeg", 1L, "jpeg", 30);
+		when(variantRepository.findByName("image1")).thenReturn(Arrays.asList(jpeg, png));
+
+		assertSame(png, select("*/*"));
+		assertSame(png, select("image/*"));
+		assertSame(jpeg, select("image/jpeg, image/png;q=0.9"));
+		assertSame(jpeg, select("image/jpeg"));
+		assertSame(png, select("image/png, image/jpeg;q=0.5"));
+
+	}
+
+	@Test
+	public void selectIgnoresLargerAndMissingVariants() {
+
+		when(variantRepository.findByName("image1")).thenReturn(Arrays.asList(
+				variant("image/png", 1L, null, 0), variant("image/jpeg", 1L, "jpeg", image.getSize())));
+
+		assertNull(select("image/jpeg"));
+		assertNull(select("*/*"));
+
+	}
+
+	@Test
+	public void selectQueuesVariantsOfNewVersion() {
+
+		when(variantRepository.findByName("image1")).thenReturn(Arrays.asList(variant("image/png", 0L, "png", 60)));
+		when(repository.findByName("image1")).thenReturn(image);
+
+		assertNull(select("*/*"));
+
+		verify(repository, timeout(5000)).findByName("image1");
+
+	}
+
+	@Test
+	public void encodeStoresSmallerVariants() throws Exception {
+
+		when(repository.findByName("image1")).thenReturn(image);
+		when(repository.findSummaryByName("image1")).thenReturn(summary());
+		when(variantRepository.findById(any())).thenReturn(Optional.empty());
+		when(fileSystemStore.write(eq("image1"), any(byte[].class))).thenAnswer(invocation -> ContentDigest.sha256Hex(invocation.getArgument(1)));
+
+		variantService.encode("image1", 1L);
+
+		ArgumentCaptor<ImageVariant> saved = ArgumentCaptor.forClass(ImageVariant.class);
+		verify(variantRepository, times(2)).save(saved.capture());
+		ImageVariant jpeg = saved.getAllValues().get(0);
+		ImageVariant png = saved.getAllValues().get(1);
+		assertEquals("image/jpeg", jpeg.getType());
+		assertEquals("image/png", png.getType());
+		assertEquals(Long.valueOf(1L), png.getVersion());
+		assertNotNull(png.getContentKey());
+		assertTrue(png.getSize() < image.getSize());
+		verify(repository).acquireSharedContent(png.getContentKey(), FileSystemContentStore.NAME, png.getSize());
+		verify(repository).acquireSharedContent(jpeg.getContentKey(), FileSystemContentStore.NAME, jpeg.getSize());
+
+	}
+
+	@Test
+	public void encodeReplacesVariantOfPreviousVersion() throws Exception {
+
+		variantService.pngDeflateLevel = 0;
+		image.setImage(Base64.getEncoder().encodeToString(variantService.encode(gradient(BufferedImage.TYPE_INT_ARGB), ImageRenditionService.FORMAT_PNG)));
+		variantService.pngDeflateLevel = 9;
+		ImageVariant previous = variant("image/png", 0L, "previous", 60);
+
+		when(repository.findByName("image1")).thenReturn(image);
+		when(repository.findSummaryByName("image1")).thenReturn(summary());
+		when(variantRepository.findById(any())).thenReturn(Optional.empty());
+		when(variantRepository.findById(new ImageVariant.Key("image1", "image/png"))).thenReturn(Optional.of(previous));
+		when(fileSystemStore.write(eq("image1"), any(byte[].class))).thenReturn("current");
+
+		variantService.encode("image1", 1L);
+
+		ArgumentCaptor<ImageVariant> saved = ArgumentCaptor.forClass(ImageVariant.class);
+		verify(variantRepository, times(2)).save(saved.capture());
+		assertEquals("image/jpeg", saved.getAllValues().get(0).getType());
+		assertNull(saved.getAllValues().get(0).getContentKey());
+		assertSame(previous, saved.getAllValues().get(1));
+		assertEquals(Long.valueOf(1L), previous.getVersion());
+		assertEquals("current", previous.getContentKey());
+		verify(repository).releaseSharedContent("previous", FileSystemContentStore.NAME);
+
+	}
+
+	@Test
+	public void encodeSkipsReplacedImage() throws Exception {
+
+		image.setVersion(2L);
+		when(repository.findByName("image1")).thenReturn(image);
+
+		variantService.encode("image1", 1L);
+
+		verify(fileSystemStore, never()).write(anyString(), any(byte[].class));
+		verify(variantRepository, never()).save(any());
+		verify(repository, never()).acquireSharedContent(anyString(), anyString(), anyLong());
+
+	}
+
+	@Test
+	public void quality() {
+
+		List<MediaType> accepted = MediaType.parseMediaTypes("image/png;q=0.5, image/*;q=0.8, */*;q=0.1");
+
+		assertEquals(0.5, ImageVariantService.quality(MediaType.IMAGE_PNG, accepted, false), 0.001);
+		assertEquals(0.8, ImageVariantService.quality(MediaType.IMAGE_JPEG, accepted, false), 0.001);
+		assertEquals(0, ImageVariantService.quality(MediaType.IMAGE_JPEG, accepted, true), 0.001);
+		assertEquals(0.1, ImageVariantService.quality(MediaType.TEXT_PLAIN, accepted, false), 0.001);
+		assertEquals(1, ImageVariantService.quality(MediaType.IMAGE_JPEG, Collections.emptyList(), false), 0.001);
+
+	}
+
+}
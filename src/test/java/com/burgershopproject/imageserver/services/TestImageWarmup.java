@@ -0,0 +1,132 @@
+package com.burgershopproject.imageserver.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.boot.actuate.health.Status;
+
+import com.burgershopproject.imageserver.models.Image;
+
+public class TestImageWarmup {
+
+	@InjectMocks
+	private ImageWarmup warmup;
+
+	@Mock
+	private ImageService service;
+
+	@Mock
+	private ImageVariantService variantService;
+
+	@Mock
+	private HotImageTracker hotImages;
+
+	@Before
+	public void setup() {
+
+		MockitoAnnotations.initMocks(this);
+
+		warmup.enabled = true;
+		warmup.names = new String[] {"image1", " ", "image2"};
+		warmup.top = 10;
+		warmup.threads = 2;
+		warmup.timeoutMillis = 10000;
+		warmup.maxBytes = 1024;
+
+		when(hotImages.mostRequested(anyInt())).thenReturn(Arrays.asList("image2", "image3"));
+		when(service.getImageByName(anyString())).thenAnswer(invocation -> image(invocation.getArgument(0), 10));
+
+	}
+
+	private Image image(String name, long size) {
+		Image image = new Image();
+		image.setName(name);
+		image.setSize(size);
+		return image;
+	}
+
+	@Test
+	public void selectsConfiguredNamesThenMostRequested() {
+
+		assertEquals(Arrays.asList("image1", "image2", "image3"), warmup.select());
+
+	}
+
+	@Test
+	public void warmUpLoadsImagesAndVariants() {
+
+		assertFalse(warmup.isWarm());
+		assertEquals(Status.OUT_OF_SERVICE, warmup.health().getStatus());
+
+		assertEquals(3, warmup.warmUp());
+
+		verify(variantService).preload("image1");
+		verify(variantService).preload("image2");
+		verify(variantService).preload("image3");
+		assertTrue(warmup.isWarm());
+		assertEquals(Status.UP, warmup.health().getStatus());
+		assertEquals(3, warmup.health().getDetails().get("loaded"));
+
+	}
+
+	@Test
+	public void warmUpSkipsImagesNotFound() {
+
+		when(service.getImageByName("image2")).thenReturn(null);
+
+		assertEquals(2, warmup.warmUp());
+
+		verify(variantService, never()).preload("image2");
+		assertTrue(warmup.isWarm());
+
+	}
+
+	@Test
+	public void warmUpStopsWhenCacheFull() {
+
+		warmup.threads = 1;
+		when(service.getImageByName(anyString())).thenAnswer(invocation -> image(invocation.getArgument(0), 1024));
+
+		assertEquals(1, warmup.warmUp());
+
+		verify(service, never()).getImageByName("image2");
+
+	}
+
+	@Test
+	public void warmUpCompletesWhenTrackerFails() {
+
+		when(hotImages.mostRequested(anyInt())).thenThrow(new IllegalStateException("no database"));
+
+		assertEquals(0, warmup.warmUp());
+
+		assertTrue(warmup.isWarm());
+
+	}
+
+	@Test
+	public void disabledIsWarmImmediately() {
+
+		warmup.enabled = false;
+
+		warmup.start();
+
+		assertTrue(warmup.isWarm());
+		verify(service, never()).getImageByName(anyString());
+
+	}
+
+}
@@ -0,0 +1,255 @@
+package com.burgershopproject.imageserver.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSegmentContentStore {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private SegmentContentStore store;
+
+	@Before
+	public void setup() throws IOException {
+
+		store = open(1024 * 1024);
+
+	}
+
+	@After
+	public void shutdown() {
+
+		store.shutdown();
+
+	}
+
+	private SegmentContentStore open(long maxSegmentBytes) throws IOException {
+		SegmentContentStore opened = new SegmentContentStore();
+		opened.path = folder.getRoot().getPath();
+		opened.maxSegmentBytes = maxSegmentBytes;
+		opened.garbageRatio = 0.5;
+		opened.init();
+		return opened;
+	}
+
+	private SegmentContentStore reopen(long maxSegmentBytes) throws IOException {
+		store.shutdown();
+		store = open(maxSegmentBytes);
+		return store;
+	}
+
+	private static byte[] image(int size, int seed) {
+		byte[] image = new byte[size];
+		Arrays.fill(image, (byte) seed);
+		return image;
+	}
+
+	@Test
+	public void writeIsContentAddressed() throws IOException {
+
+		String key = store.write("image1", new ByteArrayInputStream("abc".getBytes()));
+
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", key);
+		assertArrayEquals("abc".getBytes(), store.read("image1", key));
+		try (Stream<Path> uploads = Files.list(folder.getRoot().toPath().resolve("tmp"))) {
+			assertFalse(uploads.findAny().isPresent());
+		}
+
+	}
+
+	@Test
+	public void writeSharesIdenticalImages() throws IOException {
+
+		String key1 = store.write("image1", new ByteArrayInputStream(image(1000, 1)));
+		String key2 = store.write("image2", new ByteArrayInputStream(image(1000, 1)));
+
+		assertEquals(key1, key2);
+		assertEquals(1, store.size());
+		assertEquals(SegmentContentStore.recordBytes(1000), Files.size(folder.getRoot().toPath().resolve("segment-0000000001.dat")));
+
+	}
+
+	@Test
+	public void transferToWritesPartOfImage() throws IOException {
+
+		String key = store.write("image1", new ByteArrayInputStream("abcdef".getBytes()));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		assertEquals(3, store.transferTo("image1", key, 2, 3, Channels.newChannel(out)));
+		assertEquals("cde", out.toString());
+
+	}
+
+	@Test
+	public void indexIsRebuiltAfterRestart() throws IOException {
+
+		String key1 = store.write("image1", new ByteArrayInputStream(image(100, 1)));
+		String key2 = store.write("image2", new ByteArrayInputStream(image(100, 2)));
+		store.delete(key1, Instant.now().plusSeconds(1));
+
+		reopen(1024 * 1024);
+
+		assertEquals(1, store.size());
+		assertArrayEquals(image(100, 2), store.read("image2", key2));
+		try {
+			store.read("image1", key1);
+			fail("Expected FileNotFoundException");
+		} catch (FileNotFoundException e) {
+			// deleted before the restart
+		}
+
+	}
+
+	@Test
+	public void fullSegmentsAreSealedAndReadFromTheirFooters() throws IOException {
+
+		reopen(300);
+		String key1 = store.write("image1", new ByteArrayInputStream(image(300, 1)));
+		String key2 = store.write("image2", new ByteArrayInputStream(image(300, 2)));
+		String key3 = store.write("image3", new ByteArrayInputStream(image(300, 3)));
+
+		assertEquals(Arrays.asList(1L, 2L, 3L, 4L), store.segmentIds());
+
+		reopen(300);
+
+		assertArrayEquals(image(300, 1), store.read("image1", key1));
+		assertArrayEquals(image(300, 2), store.read("image2", key2));
+		assertArrayEquals(image(300, 3), store.read("image3", key3));
+		assertEquals(Arrays.asList(1L, 2L, 3L, 4L), store.segmentIds());
+
+	}
+
+	@Test
+	public void incompleteRecordIsTruncatedAtStartup() throws IOException {
+
+		String key = store.write("image1", new ByteArrayInputStream(image(100, 1)));
+		Path segment = folder.getRoot().toPath().resolve("segment-0000000001.dat");
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			channel.write(ByteBuffer.wrap(new byte[30]));
+		}
+
+		reopen(1024 * 1024);
+
+		assertEquals(SegmentContentStore.recordBytes(100), Files.size(segment));
+		assertArrayEquals(image(100, 1), store.read("image1", key));
+		String key2 = store.write("image2", new ByteArrayInputStream(image(100, 2)));
+		assertArrayEquals(image(100, 2), store.read("image2", key2));
+
+	}
+
+	@Test
+	public void deleteKeepsRewrittenImage() throws IOException {
+
+		String key = store.write("image1", new ByteArrayInputStream("abc".getBytes()));
+
+		store.delete(key, Instant.now().minusSeconds(3600));
+
+		assertArrayEquals("abc".getBytes(), store.read("image1", key));
+
+	}
+
+	@Test
+	public void compactionCopiesHeldImagesAndDeletesSegment() throws IOException {
+
+		reopen(700);
+		String key1 = store.write("image1", new ByteArrayInputStream(image(300, 1)));
+		String key2 = store.write("image2", new ByteArrayInputStream(image(300, 2)));
+		String key3 = store.write("image3", new ByteArrayInputStream(image(300, 3)));
+		store.delete(key1, Instant.now().plusSeconds(1));
+
+		assertEquals(1, store.compact());
+
+		assertFalse(store.segmentIds().contains(1L));
+		assertFalse(Files.exists(folder.getRoot().toPath().resolve("segment-0000000001.dat")));
+		assertArrayEquals(image(300, 2), store.read("image2", key2));
+		assertArrayEquals(image(300, 3), store.read("image3", key3));
+
+		reopen(700);
+
+		assertEquals(2, store.size());
+		assertArrayEquals(image(300, 2), store.read("image2", key2));
+		assertTrue(store.segmentIds().stream().allMatch(id -> id > 1));
+
+	}
+
+	@Test
+	public void compactionKeepsDeletesOfImagesInOlderSegments() throws IOException {
+
+		reopen(400);
+		String key1 = store.write("image1", new ByteArrayInputStream(image(10, 1)));
+		store.write("image2", new ByteArrayInputStream(image(300, 2)));
+		String key3 = store.write("image3", new ByteArrayInputStream(image(300, 3)));
+		store.delete(key1, Instant.now().plusSeconds(1));
+		store.delete(key3, Instant.now().plusSeconds(1));
+
+		assertEquals(1, store.compact());
+		assertEquals(Arrays.asList(1L, 3L), store.segmentIds());
+
+		reopen(400);
+
+		assertEquals(1, store.size());
+		try {
+			store.read("image1", key1);
+			fail("Expected FileNotFoundException");
+		} catch (FileNotFoundException e) {
+			// the delete outlived the compaction of its segment
+		}
+
+	}
+
+	@Test
+	public void pathInUseIsNotOpenedAgain() throws IOException {
+
+		store.write("image1", new ByteArrayInputStream("abc".getBytes()));
+
+		SegmentContentStore other = new SegmentContentStore();
+		other.path = folder.getRoot().getPath();
+		other.maxSegmentBytes = 1024 * 1024;
+		other.activeType = SegmentContentStore.NAME;
+		try {
+			other.init();
+			fail("Expected IllegalStateException");
+		} catch (IllegalStateException e) {
+			// the active store refuses to start on a path another instance holds
+		}
+
+		other.activeType = DatabaseContentStore.NAME;
+		other.init();
+		try {
+			assertEquals(0, other.size());
+			other.write("image2", new ByteArrayInputStream("def".getBytes()));
+			fail("Expected IOException");
+		} catch (IOException e) {
+			// an inactive store is left closed
+		} finally {
+			other.shutdown();
+		}
+		assertEquals(1, store.size());
+
+	}
+
+}
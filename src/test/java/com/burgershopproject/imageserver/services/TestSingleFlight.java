@@ -0,0 +1,137 @@
+package com.burgershopproject.imageserver.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TestSingleFlight {
+
+	private final SingleFlight<String, String> flights = new SingleFlight<>();
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Starts a load of key1 on another thread that runs until released
+	 */
+	private Future<String> startLoad(CountDownLatch started, CountDownLatch release, AtomicInteger loads, RuntimeException failure) {
+		return executor.submit(() -> flights.load("key1", () -> {
+			loads.incrementAndGet();
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return "value1";
+		}, 10000));
+	}
+
+	/*
+	 * Gives the submitted followers time to start waiting before the load is released
+	 */
+	private void awaitFollowers() throws InterruptedException {
+		Thread.sleep(200);
+	}
+
+	@Test
+	public void concurrentLoadsShareOneLoad() throws Exception {
+
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger loads = new AtomicInteger();
+		Future<String> leader = startLoad(started, release, loads, null);
+		assertEquals(true, started.await(10, TimeUnit.SECONDS));
+
+		List<Future<String>> followers = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			followers.add(executor.submit(() -> flights.load("key1", () -> {
+				loads.incrementAndGet();
+				return "other";
+			}, 10000)));
+		}
+		awaitFollowers();
+		release.countDown();
+
+		assertEquals("value1", leader.get(10, TimeUnit.SECONDS));
+		for (Future<String> follower : followers) {
+			assertEquals("value1", follower.get(10, TimeUnit.SECONDS));
+		}
+		assertEquals(1, loads.get());
+		assertEquals(0, flights.inFlight());
+
+	}
+
+	@Test
+	public void followersReceiveTheException() throws Exception {
+
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		IllegalStateException failure = new IllegalStateException("failed");
+		startLoad(started, release, new AtomicInteger(), failure);
+		assertEquals(true, started.await(10, TimeUnit.SECONDS));
+
+		Future<String> follower = executor.submit(() -> flights.load("key1", () -> "other", 10000));
+		awaitFollowers();
+		release.countDown();
+
+		try {
+			follower.get(10, TimeUnit.SECONDS);
+			fail("Expected IllegalStateException");
+		} catch (ExecutionException e) {
+			assertSame(failure, e.getCause());
+		}
+
+	}
+
+	@Test
+	public void followersTimeOut() throws Exception {
+
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		startLoad(started, release, new AtomicInteger(), null);
+		assertEquals(true, started.await(10, TimeUnit.SECONDS));
+
+		try {
+			flights.load("key1", () -> "other", 50);
+			fail("Expected TimeoutException");
+		} catch (TimeoutException e) {
+			assertEquals(1, flights.inFlight());
+		} finally {
+			release.countDown();
+		}
+
+	}
+
+	@Test
+	public void loadsAgainOnceFinished() throws Exception {
+
+		assertEquals("value1", flights.load("key1", () -> "value1", 10000));
+		assertEquals("value2", flights.load("key1", () -> "value2", 10000));
+		assertEquals(null, flights.load("key2", () -> null, 10000));
+		assertEquals(0, flights.inFlight());
+
+	}
+
+}